@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch;
+
+import com.jcraft.jsch.JSch;
+import com.rabbitmq.client.ConnectionFactory;
+import com.simple.sftpfetch.decrypt.FileDecrypter;
+import com.simple.sftpfetch.decrypt.NoopDecrypter;
+import com.simple.sftpfetch.decrypt.PGPFileDecrypter;
+import com.simple.sftpfetch.decrypt.PGPTestKeys;
+import com.simple.sftpfetch.publish.AmqpStub;
+import com.simple.sftpfetch.publish.RabbitClient;
+import com.simple.sftpfetch.publish.RabbitConnectionInfo;
+import com.simple.sftpfetch.publish.S3;
+import com.simple.sftpfetch.publish.S3Stub;
+import com.simple.sftpfetch.sftp.EmbeddedSftpServer;
+import com.simple.sftpfetch.sftp.SftpClient;
+import com.simple.sftpfetch.sftp.SftpConnectionInfo;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Runs {@link App} end to end against an embedded SFTP server, an S3 stub and an AMQP stub, all on localhost, and
+ * reports files/s, MB/s, the latency percentiles of each stage and the peak heap.
+ *
+ * The SFTP folder is seeded with synthetic files whose sizes follow the given distribution, optionally encrypted.
+ * Nothing leaves the machine, so the numbers are comparable between runs on the same hardware.
+ */
+public class EndToEndBenchmark {
+    private static final String BUCKET = "sftp_fetch_benchmark";
+    private static final String FOLDER = "OUT";
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("f", "files", true, "Number of files to seed, default 200");
+        options.addOption("s", "sizes", true, "Size distribution: fixed:<size>, uniform:<min>-<max> or lognormal:<median>:<sigma>, default lognormal:256KB:1.5");
+        options.addOption("w", "workers", true, "Number of workers, default 4");
+        options.addOption("r", "runs", true, "Number of runs over the same files, default 3");
+        options.addOption("e", "encrypt", false, "Encrypt the files with a generated PGP key");
+        options.addOption("t", "streaming", false, "Stream files from SFTP to S3");
+        options.addOption("p", "pipeline", true, "Run as a pipeline with the given download, decrypt, upload and publish threads and queue size, e.g. 4,2,4,1,4");
+        options.addOption("v", "virtual", false, "Process every file on a virtual thread of its own, limited by permits");
+        options.addOption("l", "adaptive", false, "Learn how many files to download and upload at once, up to the workers");
+        options.addOption("o", "order", true, "Order to take the files in: listed, largest, oldest or smallest, default listed");
+        options.addOption("a", "confirms", false, "Wait for publisher confirms");
+        options.addOption("x", "seed", true, "Seed for the file sizes and contents, default 1");
+        CommandLine commandLine = new PosixParser().parse(options, args);
+
+        int files = Integer.valueOf(commandLine.getOptionValue("f", "200"));
+        String sizes = commandLine.getOptionValue("s", "lognormal:256KB:1.5");
+        int workers = Integer.valueOf(commandLine.getOptionValue("w", "4"));
+        int runs = Integer.valueOf(commandLine.getOptionValue("r", "3"));
+        long seed = Long.valueOf(commandLine.getOptionValue("x", "1"));
+        PipelineSettings pipeline = null;
+        if (commandLine.hasOption("p")) {
+            String[] stages = commandLine.getOptionValue("p").split(",");
+            pipeline = new PipelineSettings(Integer.valueOf(stages[0]), Integer.valueOf(stages[1]), Integer.valueOf(stages[2]),
+                    Integer.valueOf(stages[3]), Integer.valueOf(stages[4]));
+        }
+
+        Security.addProvider(new BouncyCastleProvider());
+        File root = File.createTempFile("benchmark", ".sftp");
+        root.delete();
+        File folder = new File(root, FOLDER);
+        if (!folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+
+        FileDecrypter decrypter = new NoopDecrypter();
+        PGPTestKeys keys = null;
+        if (commandLine.hasOption("e")) {
+            keys = new PGPTestKeys();
+            decrypter = new PGPFileDecrypter(keys.writeSecretKey());
+        }
+        long bytes = seed(folder, files, sizes, seed, keys);
+        System.out.println("Seeded " + files + " files, " + bytes / 1024 + " KB" + (keys == null ? "" : " encrypted"));
+
+        EmbeddedSftpServer sftpServer = new EmbeddedSftpServer(root);
+        S3Stub s3Stub = new S3Stub(BUCKET);
+        AmqpStub amqpStub = new AmqpStub();
+        sftpServer.start();
+        s3Stub.start();
+        amqpStub.start();
+        SftpClient sftp = null;
+        S3 s3 = null;
+        RabbitClient rabbit = null;
+        try {
+            SftpConnectionInfo sftpInfo = sftpServer.connectionInfo(FOLDER, Math.max(workers, pipeline == null ? 0 : pipeline.getDownloadThreads()) + 1);
+            sftp = new SftpClient(new JSch(), sftpInfo);
+            s3 = new S3(s3Stub.client(), BUCKET);
+            RabbitConnectionInfo rabbitInfo = new RabbitConnectionInfo("127.0.0.1", amqpStub.getPort(), "/", "benchmark",
+                    RabbitConnectionInfo.DEFAULT_TIMEOUT, "guest", "guest");
+            rabbitInfo.setConfirms(commandLine.hasOption("a"), RabbitConnectionInfo.DEFAULT_CONFIRM_WINDOW,
+                    RabbitConnectionInfo.DEFAULT_CONFIRM_TIMEOUT, RabbitConnectionInfo.DEFAULT_CONFIRM_RETRIES);
+            rabbit = new RabbitClient(new ConnectionFactory(), rabbitInfo);
+
+            App app = new App(sftp, s3, rabbit, decrypter, new PrintStream(new Discard()));
+            app.setWorkers(workers);
+            app.setStreaming(commandLine.hasOption("t"));
+            app.setPipeline(pipeline);
+            app.setOrder(FileOrder.forSetting(commandLine.getOptionValue("o", "listed")));
+            if (commandLine.hasOption("l")) {
+                app.setAdaptiveLimits(new AdaptiveLimitSettings(new Properties()));
+            }
+            if (commandLine.hasOption("v")) {
+                app.setVirtualThreads(new VirtualThreadSettings(new Properties()));
+            }
+            for (int run = 1; run <= runs; run++) {
+                StageTimes times = new StageTimes();
+                app.setStageListener(times);
+                long published = amqpStub.getPublished();
+                System.gc();
+                resetPeakHeap();
+                long start = System.nanoTime();
+                app.run("benchmark", 1, App.MATCH_EVERYTHING, false, true);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                if (amqpStub.getPublished() - published != files) {
+                    throw new IllegalStateException("Published " + (amqpStub.getPublished() - published) + " of " + files + " files");
+                }
+                report(run, files, bytes, seconds, times);
+            }
+        } finally {
+            if (rabbit != null) {
+                rabbit.close();
+            }
+            if (s3 != null) {
+                s3.close();
+            }
+            if (sftp != null) {
+                sftp.close();
+            }
+            amqpStub.stop();
+            s3Stub.stop();
+            sftpServer.stop();
+            delete(root);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Write the files, returning their total size on the server
+     */
+    private static long seed(File folder, int files, String sizes, long seed, PGPTestKeys keys) throws Exception {
+        Random random = new Random(seed);
+        long total = 0;
+        for (int i = 0; i < files; i++) {
+            long size = size(sizes, random);
+            File file = new File(folder, String.format("file-%05d.csv", i));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                SyntheticRows rows = new SyntheticRows(size, seed + i);
+                if (keys == null) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = rows.read(buffer, 0, buffer.length)) >= 0) {
+                        out.write(buffer, 0, read);
+                    }
+                } else {
+                    keys.encrypt(rows, size, out, SymmetricKeyAlgorithmTags.AES_128, CompressionAlgorithmTags.ZIP, true);
+                }
+            } finally {
+                out.close();
+            }
+            total += file.length();
+        }
+        return total;
+    }
+
+    static long size(String distribution, Random random) {
+        String[] parts = distribution.split(":");
+        if (parts[0].equals("fixed") && parts.length == 2) {
+            return bytes(parts[1]);
+        } else if (parts[0].equals("uniform") && parts.length == 2) {
+            String[] range = parts[1].split("-");
+            long min = bytes(range[0]);
+            long max = bytes(range[1]);
+            return min + (long) (random.nextDouble() * (max - min + 1));
+        } else if (parts[0].equals("lognormal") && parts.length == 3) {
+            double median = bytes(parts[1]);
+            double sigma = Double.valueOf(parts[2]);
+            return Math.max(1, (long) (median * Math.exp(sigma * random.nextGaussian())));
+        }
+        throw new IllegalArgumentException("Unknown size distribution: " + distribution);
+    }
+
+    static long bytes(String size) {
+        String upper = size.trim().toUpperCase();
+        long multiplier = 1;
+        if (upper.endsWith("KB")) {
+            multiplier = 1024;
+        } else if (upper.endsWith("MB")) {
+            multiplier = 1024 * 1024;
+        } else if (upper.endsWith("GB")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier > 1) {
+            upper = upper.substring(0, upper.length() - 2);
+        }
+        return Long.valueOf(upper.trim()) * multiplier;
+    }
+
+    private static void report(int run, int files, long bytes, double seconds, StageTimes times) {
+        System.out.println(String.format("Run %d: %d files in %.2fs, %.1f files/s, %.1f MB/s, peak heap %d MB",
+                run, files, seconds, files / seconds, bytes / 1e6 / seconds, peakHeap() / (1024 * 1024)));
+        System.out.println(String.format("  %-9s %7s %9s %9s %9s %9s", "stage", "count", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (Map.Entry<StageListener.Stage, List<Long>> stage : times.sorted().entrySet()) {
+            List<Long> nanos = stage.getValue();
+            System.out.println(String.format("  %-9s %7d %9.2f %9.2f %9.2f %9.2f", stage.getKey(), nanos.size(),
+                    percentile(nanos, 0.5), percentile(nanos, 0.9), percentile(nanos, 0.99), percentile(nanos, 1.0)));
+        }
+    }
+
+    private static double percentile(List<Long> sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Collects the time every stage took
+     */
+    private static class StageTimes implements StageListener {
+        private final Map<Stage, List<Long>> times = new EnumMap<Stage, List<Long>>(Stage.class);
+
+        @Override
+        public synchronized void completed(Stage stage, String source, String filename, long nanos, long bytes) {
+            List<Long> stageTimes = times.get(stage);
+            if (stageTimes == null) {
+                stageTimes = new ArrayList<Long>();
+                times.put(stage, stageTimes);
+            }
+            stageTimes.add(nanos);
+        }
+
+        @Override
+        public void published(String source, String filename, long lagMillis) {
+            // the seeded files are all as old as the harness, so their lag says nothing
+        }
+
+        @Override
+        public void retried(Stage stage, String source, String filename) {
+        }
+
+        @Override
+        public void queued(Stage stage, int depth) {
+        }
+
+        @Override
+        public void limited(Stage stage, String source, int limit) {
+        }
+
+        @Override
+        public void finished(String source, String filename, Outcome outcome, Exception failure) {
+        }
+
+        @Override
+        public void runCompleted(long nanos) {
+        }
+
+        synchronized Map<Stage, List<Long>> sorted() {
+            Map<Stage, List<Long>> sorted = new EnumMap<Stage, List<Long>>(Stage.class);
+            for (Map.Entry<Stage, List<Long>> stage : times.entrySet()) {
+                List<Long> nanos = new ArrayList<Long>(stage.getValue());
+                Collections.sort(nanos);
+                sorted.put(stage.getKey(), nanos);
+            }
+            return sorted;
+        }
+    }
+
+    /**
+     * Throws away the progress App reports for every file
+     */
+    private static class Discard extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
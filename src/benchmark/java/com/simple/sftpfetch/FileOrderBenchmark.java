@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch;
+
+import com.jcraft.jsch.JSch;
+import com.rabbitmq.client.ConnectionFactory;
+import com.simple.sftpfetch.decrypt.NoopDecrypter;
+import com.simple.sftpfetch.publish.AmqpStub;
+import com.simple.sftpfetch.publish.RabbitClient;
+import com.simple.sftpfetch.publish.RabbitConnectionInfo;
+import com.simple.sftpfetch.publish.S3;
+import com.simple.sftpfetch.publish.S3Stub;
+import com.simple.sftpfetch.sftp.EmbeddedSftpServer;
+import com.simple.sftpfetch.sftp.SftpClient;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.Handle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the time a whole run takes, its makespan, when each {@link FileOrder} is used to fetch a skewed mix of a
+ * few large files and many small ones with several workers.
+ *
+ * Every open file is held to the same bandwidth, as a channel over a high latency link is, so that the time a file
+ * takes follows its size and the order the workers take the files in decides when the last one finishes. The
+ * bandwidth has to stay below what a channel manages on loopback, a few MB/s with the bundled JSch, for that to hold.
+ */
+public class FileOrderBenchmark {
+    private static final String BUCKET = "sftp_fetch_benchmark";
+    private static final String FOLDER = "OUT";
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("f", "files", true, "Number of small files, default 100");
+        options.addOption("s", "small", true, "Median size of the small files, lognormal, default 16KB");
+        options.addOption("l", "large", true, "Number of large files, default 6");
+        options.addOption("L", "large-size", true, "Largest size of the large files, which are uniform from a quarter of it, default 4MB");
+        options.addOption("w", "workers", true, "Number of workers, default 4");
+        options.addOption("b", "bandwidth", true, "Bandwidth of each SFTP channel in MB/s, default 1");
+        options.addOption("r", "runs", true, "Number of runs under each order, default 3");
+        options.addOption("x", "seed", true, "Seed for the file sizes, names and modification times, default 1");
+        CommandLine commandLine = new PosixParser().parse(options, args);
+
+        int smallFiles = Integer.valueOf(commandLine.getOptionValue("f", "100"));
+        long smallSize = EndToEndBenchmark.bytes(commandLine.getOptionValue("s", "16KB"));
+        int largeFiles = Integer.valueOf(commandLine.getOptionValue("l", "6"));
+        long largeSize = EndToEndBenchmark.bytes(commandLine.getOptionValue("L", "4MB"));
+        int workers = Integer.valueOf(commandLine.getOptionValue("w", "4"));
+        double bandwidth = Double.valueOf(commandLine.getOptionValue("b", "1")) * 1024 * 1024;
+        int runs = Integer.valueOf(commandLine.getOptionValue("r", "3"));
+        long seed = Long.valueOf(commandLine.getOptionValue("x", "1"));
+
+        File root = File.createTempFile("benchmark", ".sftp");
+        root.delete();
+        File folder = new File(root, FOLDER);
+        if (!folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+        List<Long> sizes = sizes(smallFiles, smallSize, largeFiles, largeSize, new Random(seed));
+        long bytes = seed(folder, sizes, seed);
+        int files = sizes.size();
+        double lowerBound = Math.max(Collections.max(sizes), (double) bytes / workers) / bandwidth;
+        System.out.println(String.format("Seeded %d small and %d large files, %d KB, at %.1f MB/s per channel no run can take less than %.2fs",
+                smallFiles, largeFiles, bytes / 1024, bandwidth / 1024 / 1024, lowerBound));
+
+        EmbeddedSftpServer sftpServer = new EmbeddedSftpServer(root);
+        sftpServer.addListener(new Throttle(bandwidth));
+        S3Stub s3Stub = new S3Stub(BUCKET);
+        AmqpStub amqpStub = new AmqpStub();
+        sftpServer.start();
+        s3Stub.start();
+        amqpStub.start();
+        SftpClient sftp = null;
+        S3 s3 = null;
+        RabbitClient rabbit = null;
+        try {
+            sftp = new SftpClient(new JSch(), sftpServer.connectionInfo(FOLDER, workers + 1));
+            s3 = new S3(s3Stub.client(), BUCKET);
+            RabbitConnectionInfo rabbitInfo = new RabbitConnectionInfo("127.0.0.1", amqpStub.getPort(), "/", "benchmark",
+                    RabbitConnectionInfo.DEFAULT_TIMEOUT, "guest", "guest");
+            // a run only ends once the last file is confirmed, so that its makespan covers every file
+            rabbitInfo.setConfirms(true, RabbitConnectionInfo.DEFAULT_CONFIRM_WINDOW,
+                    RabbitConnectionInfo.DEFAULT_CONFIRM_TIMEOUT, RabbitConnectionInfo.DEFAULT_CONFIRM_RETRIES);
+            rabbit = new RabbitClient(new ConnectionFactory(), rabbitInfo);
+            App app = new App(sftp, s3, rabbit, new NoopDecrypter(), new PrintStream(new Discard()));
+            app.setWorkers(workers);
+
+            // a run to warm up the connections and the JIT, which no order should be charged for
+            app.run("benchmark", 1, App.MATCH_EVERYTHING, false, true);
+            System.out.println(String.format("  %-9s %9s %9s %9s %9s", "order", "min s", "median s", "max s", "vs bound"));
+            for (FileOrder order : FileOrder.values()) {
+                app.setOrder(order);
+                List<Double> makespans = new ArrayList<Double>();
+                for (int run = 0; run < runs; run++) {
+                    long published = amqpStub.getPublished();
+                    long start = System.nanoTime();
+                    app.run("benchmark", 1, App.MATCH_EVERYTHING, false, true);
+                    makespans.add((System.nanoTime() - start) / 1e9);
+                    if (amqpStub.getPublished() - published != files) {
+                        throw new IllegalStateException("Published " + (amqpStub.getPublished() - published) + " of " + files + " files");
+                    }
+                }
+                Collections.sort(makespans);
+                double median = makespans.get(makespans.size() / 2);
+                System.out.println(String.format("  %-9s %9.2f %9.2f %9.2f %8.2fx", order.name().toLowerCase(),
+                        makespans.get(0), median, makespans.get(makespans.size() - 1), median / lowerBound));
+            }
+        } finally {
+            if (rabbit != null) {
+                rabbit.close();
+            }
+            if (s3 != null) {
+                s3.close();
+            }
+            if (sftp != null) {
+                sftp.close();
+            }
+            amqpStub.stop();
+            s3Stub.stop();
+            sftpServer.stop();
+            delete(root);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Draw the sizes of the small and large files, shuffled so that the large ones are spread through the listing
+     */
+    private static List<Long> sizes(int smallFiles, long smallSize, int largeFiles, long largeSize, Random random) {
+        List<Long> sizes = new ArrayList<Long>();
+        for (int i = 0; i < smallFiles; i++) {
+            sizes.add(EndToEndBenchmark.size("lognormal:" + smallSize + ":1.0", random));
+        }
+        for (int i = 0; i < largeFiles; i++) {
+            sizes.add(largeSize / 4 + (long) (random.nextDouble() * (largeSize - largeSize / 4)));
+        }
+        Collections.shuffle(sizes, random);
+        return sizes;
+    }
+
+    /**
+     * Write the files with modification times spread over the last few hours, returning their total size
+     */
+    private static long seed(File folder, List<Long> sizes, long seed) throws IOException {
+        Random random = new Random(seed);
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            File file = new File(folder, String.format("file-%05d.csv", i));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                SyntheticRows rows = new SyntheticRows(sizes.get(i), seed + i);
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = rows.read(buffer, 0, buffer.length)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            file.setLastModified(now - (long) (random.nextDouble() * 6 * 60 * 60 * 1000));
+            total += file.length();
+        }
+        return total;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Holds the reads of every open file to the bandwidth, by delaying each read until the file's bytes so far could
+     * have arrived at that rate since it was opened. The channels are not throttled below what they manage on their own.
+     */
+    private static class Throttle implements SftpEventListener {
+        private final double nanosPerByte;
+        private final Map<String, long[]> reads = new ConcurrentHashMap<String, long[]>();
+
+        Throttle(double bandwidth) {
+            this.nanosPerByte = 1e9 / bandwidth;
+        }
+
+        @Override
+        public void open(ServerSession session, String remoteHandle, Handle localHandle) {
+            reads.put(remoteHandle, new long[]{System.nanoTime(), 0});
+        }
+
+        @Override
+        public void read(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset,
+                         int dataLen, int readLen, Throwable thrown) {
+            long[] read = reads.get(remoteHandle);
+            if (read == null || readLen <= 0) {
+                return;
+            }
+            // the response only goes out once this returns, as if the bytes were still on their way
+            read[1] += readLen;
+            long due = read[0] + (long) (read[1] * nanosPerByte);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+
+        @Override
+        public void closed(ServerSession session, String remoteHandle, Handle localHandle, Throwable thrown) {
+            reads.remove(remoteHandle);
+        }
+    }
+
+    /**
+     * Throws away the progress App reports for every file
+     */
+    private static class Discard extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * The given number of bytes of comma separated rows of random numbers, the same for the same seed. Compresses roughly
+ * as well as the files vendors send us.
+ */
+public class SyntheticRows extends InputStream {
+    private final Random random;
+    private long remaining;
+    private byte[] row = new byte[0];
+    private int position;
+
+    public SyntheticRows(long size, long seed) {
+        this.remaining = size;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public int read() {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (remaining == 0) {
+            return -1;
+        }
+        int read = 0;
+        while (read < len && remaining > 0) {
+            if (position == row.length) {
+                row = (random.nextInt(100000) + "," + random.nextInt(1000) + "." + random.nextInt(100)
+                        + ",ACME-" + random.nextInt(50) + ",2012-06-" + (10 + random.nextInt(20)) + "\n").getBytes();
+                position = 0;
+            }
+            int n = (int) Math.min(Math.min(len - read, row.length - position), remaining);
+            System.arraycopy(row, position, b, off + read, n);
+            position += n;
+            read += n;
+            remaining -= n;
+        }
+        return read;
+    }
+}
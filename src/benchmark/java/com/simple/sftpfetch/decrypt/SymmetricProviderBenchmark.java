@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.decrypt;
+
+import com.simple.sftpfetch.SyntheticRows;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of {@link PGPFileDecrypter} with BouncyCastle doing the bulk decryption against the JDK's
+ * provider and whichever the automatic selection picks. The messages are AES encrypted, integrity protected and
+ * uncompressed, so that the symmetric cipher dominates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SymmetricProviderBenchmark {
+    @Param({"BC", "SunJCE", "auto"})
+    public String provider;
+
+    @Param({"1048576", "67108864"})
+    public long size;
+
+    @Param({"AES_128", "AES_256"})
+    public String algorithm;
+
+    private PGPFileDecrypter decrypter;
+    private File encrypted;
+
+    @Setup(Level.Trial)
+    public void encrypt() throws Exception {
+        PGPTestKeys keys = new PGPTestKeys();
+        PGPKeyring keyring = new PGPKeyring(Collections.singletonList(keys.writeSecretKey()), new char[0], PGPKeyring.DEFAULT_RELOAD_INTERVAL);
+        decrypter = new PGPFileDecrypter(keyring, SymmetricProvider.forSetting(provider));
+        encrypted = File.createTempFile("benchmark", ".pgp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(encrypted));
+        try {
+            keys.encrypt(new SyntheticRows(size, 42), size, out, SymmetricKeyAlgorithmTags.class.getField(algorithm).getInt(null),
+                    CompressionAlgorithmTags.UNCOMPRESSED, true);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        encrypted.delete();
+    }
+
+    @Benchmark
+    public long decrypt(Throughput throughput) throws Exception {
+        InputStream in = new BufferedInputStream(new FileInputStream(encrypted));
+        Sink sink = new Sink();
+        try {
+            decrypter.decrypt(in, sink);
+        } finally {
+            in.close();
+        }
+        if (sink.count != size) {
+            throw new IOException("Decrypted " + sink.count + " of " + size + " bytes");
+        }
+        throughput.megabytes += size / 1e6;
+        return sink.count;
+    }
+
+    /**
+     * The megabytes decrypted, reported by JMH as a rate alongside the operations per second
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    /**
+     * Counts what is written to it and throws it away
+     */
+    private static class Sink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
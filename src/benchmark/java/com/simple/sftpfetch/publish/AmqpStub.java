@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.publish;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of an AMQP 0-9-1 broker on localhost for {@link RabbitClient} to connect, declare its exchange, turn on
+ * publisher confirms and publish. Every message is acknowledged as soon as its body has arrived and then dropped.
+ */
+public class AmqpStub {
+    private static final int FRAME_METHOD = 1;
+    private static final int FRAME_HEADER = 2;
+    private static final int FRAME_BODY = 3;
+    private static final int FRAME_END = 0xCE;
+    private static final int FRAME_MAX = 131072;
+
+    private final ServerSocket server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicLong published = new AtomicLong();
+    private volatile boolean stopped;
+
+    public AmqpStub() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!stopped) {
+                    try {
+                        final Socket socket = server.accept();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // stopped
+                    }
+                }
+            }
+        });
+    }
+
+    public void stop() throws IOException {
+        stopped = true;
+        server.close();
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the number of messages published since the stub was started
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            new Connection(socket).run();
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A single client connection, with the state of each of its channels
+     */
+    private class Connection {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Map<Integer, Channel> channels = new HashMap<Integer, Channel>();
+
+        Connection(Socket socket) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void run() throws IOException {
+            byte[] header = new byte[8];
+            in.readFully(header);
+            if (header[0] != 'A' || header[1] != 'M' || header[2] != 'Q' || header[3] != 'P') {
+                throw new IOException("Not an AMQP client");
+            }
+            send(0, method(10, 10).octet(0).octet(9).table().longString("PLAIN").longString("en_US"));
+
+            while (true) {
+                int type = in.readUnsignedByte();
+                int number = in.readUnsignedShort();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                if (in.readUnsignedByte() != FRAME_END) {
+                    throw new IOException("Malformed frame");
+                }
+                if (type == FRAME_METHOD) {
+                    if (!handle(number, new DataInputStream(new ByteArrayInputStream(payload)))) {
+                        return;
+                    }
+                } else if (type == FRAME_HEADER) {
+                    Channel channel = channels.get(number);
+                    channel.remaining = new DataInputStream(new ByteArrayInputStream(payload, 4, 8)).readLong();
+                    if (channel.remaining == 0) {
+                        published(number, channel);
+                    }
+                } else if (type == FRAME_BODY) {
+                    Channel channel = channels.get(number);
+                    channel.remaining -= payload.length;
+                    if (channel.remaining <= 0) {
+                        published(number, channel);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false once the connection is closed
+         */
+        private boolean handle(int number, DataInputStream args) throws IOException {
+            int classId = args.readUnsignedShort();
+            int methodId = args.readUnsignedShort();
+            switch (classId * 1000 + methodId) {
+                case 10011: // connection.start-ok
+                    send(0, method(10, 30).shortInt(2047).longInt(FRAME_MAX).shortInt(0));
+                    break;
+                case 10040: // connection.open
+                    send(0, method(10, 41).shortString(""));
+                    break;
+                case 10050: // connection.close
+                    send(0, method(10, 51));
+                    return false;
+                case 10051: // connection.close-ok
+                    return false;
+                case 20010: // channel.open
+                    channels.put(number, new Channel());
+                    send(number, method(20, 11).longString(""));
+                    break;
+                case 20040: // channel.close
+                    channels.remove(number);
+                    send(number, method(20, 41));
+                    break;
+                case 40010: // exchange.declare
+                    args.readUnsignedShort();
+                    skipShortString(args);
+                    skipShortString(args);
+                    if ((args.readUnsignedByte() & 0x10) == 0) {
+                        send(number, method(40, 11));
+                    }
+                    break;
+                case 85010: // confirm.select
+                    channels.get(number).confirming = true;
+                    if ((args.readUnsignedByte() & 0x01) == 0) {
+                        send(number, method(85, 11));
+                    }
+                    break;
+                default:
+                    // basic.publish is followed by a header and body, everything else needs no answer
+                    break;
+            }
+            return true;
+        }
+
+        private void published(int number, Channel channel) throws IOException {
+            published.incrementAndGet();
+            if (channel.confirming) {
+                send(number, method(60, 80).longLong(++channel.deliveryTag).octet(0));
+            }
+        }
+
+        private void send(int channel, Method method) throws IOException {
+            byte[] payload = method.toByteArray();
+            out.writeByte(FRAME_METHOD);
+            out.writeShort(channel);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeByte(FRAME_END);
+            out.flush();
+        }
+
+        private void skipShortString(DataInputStream args) throws IOException {
+            int length = args.readUnsignedByte();
+            if (args.skipBytes(length) != length) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static class Channel {
+        boolean confirming;
+        long deliveryTag;
+        long remaining;
+    }
+
+    private static Method method(int classId, int methodId) throws IOException {
+        return new Method().shortInt(classId).shortInt(methodId);
+    }
+
+    /**
+     * The arguments of a method frame
+     */
+    private static class Method extends ByteArrayOutputStream {
+        private final DataOutputStream data = new DataOutputStream(this);
+
+        Method octet(int value) throws IOException {
+            data.writeByte(value);
+            return this;
+        }
+
+        Method shortInt(int value) throws IOException {
+            data.writeShort(value);
+            return this;
+        }
+
+        Method longInt(int value) throws IOException {
+            data.writeInt(value);
+            return this;
+        }
+
+        Method longLong(long value) throws IOException {
+            data.writeLong(value);
+            return this;
+        }
+
+        Method shortString(String value) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            data.writeByte(bytes.length);
+            data.write(bytes);
+            return this;
+        }
+
+        Method longString(String value) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            data.writeInt(bytes.length);
+            data.write(bytes);
+            return this;
+        }
+
+        Method table() throws IOException {
+            data.writeInt(0);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.publish;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of S3 on localhost for {@link S3} to check its bucket, list keys, look keys up and upload, in one piece
+ * or in parts. Uploaded content is hashed for its ETag and dropped, only the size is kept.
+ *
+ * HTTP is spoken directly over sockets because the client looks up response headers case-sensitively, and the JDK's
+ * HTTP server changes their case.
+ */
+public class S3Stub {
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String NAMESPACE = " xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"";
+    private static final String LAST_MODIFIED = "2012-06-01T00:00:00.000Z";
+
+    private final String bucket;
+    private final ServerSocket server;
+    private volatile boolean stopped;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final SortedMap<String, StoredObject> objects = new TreeMap<String, StoredObject>();
+    private final Map<String, SortedMap<Integer, StoredObject>> uploads = new ConcurrentHashMap<String, SortedMap<Integer, StoredObject>>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * @param bucket the only bucket, which must not be a valid host name so the client addresses it in the path
+     */
+    public S3Stub(String bucket) throws IOException {
+        this.bucket = bucket;
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!stopped) {
+                    try {
+                        final Socket socket = server.accept();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // stopped
+                    }
+                }
+            }
+        });
+    }
+
+    public void stop() throws IOException {
+        stopped = true;
+        server.close();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return a client talking to this stub
+     */
+    public AmazonS3Client client() {
+        AmazonS3Client client = new AmazonS3Client(new SuppliedAWSCredentials("stub", "stub"));
+        client.setEndpoint("http://127.0.0.1:" + server.getLocalPort());
+        return client;
+    }
+
+    /**
+     * @return the number of bytes uploaded since the stub was started
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of objects in the bucket
+     */
+    public synchronized int size() {
+        return objects.size();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Exchange exchange;
+            while ((exchange = Exchange.read(in, out)) != null) {
+                handle(exchange);
+                drain(exchange.body, null);
+                out.flush();
+                if ("close".equalsIgnoreCase(exchange.requestHeaders.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handle(Exchange exchange) throws IOException {
+        String method = exchange.method;
+        String path = URLDecoder.decode(exchange.rawPath, "UTF-8");
+        Map<String, String> query = query(exchange.rawQuery);
+        String prefix = "/" + bucket;
+        if (!path.equals(prefix) && !path.startsWith(prefix + "/")) {
+            error(exchange, 404, "NoSuchBucket");
+            return;
+        }
+        String key = path.length() > prefix.length() + 1 ? path.substring(prefix.length() + 1) : null;
+
+        if (key == null) {
+            if (query.containsKey("location")) {
+                respond(exchange, 200, XML + "<LocationConstraint" + NAMESPACE + "/>");
+            } else if (query.containsKey("acl")) {
+                respond(exchange, 200, XML + "<AccessControlPolicy" + NAMESPACE + "><Owner><ID>stub</ID><DisplayName>stub</DisplayName></Owner>"
+                        + "<AccessControlList/></AccessControlPolicy>");
+            } else if (method.equals("HEAD")) {
+                respond(exchange, 200, null);
+            } else {
+                list(exchange, query);
+            }
+        } else if (method.equals("HEAD")) {
+            StoredObject object;
+            synchronized (this) {
+                object = objects.get(key);
+            }
+            if (object == null) {
+                error(exchange, 404, "NoSuchKey");
+            } else {
+                exchange.header("ETag", "\"" + object.eTag + "\"");
+                exchange.header("Last-Modified", "Fri, 01 Jun 2012 00:00:00 GMT");
+                exchange.header("Content-Length", String.valueOf(object.size));
+                exchange.send(200, null);
+            }
+        } else if (method.equals("PUT") && query.containsKey("uploadId")) {
+            StoredObject part = receive(exchange);
+            SortedMap<Integer, StoredObject> parts = uploads.get(query.get("uploadId"));
+            if (parts == null) {
+                error(exchange, 404, "NoSuchUpload");
+                return;
+            }
+            synchronized (parts) {
+                parts.put(Integer.valueOf(query.get("partNumber")), part);
+            }
+            exchange.header("ETag", "\"" + part.eTag + "\"");
+            respond(exchange, 200, null);
+        } else if (method.equals("PUT")) {
+            StoredObject object = receive(exchange);
+            synchronized (this) {
+                objects.put(key, object);
+            }
+            exchange.header("ETag", "\"" + object.eTag + "\"");
+            respond(exchange, 200, null);
+        } else if (method.equals("POST") && query.containsKey("uploads")) {
+            String uploadId = "upload-" + uploadIds.incrementAndGet();
+            uploads.put(uploadId, new TreeMap<Integer, StoredObject>());
+            respond(exchange, 200, XML + "<InitiateMultipartUploadResult" + NAMESPACE + "><Bucket>" + bucket + "</Bucket><Key>"
+                    + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if (method.equals("POST") && query.containsKey("uploadId")) {
+            drain(exchange.body, null);
+            SortedMap<Integer, StoredObject> parts = uploads.remove(query.get("uploadId"));
+            if (parts == null) {
+                error(exchange, 404, "NoSuchUpload");
+                return;
+            }
+            StringBuilder eTags = new StringBuilder();
+            long size = 0;
+            synchronized (parts) {
+                for (StoredObject part : parts.values()) {
+                    eTags.append(part.eTag);
+                    size += part.size;
+                }
+            }
+            StoredObject object = new StoredObject(md5(eTags.toString().getBytes("UTF-8")) + "-" + parts.size(), size);
+            synchronized (this) {
+                objects.put(key, object);
+            }
+            respond(exchange, 200, XML + "<CompleteMultipartUploadResult" + NAMESPACE + "><Location>http://127.0.0.1/" + bucket + "/"
+                    + escape(key) + "</Location><Bucket>" + bucket + "</Bucket><Key>" + escape(key) + "</Key><ETag>\""
+                    + object.eTag + "\"</ETag></CompleteMultipartUploadResult>");
+        } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+            uploads.remove(query.get("uploadId"));
+            exchange.send(204, null);
+        } else {
+            error(exchange, 405, "MethodNotAllowed");
+        }
+    }
+
+    private void list(Exchange exchange, Map<String, String> query) throws IOException {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String marker = query.containsKey("marker") ? query.get("marker") : "";
+        int maxKeys = query.containsKey("max-keys") ? Integer.valueOf(query.get("max-keys")) : 1000;
+        StringBuilder contents = new StringBuilder();
+        boolean truncated = false;
+        int count = 0;
+        synchronized (this) {
+            for (Map.Entry<String, StoredObject> entry : objects.tailMap(marker + "\0").entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) {
+                    continue;
+                }
+                if (count == maxKeys) {
+                    truncated = true;
+                    break;
+                }
+                contents.append("<Contents><Key>").append(escape(entry.getKey())).append("</Key><LastModified>")
+                        .append(LAST_MODIFIED).append("</LastModified><ETag>\"").append(entry.getValue().eTag)
+                        .append("\"</ETag><Size>").append(entry.getValue().size)
+                        .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+                count++;
+            }
+        }
+        respond(exchange, 200, XML + "<ListBucketResult" + NAMESPACE + "><Name>" + bucket + "</Name><Prefix>" + escape(prefix)
+                + "</Prefix><Marker>" + escape(marker) + "</Marker><MaxKeys>" + maxKeys + "</MaxKeys><IsTruncated>"
+                + truncated + "</IsTruncated>" + contents + "</ListBucketResult>");
+    }
+
+    private StoredObject receive(Exchange exchange) throws IOException {
+        MessageDigest digest = digest();
+        long size = drain(exchange.body, digest);
+        received.addAndGet(size);
+        return new StoredObject(String.format("%032x", new BigInteger(1, digest.digest())), size);
+    }
+
+    private static long drain(InputStream in, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long size = 0;
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (digest != null) {
+                digest.update(buffer, 0, read);
+            }
+            size += read;
+        }
+        return size;
+    }
+
+    private static void respond(Exchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.send(status, null);
+            return;
+        }
+        exchange.header("Content-Type", "application/xml");
+        exchange.send(status, body.getBytes("UTF-8"));
+    }
+
+    private static void error(Exchange exchange, int status, String code) throws IOException {
+        drain(exchange.body, null);
+        if (exchange.method.equals("HEAD")) {
+            exchange.send(status, null);
+        } else {
+            respond(exchange, status, XML + "<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>");
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                query.put(URLDecoder.decode(parameter, "UTF-8"), "");
+            } else {
+                query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String md5(byte[] bytes) {
+        return String.format("%032x", new BigInteger(1, digest().digest(bytes)));
+    }
+
+    private static class StoredObject {
+        final String eTag;
+        final long size;
+
+        StoredObject(String eTag, long size) {
+            this.eTag = eTag;
+            this.size = size;
+        }
+    }
+
+    /**
+     * One HTTP/1.1 request and its response, with header names written exactly as given
+     */
+    private static class Exchange {
+        String method;
+        String rawPath;
+        String rawQuery;
+        final Map<String, String> requestHeaders = new HashMap<String, String>();
+        InputStream body;
+        private final Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+        private OutputStream out;
+
+        /**
+         * @return the next request on the connection, or null once the client has closed it
+         */
+        static Exchange read(InputStream in, OutputStream out) throws IOException {
+            String requestLine = line(in);
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("Malformed request line: " + requestLine);
+            }
+            Exchange exchange = new Exchange();
+            exchange.out = out;
+            exchange.method = parts[0];
+            int question = parts[1].indexOf('?');
+            exchange.rawPath = question < 0 ? parts[1] : parts[1].substring(0, question);
+            exchange.rawQuery = question < 0 ? null : parts[1].substring(question + 1);
+            String header;
+            while ((header = line(in)) != null && header.length() > 0) {
+                int colon = header.indexOf(':');
+                if (colon > 0) {
+                    exchange.requestHeaders.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+                }
+            }
+            if ("100-continue".equalsIgnoreCase(exchange.requestHeaders.get("expect"))) {
+                out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+                out.flush();
+            }
+            if ("chunked".equalsIgnoreCase(exchange.requestHeaders.get("transfer-encoding"))) {
+                exchange.body = new Chunked(in);
+            } else {
+                String length = exchange.requestHeaders.get("content-length");
+                exchange.body = new Bounded(in, length == null ? 0 : Long.parseLong(length));
+            }
+            return exchange;
+        }
+
+        void header(String name, String value) {
+            responseHeaders.put(name, value);
+        }
+
+        /**
+         * Writes the response, the content length defaults to the length of the body
+         */
+        void send(int status, byte[] content) throws IOException {
+            if (!responseHeaders.containsKey("Content-Length")) {
+                responseHeaders.put("Content-Length", String.valueOf(content == null ? 0 : content.length));
+            }
+            StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(status < 300 ? " OK" : " Error").append("\r\n");
+            for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes("ISO-8859-1"));
+            if (content != null && !method.equals("HEAD")) {
+                out.write(content);
+            }
+        }
+
+        private static String line(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            if (b < 0 && line.size() == 0) {
+                return null;
+            }
+            return line.toString("ISO-8859-1");
+        }
+    }
+
+    /**
+     * A request body of known length
+     */
+    private static class Bounded extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        Bounded(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * A request body sent with chunked transfer encoding
+     */
+    private static class Chunked extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        private boolean finished;
+
+        Chunked(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (remaining == 0) {
+                String size = Exchange.line(in);
+                if (size == null) {
+                    throw new EOFException();
+                }
+                int extension = size.indexOf(';');
+                remaining = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+                if (remaining == 0) {
+                    String trailer;
+                    while ((trailer = Exchange.line(in)) != null && trailer.length() > 0) {
+                        // trailers are ignored
+                    }
+                    finished = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            remaining -= read;
+            if (remaining == 0) {
+                Exchange.line(in);
+            }
+            return read;
+        }
+    }
+}
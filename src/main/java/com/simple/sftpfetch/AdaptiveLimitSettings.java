@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simple.sftpfetch;
+
+import java.util.Properties;
+
+/**
+ * Hold the settings of the limiters that learn how many files each source may download, and upload, at once
+ */
+public class AdaptiveLimitSettings {
+    public static final int DEFAULT_INITIAL = 4;
+    public static final int DEFAULT_MIN = 1;
+    public static final int DEFAULT_MAX = 32;
+    public static final double DEFAULT_BACKOFF = 0.5;
+    public static final double DEFAULT_TOLERANCE = 2.0;
+    public static final int DEFAULT_WINDOW = 10;
+
+    private int initial;
+    private int min;
+    private int max;
+    private double backoff;
+    private double tolerance;
+    private int window;
+
+    /**
+     * Initialize from the given Properties, using the following optional keys
+     *
+     * <ul>
+     *   <li>fetch.adaptive.initial (the limit to start from)</li>
+     *   <li>fetch.adaptive.min (the limit is never cut below this)</li>
+     *   <li>fetch.adaptive.max (the limit is never raised above this)</li>
+     *   <li>fetch.adaptive.backoff (the limit is multiplied by this when cut)</li>
+     *   <li>fetch.adaptive.tolerance (how many times longer than usual for their sizes transfers may take before the limit is cut)</li>
+     *   <li>fetch.adaptive.window (the fewest transfers judged together, more when the limit is higher)</li>
+     * </ul>
+     *
+     * @param properties the given properties
+     */
+    public AdaptiveLimitSettings(Properties properties) {
+        this(Integer.valueOf(properties.getProperty("fetch.adaptive.initial", String.valueOf(DEFAULT_INITIAL))),
+                Integer.valueOf(properties.getProperty("fetch.adaptive.min", String.valueOf(DEFAULT_MIN))),
+                Integer.valueOf(properties.getProperty("fetch.adaptive.max", String.valueOf(DEFAULT_MAX))),
+                Double.valueOf(properties.getProperty("fetch.adaptive.backoff", String.valueOf(DEFAULT_BACKOFF))),
+                Double.valueOf(properties.getProperty("fetch.adaptive.tolerance", String.valueOf(DEFAULT_TOLERANCE))),
+                Integer.valueOf(properties.getProperty("fetch.adaptive.window", String.valueOf(DEFAULT_WINDOW))));
+    }
+
+    public AdaptiveLimitSettings(int initial, int min, int max, double backoff, double tolerance, int window) {
+        if (min < 1 || max < min || initial < min || initial > max) {
+            throw new IllegalArgumentException("fetch.adaptive.initial must be between fetch.adaptive.min and fetch.adaptive.max,"
+                    + " which must be positive: " + initial + ", " + min + ", " + max);
+        }
+        if (backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("fetch.adaptive.backoff must be between 0 and 1: " + backoff);
+        }
+        if (tolerance <= 1) {
+            throw new IllegalArgumentException("fetch.adaptive.tolerance must be more than 1: " + tolerance);
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("fetch.adaptive.window must be positive: " + window);
+        }
+        this.initial = initial;
+        this.min = min;
+        this.max = max;
+        this.backoff = backoff;
+        this.tolerance = tolerance;
+        this.window = window;
+    }
+
+    public int getInitial() {
+        return initial;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public double getBackoff() {
+        return backoff;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+}
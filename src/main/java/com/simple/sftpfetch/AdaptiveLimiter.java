@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simple.sftpfetch;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many transfers run at once, learning the limit with additive increase and multiplicative decrease.
+ *
+ * Transfers are judged a window at a time, a window being as many transfers as the limit, or the window setting if
+ * that is more. How long a transfer takes is modelled as a fixed cost plus a cost per byte, fitted to the recent
+ * windows, so that windows of mostly small or mostly large files compare fairly. The limit goes up by one after a
+ * window that used every permit and got more work done per second than the window before it, the work being how long
+ * the model says its transfers take. It is cut by the backoff factor as soon as a transfer fails, and after a window
+ * whose transfers took more than the tolerance times what the model says. Failures of the transfers that were already
+ * running when the limit was cut do not cut it again. The model forgets old windows, so a server that has become
+ * slower for good is eventually taken as it is.
+ *
+ * Waiting threads block on a {@link ReentrantLock} rather than a monitor, so virtual threads waiting for a permit do
+ * not hold on to their carrier.
+ */
+public class AdaptiveLimiter {
+    static final double THROUGHPUT_GAIN = 1.05;
+    static final double MODEL_DECAY = 0.8;
+
+    /**
+     * Told whenever the limit changes
+     */
+    public interface Listener {
+        void limitChanged(int limit);
+    }
+
+    private final int min;
+    private final int max;
+    private final double backoff;
+    private final double tolerance;
+    private final int window;
+    private final Listener listener;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private int limit;
+    private int inFlight;
+    private long windowStart;
+    private int samples;
+    private long nanos;
+    private long bytes;
+    private double bytesSquared;
+    private double bytesTimesNanos;
+    private boolean saturated;
+    private int stale;
+    private double lastThroughput;
+    private double modelSamples;
+    private double modelNanos;
+    private double modelBytes;
+    private double modelBytesSquared;
+    private double modelBytesTimesNanos;
+
+    /**
+     * @param settings the initial limit, the bounds and how hard to back off
+     * @param listener told whenever the limit changes, or null
+     */
+    public AdaptiveLimiter(AdaptiveLimitSettings settings, Listener listener) {
+        this.min = settings.getMin();
+        this.max = settings.getMax();
+        this.backoff = settings.getBackoff();
+        this.tolerance = settings.getTolerance();
+        this.window = settings.getWindow();
+        this.listener = listener;
+        this.limit = settings.getInitial();
+        this.windowStart = now();
+    }
+
+    /**
+     * Wait until fewer transfers than the limit are running, each call must be followed by a call to
+     * {@link #release(long, long, boolean)}
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= limit) {
+                released.await();
+            }
+            inFlight++;
+            if (inFlight >= limit) {
+                saturated = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param nanos how long the transfer took
+     * @param bytes the size of what was transferred
+     * @param succeeded false if the transfer failed
+     */
+    public void release(long nanos, long bytes, boolean succeeded) {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+            boolean startedBeforeCut = stale > 0;
+            if (startedBeforeCut) {
+                stale--;
+            }
+            if (!succeeded) {
+                if (!startedBeforeCut) {
+                    decrease();
+                }
+                return;
+            }
+            samples++;
+            this.nanos += nanos;
+            this.bytes += bytes;
+            bytesSquared += (double) bytes * bytes;
+            bytesTimesNanos += (double) bytes * nanos;
+            if (samples >= Math.max(limit, window)) {
+                judge();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a failure outside of a transfer that counts against the limit, such as a channel that could not be opened
+     */
+    public void failed() {
+        lock.lock();
+        try {
+            if (stale == 0) {
+                decrease();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void judge() {
+        long now = now();
+        boolean inflated = modelSamples > 0 && nanos > expected() * tolerance;
+        modelSamples = modelSamples * MODEL_DECAY + samples;
+        modelNanos = modelNanos * MODEL_DECAY + nanos;
+        modelBytes = modelBytes * MODEL_DECAY + bytes;
+        modelBytesSquared = modelBytesSquared * MODEL_DECAY + bytesSquared;
+        modelBytesTimesNanos = modelBytesTimesNanos * MODEL_DECAY + bytesTimesNanos;
+        double throughput = expected() / Math.max(1, now - windowStart);
+        if (inflated) {
+            decrease();
+        } else if (saturated && throughput > lastThroughput * THROUGHPUT_GAIN) {
+            change(Math.min(max, limit + 1));
+        }
+        lastThroughput = throughput;
+        startWindow(now);
+    }
+
+    /**
+     * @return how long the model says the transfers of the current window take, one after the other
+     */
+    private double expected() {
+        double meanBytes = modelBytes / modelSamples;
+        double meanNanos = modelNanos / modelSamples;
+        double variance = modelBytesSquared / modelSamples - meanBytes * meanBytes;
+        double perByte = variance > meanBytes * meanBytes * 1e-6 ? (modelBytesTimesNanos / modelSamples - meanBytes * meanNanos) / variance : 0;
+        double fixed = meanNanos - perByte * meanBytes;
+        if (perByte < 0) {
+            perByte = 0;
+            fixed = meanNanos;
+        } else if (fixed < 0) {
+            perByte = meanNanos / Math.max(1, meanBytes);
+            fixed = 0;
+        }
+        return samples * fixed + bytes * perByte;
+    }
+
+    private void decrease() {
+        change(Math.max(min, (int) (limit * backoff)));
+        stale = inFlight;
+        lastThroughput = 0;
+        startWindow(now());
+    }
+
+    private void startWindow(long now) {
+        windowStart = now;
+        samples = 0;
+        nanos = 0;
+        bytes = 0;
+        bytesSquared = 0;
+        bytesTimesNanos = 0;
+        saturated = inFlight >= limit;
+    }
+
+    private void change(int limit) {
+        if (limit != this.limit) {
+            this.limit = limit;
+            if (listener != null) {
+                listener.limitChanged(limit);
+            }
+        }
+    }
+
+    long now() {
+        return System.nanoTime();
+    }
+}
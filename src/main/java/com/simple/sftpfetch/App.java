@@ -18,24 +18,60 @@ package com.simple.sftpfetch;
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.SftpException;
 import com.rabbitmq.client.ConnectionFactory;
 import com.simple.sftpfetch.decrypt.FileDecrypter;
 import com.simple.sftpfetch.decrypt.NoopDecrypter;
 import com.simple.sftpfetch.decrypt.PGPFileDecrypter;
+import com.simple.sftpfetch.decrypt.PGPKeyring;
+import com.simple.sftpfetch.decrypt.SymmetricProvider;
+import com.simple.sftpfetch.ledger.ProcessedFileLedger;
+import com.simple.sftpfetch.metrics.MetricsServer;
+import com.simple.sftpfetch.metrics.RunReport;
+import com.simple.sftpfetch.metrics.StageMetrics;
+import com.simple.sftpfetch.metrics.TraceLog;
+import com.simple.sftpfetch.publish.PublishListener;
 import com.simple.sftpfetch.publish.RabbitClient;
 import com.simple.sftpfetch.publish.RabbitConnectionInfo;
 import com.simple.sftpfetch.publish.S3;
+import com.simple.sftpfetch.publish.S3UploadSettings;
+import com.simple.sftpfetch.publish.S3UploadStream;
 import com.simple.sftpfetch.publish.SuppliedAWSCredentials;
+import com.simple.sftpfetch.sftp.HighWaterMark;
+import com.simple.sftpfetch.sftp.RemoteFile;
 import com.simple.sftpfetch.sftp.SftpClient;
 import com.simple.sftpfetch.sftp.SftpConnectionInfo;
 import org.apache.commons.cli.*;
+import org.joda.time.DateTime;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
 import java.security.NoSuchProviderException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static java.util.Arrays.asList;
@@ -45,19 +81,173 @@ import static java.util.Arrays.asList;
  */
 public class App {
     public static final String FETCH_DAYS = "fetch.days";
+    public static final String FETCH_PATTERN = "fetch.pattern";
+    public static final String FETCH_WORKERS = "fetch.workers";
+    public static final String FETCH_STREAMING = "fetch.streaming";
+    public static final String FETCH_PIPELINE = "fetch.pipeline";
+    public static final String FETCH_VIRTUAL = "fetch.virtual";
+    public static final String FETCH_ADAPTIVE = "fetch.adaptive";
+    public static final String FETCH_ORDER = "fetch.order";
+    public static final String FETCH_LANES = "fetch.lanes";
+    public static final String LEDGER_PATH = "ledger.path";
+    public static final String WATERMARK_PATH = "watermark.path";
+    public static final String DAEMON_INTERVAL = "daemon.interval";
+    public static final String DAEMON_JITTER = "daemon.jitter";
+    public static final String DAEMON_SHUTDOWN_TIMEOUT = "daemon.shutdown.timeout";
+    public static final String METRICS_PORT = "metrics.port";
+    public static final String METRICS_FILE = "metrics.file";
+    public static final String TRACE_PATH = "trace.path";
+    public static final String TRACE_MAX_SIZE = "trace.max.size";
+    public static final String TRACE_FILES = "trace.files";
+    public static final String REPORT_SLOWEST = "report.slowest";
     public static final Pattern MATCH_EVERYTHING = Pattern.compile(".*");
-    private SftpClient sftp;
+    private List<Source> sources;
     private S3 s3;
     private RabbitClient rabbit;
-    private FileDecrypter decrypter;
     private PrintStream out;
+    private int workers = 1;
+    private boolean streaming = false;
+    private FileOrder order = FileOrder.LISTED;
+    private LaneSettings lanes;
+    private final Map<String, LaneProgress> laneOf = new ConcurrentHashMap<String, LaneProgress>();
+    private PipelineSettings pipeline;
+    private VirtualThreadSettings virtualThreads;
+    private AdaptiveLimitSettings adaptiveLimits;
+    private final Map<StageListener.Stage, Map<String, AdaptiveLimiter>> limiters = new EnumMap<StageListener.Stage, Map<String, AdaptiveLimiter>>(StageListener.Stage.class);
+    private ProcessedFileLedger ledger;
+    private HighWaterMark highWaterMark;
+    private StageListener stageListener;
 
     public App(SftpClient sftpClient, S3 s3, RabbitClient rabbitClient, FileDecrypter decrypter, PrintStream out) {
-        this.sftp = sftpClient;
+        this(asList(new Source(null, sftpClient, decrypter, "", MATCH_EVERYTHING, 0)), s3, rabbitClient, out);
+    }
+
+    /**
+     * Fetch from several sources, sharing the S3 client, the RabbitMQ connection and the workers between them
+     *
+     * @param sources the sources to fetch from
+     * @param s3 the S3 client
+     * @param rabbitClient the RabbitMQ client
+     * @param out where progress is reported
+     */
+    public App(List<Source> sources, S3 s3, RabbitClient rabbitClient, PrintStream out) {
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("At least one source is needed");
+        }
+        this.sources = new ArrayList<Source>(sources);
         this.s3 = s3;
         this.rabbit = rabbitClient;
-        this.decrypter = decrypter;
         this.out = out;
+        for (final Source source : this.sources) {
+            source.getSftp().setSegmentListener(new SftpClient.SegmentListener() {
+                @Override
+                public void downloaded(String filename, long nanos, long bytes) {
+                    if (stageListener != null) {
+                        stageListener.completed(StageListener.Stage.SEGMENT, source.getName(), filename, nanos, bytes);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Set the number of files to process concurrently, shared fairly between the sources. Each worker gets its own
+     * RabbitMQ channel and its own SFTP channel for every source.
+     *
+     * @param workers the number of workers, 1 processes files one at a time on the shared channels
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("The number of workers must be positive: " + workers);
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * Pipe each file from SFTP through the decrypter straight into S3 instead of going through temporary files
+     *
+     * @param streaming true to stream, false to download and decrypt to temporary files first
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Set the order in which the files of each source are taken. Sources still take turns.
+     *
+     * @param order the order, the order the server listed them in by default
+     */
+    public void setOrder(FileOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * Take the files modified within the freshness threshold before the older ones, which are backfill and only get a
+     * share of the workers, and report the progress of each lane separately
+     *
+     * @param lanes the threshold and the backfill share, or null to take every file alike
+     */
+    public void setLanes(LaneSettings lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * Run each stage of transferring files on threads of its own, connected by bounded queues, instead of having
+     * each worker take a file through every stage. Ignored when streaming, which does not have separate stages.
+     *
+     * @param pipeline the threads and queue size for each stage, or null to use the workers
+     */
+    public void setPipeline(PipelineSettings pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Process every file on a virtual thread of its own, or on platform threads if the JVM has no virtual threads.
+     * How many files are in each stage at once is limited by permits matched to each source's SFTP channels, the S3
+     * connections and the cores, instead of by the number of threads. Takes precedence over the workers and the
+     * pipeline.
+     *
+     * @param virtualThreads the permits for each stage, or null to not use a thread per file
+     */
+    public void setVirtualThreads(VirtualThreadSettings virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Learn how many files each source may download, and upload, at once instead of leaving it to the number of
+     * workers or threads, which then only bound the limits. Not used when streaming.
+     *
+     * @param adaptiveLimits the settings of every source's limiters, or null to not limit the stages
+     */
+    public void setAdaptiveLimits(AdaptiveLimitSettings adaptiveLimits) {
+        this.adaptiveLimits = adaptiveLimits;
+    }
+
+    /**
+     * Use a local ledger of processed files instead of asking S3 whether every file has been seen before
+     *
+     * @param ledger the ledger, or null to always check S3
+     */
+    public void setLedger(ProcessedFileLedger ledger) {
+        this.ledger = ledger;
+    }
+
+    /**
+     * Only list files modified since the latest modification time seen by the last complete run
+     *
+     * @param highWaterMark the persisted marks, or null to list everything newer than the number of days to fetch
+     */
+    public void setHighWaterMark(HighWaterMark highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * Report how long each stage of processing every file takes
+     *
+     * @param stageListener the listener, or null to not time the stages
+     */
+    public void setStageListener(StageListener stageListener) {
+        this.stageListener = stageListener;
     }
 
     private static S3 s3FromProperties(Properties properties) {
@@ -72,10 +262,40 @@ public class App {
             client = new AmazonS3Client(new SuppliedAWSCredentials(awsAccessKey, awsSecretKey));
         }
 
-        return new S3(client, s3Bucket);
+        return new S3(client, s3Bucket, new S3UploadSettings(properties));
     }
 
 
+    /**
+     * Build a source from its configuration. A named source's own routing key, pattern and days win over the ones
+     * given on the command line, which otherwise apply to every source.
+     */
+    private static Source sourceFromProperties(String name, Properties properties, String routingKey, Pattern pattern, String daysToFetch) throws Exception {
+        String keyPrefix = Source.keyPrefixFor(name, properties);
+        if (name != null) {
+            if (properties.containsKey("rabbit.routingkey")) {
+                routingKey = properties.getProperty("rabbit.routingkey");
+            }
+            if (properties.containsKey(FETCH_PATTERN)) {
+                pattern = Pattern.compile(properties.getProperty(FETCH_PATTERN));
+            }
+            if (properties.containsKey(FETCH_DAYS)) {
+                daysToFetch = properties.getProperty(FETCH_DAYS);
+            }
+        }
+
+        FileDecrypter decrypter;
+        if (properties.getProperty(PGPKeyring.KEY_PATH) != null) {
+            decrypter = new PGPFileDecrypter(new PGPKeyring(properties),
+                    SymmetricProvider.forSetting(properties.getProperty(SymmetricProvider.PROVIDER, SymmetricProvider.BC)));
+        } else {
+            decrypter = new NoopDecrypter();
+        }
+
+        SftpClient sftpClient = new SftpClient(new JSch(), new SftpConnectionInfo(properties));
+        return new Source(name, sftpClient, decrypter, routingKey, pattern, Integer.valueOf(daysToFetch), keyPrefix);
+    }
+
     /**
      * A simpler entry point with sane defaults, used by the tests
      *
@@ -104,21 +324,1127 @@ public class App {
      * @throws NoSuchProviderException
      */
     public void run(String routingKey, int daysToFetch, Pattern pattern, boolean noop, boolean overwrite) throws SftpException, IOException, NoSuchProviderException {
-        for (String filename : sftp.getFilesNewerThan(daysToFetch, pattern)) {
-            if (s3.keyExists(filename)) {
-                out.println("Previously seen: " + filename);
-                if (!overwrite) {
-                    continue;
+        if (sources.size() != 1) {
+            throw new IllegalStateException("Routing key, days and pattern are configured per source when there are several");
+        }
+        Source source = sources.get(0);
+        run(asList(new Source(source.getName(), source.getSftp(), source.getDecrypter(), routingKey, pattern, daysToFetch)), noop, overwrite);
+    }
+
+    /**
+     * Run the application over every source, each with its own routing key, days and pattern. A source that fails
+     * does not stop the others, the first failure is rethrown once they have all finished.
+     *
+     * @param noop if true do not actually modify anything
+     * @param overwrite re-publish previously seen files
+     *
+     * @throws SftpException
+     * @throws IOException
+     * @throws NoSuchProviderException
+     */
+    public void run(boolean noop, boolean overwrite) throws SftpException, IOException, NoSuchProviderException {
+        run(sources, noop, overwrite);
+    }
+
+    private void run(List<Source> sources, boolean noop, boolean overwrite) throws SftpException, IOException, NoSuchProviderException {
+        long start = System.nanoTime();
+        try {
+            runSources(sources, noop, overwrite);
+        } finally {
+            if (stageListener != null) {
+                stageListener.runCompleted(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void runSources(List<Source> sources, boolean noop, boolean overwrite) throws SftpException, IOException, NoSuchProviderException {
+        boolean pipelined = pipeline != null && !streaming && virtualThreads == null;
+        int threads;
+        if (virtualThreads != null) {
+            // a thread per file, so as many files are in flight as the sources' SFTP permits allow between them
+            threads = 0;
+            for (Source source : sources) {
+                threads += sftpPermits(source);
+            }
+        } else {
+            // every worker or download thread holds a channel to each source for the whole run
+            threads = Math.min(pipelined ? pipeline.getDownloadThreads() : workers, sftpChannels(sources));
+        }
+        FairScheduler<Run, RemoteFile> scheduler = new FairScheduler<Run, RemoteFile>(threads,
+                lanes == null ? threads : lanes.backfillLimit(threads));
+        LaneProgress fresh = new LaneProgress("Fresh");
+        LaneProgress backfill = new LaneProgress("Backfill");
+        long freshSince = lanes == null ? 0 : System.currentTimeMillis() / 1000 - lanes.getFreshMinutes() * 60L;
+        List<Run> runs = new ArrayList<Run>();
+        for (Source source : sources) {
+            Run run = new Run(source, noop, overwrite);
+            runs.add(run);
+            try {
+                run.files = list(source);
+                long start = System.nanoTime();
+                run.previouslySeen = previouslySeen(source, run.files, noop);
+                completed(StageListener.Stage.CHECK, source, null, start, run.files.size());
+            } catch (Exception e) {
+                run.failure = e;
+                continue;
+            }
+            for (RemoteFile file : order.sort(run.files)) {
+                boolean old = file.getMTime() < freshSince;
+                if (lanes != null) {
+                    LaneProgress lane = old ? backfill : fresh;
+                    lane.total++;
+                    laneOf.put(source.describe(file.getName()), lane);
                 }
+                scheduler.add(run, file, old);
             }
-            if (noop) {
-                out.println("Would process: " + filename);
-            } else {
-                File downloaded = sftp.downloadFile(filename);
-                File toUpload = decrypter.decryptFile(downloaded);
-                    s3.upload(filename, toUpload);
-                rabbit.publishURL(routingKey, s3.getURLFor(filename));
-                out.println("Processed: " + filename);
+        }
+        try {
+            runScheduled(scheduler, runs, noop, pipelined, threads);
+        } finally {
+            laneOf.clear();
+        }
+        if (lanes != null) {
+            out.println(fresh.describe());
+            out.println(backfill.describe());
+        }
+
+        Throwable failure = null;
+        for (Run run : runs) {
+            if (run.failure != null) {
+                if (run.source.getName() != null) {
+                    out.println("Failed " + run.source.getName() + ": " + run.failure);
+                }
+                if (failure == null) {
+                    failure = run.failure;
+                }
+            } else if (highWaterMark != null && !noop) {
+                long latest = 0;
+                for (RemoteFile file : run.files) {
+                    latest = Math.max(latest, file.getMTime());
+                }
+                highWaterMark.advance(run.source.getMarkKey(), latest);
+            }
+        }
+        if (failure != null) {
+            rethrow(failure);
+        }
+        if (ledger != null && ledger.isStale() && !noop) {
+            ledger.markFresh();
+        }
+    }
+
+    /**
+     * Process the queued files in the way chosen by the settings
+     */
+    private void runScheduled(FairScheduler<Run, RemoteFile> scheduler, List<Run> runs, boolean noop, boolean pipelined,
+                              int threads) throws SftpException, IOException, NoSuchProviderException {
+        if (virtualThreads != null) {
+            runOnVirtualThreads(scheduler, runs, noop);
+        } else if (pipelined) {
+            new Pipeline(scheduler, runs, noop, threads).run();
+        } else if (workers == 1) {
+            Map.Entry<Run, RemoteFile> next;
+            while ((next = scheduler.poll()) != null) {
+                Run run = next.getKey();
+                try {
+                    process(next.getValue(), run.source.getSftp(), rabbit, run);
+                } catch (Exception e) {
+                    fail(run, next.getValue(), e, scheduler);
+                } finally {
+                    scheduler.done(next);
+                }
+            }
+            if (!noop) {
+                rabbit.awaitConfirms();
+            }
+        } else {
+            runConcurrently(scheduler, runs, noop, threads);
+        }
+    }
+
+    /**
+     * @return the most workers, or download threads, that can each hold a channel to every source at once, as each
+     * source's client keeps one of its channels for itself
+     */
+    static int sftpChannels(List<Source> sources) {
+        int channels = Integer.MAX_VALUE;
+        for (Source source : sources) {
+            int maxChannels = source.getSftp().getMaxChannels();
+            if (maxChannels > 0) {
+                channels = Math.min(channels, Math.max(1, maxChannels - 1));
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * @return how many files of the source may be downloading at once when each file has a thread of its own, as the
+     * source's client keeps one of its channels for itself
+     */
+    private static int sftpPermits(Source source) {
+        int maxChannels = source.getSftp().getMaxChannels();
+        return maxChannels > 0 ? Math.max(1, maxChannels - 1) : SftpConnectionInfo.DEFAULT_MAX_CHANNELS;
+    }
+
+    private List<RemoteFile> list(Source source) throws SftpException, IOException {
+        SftpClient sftp = source.getSftp();
+        long start = System.nanoTime();
+        List<RemoteFile> files;
+        if (highWaterMark == null) {
+            files = sftp.listFilesNewerThan(source.getDaysToFetch(), source.getPattern());
+        } else {
+            long since = new DateTime().minusDays(source.getDaysToFetch()).getMillis() / 1000;
+            files = sftp.listFilesSince(Math.max(since, highWaterMark.get(source.getMarkKey())), source.getPattern());
+        }
+        completed(StageListener.Stage.LIST, source, null, start, files.size());
+        return files;
+    }
+
+    private void completed(StageListener.Stage stage, Source source, String filename, long start, long bytes) {
+        if (stageListener != null) {
+            stageListener.completed(stage, source.getName(), filename, System.nanoTime() - start, bytes);
+        }
+    }
+
+    private void queued(StageListener.Stage stage, int depth) {
+        if (stageListener != null) {
+            stageListener.queued(stage, depth);
+        }
+    }
+
+    private void finished(Source source, String filename, StageListener.Outcome outcome, Exception failure) {
+        report(outcome.getDescription() + ": " + source.describe(filename) + (failure == null ? "" : ": " + failure));
+        LaneProgress lane = laneOf.remove(source.describe(filename));
+        if (lane != null && lane.finished()) {
+            out.println(lane.describe());
+        }
+        if (stageListener != null) {
+            stageListener.finished(source.getName(), filename, outcome, failure);
+        }
+    }
+
+    /**
+     * Print a line about a single file, which is left to the stage listener when there is one
+     */
+    private void report(String line) {
+        if (stageListener == null) {
+            out.println(line);
+        }
+    }
+
+    /**
+     * Record the first failure of a source and drop the rest of its files
+     */
+    private void fail(Run run, RemoteFile file, Exception e, FairScheduler<Run, RemoteFile> scheduler) {
+        finished(run.source, file.getName(), StageListener.Outcome.FAILED, e);
+        synchronized (run) {
+            if (run.failure == null) {
+                run.failure = e;
+            }
+        }
+        scheduler.cancel(run);
+    }
+
+    /**
+     * Replace any SFTP or RabbitMQ connection that has been dropped since the last run, used between polls in daemon
+     * mode
+     *
+     * @throws JSchException
+     * @throws IOException
+     */
+    public void reconnect() throws JSchException, IOException {
+        for (Source source : sources) {
+            source.getSftp().reconnect();
+        }
+        rabbit.reconnect();
+    }
+
+    /**
+     * Find the names of the files that have already been processed. Without a ledger every file is looked up in S3.
+     * With one, S3 is only consulted for files the ledger has not seen while it is stale, and those found there are
+     * added to the ledger. Both are looked up by the source's S3 key for each file.
+     *
+     * @return the names of the source's files that have been processed
+     */
+    private Set<String> previouslySeen(Source source, List<RemoteFile> files, boolean noop) throws IOException {
+        if (ledger == null) {
+            Map<String, String> names = new LinkedHashMap<String, String>();
+            for (RemoteFile file : files) {
+                names.put(source.getKey(file.getName()), file.getName());
+            }
+            Set<String> seen = new HashSet<String>();
+            for (String key : s3.existingKeys(names.keySet())) {
+                seen.add(names.get(key));
+            }
+            return seen;
+        }
+
+        Set<String> seen = new HashSet<String>();
+        Map<String, RemoteFile> unknown = new HashMap<String, RemoteFile>();
+        for (RemoteFile file : files) {
+            String key = source.getKey(file.getName());
+            switch (ledger.check(key, file)) {
+                case UNCHANGED:
+                    seen.add(file.getName());
+                    break;
+                case CHANGED:
+                    report("Modified since processed: " + source.describe(file.getName()));
+                    break;
+                case NEW:
+                    if (ledger.isStale()) {
+                        unknown.put(key, file);
+                    }
+                    break;
+            }
+        }
+        if (!unknown.isEmpty()) {
+            for (String key : s3.existingKeys(unknown.keySet())) {
+                seen.add(unknown.get(key).getName());
+                if (!noop) {
+                    ledger.record(key, unknown.get(key), null);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Transfer a single file and publish its URL. The file is only reported as processed, and recorded in the ledger,
+     * once the message has been confirmed.
+     */
+    private void process(RemoteFile file, SftpClient sftp, RabbitClient rabbit, Run run) throws SftpException, IOException, NoSuchProviderException {
+        if (!shouldTransfer(file, run)) {
+            return;
+        }
+        String eTag;
+        if (streaming) {
+            long start = System.nanoTime();
+            eTag = stream(file.getName(), sftp, run.source);
+            completed(StageListener.Stage.STREAM, run.source, file.getName(), start, file.getSize());
+        } else {
+            eTag = transfer(file, sftp, run.source);
+        }
+        publish(file, rabbit, run.source, eTag);
+    }
+
+    /**
+     * Report a file that is skipped, as it was processed before or as nothing is done in noop mode
+     *
+     * @return true if the file should be transferred
+     */
+    private boolean shouldTransfer(RemoteFile file, Run run) {
+        String filename = file.getName();
+        if (run.previouslySeen.contains(filename)) {
+            if (!run.overwrite) {
+                finished(run.source, filename, StageListener.Outcome.PREVIOUSLY_SEEN, null);
+                return false;
+            }
+            report(StageListener.Outcome.PREVIOUSLY_SEEN.getDescription() + ": " + run.source.describe(filename));
+        }
+        if (run.noop) {
+            finished(run.source, filename, StageListener.Outcome.WOULD_PROCESS, null);
+            return false;
+        }
+        return true;
+    }
+
+    private void publish(final RemoteFile file, RabbitClient rabbit, final Source source, final String eTag) throws IOException {
+        final String filename = file.getName();
+        final long start = System.nanoTime();
+        rabbit.publishURL(source.getRoutingKey(), s3.getURLFor(source.getKey(filename)), new PublishListener() {
+            @Override
+            public void published(URL url) throws IOException {
+                completed(StageListener.Stage.PUBLISH, source, filename, start, file.getSize());
+                if (stageListener != null) {
+                    stageListener.published(source.getName(), filename, System.currentTimeMillis() - file.getMTime() * 1000);
+                }
+                if (ledger != null) {
+                    ledger.record(source.getKey(filename), file, eTag);
+                }
+                finished(source, filename, StageListener.Outcome.PROCESSED, null);
+            }
+
+            @Override
+            public void republished(URL url) {
+                if (stageListener != null) {
+                    stageListener.retried(StageListener.Stage.PUBLISH, source.getName(), filename);
+                }
+            }
+
+            @Override
+            public void failed(URL url) {
+                finished(source, filename, StageListener.Outcome.NOT_CONFIRMED, null);
+            }
+        });
+    }
+
+    private String transfer(RemoteFile file, SftpClient sftp, Source source) throws SftpException, IOException, NoSuchProviderException {
+        File downloaded = download(file, sftp, source);
+        try {
+            File toUpload = decrypt(downloaded, file.getName(), source);
+            try {
+                return upload(toUpload, file.getName(), source);
+            } finally {
+                if (!toUpload.equals(downloaded)) {
+                    toUpload.delete();
+                }
+            }
+        } finally {
+            downloaded.delete();
+        }
+    }
+
+    private File download(RemoteFile file, SftpClient sftp, Source source) throws SftpException, IOException {
+        AdaptiveLimiter limiter = acquire(StageListener.Stage.DOWNLOAD, source);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            File downloaded = sftp.downloadFile(file);
+            succeeded = true;
+            completed(StageListener.Stage.DOWNLOAD, source, file.getName(), start, file.getSize());
+            return downloaded;
+        } finally {
+            if (limiter != null) {
+                limiter.release(System.nanoTime() - start, file.getSize(), succeeded);
+            }
+        }
+    }
+
+    private File decrypt(File downloaded, String filename, Source source) throws IOException, NoSuchProviderException {
+        long start = System.nanoTime();
+        File decrypted = source.getDecrypter().decryptFile(downloaded);
+        completed(StageListener.Stage.DECRYPT, source, filename, start, downloaded.length());
+        return decrypted;
+    }
+
+    private String upload(File toUpload, String filename, Source source) throws InterruptedIOException {
+        AdaptiveLimiter limiter = acquire(StageListener.Stage.UPLOAD, source);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            String eTag = s3.upload(source.getKey(filename), toUpload);
+            succeeded = true;
+            completed(StageListener.Stage.UPLOAD, source, filename, start, toUpload.length());
+            return eTag;
+        } finally {
+            if (limiter != null) {
+                limiter.release(System.nanoTime() - start, toUpload.length(), succeeded);
+            }
+        }
+    }
+
+    /**
+     * Wait for the source's adaptive limit on the stage to allow another file
+     *
+     * @return the limiter to release once the stage is done, or null if the stages are not limited
+     */
+    private AdaptiveLimiter acquire(StageListener.Stage stage, Source source) throws InterruptedIOException {
+        AdaptiveLimiter limiter = limiter(stage, source);
+        if (limiter != null) {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the " + stage.name().toLowerCase(Locale.ROOT) + " limit");
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * @return the source's limiter for the stage, kept from one run to the next, or null if the stages are not limited
+     */
+    private AdaptiveLimiter limiter(final StageListener.Stage stage, final Source source) {
+        if (adaptiveLimits == null) {
+            return null;
+        }
+        synchronized (limiters) {
+            Map<String, AdaptiveLimiter> stageLimiters = limiters.get(stage);
+            if (stageLimiters == null) {
+                stageLimiters = new HashMap<String, AdaptiveLimiter>();
+                limiters.put(stage, stageLimiters);
+            }
+            AdaptiveLimiter limiter = stageLimiters.get(source.getName());
+            if (limiter == null) {
+                limiter = new AdaptiveLimiter(adaptiveLimits, new AdaptiveLimiter.Listener() {
+                    @Override
+                    public void limitChanged(int limit) {
+                        if (stageListener != null) {
+                            stageListener.limited(stage, source.getName(), limit);
+                        }
+                    }
+                });
+                stageLimiters.put(source.getName(), limiter);
+                if (stageListener != null) {
+                    stageListener.limited(stage, source.getName(), limiter.getLimit());
+                }
+            }
+            return limiter;
+        }
+    }
+
+    private String stream(String filename, SftpClient sftp, Source source) throws SftpException, IOException, NoSuchProviderException {
+        InputStream in = sftp.openFile(filename);
+        try {
+            S3UploadStream upload = s3.openUploadStream(source.getKey(filename));
+            boolean decrypted = false;
+            try {
+                source.getDecrypter().decrypt(in, upload);
+                decrypted = true;
+            } finally {
+                if (decrypted) {
+                    upload.close();
+                } else {
+                    upload.abort();
+                }
+            }
+            return upload.getETag();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Process the queued files using a fixed number of workers, which the scheduler shares fairly between the
+     * sources. The first failure of a source stops the workers from picking up its remaining files.
+     *
+     * @param workers the number of workers, no more than the SFTP channels allow
+     */
+    private void runConcurrently(FairScheduler<Run, RemoteFile> scheduler, List<Run> runs, boolean noop, int workers) throws SftpException, IOException, NoSuchProviderException {
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < workers; i++) {
+                results.add(executor.submit(new Worker(scheduler, runs, noop)));
+            }
+            Throwable failure = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for workers");
+                }
+            }
+            if (failure != null) {
+                rethrow(failure);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Start a thread for every file, taking them from the scheduler so that the sources are interleaved. A file
+     * waits for a permit of its source's SFTP semaphore before downloading, and for the S3 and decrypt semaphores
+     * before the stages that need them, so files only hold on to what they use at the time. The first failure of a
+     * source drops its files that have not started downloading.
+     */
+    private void runOnVirtualThreads(FairScheduler<Run, RemoteFile> scheduler, List<Run> runs, boolean noop) throws SftpException, IOException, NoSuchProviderException {
+        Map<Run, Semaphore> sftpPermits = new HashMap<Run, Semaphore>();
+        int platformThreads = 0;
+        for (Run run : runs) {
+            int permits = sftpPermits(run.source);
+            // fair, so that files start in the order they were taken from the scheduler
+            sftpPermits.put(run, new Semaphore(permits, true));
+            platformThreads += permits;
+        }
+        Semaphore s3Permits = new Semaphore(virtualThreads.getS3Permits(), true);
+        Semaphore decryptPermits = new Semaphore(virtualThreads.getDecryptPermits(), true);
+        // files are started at once, so the backfill limit is held for the whole of each backfill file instead
+        Semaphore backfillPermits = new Semaphore(scheduler.getBackfillLimit(), true);
+        BlockingQueue<RabbitClient> rabbitChannels = new ArrayBlockingQueue<RabbitClient>(virtualThreads.getRabbitChannels());
+        ExecutorService executor = VirtualThreads.newExecutor("sftp-fetch-file-", platformThreads);
+        try {
+            if (!noop) {
+                for (int i = 0; i < virtualThreads.getRabbitChannels(); i++) {
+                    rabbitChannels.add(rabbit.openChannel());
+                }
+            }
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            Map.Entry<Run, RemoteFile> next;
+            while ((next = scheduler.poll()) != null) {
+                scheduler.done(next);
+                results.add(executor.submit(new FileThread(next.getKey(), next.getValue(), scheduler,
+                        scheduler.isBackfill(next) ? backfillPermits : null, sftpPermits.get(next.getKey()), s3Permits,
+                        decryptPermits, rabbitChannels)));
+            }
+            Throwable failure = null;
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for files");
+                }
+            }
+            for (RabbitClient rabbitChannel : rabbitChannels) {
+                rabbitChannel.awaitConfirms();
+            }
+            if (failure != null) {
+                rethrow(failure);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (RabbitClient rabbitChannel : rabbitChannels) {
+                rabbitChannel.close();
+            }
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws SftpException, IOException, NoSuchProviderException {
+        if (failure instanceof SftpException) {
+            throw (SftpException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof NoSuchProviderException) {
+            throw (NoSuchProviderException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException("Unable to process files", failure);
+    }
+
+    /**
+     * The parameters and outcome of a single run of a source, shared by all workers
+     */
+    private static class Run {
+        final Source source;
+        final boolean noop;
+        final boolean overwrite;
+        List<RemoteFile> files;
+        Set<String> previouslySeen;
+        volatile Throwable failure;
+
+        Run(Source source, boolean noop, boolean overwrite) {
+            this.source = source;
+            this.noop = noop;
+            this.overwrite = overwrite;
+        }
+    }
+
+    /**
+     * Counts the files of a lane that have finished in a run, whatever their outcome
+     */
+    private static class LaneProgress {
+        final String name;
+        final long start = System.nanoTime();
+        final AtomicInteger finished = new AtomicInteger();
+        int total;
+
+        LaneProgress(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return true every tenth of the lane, except at its end which is reported with the rest of the run
+         */
+        boolean finished() {
+            int count = finished.incrementAndGet();
+            int step = Math.max(1, total / 10);
+            return count < total && count % step == 0;
+        }
+
+        String describe() {
+            return String.format(Locale.ROOT, "%s lane: %d of %d files in %.1fs", name, finished.get(), total,
+                    (System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    /**
+     * Takes files from the scheduler until none are left, using its own SFTP channel for each source and its own
+     * RabbitMQ channel
+     */
+    private class Worker implements Callable<Void> {
+        private final FairScheduler<Run, RemoteFile> scheduler;
+        private final List<Run> runs;
+        private final boolean noop;
+
+        Worker(FairScheduler<Run, RemoteFile> scheduler, List<Run> runs, boolean noop) {
+            this.scheduler = scheduler;
+            this.runs = runs;
+            this.noop = noop;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Map<Run, SftpClient> sftpChannels = new HashMap<Run, SftpClient>();
+            RabbitClient rabbitChannel = null;
+            try {
+                for (Run run : runs) {
+                    if (run.failure == null && !run.files.isEmpty()) {
+                        sftpChannels.put(run, run.source.getSftp().openChannel());
+                    }
+                }
+                if (!noop) {
+                    rabbitChannel = rabbit.openChannel();
+                }
+                Map.Entry<Run, RemoteFile> next;
+                while ((next = scheduler.poll()) != null) {
+                    Run run = next.getKey();
+                    try {
+                        process(next.getValue(), sftpChannels.get(run), rabbitChannel, run);
+                    } catch (Exception e) {
+                        fail(run, next.getValue(), e, scheduler);
+                    } finally {
+                        scheduler.done(next);
+                    }
+                }
+                if (rabbitChannel != null) {
+                    rabbitChannel.awaitConfirms();
+                }
+                return null;
+            } finally {
+                for (SftpClient sftpChannel : sftpChannels.values()) {
+                    sftpChannel.close();
+                }
+                if (rabbitChannel != null) {
+                    rabbitChannel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a single file through every stage, holding a permit for each stage while it runs it
+     */
+    private class FileThread implements Callable<Void> {
+        private final Run run;
+        private final RemoteFile file;
+        private final FairScheduler<Run, RemoteFile> scheduler;
+        private final Semaphore backfillPermits;
+        private final Semaphore sftpPermits;
+        private final Semaphore s3Permits;
+        private final Semaphore decryptPermits;
+        private final BlockingQueue<RabbitClient> rabbitChannels;
+
+        FileThread(Run run, RemoteFile file, FairScheduler<Run, RemoteFile> scheduler, Semaphore backfillPermits,
+                   Semaphore sftpPermits, Semaphore s3Permits, Semaphore decryptPermits,
+                   BlockingQueue<RabbitClient> rabbitChannels) {
+            this.run = run;
+            this.file = file;
+            this.scheduler = scheduler;
+            this.backfillPermits = backfillPermits;
+            this.sftpPermits = sftpPermits;
+            this.s3Permits = s3Permits;
+            this.decryptPermits = decryptPermits;
+            this.rabbitChannels = rabbitChannels;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            if (backfillPermits == null) {
+                takeThrough();
+                return null;
+            }
+            try {
+                backfillPermits.acquire();
+            } catch (InterruptedException e) {
+                fail(run, file, e, scheduler);
+                return null;
+            }
+            try {
+                takeThrough();
+            } finally {
+                backfillPermits.release();
+            }
+            return null;
+        }
+
+        private void takeThrough() {
+            try {
+                String eTag = null;
+                File downloaded = null;
+                sftpPermits.acquire();
+                try {
+                    if (run.failure != null || !shouldTransfer(file, run)) {
+                        return;
+                    }
+                    SftpClient sftp;
+                    try {
+                        sftp = run.source.getSftp().openChannel();
+                    } catch (JSchException e) {
+                        AdaptiveLimiter limiter = limiter(StageListener.Stage.DOWNLOAD, run.source);
+                        if (limiter != null) {
+                            limiter.failed();
+                        }
+                        throw e;
+                    }
+                    try {
+                        if (streaming) {
+                            s3Permits.acquire();
+                            try {
+                                long start = System.nanoTime();
+                                eTag = stream(file.getName(), sftp, run.source);
+                                completed(StageListener.Stage.STREAM, run.source, file.getName(), start, file.getSize());
+                            } finally {
+                                s3Permits.release();
+                            }
+                        } else {
+                            downloaded = download(file, sftp, run.source);
+                        }
+                    } finally {
+                        sftp.close();
+                    }
+                } finally {
+                    sftpPermits.release();
+                }
+                if (downloaded != null) {
+                    eTag = decryptAndUpload(downloaded);
+                }
+                RabbitClient rabbitChannel = rabbitChannels.take();
+                try {
+                    publish(file, rabbitChannel, run.source, eTag);
+                } finally {
+                    rabbitChannels.add(rabbitChannel);
+                }
+            } catch (Exception e) {
+                fail(run, file, e, scheduler);
+            }
+        }
+
+        private String decryptAndUpload(File downloaded) throws Exception {
+            try {
+                File toUpload;
+                decryptPermits.acquire();
+                try {
+                    toUpload = decrypt(downloaded, file.getName(), run.source);
+                } finally {
+                    decryptPermits.release();
+                }
+                try {
+                    s3Permits.acquire();
+                    try {
+                        return upload(toUpload, file.getName(), run.source);
+                    } finally {
+                        s3Permits.release();
+                    }
+                } finally {
+                    if (!toUpload.equals(downloaded)) {
+                        toUpload.delete();
+                    }
+                }
+            } finally {
+                downloaded.delete();
+            }
+        }
+    }
+
+    /**
+     * A file on its way through the pipeline
+     */
+    private static class Item {
+        final Run run;
+        final RemoteFile file;
+        final File downloaded;
+        File decrypted;
+        String eTag;
+
+        Item(Run run, RemoteFile file, File downloaded) {
+            this.run = run;
+            this.file = file;
+            this.downloaded = downloaded;
+        }
+    }
+
+    /**
+     * Tells the threads of a stage that the stage before it has stopped
+     */
+    private static final Item END = new Item(null, null, null);
+
+    /**
+     * Runs every stage of transferring files on its own threads. Downloads take files from the scheduler, and each
+     * later stage takes them from a bounded queue filled by the stage before it. A stage that falls behind fills its
+     * queue and blocks the stage feeding it, so the temporary files in flight stay bounded while the other stages
+     * keep working. Files already downloaded when a source fails are still taken through the remaining stages, like
+     * the files in progress with workers.
+     */
+    private class Pipeline {
+        private final FairScheduler<Run, RemoteFile> scheduler;
+        private final List<Run> runs;
+        private final boolean noop;
+        private final Step download;
+        private final Step decrypt;
+        private final Step upload;
+        private final Step publish;
+        private volatile Throwable aborted;
+
+        Pipeline(FairScheduler<Run, RemoteFile> scheduler, List<Run> runs, boolean noop, int downloadThreads) {
+            this.scheduler = scheduler;
+            this.runs = runs;
+            this.noop = noop;
+            publish = new Step(StageListener.Stage.PUBLISH, pipeline.getPublishThreads(), null);
+            upload = new Step(StageListener.Stage.UPLOAD, pipeline.getUploadThreads(), publish);
+            decrypt = new Step(StageListener.Stage.DECRYPT, pipeline.getDecryptThreads(), upload);
+            download = new Step(StageListener.Stage.DOWNLOAD, downloadThreads, decrypt);
+        }
+
+        void run() throws SftpException, IOException, NoSuchProviderException {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            try {
+                queued(StageListener.Stage.DOWNLOAD, scheduler.size());
+                for (int i = 0; i < publish.threads; i++) {
+                    results.add(publish.executor.submit(new Publisher()));
+                }
+                for (int i = 0; i < upload.threads; i++) {
+                    results.add(upload.executor.submit(new Uploader()));
+                }
+                for (int i = 0; i < decrypt.threads; i++) {
+                    results.add(decrypt.executor.submit(new Decrypter()));
+                }
+                for (int i = 0; i < download.threads; i++) {
+                    results.add(download.executor.submit(new Downloader()));
+                }
+                Throwable failure = null;
+                for (Future<Void> result : results) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+                    }
+                }
+                if (aborted != null) {
+                    failure = aborted;
+                }
+                if (failure != null) {
+                    rethrow(failure);
+                }
+            } finally {
+                for (Step step : asList(download, decrypt, upload, publish)) {
+                    step.executor.shutdownNow();
+                }
+            }
+        }
+
+        /**
+         * Stop every stage once one of them has lost all of its threads, as the stages before it would otherwise
+         * block for good
+         */
+        private synchronized void abort(Throwable failure) {
+            if (aborted == null) {
+                aborted = failure;
+            }
+            for (Step step : asList(download, decrypt, upload, publish)) {
+                step.executor.shutdownNow();
+            }
+        }
+
+        /**
+         * A stage with its threads and the queue in front of it
+         */
+        private class Step {
+            final StageListener.Stage stage;
+            final int threads;
+            final Step next;
+            final BlockingQueue<Item> queue;
+            final ExecutorService executor;
+            final AtomicInteger running;
+
+            Step(StageListener.Stage stage, int threads, Step next) {
+                this.stage = stage;
+                this.threads = threads;
+                this.next = next;
+                this.queue = new ArrayBlockingQueue<Item>(pipeline.getQueueSize());
+                this.executor = Executors.newFixedThreadPool(threads);
+                this.running = new AtomicInteger(threads);
+            }
+
+            void put(Item item) throws InterruptedException {
+                queue.put(item);
+                queued(stage, queue.size());
+            }
+
+            Item take() throws InterruptedException {
+                Item item = queue.take();
+                if (item != END) {
+                    queued(stage, queue.size());
+                }
+                return item;
+            }
+
+            /**
+             * Called by each thread of the stage as it stops, the last one to stop ends the next stage
+             */
+            void stopped(Throwable failure) throws InterruptedException {
+                if (running.decrementAndGet() > 0) {
+                    return;
+                }
+                if (failure != null && this != download) {
+                    abort(failure);
+                } else if (next != null) {
+                    for (int i = 0; i < next.threads; i++) {
+                        next.queue.put(END);
+                    }
+                }
+            }
+        }
+
+        private abstract class StageThread implements Callable<Void> {
+            private final Step step;
+
+            StageThread(Step step) {
+                this.step = step;
+            }
+
+            @Override
+            public Void call() throws Exception {
+                Throwable failure = null;
+                try {
+                    work();
+                    return null;
+                } catch (Exception e) {
+                    failure = e;
+                    throw e;
+                } catch (Error e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    step.stopped(failure);
+                }
+            }
+
+            abstract void work() throws Exception;
+        }
+
+        /**
+         * Takes files from the scheduler until none are left, using its own SFTP channel for each source
+         */
+        private class Downloader extends StageThread {
+            Downloader() {
+                super(download);
+            }
+
+            @Override
+            void work() throws Exception {
+                Map<Run, SftpClient> sftpChannels = new HashMap<Run, SftpClient>();
+                try {
+                    for (Run run : runs) {
+                        if (run.failure == null && !run.files.isEmpty()) {
+                            sftpChannels.put(run, run.source.getSftp().openChannel());
+                        }
+                    }
+                    Map.Entry<Run, RemoteFile> next;
+                    while ((next = scheduler.poll()) != null) {
+                        queued(StageListener.Stage.DOWNLOAD, scheduler.size());
+                        Run run = next.getKey();
+                        Item item = null;
+                        try {
+                            if (shouldTransfer(next.getValue(), run)) {
+                                item = new Item(run, next.getValue(), App.this.download(next.getValue(), sftpChannels.get(run), run.source));
+                            }
+                        } catch (Exception e) {
+                            fail(run, next.getValue(), e, scheduler);
+                        } finally {
+                            scheduler.done(next);
+                        }
+                        if (item != null) {
+                            decrypt.put(item);
+                        }
+                    }
+                } finally {
+                    for (SftpClient sftpChannel : sftpChannels.values()) {
+                        sftpChannel.close();
+                    }
+                }
+            }
+        }
+
+        private class Decrypter extends StageThread {
+            Decrypter() {
+                super(decrypt);
+            }
+
+            @Override
+            void work() throws Exception {
+                Item item;
+                while ((item = decrypt.take()) != END) {
+                    try {
+                        item.decrypted = App.this.decrypt(item.downloaded, item.file.getName(), item.run.source);
+                    } catch (Exception e) {
+                        fail(item.run, item.file, e, scheduler);
+                    } finally {
+                        if (!item.downloaded.equals(item.decrypted)) {
+                            item.downloaded.delete();
+                        }
+                    }
+                    if (item.decrypted != null) {
+                        upload.put(item);
+                    }
+                }
+            }
+        }
+
+        private class Uploader extends StageThread {
+            Uploader() {
+                super(upload);
+            }
+
+            @Override
+            void work() throws Exception {
+                Item item;
+                while ((item = upload.take()) != END) {
+                    boolean uploaded = false;
+                    try {
+                        item.eTag = App.this.upload(item.decrypted, item.file.getName(), item.run.source);
+                        uploaded = true;
+                    } catch (Exception e) {
+                        fail(item.run, item.file, e, scheduler);
+                    } finally {
+                        item.decrypted.delete();
+                    }
+                    if (uploaded) {
+                        publish.put(item);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Publishes on its own RabbitMQ channel, and waits for it to be confirmed once every file has been published
+         */
+        private class Publisher extends StageThread {
+            Publisher() {
+                super(publish);
+            }
+
+            @Override
+            void work() throws Exception {
+                RabbitClient rabbitChannel = null;
+                try {
+                    if (!noop) {
+                        rabbitChannel = rabbit.openChannel();
+                    }
+                    Item item;
+                    while ((item = publish.take()) != END) {
+                        try {
+                            App.this.publish(item.file, rabbitChannel, item.run.source, item.eTag);
+                        } catch (Exception e) {
+                            fail(item.run, item.file, e, scheduler);
+                        }
+                    }
+                    if (rabbitChannel != null) {
+                        rabbitChannel.awaitConfirms();
+                    }
+                } finally {
+                    if (rabbitChannel != null) {
+                        rabbitChannel.close();
+                    }
+                }
             }
         }
     }
@@ -147,13 +1473,6 @@ public class App {
                 }
             }
 
-            Pattern pattern;
-            if (commandLine.hasOption("p")) {
-                pattern = Pattern.compile(commandLine.getOptionValue("p"));
-            } else {
-                pattern = MATCH_EVERYTHING;
-            }
-
             String filename = commandLine.getOptionValue("c");
             Properties properties = new Properties();
             try {
@@ -164,6 +1483,15 @@ public class App {
                 System.exit(2);
             }
 
+            Pattern pattern;
+            if (commandLine.hasOption("p")) {
+                pattern = Pattern.compile(commandLine.getOptionValue("p"));
+            } else if (properties.containsKey(FETCH_PATTERN)) {
+                pattern = Pattern.compile(properties.getProperty(FETCH_PATTERN));
+            } else {
+                pattern = MATCH_EVERYTHING;
+            }
+
             String routingKey = "";
             if (commandLine.hasOption("r")) {
                 routingKey = commandLine.getOptionValue("r");
@@ -171,30 +1499,161 @@ public class App {
                 routingKey = properties.getProperty("rabbit.routingkey");
             }
 
-            int daysToFetch;
+            String daysToFetch;
             if (commandLine.hasOption("d")) {
-                daysToFetch = Integer.valueOf(commandLine.getOptionValue("d"));
+                daysToFetch = commandLine.getOptionValue("d");
             } else {
-                daysToFetch = Integer.valueOf(properties.getProperty(FETCH_DAYS));
+                daysToFetch = properties.getProperty(FETCH_DAYS);
             }
 
-            FileDecrypter decrypter = null;
-            if (properties.containsKey("decryption.key.path")) {
-                decrypter = new PGPFileDecrypter(new File(properties.getProperty("decryption.key.path")));
+            boolean streaming = commandLine.hasOption("s") || Boolean.valueOf(properties.getProperty(FETCH_STREAMING, "false"));
+
+            int workers;
+            if (commandLine.hasOption("w")) {
+                workers = Integer.valueOf(commandLine.getOptionValue("w"));
             } else {
-                decrypter = new NoopDecrypter();
+                workers = Integer.valueOf(properties.getProperty(FETCH_WORKERS, "1"));
+            }
+
+            ProcessedFileLedger ledger = null;
+            if (properties.containsKey(LEDGER_PATH)) {
+                ledger = new ProcessedFileLedger(new File(properties.getProperty(LEDGER_PATH)));
+            }
+
+            final StageMetrics metrics = new StageMetrics();
+            metrics.register(ManagementFactory.getPlatformMBeanServer());
+            MetricsServer metricsServer = null;
+            if (properties.containsKey(METRICS_PORT)) {
+                metricsServer = new MetricsServer(metrics, Integer.valueOf(properties.getProperty(METRICS_PORT)));
+                metricsServer.start();
+            }
+            final File metricsFile = properties.containsKey(METRICS_FILE) ? new File(properties.getProperty(METRICS_FILE)) : null;
+            List<StageListener> listeners = new ArrayList<StageListener>();
+            listeners.add(metrics);
+            listeners.add(new RunReport(System.out, Integer.valueOf(properties.getProperty(REPORT_SLOWEST, String.valueOf(RunReport.DEFAULT_SLOWEST)))));
+            TraceLog trace = null;
+            if (properties.containsKey(TRACE_PATH)) {
+                trace = new TraceLog(new File(properties.getProperty(TRACE_PATH)),
+                        Long.valueOf(properties.getProperty(TRACE_MAX_SIZE, String.valueOf(TraceLog.DEFAULT_MAX_SIZE))),
+                        Integer.valueOf(properties.getProperty(TRACE_FILES, String.valueOf(TraceLog.DEFAULT_KEEP))));
+                listeners.add(trace);
             }
 
-            SftpClient sftpClient = new SftpClient(new JSch(), new SftpConnectionInfo(properties));
+            final CountDownLatch closed = new CountDownLatch(1);
+            List<Source> sources = new ArrayList<Source>();
+            S3 s3 = null;
             try {
-                App app = new App(sftpClient,
-                        s3FromProperties(properties),
+                List<String> names = Source.names(properties);
+                if (names.isEmpty()) {
+                    sources.add(sourceFromProperties(null, properties, routingKey, pattern, daysToFetch));
+                } else {
+                    Set<String> keyPrefixes = new HashSet<String>();
+                    for (String name : names) {
+                        Source source = sourceFromProperties(name, Source.propertiesFor(name, properties), routingKey, pattern, daysToFetch);
+                        sources.add(source);
+                        if (!keyPrefixes.add(source.getKeyPrefix())) {
+                            throw new IllegalArgumentException(Source.SOURCES + "." + name + "." + Source.S3_PREFIX
+                                    + " is used by another source, whose files would be overwritten: " + source.getKeyPrefix());
+                        }
+                    }
+                }
+                s3 = s3FromProperties(properties);
+                final App app = new App(sources,
+                        s3,
                         new RabbitClient(new ConnectionFactory(), new RabbitConnectionInfo(properties)),
-                        decrypter,
                         System.out);
-                app.run(routingKey, daysToFetch, pattern, commandLine.hasOption("n"), commandLine.hasOption("o"));
+                app.setWorkers(workers);
+                app.setStreaming(streaming);
+                app.setOrder(FileOrder.forSetting(properties.getProperty(FETCH_ORDER, "listed")));
+                if (Boolean.valueOf(properties.getProperty(FETCH_LANES, "false"))) {
+                    app.setLanes(new LaneSettings(properties));
+                }
+                int threads = workers;
+                if (Boolean.valueOf(properties.getProperty(FETCH_PIPELINE, "false"))) {
+                    PipelineSettings pipeline = new PipelineSettings(properties);
+                    app.setPipeline(pipeline);
+                    threads = pipeline.getDownloadThreads();
+                }
+                if (threads > sftpChannels(sources)) {
+                    System.err.println("Only " + sftpChannels(sources) + " of the " + threads + " workers or download threads are used,"
+                            + " as each needs an SFTP channel of its own and the client keeps one. Raise sftp.channels to use them all.");
+                }
+                if (Boolean.valueOf(properties.getProperty(FETCH_VIRTUAL, "false"))) {
+                    if (!VirtualThreads.isAvailable()) {
+                        System.err.println("Virtual threads need Java 21 or later, using a platform thread per SFTP channel instead");
+                    } else if (VirtualThreads.pinsOnMonitors()) {
+                        System.err.println("This JVM pins virtual threads that block inside synchronized blocks, as JSch and the RabbitMQ client do,"
+                                + " so fewer files may be in flight than permitted. Java 24 or later does not,"
+                                + " and -Djdk.tracePinnedThreads=short shows where it happens.");
+                    }
+                    app.setVirtualThreads(new VirtualThreadSettings(properties));
+                }
+                if (Boolean.valueOf(properties.getProperty(FETCH_ADAPTIVE, "false"))) {
+                    app.setAdaptiveLimits(new AdaptiveLimitSettings(properties));
+                }
+                app.setLedger(ledger);
+                app.setStageListener(new StageListeners(listeners.toArray(new StageListener[listeners.size()])));
+                if (properties.containsKey(WATERMARK_PATH)) {
+                    app.setHighWaterMark(new HighWaterMark(new File(properties.getProperty(WATERMARK_PATH))));
+                }
+                if (commandLine.hasOption("D")) {
+                    final boolean noop = commandLine.hasOption("n");
+                    final boolean overwrite = commandLine.hasOption("o");
+                    long interval = Long.valueOf(properties.getProperty(DAEMON_INTERVAL, String.valueOf(Daemon.DEFAULT_INTERVAL)));
+                    long jitter = Long.valueOf(properties.getProperty(DAEMON_JITTER, String.valueOf(interval / 10)));
+                    final long shutdownTimeout = Long.valueOf(properties.getProperty(DAEMON_SHUTDOWN_TIMEOUT, "60000"));
+                    final Daemon daemon = new Daemon(new Daemon.Poll() {
+                        @Override
+                        public void poll() throws Exception {
+                            try {
+                                app.reconnect();
+                                app.run(noop, overwrite);
+                            } finally {
+                                if (metricsFile != null) {
+                                    metrics.save(metricsFile);
+                                }
+                            }
+                        }
+                    }, interval, jitter, System.err);
+                    Runtime.getRuntime().addShutdownHook(new Thread() {
+                        @Override
+                        public void run() {
+                            daemon.stop();
+                            try {
+                                if (!closed.await(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+                                    System.err.println("Gave up waiting for the current poll to finish");
+                                }
+                            } catch (InterruptedException ignored) {
+                            }
+                        }
+                    });
+                    daemon.run();
+                } else {
+                    try {
+                        app.run(commandLine.hasOption("n"), commandLine.hasOption("o"));
+                    } finally {
+                        if (metricsFile != null) {
+                            metrics.save(metricsFile);
+                        }
+                    }
+                }
             } finally {
-                sftpClient.close();
+                if (metricsServer != null) {
+                    metricsServer.stop();
+                }
+                if (trace != null) {
+                    trace.close();
+                }
+                for (Source source : sources) {
+                    source.getSftp().close();
+                }
+                if (s3 != null) {
+                    s3.close();
+                }
+                if (ledger != null) {
+                    ledger.close();
+                }
+                closed.countDown();
             }
             System.exit(0);
         } catch (UnrecognizedOptionException uoe) {
@@ -212,6 +1671,9 @@ public class App {
         options.addOption("r", "routing-key", true, "Routing key for posting messages");
         options.addOption("c", "config", true, "Properties file containing configuration options");
         options.addOption("d", "days", true, "Download files newer than this many days ago");
+        options.addOption("w", "workers", true, "Number of files to process concurrently");
+        options.addOption("s", "streaming", false, "Stream files from SFTP to S3 without using temporary files");
+        options.addOption("D", "daemon", false, "Keep running, polling for new files every daemon.interval milliseconds");
         options.addOption("h", "help", false, "Show this screen");
         return options;
     }
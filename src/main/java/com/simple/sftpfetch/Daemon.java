@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch;
+
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a poll over and over, waiting the configured interval give or take a random jitter in between, until stopped.
+ *
+ * A failed poll is reported and retried at the next interval rather than ending the loop. Stopping lets a poll in
+ * progress finish and cuts the wait before the next one short.
+ */
+public class Daemon implements Runnable {
+    public static final long DEFAULT_INTERVAL = 30000;
+
+    /**
+     * A single poll
+     */
+    public interface Poll {
+        void poll() throws Exception;
+    }
+
+    private final Poll poll;
+    private final long interval;
+    private final long jitter;
+    private final PrintStream err;
+    private final Random random = new Random();
+    private final CountDownLatch stopping = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * @param poll the poll to run
+     * @param interval the time between the end of one poll and the start of the next, in milliseconds
+     * @param jitter the most the interval is randomly lengthened or shortened by, in milliseconds
+     * @param err where failed polls are reported
+     */
+    public Daemon(Poll poll, long interval, long jitter, PrintStream err) {
+        if (interval < 0 || jitter < 0) {
+            throw new IllegalArgumentException("The poll interval and jitter must not be negative");
+        }
+        this.poll = poll;
+        this.interval = interval;
+        this.jitter = jitter;
+        this.err = err;
+    }
+
+    /**
+     * Poll until {@link #stop()} is called
+     */
+    @Override
+    public void run() {
+        try {
+            while (!isStopping()) {
+                try {
+                    poll.poll();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    err.println("Poll failed: " + e);
+                }
+                try {
+                    stopping.await(nextDelay(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Ask the loop to stop once the current poll, if any, has finished
+     */
+    public void stop() {
+        stopping.countDown();
+    }
+
+    public boolean isStopping() {
+        return stopping.getCount() == 0;
+    }
+
+    /**
+     * Wait for the loop to finish after being stopped
+     *
+     * @param timeout the longest to wait, in milliseconds
+     * @return true if the loop finished in time
+     *
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        return stopped.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the interval, randomly lengthened or shortened by up to the jitter, so that several instances started
+     * together do not keep polling in lockstep
+     */
+    long nextDelay() {
+        if (jitter == 0) {
+            return interval;
+        }
+        long offset = (long) ((random.nextDouble() * 2 - 1) * jitter);
+        return Math.max(0, interval + offset);
+    }
+}
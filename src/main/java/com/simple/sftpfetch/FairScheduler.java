@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Hands out work queued by several sources so that each of them gets a fair share of the workers.
+ *
+ * Sources take turns, and none of them may have more than its share of the workers busy at once while others are
+ * waiting: the number of workers divided by the number of sources with work queued or in progress, rounded up. A
+ * source with a flood of files therefore only holds on to its share, and a source with a trickle has its files picked
+ * up as soon as a worker comes free. When every source with files left is at its share the free worker still takes
+ * one, from the source with the fewest in progress, rather than sitting idle.
+ *
+ * Work may also be queued as backfill, which is only handed out once no other work is queued, and of which no more
+ * than the backfill limit is in progress at once. A worker that finds only backfill queued while the limit is reached
+ * gets nothing, so that the workers left over stay free for other work.
+ *
+ * @param <K> identifies a source
+ * @param <T> a unit of work
+ */
+class FairScheduler<K, T> {
+    private final int workers;
+    private final int backfillLimit;
+    private final List<Queues> sources = new ArrayList<Queues>();
+    private int next;
+    private int backfillBusy;
+
+    /**
+     * @param workers the number of workers taking work
+     */
+    FairScheduler(int workers) {
+        this(workers, workers);
+    }
+
+    /**
+     * @param workers the number of workers taking work
+     * @param backfillLimit the most backfill that may be in progress at once
+     */
+    FairScheduler(int workers, int backfillLimit) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("The number of workers must be positive: " + workers);
+        }
+        if (backfillLimit < 1) {
+            throw new IllegalArgumentException("The backfill limit must be positive: " + backfillLimit);
+        }
+        this.workers = workers;
+        this.backfillLimit = backfillLimit;
+    }
+
+    /**
+     * Queue work for a source, sources take turns in the order they were first added
+     */
+    synchronized void add(K source, T work) {
+        add(source, work, false);
+    }
+
+    /**
+     * Queue work for a source, as backfill if it may wait for the rest
+     */
+    synchronized void add(K source, T work, boolean backfill) {
+        Queues queues = queues(source);
+        (backfill ? queues.backfill : queues.queue).add(work);
+    }
+
+    /**
+     * Take the next unit of work, which must be followed by a call to {@link #done(Map.Entry)} once it is finished
+     *
+     * @return the source and its work, or null if nothing is queued or only backfill is queued and the backfill limit
+     * has been reached
+     */
+    synchronized Map.Entry<K, T> poll() {
+        int active = 0;
+        boolean queued = false;
+        for (Queues queues : sources) {
+            if (!queues.queue.isEmpty() || !queues.backfill.isEmpty() || queues.busy > 0) {
+                active++;
+            }
+            queued |= !queues.queue.isEmpty();
+        }
+        if (active == 0) {
+            return null;
+        }
+        boolean backfill = !queued;
+        if (backfill && backfillBusy >= backfillLimit) {
+            return null;
+        }
+        int share = (workers + active - 1) / active;
+        Queues chosen = null;
+        for (int i = 0; i < sources.size() && chosen == null; i++) {
+            Queues queues = sources.get((next + i) % sources.size());
+            if (!queues.next(backfill).isEmpty() && queues.busy < share) {
+                chosen = queues;
+            }
+        }
+        if (chosen == null) {
+            for (Queues queues : sources) {
+                if (!queues.next(backfill).isEmpty() && (chosen == null || queues.busy < chosen.busy)) {
+                    chosen = queues;
+                }
+            }
+            if (chosen == null) {
+                return null;
+            }
+        }
+        next = (sources.indexOf(chosen) + 1) % sources.size();
+        chosen.busy++;
+        if (backfill) {
+            backfillBusy++;
+        }
+        return new Taken(chosen.source, chosen.next(backfill).remove(), backfill);
+    }
+
+    /**
+     * Record that a unit of work taken from the given source has finished, successfully or not
+     */
+    synchronized void done(K source) {
+        Queues queues = queues(source);
+        if (queues.busy == 0) {
+            throw new IllegalStateException("Nothing is in progress for " + source);
+        }
+        queues.busy--;
+    }
+
+    /**
+     * Record that a unit of work has finished, successfully or not
+     *
+     * @param taken as returned by {@link #poll()}
+     */
+    synchronized void done(Map.Entry<K, T> taken) {
+        done(taken.getKey());
+        if (isBackfill(taken)) {
+            backfillBusy--;
+        }
+    }
+
+    /**
+     * @return true if the given work, as returned by {@link #poll()}, was queued as backfill
+     */
+    boolean isBackfill(Map.Entry<K, T> taken) {
+        return ((Taken) taken).backfill;
+    }
+
+    /**
+     * @return the most backfill that may be in progress at once
+     */
+    int getBackfillLimit() {
+        return backfillLimit;
+    }
+
+    /**
+     * Drop the work still queued for a source, work in progress is left to finish
+     *
+     * @return the number of units dropped
+     */
+    synchronized int cancel(K source) {
+        Queues queues = queues(source);
+        int dropped = queues.queue.size() + queues.backfill.size();
+        queues.queue.clear();
+        queues.backfill.clear();
+        return dropped;
+    }
+
+    /**
+     * @return the number of units of work queued for the given source
+     */
+    synchronized int queued(K source) {
+        Queues queues = queues(source);
+        return queues.queue.size() + queues.backfill.size();
+    }
+
+    /**
+     * @return the number of units of work queued for every source
+     */
+    synchronized int size() {
+        int size = 0;
+        for (Queues queues : sources) {
+            size += queues.queue.size() + queues.backfill.size();
+        }
+        return size;
+    }
+
+    private Queues queues(K source) {
+        for (Queues queues : sources) {
+            if (queues.source.equals(source)) {
+                return queues;
+            }
+        }
+        Queues queues = new Queues(source);
+        sources.add(queues);
+        return queues;
+    }
+
+    private class Queues {
+        final K source;
+        final Queue<T> queue = new LinkedList<T>();
+        final Queue<T> backfill = new LinkedList<T>();
+        int busy;
+
+        Queues(K source) {
+            this.source = source;
+        }
+
+        Queue<T> next(boolean backfill) {
+            return backfill ? this.backfill : queue;
+        }
+    }
+
+    private class Taken extends AbstractMap.SimpleImmutableEntry<K, T> {
+        private static final long serialVersionUID = 1L;
+
+        final boolean backfill;
+
+        Taken(K source, T work, boolean backfill) {
+            super(source, work);
+            this.backfill = backfill;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simple.sftpfetch;
+
+import com.simple.sftpfetch.sftp.RemoteFile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The order in which the files of a source are taken, files that tie are taken in name order
+ */
+public enum FileOrder {
+    /** The order the server listed them in */
+    LISTED(null),
+    /** The largest first, so that the last files to finish are small ones and the run ends sooner with several workers */
+    LARGEST(new Comparator<RemoteFile>() {
+        @Override
+        public int compare(RemoteFile a, RemoteFile b) {
+            return a.getSize() > b.getSize() ? -1 : a.getSize() < b.getSize() ? 1 : a.getName().compareTo(b.getName());
+        }
+    }),
+    /** The least recently modified first, so that no file waits much longer than the others to be published */
+    OLDEST(new Comparator<RemoteFile>() {
+        @Override
+        public int compare(RemoteFile a, RemoteFile b) {
+            return a.getMTime() < b.getMTime() ? -1 : a.getMTime() > b.getMTime() ? 1 : a.getName().compareTo(b.getName());
+        }
+    }),
+    /** The smallest first, so that as many files as possible are published early on */
+    SMALLEST(new Comparator<RemoteFile>() {
+        @Override
+        public int compare(RemoteFile a, RemoteFile b) {
+            return a.getSize() < b.getSize() ? -1 : a.getSize() > b.getSize() ? 1 : a.getName().compareTo(b.getName());
+        }
+    });
+
+    private final Comparator<RemoteFile> comparator;
+
+    FileOrder(Comparator<RemoteFile> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * @return the files in this order, the given list is left as it is
+     */
+    public List<RemoteFile> sort(List<RemoteFile> files) {
+        if (comparator == null) {
+            return files;
+        }
+        List<RemoteFile> sorted = new ArrayList<RemoteFile>(files);
+        Collections.sort(sorted, comparator);
+        return sorted;
+    }
+
+    /**
+     * @param setting the name of an order, in any case
+     * @throws IllegalArgumentException if there is no such order
+     */
+    public static FileOrder forSetting(String setting) {
+        try {
+            return valueOf(setting.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("fetch.order must be one of listed, largest, oldest or smallest: " + setting);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simple.sftpfetch;
+
+import java.util.Properties;
+
+/**
+ * Hold the settings that split files into a fresh lane, taken first, and a backfill lane that only uses a share of the
+ * workers
+ */
+public class LaneSettings {
+    public static final int DEFAULT_FRESH_MINUTES = 60;
+    public static final double DEFAULT_BACKFILL_SHARE = 0.25;
+
+    private int freshMinutes;
+    private double backfillShare;
+
+    /**
+     * Initialize from the given Properties, using the following optional keys
+     *
+     * <ul>
+     *   <li>fetch.lanes.fresh (files modified within this many minutes are fresh, the rest are backfill)</li>
+     *   <li>fetch.lanes.backfill.share (the share of the workers backfill may use at once)</li>
+     * </ul>
+     *
+     * @param properties the given properties
+     */
+    public LaneSettings(Properties properties) {
+        this(Integer.valueOf(properties.getProperty("fetch.lanes.fresh", String.valueOf(DEFAULT_FRESH_MINUTES))),
+                Double.valueOf(properties.getProperty("fetch.lanes.backfill.share", String.valueOf(DEFAULT_BACKFILL_SHARE))));
+    }
+
+    public LaneSettings(int freshMinutes, double backfillShare) {
+        if (freshMinutes < 1) {
+            throw new IllegalArgumentException("fetch.lanes.fresh must be positive: " + freshMinutes);
+        }
+        if (backfillShare <= 0 || backfillShare > 1) {
+            throw new IllegalArgumentException("fetch.lanes.backfill.share must be more than 0 and at most 1: " + backfillShare);
+        }
+        this.freshMinutes = freshMinutes;
+        this.backfillShare = backfillShare;
+    }
+
+    public int getFreshMinutes() {
+        return freshMinutes;
+    }
+
+    public double getBackfillShare() {
+        return backfillShare;
+    }
+
+    /**
+     * @return how many of the given workers backfill may use at once, at least one
+     */
+    public int backfillLimit(int workers) {
+        return Math.max(1, (int) (workers * backfillShare));
+    }
+}
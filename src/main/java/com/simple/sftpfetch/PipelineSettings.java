@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simple.sftpfetch;
+
+import java.util.Properties;
+
+/**
+ * Hold the number of threads given to each stage when running as a pipeline, and how many files may wait in front of
+ * each stage
+ */
+public class PipelineSettings {
+    public static final int DEFAULT_DOWNLOAD_THREADS = 4;
+    public static final int DEFAULT_UPLOAD_THREADS = 4;
+    public static final int DEFAULT_PUBLISH_THREADS = 1;
+    public static final int DEFAULT_QUEUE_SIZE = 4;
+
+    private int downloadThreads;
+    private int decryptThreads;
+    private int uploadThreads;
+    private int publishThreads;
+    private int queueSize;
+
+    /**
+     * Initialize from the given Properties, using the following optional keys
+     *
+     * <ul>
+     *   <li>fetch.pipeline.download.threads (SFTP channels opened per source)</li>
+     *   <li>fetch.pipeline.decrypt.threads (defaults to the number of cores)</li>
+     *   <li>fetch.pipeline.upload.threads (files uploaded to S3 at once)</li>
+     *   <li>fetch.pipeline.publish.threads (RabbitMQ channels opened)</li>
+     *   <li>fetch.pipeline.queue.size (files waiting in front of each stage before the one feeding it blocks)</li>
+     * </ul>
+     *
+     * @param properties the given properties
+     */
+    public PipelineSettings(Properties properties) {
+        this(Integer.valueOf(properties.getProperty("fetch.pipeline.download.threads", String.valueOf(DEFAULT_DOWNLOAD_THREADS))),
+                Integer.valueOf(properties.getProperty("fetch.pipeline.decrypt.threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.valueOf(properties.getProperty("fetch.pipeline.upload.threads", String.valueOf(DEFAULT_UPLOAD_THREADS))),
+                Integer.valueOf(properties.getProperty("fetch.pipeline.publish.threads", String.valueOf(DEFAULT_PUBLISH_THREADS))),
+                Integer.valueOf(properties.getProperty("fetch.pipeline.queue.size", String.valueOf(DEFAULT_QUEUE_SIZE))));
+    }
+
+    public PipelineSettings(int downloadThreads, int decryptThreads, int uploadThreads, int publishThreads, int queueSize) {
+        positive("fetch.pipeline.download.threads", downloadThreads);
+        positive("fetch.pipeline.decrypt.threads", decryptThreads);
+        positive("fetch.pipeline.upload.threads", uploadThreads);
+        positive("fetch.pipeline.publish.threads", publishThreads);
+        positive("fetch.pipeline.queue.size", queueSize);
+        this.downloadThreads = downloadThreads;
+        this.decryptThreads = decryptThreads;
+        this.uploadThreads = uploadThreads;
+        this.publishThreads = publishThreads;
+        this.queueSize = queueSize;
+    }
+
+    private static void positive(String key, int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(key + " must be positive: " + value);
+        }
+    }
+
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    public int getDecryptThreads() {
+        return decryptThreads;
+    }
+
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    public int getPublishThreads() {
+        return publishThreads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+}
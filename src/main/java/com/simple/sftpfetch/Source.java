@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch;
+
+import com.simple.sftpfetch.decrypt.FileDecrypter;
+import com.simple.sftpfetch.sftp.SftpClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * A single SFTP folder to fetch from, along with the files to pick, how to decrypt them and where to announce them
+ */
+public class Source {
+    public static final String SOURCES = "sources";
+    public static final String S3_PREFIX = "s3.prefix";
+
+    private final String name;
+    private final SftpClient sftp;
+    private final FileDecrypter decrypter;
+    private final String routingKey;
+    private final Pattern pattern;
+    private final int daysToFetch;
+    private final String keyPrefix;
+
+    /**
+     * Create a source whose files are uploaded under its name, or under their bare names if it has none
+     *
+     * @param name the name of the source, or null for the only source of a configuration without named sources
+     * @param sftp the client for the folder to fetch from
+     * @param decrypter the decrypter for the source's files
+     * @param routingKey the routing key to publish the source's files with
+     * @param pattern a regular expression pattern that files must match to be processed
+     * @param daysToFetch the number of days back to fetch from SFTP
+     */
+    public Source(String name, SftpClient sftp, FileDecrypter decrypter, String routingKey, Pattern pattern, int daysToFetch) {
+        this(name, sftp, decrypter, routingKey, pattern, daysToFetch, defaultKeyPrefix(name));
+    }
+
+    /**
+     * @param name the name of the source, or null for the only source of a configuration without named sources
+     * @param sftp the client for the folder to fetch from
+     * @param decrypter the decrypter for the source's files
+     * @param routingKey the routing key to publish the source's files with
+     * @param pattern a regular expression pattern that files must match to be processed
+     * @param daysToFetch the number of days back to fetch from SFTP
+     * @param keyPrefix prepended to the name of each file to give its S3 key
+     */
+    public Source(String name, SftpClient sftp, FileDecrypter decrypter, String routingKey, Pattern pattern, int daysToFetch, String keyPrefix) {
+        this.name = name;
+        this.sftp = sftp;
+        this.decrypter = decrypter;
+        this.routingKey = routingKey;
+        this.pattern = pattern;
+        this.daysToFetch = daysToFetch;
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * @param name the name of a source, or null
+     * @return the name followed by a slash, so that sources sharing a bucket keep their files apart
+     */
+    public static String defaultKeyPrefix(String name) {
+        return name == null ? "" : name + "/";
+    }
+
+    /**
+     * @param properties the configuration
+     * @return the names listed by the sources property, empty if there are none
+     */
+    public static List<String> names(Properties properties) {
+        List<String> names = new ArrayList<String>();
+        for (String name : properties.getProperty(SOURCES, "").split(",")) {
+            name = name.trim();
+            if (name.length() > 0 && !names.contains(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Find the configuration of a named source. Keys prefixed with sources.&lt;name&gt;. are returned without the
+     * prefix, anything they do not set falls back to the top level value.
+     *
+     * @param name the name of the source
+     * @param properties the configuration
+     * @return the source's own settings, with the rest of the configuration as defaults
+     */
+    public static Properties propertiesFor(String name, Properties properties) {
+        String prefix = SOURCES + "." + name + ".";
+        Properties own = new Properties(properties);
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                own.setProperty(key.substring(prefix.length()), properties.getProperty(key));
+            }
+        }
+        return own;
+    }
+
+    /**
+     * Find the prefix of a source's S3 keys. A named source's files are uploaded under its name unless it sets an
+     * s3.prefix of its own, and as all sources share one S3 client it may not set anything else under s3.
+     *
+     * @param name the name of the source, or null
+     * @param properties the source's configuration, as returned by {@link #propertiesFor(String, Properties)}
+     * @return the prefix
+     * @throws IllegalArgumentException if a named source sets any other s3 setting
+     */
+    public static String keyPrefixFor(String name, Properties properties) {
+        if (name == null) {
+            return properties.getProperty(S3_PREFIX, "");
+        }
+        for (String key : properties.stringPropertyNames()) {
+            // only the source's own settings are in the table itself, the top level ones are its defaults
+            if (key.startsWith("s3.") && !key.equals(S3_PREFIX) && properties.containsKey(key)) {
+                throw new IllegalArgumentException(SOURCES + "." + name + "." + key
+                        + " is not supported, all sources share the top level S3 settings");
+            }
+        }
+        return properties.containsKey(S3_PREFIX) ? properties.getProperty(S3_PREFIX) : defaultKeyPrefix(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public SftpClient getSftp() {
+        return sftp;
+    }
+
+    public FileDecrypter getDecrypter() {
+        return decrypter;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    public int getDaysToFetch() {
+        return daysToFetch;
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    /**
+     * The ledger is kept by the same key, so files of the same name from different sources are told apart there too.
+     *
+     * @param filename a file of this source
+     * @return the key the file is uploaded to S3 under
+     */
+    public String getKey(String filename) {
+        return keyPrefix + filename;
+    }
+
+    /**
+     * The pattern and, for recursive listings, the depth and path filter are part of the key, so runs over the same
+     * folder that pick different files do not move each other's marks past files they have not seen. Without them
+     * the key is the folder alone for an unnamed source, so marks written before sources were named still apply.
+     *
+     * @return the key the source's high water mark is kept under
+     */
+    String getMarkKey() {
+        StringBuilder key = new StringBuilder();
+        if (name != null) {
+            key.append(name).append(':');
+        }
+        key.append(sftp.getDownloadFrom());
+        if (!pattern.pattern().equals(App.MATCH_EVERYTHING.pattern())) {
+            key.append(" pattern=").append(pattern.pattern());
+        }
+        if (sftp.isRecursive()) {
+            key.append(' ').append(sftp.describeListing());
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param filename a file of this source
+     * @return the file name as reported in the output, prefixed with the source name if there is one
+     */
+    String describe(String filename) {
+        return name == null ? filename : name + "/" + filename;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch;
+
+/**
+ * Told how long each stage of processing a file took, and how each file turned out. Called from every worker at once,
+ * so implementations must be thread-safe, and on the worker's own thread, so they should be quick.
+ */
+public interface StageListener {
+    /**
+     * The stages of a run
+     */
+    enum Stage {
+        /** Listing a source, once per run */
+        LIST,
+        /** Finding which of the listed files were processed before, once per run */
+        CHECK,
+        /** Downloading a file to a temporary or staged file */
+        DOWNLOAD,
+        /** Downloading one byte range of a file downloaded in segments, part of the file's download */
+        SEGMENT,
+        /** Decrypting a downloaded file */
+        DECRYPT,
+        /** Uploading a decrypted file to S3 */
+        UPLOAD,
+        /** Piping a file from SFTP through the decrypter into S3 when streaming */
+        STREAM,
+        /** Publishing a file's URL, up to the broker confirming it when confirms are on */
+        PUBLISH
+    }
+
+    /**
+     * How a file turned out
+     */
+    enum Outcome {
+        /** Transferred and published, and confirmed when confirms are on */
+        PROCESSED("Processed"),
+        /** Skipped as it was processed before */
+        PREVIOUSLY_SEEN("Previously seen"),
+        /** Skipped as nothing is done in noop mode */
+        WOULD_PROCESS("Would process"),
+        /** Transferred but the broker never confirmed its URL */
+        NOT_CONFIRMED("Not confirmed"),
+        /** A stage failed */
+        FAILED("Failed");
+
+        private final String description;
+
+        Outcome(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    /**
+     * @param stage the stage that completed
+     * @param source the name of the source, or null for an unnamed source
+     * @param filename the file, or null when listing
+     * @param nanos how long the stage took
+     * @param bytes the size of the file handled by the stage, or the number of files listed or checked
+     */
+    void completed(Stage stage, String source, String filename, long nanos, long bytes);
+
+    /**
+     * @param source the name of the source, or null for an unnamed source
+     * @param filename the file whose URL was published
+     * @param lagMillis the time from the file being modified on the server to its URL being published
+     */
+    void published(String source, String filename, long lagMillis);
+
+    /**
+     * @param stage the stage that is being tried again
+     * @param source the name of the source, or null for an unnamed source
+     * @param filename the file
+     */
+    void retried(Stage stage, String source, String filename);
+
+    /**
+     * Called whenever the number of files waiting for a stage changes, only when running as a pipeline
+     *
+     * @param stage the stage the files are waiting for
+     * @param depth the number of files waiting, across every source
+     */
+    void queued(Stage stage, int depth);
+
+    /**
+     * Called when a source's adaptive limit on a stage is created and whenever it changes
+     *
+     * @param stage the limited stage
+     * @param source the name of the source, or null for an unnamed source
+     * @param limit how many files of the source may be in the stage at once
+     */
+    void limited(Stage stage, String source, int limit);
+
+    /**
+     * Called once per file, after its last stage
+     *
+     * @param source the name of the source, or null for an unnamed source
+     * @param filename the file
+     * @param outcome how it turned out
+     * @param failure what went wrong when it failed, otherwise null
+     */
+    void finished(String source, String filename, Outcome outcome, Exception failure);
+
+    /**
+     * Called once every file of a run has finished, whether the run succeeded or not
+     *
+     * @param nanos how long the run took
+     */
+    void runCompleted(long nanos);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Passes everything on to several listeners, in order
+ */
+public class StageListeners implements StageListener {
+    private final List<StageListener> listeners;
+
+    public StageListeners(StageListener... listeners) {
+        this.listeners = asList(listeners);
+    }
+
+    @Override
+    public void completed(Stage stage, String source, String filename, long nanos, long bytes) {
+        for (StageListener listener : listeners) {
+            listener.completed(stage, source, filename, nanos, bytes);
+        }
+    }
+
+    @Override
+    public void published(String source, String filename, long lagMillis) {
+        for (StageListener listener : listeners) {
+            listener.published(source, filename, lagMillis);
+        }
+    }
+
+    @Override
+    public void retried(Stage stage, String source, String filename) {
+        for (StageListener listener : listeners) {
+            listener.retried(stage, source, filename);
+        }
+    }
+
+    @Override
+    public void queued(Stage stage, int depth) {
+        for (StageListener listener : listeners) {
+            listener.queued(stage, depth);
+        }
+    }
+
+    @Override
+    public void limited(Stage stage, String source, int limit) {
+        for (StageListener listener : listeners) {
+            listener.limited(stage, source, limit);
+        }
+    }
+
+    @Override
+    public void finished(String source, String filename, Outcome outcome, Exception failure) {
+        for (StageListener listener : listeners) {
+            listener.finished(source, filename, outcome, failure);
+        }
+    }
+
+    @Override
+    public void runCompleted(long nanos) {
+        for (StageListener listener : listeners) {
+            listener.runCompleted(nanos);
+        }
+    }
+}
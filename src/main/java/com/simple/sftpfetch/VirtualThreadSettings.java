@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simple.sftpfetch;
+
+import com.amazonaws.ClientConfiguration;
+
+import java.util.Properties;
+
+/**
+ * Hold the limits on how many files are in each stage at once when every file gets a virtual thread of its own. The
+ * number downloaded from a source at once follows its own sftp.channels.
+ */
+public class VirtualThreadSettings {
+    public static final int DEFAULT_S3_PERMITS = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+    public static final int DEFAULT_RABBIT_CHANNELS = 4;
+
+    private int s3Permits;
+    private int decryptPermits;
+    private int rabbitChannels;
+
+    /**
+     * Initialize from the given Properties, using the following optional keys
+     *
+     * <ul>
+     *   <li>fetch.virtual.s3.permits (files uploaded at once, defaults to the S3 client's connections)</li>
+     *   <li>fetch.virtual.decrypt.permits (files decrypted at once, defaults to the number of cores)</li>
+     *   <li>fetch.virtual.rabbit.channels (RabbitMQ channels shared by every file)</li>
+     * </ul>
+     *
+     * @param properties the given properties
+     */
+    public VirtualThreadSettings(Properties properties) {
+        this(Integer.valueOf(properties.getProperty("fetch.virtual.s3.permits", String.valueOf(DEFAULT_S3_PERMITS))),
+                Integer.valueOf(properties.getProperty("fetch.virtual.decrypt.permits", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.valueOf(properties.getProperty("fetch.virtual.rabbit.channels", String.valueOf(DEFAULT_RABBIT_CHANNELS))));
+    }
+
+    public VirtualThreadSettings(int s3Permits, int decryptPermits, int rabbitChannels) {
+        if (s3Permits < 1) {
+            throw new IllegalArgumentException("fetch.virtual.s3.permits must be positive: " + s3Permits);
+        }
+        if (decryptPermits < 1) {
+            throw new IllegalArgumentException("fetch.virtual.decrypt.permits must be positive: " + decryptPermits);
+        }
+        if (rabbitChannels < 1) {
+            throw new IllegalArgumentException("fetch.virtual.rabbit.channels must be positive: " + rabbitChannels);
+        }
+        this.s3Permits = s3Permits;
+        this.decryptPermits = decryptPermits;
+        this.rabbitChannels = rabbitChannels;
+    }
+
+    public int getS3Permits() {
+        return s3Permits;
+    }
+
+    public int getDecryptPermits() {
+        return decryptPermits;
+    }
+
+    public int getRabbitChannels() {
+        return rabbitChannels;
+    }
+}
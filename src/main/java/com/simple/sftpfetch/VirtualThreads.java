@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simple.sftpfetch;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts virtual threads where the JVM has them, Java 21 and later, and platform threads everywhere else. Virtual
+ * threads are created through reflection so that the rest of the code does not need a newer JDK to build.
+ */
+final class VirtualThreads {
+    static final long PROBE_MILLIS = 100;
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // Java 19 and 20 only have virtual threads as a preview, which throws unless enabled
+            ofVirtual.invoke(null);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the JVM can start virtual threads
+     */
+    static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Start a virtual thread for every task, or run the tasks on a fixed number of platform threads if the JVM has
+     * no virtual threads
+     *
+     * @param prefix the threads are named after it, followed by a number
+     * @param platformThreads the number of platform threads to fall back to
+     */
+    static ExecutorService newExecutor(final String prefix, int platformThreads) {
+        if (!isAvailable()) {
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(platformThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, prefix + count.getAndIncrement());
+                }
+            });
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, FACTORY.invoke(builder));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to start virtual threads", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to start virtual threads", e.getCause());
+        }
+    }
+
+    /**
+     * Find out whether a virtual thread that blocks inside a synchronized block keeps its carrier thread to itself,
+     * as it does before Java 24. JSch and the RabbitMQ client block that way, so while they do fewer files are in
+     * flight than there are virtual threads. Twice as many virtual threads as there are carriers each sleep inside a
+     * synchronized block: pinned, only half of them can sleep at a time.
+     *
+     * @return true if virtual threads are pinned by synchronized blocks, false if not or if there are none
+     *
+     * @throws InterruptedException
+     */
+    static boolean pinsOnMonitors() throws InterruptedException {
+        if (!isAvailable()) {
+            return false;
+        }
+        int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+        final Object[] locks = new Object[carriers * 2];
+        ExecutorService executor = newExecutor("pinning-check-", 1);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new Object();
+                final Object lock = locks[i];
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (lock) {
+                            try {
+                                Thread.sleep(PROBE_MILLIS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(PROBE_MILLIS * 10, TimeUnit.MILLISECONDS);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= PROBE_MILLIS * 3 / 2;
+    }
+}
@@ -18,6 +18,8 @@ package com.simple.sftpfetch.decrypt;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.NoSuchProviderException;
 
 /**
@@ -34,4 +36,27 @@ public interface FileDecrypter {
      * @throws NoSuchProviderException
      */
     File decryptFile(File input) throws IOException, NoSuchProviderException;
+
+    /**
+     * Decrypt everything read from the given stream, writing the result to the other stream
+     *
+     * @param input a stream of encrypted content
+     * @param output the stream to write the decrypted content to
+     *
+     * @throws IOException
+     * @throws NoSuchProviderException
+     */
+    void decrypt(InputStream input, OutputStream output) throws IOException, NoSuchProviderException;
+
+    /**
+     * Wrap the given stream of encrypted content in a stream of decrypted content. Nothing beyond the headers is
+     * read until the returned stream is read.
+     *
+     * @param input a stream of encrypted content
+     * @return a stream of the decrypted content, closing it closes the input
+     *
+     * @throws IOException
+     * @throws NoSuchProviderException
+     */
+    InputStream decrypt(InputStream input) throws IOException, NoSuchProviderException;
 }
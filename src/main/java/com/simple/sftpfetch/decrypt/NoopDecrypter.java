@@ -16,8 +16,12 @@
 
 package com.simple.sftpfetch.decrypt;
 
+import org.bouncycastle.util.io.Streams;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.NoSuchProviderException;
 
 /**
@@ -37,4 +41,27 @@ public class NoopDecrypter implements FileDecrypter {
     public File decryptFile(File input) throws IOException, NoSuchProviderException {
         return input;
     }
+
+    /**
+     * Copy the input to the output unchanged
+     *
+     * @param input a stream of encrypted content
+     * @param output the stream to write the decrypted content to
+     * @throws IOException
+     */
+    @Override
+    public void decrypt(InputStream input, OutputStream output) throws IOException {
+        Streams.pipeAll(input, output);
+    }
+
+    /**
+     * Return the input unchanged
+     *
+     * @param input a stream of encrypted content
+     * @return the input
+     */
+    @Override
+    public InputStream decrypt(InputStream input) {
+        return input;
+    }
 }
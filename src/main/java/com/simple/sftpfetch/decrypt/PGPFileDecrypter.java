@@ -47,6 +47,8 @@ import org.bouncycastle.util.io.Streams;
 
 import java.io.*;
 import java.security.NoSuchProviderException;
+import java.security.Security;
+import java.util.Collections;
 import java.util.Iterator;
 
 /**
@@ -54,7 +56,8 @@ import java.util.Iterator;
  */
 public class PGPFileDecrypter implements FileDecrypter {
 
-    private PGPSecretKeyRingCollection pgpSec;
+    private final PGPKeyring keyring;
+    private final SymmetricProvider symmetricProvider;
 
     /**
      * Initialize the PGPFileDecrypter with the private key from the given file
@@ -65,12 +68,28 @@ public class PGPFileDecrypter implements FileDecrypter {
      * @throws PGPException
      */
     public PGPFileDecrypter(File key) throws IOException, PGPException {
-        InputStream keyIn = new FileInputStream(key);
-        try {
-            this.pgpSec = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn));
-        } finally {
-            keyIn.close();
-        }
+        this(new PGPKeyring(Collections.singletonList(key), new char[0], PGPKeyring.DEFAULT_RELOAD_INTERVAL));
+    }
+
+    /**
+     * Initialize the PGPFileDecrypter with the keys of the given keyring, which may be shared with other decrypters
+     *
+     * @param keyring the keys messages may be encrypted for
+     */
+    public PGPFileDecrypter(PGPKeyring keyring) {
+        this(keyring, null);
+    }
+
+    /**
+     * Initialize the PGPFileDecrypter with the keys of the given keyring, decrypting the content of integrity protected
+     * messages with the given provider
+     *
+     * @param keyring the keys messages may be encrypted for
+     * @param symmetricProvider the provider for the bulk decryption, or null for BouncyCastle
+     */
+    public PGPFileDecrypter(PGPKeyring keyring, SymmetricProvider symmetricProvider) {
+        this.keyring = keyring;
+        this.symmetricProvider = symmetricProvider;
     }
 
     /**
@@ -78,7 +97,7 @@ public class PGPFileDecrypter implements FileDecrypter {
      *
      * @param input an encrypted file
      *
-     * @return the decrypted file
+     * @return the decrypted file, which the caller is responsible for deleting
      * @throws IOException
      * @throws NoSuchProviderException
      */
@@ -87,21 +106,51 @@ public class PGPFileDecrypter implements FileDecrypter {
         InputStream in = new BufferedInputStream(new FileInputStream(input));
         File out = File.createTempFile("message", ".txt");
         OutputStream outStream = new BufferedOutputStream(new FileOutputStream(out));
+        boolean decrypted = false;
         try {
-            decryptFile(in, outStream);
+            decrypt(in, outStream);
+            decrypted = true;
         } finally {
             outStream.close();
             in.close();
+            if (!decrypted) {
+                out.delete();
+            }
         }
 
         return out;
     }
 
-    private void decryptFile(InputStream in, OutputStream outputStream) throws IOException, NoSuchProviderException {
-        in = PGPUtil.getDecoderStream(in);
+    /**
+     * Decrypt everything read from the given stream, writing the literal data to the other stream
+     *
+     * @param in a stream of encrypted content
+     * @param outputStream the stream to write the decrypted content to
+     *
+     * @throws IOException if the content cannot be read or is not a simple encrypted message
+     * @throws NoSuchProviderException
+     */
+    @Override
+    public void decrypt(InputStream in, OutputStream outputStream) throws IOException, NoSuchProviderException {
+        Streams.pipeAll(decrypt(in), outputStream);
+    }
+
+    /**
+     * Start decrypting the given stream. Only the headers are read up front, the literal data is decrypted as the
+     * returned stream is read and the integrity check, if the message has one, is done once it reaches the end.
+     *
+     * @param in a stream of encrypted content
+     *
+     * @return a stream of the decrypted literal data, closing it closes the encrypted stream
+     * @throws IOException if the headers cannot be read or the message is not a simple encrypted message
+     * @throws NoSuchProviderException
+     */
+    @Override
+    public InputStream decrypt(InputStream in) throws IOException, NoSuchProviderException {
+        InputStream decoded = PGPUtil.getDecoderStream(in);
 
         try {
-            PGPEncryptedDataList enc = getEncryptedDataList(in);
+            PGPEncryptedDataList enc = getEncryptedDataList(decoded);
 
             Iterator it = enc.getEncryptedDataObjects();
             PGPPrivateKey sKey = null;
@@ -116,7 +165,12 @@ public class PGPFileDecrypter implements FileDecrypter {
                 throw new IllegalArgumentException("secret key for message not found.");
             }
 
-            InputStream clear = pbe.getDataStream(sKey, "BC");
+            InputStream clear;
+            if (symmetricProvider != null && pbe.isIntegrityProtected()) {
+                clear = pbe.getDataStream(sKey, Security.getProvider("BC"), symmetricProvider);
+            } else {
+                clear = pbe.getDataStream(sKey, "BC");
+            }
             Object message = new PGPObjectFactory(clear).nextObject();
 
             if (message instanceof PGPCompressedData) {
@@ -127,24 +181,21 @@ public class PGPFileDecrypter implements FileDecrypter {
 
             if (message instanceof PGPLiteralData) {
                 PGPLiteralData ld = (PGPLiteralData) message;
-                Streams.pipeAll(ld.getInputStream(), outputStream);
+                return new VerifyingInputStream(ld.getInputStream(), pbe, in);
             } else if (message instanceof PGPOnePassSignatureList) {
                 throw new PGPException("encrypted message contains a signed message - not literal data.");
             } else {
                 throw new PGPException("message is not a simple encrypted file - type unknown.");
             }
-
-            if (pbe.isIntegrityProtected() && !pbe.verify()) {
-                throw new PGPException("message failed integrity check");
-            }
         } catch (PGPException e) {
-            System.err.println(e);
-            if (e.getUnderlyingException() != null) {
-                e.getUnderlyingException().printStackTrace();
-            }
+            throw asIOException(e);
         }
     }
 
+    private static IOException asIOException(PGPException e) {
+        return new IOException("Unable to decrypt: " + e.getMessage(), e.getUnderlyingException() != null ? e.getUnderlyingException() : e);
+    }
+
     private PGPEncryptedDataList getEncryptedDataList(InputStream in) throws IOException {
         PGPObjectFactory pgpF = new PGPObjectFactory(in);
         PGPEncryptedDataList enc;
@@ -169,10 +220,59 @@ public class PGPFileDecrypter implements FileDecrypter {
      * @throws NoSuchProviderException
      */
     private PGPPrivateKey getPrivateKey(PGPPrivateKey sKey, PGPPublicKeyEncryptedData pbe) throws PGPException, NoSuchProviderException {
-        PGPSecretKey pgpSecKey = pgpSec.getSecretKey(pbe.getKeyID());
-        if (pgpSecKey != null) {
-            sKey = pgpSecKey.extractPrivateKey(new char[]{}, "BC");
+        PGPPrivateKey privateKey = keyring.getPrivateKey(pbe.getKeyID());
+        return privateKey != null ? privateKey : sKey;
+    }
+
+    /**
+     * Checks the integrity of the message once the literal data has been read completely
+     */
+    private static class VerifyingInputStream extends FilterInputStream {
+        private final PGPPublicKeyEncryptedData pbe;
+        private final InputStream encrypted;
+        private boolean verified;
+
+        VerifyingInputStream(InputStream literal, PGPPublicKeyEncryptedData pbe, InputStream encrypted) {
+            super(literal);
+            this.pbe = pbe;
+            this.encrypted = encrypted;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                verify();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read < 0) {
+                verify();
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            encrypted.close();
+        }
+
+        private void verify() throws IOException {
+            if (verified) {
+                return;
+            }
+            verified = true;
+            try {
+                if (pbe.isIntegrityProtected() && !pbe.verify()) {
+                    throw new IOException("Unable to decrypt: message failed integrity check");
+                }
+            } catch (PGPException e) {
+                throw asIOException(e);
+            }
         }
-        return sKey;
     }
 }
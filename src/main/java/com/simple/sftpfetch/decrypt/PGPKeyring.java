@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.decrypt;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The secret keys from one or more key files, indexed by key ID. Each private key is extracted the first time a
+ * message needs it and then kept, so the cost of unlocking a key is paid once rather than for every file. Safe to
+ * share between threads.
+ *
+ * The key files are checked for changes at most once per reload interval, and read again when any of them has
+ * changed, so keys can be rotated without a restart. If they cannot be read, for instance while being replaced, the
+ * keys already loaded are kept and the files are tried again at the next check.
+ */
+public class PGPKeyring {
+    public static final String KEY_PATH = "decryption.key.path";
+    public static final String PASSPHRASE = "decryption.key.passphrase";
+    public static final String PASSPHRASE_ENV = "decryption.key.passphrase.env";
+    public static final String RELOAD_INTERVAL = "decryption.key.reload.interval";
+    public static final long DEFAULT_RELOAD_INTERVAL = 10000;
+
+    private final List<File> files;
+    private final char[] passphrase;
+    private final long reloadInterval;
+    private volatile Keys keys;
+    private volatile long checked;
+
+    /**
+     * Initialize from the given Properties, using the following keys
+     *
+     * <ul>
+     *   <li>decryption.key.path (required, the key files separated by commas)</li>
+     *   <li>decryption.key.passphrase (optional, the passphrase of any protected keys)</li>
+     *   <li>decryption.key.passphrase.env (optional, an environment variable holding the passphrase instead)</li>
+     *   <li>decryption.key.reload.interval (optional, milliseconds between checks for changed key files)</li>
+     * </ul>
+     *
+     * @param properties the given properties
+     *
+     * @throws IOException
+     * @throws PGPException
+     */
+    public PGPKeyring(Properties properties) throws IOException, PGPException {
+        this(properties, System.getenv());
+    }
+
+    PGPKeyring(Properties properties, Map<String, String> environment) throws IOException, PGPException {
+        this(files(properties.getProperty(KEY_PATH)), passphrase(properties, environment),
+                Long.valueOf(properties.getProperty(RELOAD_INTERVAL, String.valueOf(DEFAULT_RELOAD_INTERVAL))));
+    }
+
+    /**
+     * @param files the key files
+     * @param passphrase the passphrase of any protected keys, empty if none are
+     * @param reloadInterval milliseconds between checks for changed key files, 0 to check before every message
+     *
+     * @throws IOException if a key file cannot be read
+     * @throws PGPException if a key file does not hold secret keys
+     */
+    public PGPKeyring(List<File> files, char[] passphrase, long reloadInterval) throws IOException, PGPException {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException(KEY_PATH + " must name at least one key file");
+        }
+        this.files = new ArrayList<File>(files);
+        this.passphrase = passphrase.clone();
+        this.reloadInterval = reloadInterval;
+        this.keys = load();
+        this.checked = System.currentTimeMillis();
+    }
+
+    /**
+     * @param keyID the ID of the key a message was encrypted for
+     *
+     * @return the private key, or null if none of the key files has it
+     * @throws PGPException if the key cannot be unlocked, for instance with the wrong passphrase
+     * @throws NoSuchProviderException
+     */
+    public PGPPrivateKey getPrivateKey(long keyID) throws PGPException, NoSuchProviderException {
+        Keys current = current();
+        PGPPrivateKey privateKey = current.privateKeys.get(keyID);
+        if (privateKey == null) {
+            PGPSecretKey secretKey = current.secretKeys.get(keyID);
+            if (secretKey == null) {
+                return null;
+            }
+            privateKey = secretKey.extractPrivateKey(passphrase, "BC");
+            PGPPrivateKey extracted = current.privateKeys.putIfAbsent(keyID, privateKey);
+            if (extracted != null) {
+                privateKey = extracted;
+            }
+        }
+        return privateKey;
+    }
+
+    /**
+     * @return the IDs of every secret key currently loaded
+     */
+    public Set<Long> getKeyIDs() {
+        return Collections.unmodifiableSet(current().secretKeys.keySet());
+    }
+
+    private Keys current() {
+        long now = System.currentTimeMillis();
+        if (now - checked >= reloadInterval) {
+            synchronized (this) {
+                if (now - checked >= reloadInterval) {
+                    checked = now;
+                    if (!keys.stamps.equals(stamps())) {
+                        try {
+                            keys = load();
+                        } catch (Exception e) {
+                            System.err.println("Keeping the current keys, unable to reload " + files + ": " + e);
+                        }
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    private Keys load() throws IOException, PGPException {
+        Map<File, String> stamps = stamps();
+        Map<Long, PGPSecretKey> secretKeys = new HashMap<Long, PGPSecretKey>();
+        for (File file : files) {
+            InputStream in = new FileInputStream(file);
+            try {
+                PGPSecretKeyRingCollection rings = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(in));
+                for (Iterator<?> ringIterator = rings.getKeyRings(); ringIterator.hasNext(); ) {
+                    PGPSecretKeyRing ring = (PGPSecretKeyRing) ringIterator.next();
+                    for (Iterator<?> keyIterator = ring.getSecretKeys(); keyIterator.hasNext(); ) {
+                        PGPSecretKey key = (PGPSecretKey) keyIterator.next();
+                        if (!secretKeys.containsKey(key.getKeyID())) {
+                            secretKeys.put(key.getKeyID(), key);
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return new Keys(secretKeys, stamps);
+    }
+
+    private Map<File, String> stamps() {
+        Map<File, String> stamps = new HashMap<File, String>();
+        for (File file : files) {
+            stamps.put(file, file.lastModified() + ":" + file.length());
+        }
+        return stamps;
+    }
+
+    private static List<File> files(String paths) {
+        List<File> files = new ArrayList<File>();
+        if (paths != null) {
+            for (String path : paths.split(",")) {
+                if (path.trim().length() > 0) {
+                    files.add(new File(path.trim()));
+                }
+            }
+        }
+        return files;
+    }
+
+    private static char[] passphrase(Properties properties, Map<String, String> environment) {
+        if (properties.containsKey(PASSPHRASE_ENV)) {
+            String variable = properties.getProperty(PASSPHRASE_ENV);
+            String passphrase = environment.get(variable);
+            if (passphrase == null) {
+                throw new IllegalArgumentException("The environment variable " + variable + " named by " + PASSPHRASE_ENV + " is not set");
+            }
+            return passphrase.toCharArray();
+        }
+        return properties.getProperty(PASSPHRASE, "").toCharArray();
+    }
+
+    /**
+     * The keys loaded from one version of the key files, and the private keys extracted from them so far
+     */
+    private static class Keys {
+        final Map<Long, PGPSecretKey> secretKeys;
+        final ConcurrentMap<Long, PGPPrivateKey> privateKeys = new ConcurrentHashMap<Long, PGPPrivateKey>();
+        final Map<File, String> stamps;
+
+        Keys(Map<Long, PGPSecretKey> secretKeys, Map<File, String> stamps) {
+            this.secretKeys = secretKeys;
+            this.stamps = stamps;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.decrypt;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A provider for the bulk symmetric decryption of messages that takes each cipher and digest from the first of a chain
+ * of providers that has it, with BouncyCastle last. This lets AES come from the JDK, whose implementation uses the
+ * processor's AES instructions, while ciphers and modes only BouncyCastle has, such as CAST5, still work.
+ *
+ * Only the CFB mode used by integrity protected messages is taken from the chain. Messages without integrity
+ * protection use a variant of CFB that only BouncyCastle has, so they are always decrypted by BouncyCastle.
+ */
+public class SymmetricProvider extends Provider {
+    private static final long serialVersionUID = 1L;
+
+    public static final String PROVIDER = "decryption.provider";
+    public static final String BC = "BC";
+    public static final String AUTO = "auto";
+
+    private static final String TRANSFORMATION = "AES/CFB/NoPadding";
+    private static final int SELF_TEST_SIZE = 64 * 1024;
+    private static final int TIMING_SIZE = 4 * 1024 * 1024;
+
+    private final List<Provider> chain;
+
+    // Provider(String, String, String) only arrived in Java 9, and this still has to run on Java 8
+    @SuppressWarnings("deprecation")
+    SymmetricProvider(List<Provider> chain) {
+        super("SftpFetchSymmetric", 1.0, "Symmetric ciphers from " + chain);
+        this.chain = chain;
+    }
+
+    /**
+     * Choose the provider from the decryption.provider setting. BC, the default, means BouncyCastle alone, and null is
+     * returned. The name of an installed provider puts it first in the chain. auto times AES on every installed
+     * provider and puts the fastest first. A provider that does not decrypt AES exactly as BouncyCastle does is
+     * reported and left out.
+     *
+     * @param setting BC, auto or the name of an installed provider
+     *
+     * @return the provider to use, or null for BouncyCastle alone
+     * @throws IllegalArgumentException if no provider has the given name
+     */
+    public static SymmetricProvider forSetting(String setting) {
+        if (setting == null || setting.equals(BC)) {
+            return null;
+        }
+        Provider bouncyCastle = bouncyCastle();
+        List<Provider> chain = new ArrayList<Provider>();
+        if (setting.equals(AUTO)) {
+            Provider fastest = fastest(bouncyCastle);
+            if (fastest == bouncyCastle) {
+                return null;
+            }
+            chain.add(fastest);
+        } else {
+            Provider preferred = Security.getProvider(setting);
+            if (preferred == null) {
+                throw new IllegalArgumentException("No security provider named " + setting + " for " + PROVIDER);
+            }
+            if (!selfTest(preferred, bouncyCastle)) {
+                System.err.println(setting + " failed the decryption self-test, using BouncyCastle");
+                return null;
+            }
+            chain.add(preferred);
+        }
+        for (Provider installed : Security.getProviders()) {
+            if (!chain.contains(installed) && !installed.getName().equals(BC)) {
+                chain.add(installed);
+            }
+        }
+        chain.add(bouncyCastle);
+        return new SymmetricProvider(Collections.unmodifiableList(chain));
+    }
+
+    /**
+     * @return the provider AES comes from
+     */
+    public Provider getPreferred() {
+        return chain.get(0);
+    }
+
+    @Override
+    public Service getService(String type, String algorithm) {
+        String base = algorithm.split("/")[0];
+        for (Provider provider : chain) {
+            if (provider.getService(type, base) != null || provider.getService(type, algorithm) != null) {
+                return provider.getService(type, algorithm);
+            }
+        }
+        return null;
+    }
+
+    private static Provider bouncyCastle() {
+        Provider bouncyCastle = Security.getProvider(BC);
+        if (bouncyCastle == null) {
+            bouncyCastle = new BouncyCastleProvider();
+            Security.addProvider(bouncyCastle);
+        }
+        return bouncyCastle;
+    }
+
+    private static Provider fastest(Provider bouncyCastle) {
+        Provider fastest = bouncyCastle;
+        long fastestNanos = time(bouncyCastle);
+        Provider[] candidates = Security.getProviders("Cipher.AES");
+        for (Provider candidate : candidates == null ? new Provider[0] : candidates) {
+            if (candidate == bouncyCastle || !selfTest(candidate, bouncyCastle)) {
+                continue;
+            }
+            long nanos = time(candidate);
+            if (nanos < fastestNanos) {
+                fastest = candidate;
+                fastestNanos = nanos;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * @return whether the provider decrypts what BouncyCastle encrypted, for every AES key size
+     */
+    static boolean selfTest(Provider provider, Provider bouncyCastle) {
+        SecureRandom random = new SecureRandom();
+        byte[] plaintext = new byte[SELF_TEST_SIZE];
+        random.nextBytes(plaintext);
+        try {
+            for (int keySize : new int[]{16, 24, 32}) {
+                byte[] key = new byte[keySize];
+                byte[] iv = new byte[16];
+                random.nextBytes(key);
+                random.nextBytes(iv);
+                byte[] encrypted = cipher(bouncyCastle, Cipher.ENCRYPT_MODE, key, iv).doFinal(plaintext);
+                if (!Arrays.equals(plaintext, cipher(provider, Cipher.DECRYPT_MODE, key, iv).doFinal(encrypted))) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the fastest of a few decryptions of a few megabytes, after warming up
+     */
+    private static long time(Provider provider) {
+        byte[] data = new byte[TIMING_SIZE];
+        long fastest = Long.MAX_VALUE;
+        try {
+            Cipher cipher = cipher(provider, Cipher.DECRYPT_MODE, new byte[16], new byte[16]);
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                cipher.update(data, 0, data.length, data, 0);
+                fastest = Math.min(fastest, System.nanoTime() - start);
+            }
+        } catch (GeneralSecurityException e) {
+            return Long.MAX_VALUE;
+        }
+        return fastest;
+    }
+
+    private static Cipher cipher(Provider provider, int mode, byte[] key, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION, provider);
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return cipher;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.ledger;
+
+import com.simple.sftpfetch.sftp.RemoteFile;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A local record of every file that has been processed, along with its modification time, size and S3 ETag.
+ *
+ * Records are appended to a log file and synced to disk one at a time, so a crash loses at most the record being
+ * written. The log is compacted when the ledger is opened, keeping only the latest record for each file, and every
+ * record is held in memory so lookups need no I/O.
+ *
+ * The ledger is stale when it did not exist yet or when a <code>.stale</code> marker file sits next to it, in which
+ * case files it has not seen might still have been processed and S3 has to be consulted.
+ */
+public class ProcessedFileLedger {
+    public static final String ENCODING = "UTF-8";
+
+    public enum Status {
+        /** The file has never been processed */
+        NEW,
+        /** The file was processed with the same modification time and size */
+        UNCHANGED,
+        /** A file with the same name was processed, but it has been modified since */
+        CHANGED
+    }
+
+    private final File file;
+    private final File staleMarker;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private FileOutputStream out;
+
+    /**
+     * Open the ledger stored in the given file, creating it if necessary, and compact it
+     *
+     * @param file the log file
+     *
+     * @throws IOException
+     */
+    public ProcessedFileLedger(File file) throws IOException {
+        this.file = file;
+        this.staleMarker = new File(file.getPath() + ".stale");
+        if (file.exists()) {
+            load();
+        } else {
+            staleMarker.createNewFile();
+        }
+        compact();
+        this.out = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Compare the given file against the latest record for its name
+     *
+     * @param remote the file on the SFTP server
+     * @return whether it is new, unchanged or changed since it was last processed
+     */
+    public synchronized Status check(RemoteFile remote) {
+        return check(remote.getName(), remote);
+    }
+
+    /**
+     * Compare the given file against the latest record under the given name
+     *
+     * @param name the name the file is recorded under, such as its S3 key
+     * @param remote the file on the SFTP server
+     * @return whether it is new, unchanged or changed since it was last processed
+     */
+    public synchronized Status check(String name, RemoteFile remote) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return Status.NEW;
+        } else if (entry.mtime == remote.getMTime() && entry.size == remote.getSize()) {
+            return Status.UNCHANGED;
+        } else {
+            return Status.CHANGED;
+        }
+    }
+
+    /**
+     * Record that the given file has been processed, syncing the record to disk before returning
+     *
+     * @param remote the file on the SFTP server
+     * @param eTag the ETag of the uploaded object, or null if it is not known
+     *
+     * @throws IOException
+     */
+    public synchronized void record(RemoteFile remote, String eTag) throws IOException {
+        record(remote.getName(), remote, eTag);
+    }
+
+    /**
+     * Record that the given file has been processed under the given name, syncing the record to disk before returning
+     *
+     * @param name the name to record the file under, such as its S3 key
+     * @param remote the file on the SFTP server
+     * @param eTag the ETag of the uploaded object, or null if it is not known
+     *
+     * @throws IOException
+     */
+    public synchronized void record(String name, RemoteFile remote, String eTag) throws IOException {
+        Entry entry = new Entry(name, remote.getMTime(), remote.getSize(), eTag);
+        out.write(entry.toLine().getBytes(ENCODING));
+        out.getChannel().force(false);
+        entries.put(entry.name, entry);
+    }
+
+    /**
+     * Get the ETag recorded for the given file name
+     *
+     * @param name the file name
+     * @return the ETag, or null if the file has not been processed or its ETag is not known
+     */
+    public synchronized String getETag(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? null : entry.eTag;
+    }
+
+    public synchronized boolean isStale() {
+        return staleMarker.exists();
+    }
+
+    /**
+     * Remove the stale marker, once every file that was already in S3 has been recorded
+     */
+    public synchronized void markFresh() {
+        staleMarker.delete();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Read every complete record, ignoring a partially written last line and anything unparseable
+     */
+    private void load() throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        String content = new String(bytes, ENCODING);
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            Entry entry = Entry.parse(content.substring(start, end));
+            if (entry != null) {
+                entries.put(entry.name, entry);
+            }
+            start = end + 1;
+        }
+    }
+
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        FileOutputStream compactedOut = new FileOutputStream(compacted);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(compactedOut, ENCODING));
+            for (Entry entry : entries.values()) {
+                writer.write(entry.toLine());
+            }
+            writer.flush();
+            compactedOut.getFD().sync();
+        } finally {
+            compactedOut.close();
+        }
+        if (!compacted.renameTo(file)) {
+            file.delete();
+            if (!compacted.renameTo(file)) {
+                throw new IOException("Unable to replace " + file + " with its compacted copy");
+            }
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final long mtime;
+        final long size;
+        final String eTag;
+
+        Entry(String name, long mtime, long size, String eTag) {
+            this.name = name;
+            this.mtime = mtime;
+            this.size = size;
+            this.eTag = eTag;
+        }
+
+        String toLine() throws UnsupportedEncodingException {
+            return URLEncoder.encode(name, ENCODING) + "\t" + mtime + "\t" + size + "\t" + (eTag == null ? "-" : eTag) + "\n";
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Entry(URLDecoder.decode(fields[0], ENCODING),
+                        Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]),
+                        "-".equals(fields[3]) ? null : fields[3]);
+            } catch (IllegalArgumentException e) {
+                return null;
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+    }
+}
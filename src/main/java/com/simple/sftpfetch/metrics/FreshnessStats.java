@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.metrics;
+
+/**
+ * The time from each file being modified on the server to its URL being published
+ */
+public class FreshnessStats implements FreshnessStatsMBean {
+    private static final double MILLIS_PER_SECOND = 1e3;
+
+    private final LatencyHistogram millis = new LatencyHistogram();
+
+    void record(long lagMillis) {
+        millis.record(lagMillis);
+    }
+
+    /**
+     * @return the lag of every published file, in milliseconds
+     */
+    public LatencyHistogram getMillis() {
+        return millis;
+    }
+
+    @Override
+    public long getCount() {
+        return millis.getCount();
+    }
+
+    @Override
+    public double getMeanSeconds() {
+        return millis.getMean() / MILLIS_PER_SECOND;
+    }
+
+    @Override
+    public double get50thPercentileSeconds() {
+        return millis.getValueAtPercentile(50) / MILLIS_PER_SECOND;
+    }
+
+    @Override
+    public double get90thPercentileSeconds() {
+        return millis.getValueAtPercentile(90) / MILLIS_PER_SECOND;
+    }
+
+    @Override
+    public double get99thPercentileSeconds() {
+        return millis.getValueAtPercentile(99) / MILLIS_PER_SECOND;
+    }
+
+    @Override
+    public double getMaxSeconds() {
+        return millis.getMax() / MILLIS_PER_SECOND;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.metrics;
+
+/**
+ * The JMX view of how long files wait on the server before their URLs are published
+ */
+public interface FreshnessStatsMBean {
+    /**
+     * @return the number of files published
+     */
+    long getCount();
+
+    double getMeanSeconds();
+
+    double get50thPercentileSeconds();
+
+    double get90thPercentileSeconds();
+
+    double get99thPercentileSeconds();
+
+    double getMaxSeconds();
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.simple.sftpfetch.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The latest adaptive limit of a source on a stage
+ */
+public class LimitStats implements LimitStatsMBean {
+    private final AtomicInteger limit = new AtomicInteger();
+
+    void set(int limit) {
+        this.limit.set(limit);
+    }
+
+    @Override
+    public int getLimit() {
+        return limit.get();
+    }
+}
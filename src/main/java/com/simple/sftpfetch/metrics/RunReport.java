@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.metrics;
+
+import com.simple.sftpfetch.StageListener;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Prints a summary at the end of every run: how the files turned out and the overall throughput, the share of the
+ * time spent in each stage, the slowest files with the time each of their stages took, and the files that failed, were
+ * not confirmed or would be processed in noop mode.
+ *
+ * Stages run on several workers at once, so the shares are of the time spent in all stages together rather than of
+ * the wall time of the run.
+ */
+public class RunReport implements StageListener {
+    public static final int DEFAULT_SLOWEST = 5;
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Outcome[] OUTCOMES = Outcome.values();
+    private static final Outcome[] LISTED = {Outcome.FAILED, Outcome.NOT_CONFIRMED, Outcome.WOULD_PROCESS};
+
+    private final PrintStream out;
+    private final int slowest;
+    private final AtomicLongArray stageNanos = new AtomicLongArray(STAGES.length);
+    private final AtomicLongArray outcomes = new AtomicLongArray(OUTCOMES.length);
+    private final ConcurrentMap<String, FileTimes> files = new ConcurrentHashMap<String, FileTimes>();
+
+    public RunReport(PrintStream out) {
+        this(out, DEFAULT_SLOWEST);
+    }
+
+    /**
+     * @param out where to print the summary
+     * @param slowest how many of the slowest files to list
+     */
+    public RunReport(PrintStream out, int slowest) {
+        this.out = out;
+        this.slowest = slowest;
+    }
+
+    @Override
+    public void completed(Stage stage, String source, String filename, long nanos, long bytes) {
+        if (stage == Stage.SEGMENT) {
+            // already part of the file's download
+            return;
+        }
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+        if (filename != null) {
+            times(source, filename).add(stage, nanos, bytes);
+        }
+    }
+
+    @Override
+    public void published(String source, String filename, long lagMillis) {
+    }
+
+    @Override
+    public void retried(Stage stage, String source, String filename) {
+    }
+
+    @Override
+    public void queued(Stage stage, int depth) {
+    }
+
+    @Override
+    public void limited(Stage stage, String source, int limit) {
+    }
+
+    @Override
+    public void finished(String source, String filename, Outcome outcome, Exception failure) {
+        outcomes.incrementAndGet(outcome.ordinal());
+        FileTimes times = times(source, filename);
+        times.failure = failure;
+        times.outcome = outcome;
+    }
+
+    @Override
+    public void runCompleted(long nanos) {
+        List<FileTimes> finished = new ArrayList<FileTimes>(files.values());
+        files.clear();
+        long bytes = 0;
+        for (FileTimes file : finished) {
+            if (file.outcome == Outcome.PROCESSED) {
+                bytes += file.bytes;
+            }
+        }
+        double seconds = nanos / 1e9;
+
+        StringBuilder counts = new StringBuilder();
+        for (Outcome outcome : OUTCOMES) {
+            long count = outcomes.getAndSet(outcome.ordinal(), 0);
+            if (count > 0) {
+                counts.append(", ").append(count).append(' ').append(outcome.getDescription().toLowerCase(Locale.ROOT));
+            }
+        }
+        out.println(String.format(Locale.ROOT, "Run took %.2fs%s, %.1f MB at %.2f MB/s",
+                seconds, counts, bytes / 1e6, seconds == 0 ? 0 : bytes / 1e6 / seconds));
+
+        long total = 0;
+        long[] stages = new long[STAGES.length];
+        for (Stage stage : STAGES) {
+            stages[stage.ordinal()] = stageNanos.getAndSet(stage.ordinal(), 0);
+            total += stages[stage.ordinal()];
+        }
+        if (total > 0) {
+            StringBuilder shares = new StringBuilder("Time in each stage:");
+            for (Stage stage : STAGES) {
+                if (stages[stage.ordinal()] > 0) {
+                    shares.append(String.format(Locale.ROOT, " %s %.1f%%", label(stage), 100.0 * stages[stage.ordinal()] / total));
+                }
+            }
+            out.println(shares);
+        }
+
+        Collections.sort(finished, new Comparator<FileTimes>() {
+            @Override
+            public int compare(FileTimes a, FileTimes b) {
+                return Long.valueOf(b.total()).compareTo(a.total());
+            }
+        });
+        List<FileTimes> slow = finished.subList(0, Math.min(slowest, finished.size()));
+        if (!slow.isEmpty() && slow.get(0).total() > 0) {
+            out.println("Slowest files:");
+            for (FileTimes file : slow) {
+                if (file.total() > 0) {
+                    out.println("  " + file);
+                }
+            }
+        }
+
+        Collections.sort(finished, new Comparator<FileTimes>() {
+            @Override
+            public int compare(FileTimes a, FileTimes b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        for (Outcome outcome : LISTED) {
+            boolean first = true;
+            for (FileTimes file : finished) {
+                if (file.outcome == outcome) {
+                    if (first) {
+                        out.println(outcome.getDescription() + ":");
+                        first = false;
+                    }
+                    out.println("  " + file.name + (file.failure == null ? "" : ": " + file.failure));
+                }
+            }
+        }
+    }
+
+    private FileTimes times(String source, String filename) {
+        String name = source == null ? filename : source + "/" + filename;
+        FileTimes times = files.get(name);
+        if (times == null) {
+            FileTimes created = new FileTimes(name);
+            times = files.putIfAbsent(name, created);
+            if (times == null) {
+                times = created;
+            }
+        }
+        return times;
+    }
+
+    private static String label(Stage stage) {
+        return stage.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The time each stage took for one file
+     */
+    private static class FileTimes {
+        final String name;
+        final long[] nanos = new long[STAGES.length];
+        long bytes;
+        volatile Exception failure;
+        volatile Outcome outcome;
+
+        FileTimes(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(Stage stage, long nanos, long bytes) {
+            this.nanos[stage.ordinal()] += nanos;
+            this.bytes = Math.max(this.bytes, bytes);
+        }
+
+        synchronized long total() {
+            long total = 0;
+            for (long stage : nanos) {
+                total += stage;
+            }
+            return total;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder stages = new StringBuilder();
+            for (Stage stage : STAGES) {
+                if (nanos[stage.ordinal()] > 0) {
+                    stages.append(stages.length() == 0 ? "" : ", ")
+                            .append(String.format(Locale.ROOT, "%s %.3fs", label(stage), nanos[stage.ordinal()] / 1e9));
+                }
+            }
+            return String.format(Locale.ROOT, "%.3fs %s (%s)", total() / 1e9, name, stages);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.metrics;
+
+import com.simple.sftpfetch.StageListener;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts, bytes, retries, queue depths and latency histograms for every stage of a run, how each file turned out, and
+ * how fresh files are when their URLs are published, along with each source's adaptive limits. Exposed as MBeans and in
+ * the Prometheus text format.
+ */
+public class StageMetrics implements StageListener {
+    public static final String DOMAIN = "com.simple.sftpfetch";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<Stage, StageStats> stages = new EnumMap<Stage, StageStats>(Stage.class);
+    private final FreshnessStats freshness = new FreshnessStats();
+    private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+    private final Map<Stage, ConcurrentMap<String, LimitStats>> limits = new EnumMap<Stage, ConcurrentMap<String, LimitStats>>(Stage.class);
+    private volatile MBeanServer server;
+
+    public StageMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageStats());
+            limits.put(stage, new ConcurrentHashMap<String, LimitStats>());
+        }
+    }
+
+    @Override
+    public void completed(Stage stage, String source, String filename, long nanos, long bytes) {
+        stages.get(stage).record(nanos, bytes);
+    }
+
+    @Override
+    public void published(String source, String filename, long lagMillis) {
+        freshness.record(lagMillis);
+    }
+
+    @Override
+    public void retried(Stage stage, String source, String filename) {
+        stages.get(stage).retried();
+    }
+
+    @Override
+    public void queued(Stage stage, int depth) {
+        stages.get(stage).queued(depth);
+    }
+
+    @Override
+    public void limited(Stage stage, String source, int limit) {
+        ConcurrentMap<String, LimitStats> stageLimits = limits.get(stage);
+        String key = source == null ? "" : source;
+        LimitStats stats = stageLimits.get(key);
+        if (stats == null) {
+            LimitStats created = new LimitStats();
+            stats = stageLimits.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+                MBeanServer server = this.server;
+                if (server != null) {
+                    try {
+                        server.registerMBean(created, limitName(stage, key));
+                    } catch (JMException e) {
+                        System.err.println("Unable to register the " + label(stage) + " limit of " + key + ": " + e);
+                    }
+                }
+            }
+        }
+        stats.set(limit);
+    }
+
+    @Override
+    public void finished(String source, String filename, Outcome outcome, Exception failure) {
+        outcomes.incrementAndGet(outcome.ordinal());
+    }
+
+    @Override
+    public void runCompleted(long nanos) {
+    }
+
+    /**
+     * @return the number of files that turned out the given way
+     */
+    public long getFinished(Outcome outcome) {
+        return outcomes.get(outcome.ordinal());
+    }
+
+    public StageStats getStage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public FreshnessStats getFreshness() {
+        return freshness;
+    }
+
+    /**
+     * @param source the name of the source, or null for an unnamed source
+     * @return the source's adaptive limit on the stage, or null if it has none
+     */
+    public LimitStats getLimit(Stage stage, String source) {
+        return limits.get(stage).get(source == null ? "" : source);
+    }
+
+    /**
+     * Register an MBean for every stage, named after it, one for freshness, and one for every adaptive limit, including
+     * those created later
+     *
+     * @throws JMException
+     */
+    public void register(MBeanServer server) throws JMException {
+        for (Map.Entry<Stage, StageStats> stage : stages.entrySet()) {
+            server.registerMBean(stage.getValue(), stageName(stage.getKey()));
+        }
+        server.registerMBean(freshness, freshnessName());
+        this.server = server;
+        for (Map.Entry<Stage, ConcurrentMap<String, LimitStats>> stage : limits.entrySet()) {
+            for (Map.Entry<String, LimitStats> limit : stage.getValue().entrySet()) {
+                if (!server.isRegistered(limitName(stage.getKey(), limit.getKey()))) {
+                    server.registerMBean(limit.getValue(), limitName(stage.getKey(), limit.getKey()));
+                }
+            }
+        }
+    }
+
+    public void unregister(MBeanServer server) throws JMException {
+        this.server = null;
+        for (Stage stage : stages.keySet()) {
+            server.unregisterMBean(stageName(stage));
+            for (String source : limits.get(stage).keySet()) {
+                if (server.isRegistered(limitName(stage, source))) {
+                    server.unregisterMBean(limitName(stage, source));
+                }
+            }
+        }
+        server.unregisterMBean(freshnessName());
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format
+     */
+    public void write(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.print("# HELP sftp_fetch_stage_seconds Time taken by each stage of a run\n");
+        out.print("# TYPE sftp_fetch_stage_seconds summary\n");
+        for (Map.Entry<Stage, StageStats> stage : stages.entrySet()) {
+            summary(out, "sftp_fetch_stage_seconds", "stage=\"" + label(stage.getKey()) + "\",", stage.getValue().getNanos(), 1e9);
+        }
+        out.print("# HELP sftp_fetch_stage_bytes_total Bytes handled by each stage that handles files\n");
+        out.print("# TYPE sftp_fetch_stage_bytes_total counter\n");
+        for (Map.Entry<Stage, StageStats> stage : stages.entrySet()) {
+            if (!perRun(stage.getKey())) {
+                out.print("sftp_fetch_stage_bytes_total{stage=\"" + label(stage.getKey()) + "\"} " + stage.getValue().getBytes() + "\n");
+            }
+        }
+        out.print("# HELP sftp_fetch_files_total Files listed and checked against what was processed before\n");
+        out.print("# TYPE sftp_fetch_files_total counter\n");
+        for (Map.Entry<Stage, StageStats> stage : stages.entrySet()) {
+            if (perRun(stage.getKey())) {
+                out.print("sftp_fetch_files_total{stage=\"" + label(stage.getKey()) + "\"} " + stage.getValue().getBytes() + "\n");
+            }
+        }
+        out.print("# HELP sftp_fetch_stage_retries_total Times each stage was tried again\n");
+        out.print("# TYPE sftp_fetch_stage_retries_total counter\n");
+        for (Map.Entry<Stage, StageStats> stage : stages.entrySet()) {
+            out.print("sftp_fetch_stage_retries_total{stage=\"" + label(stage.getKey()) + "\"} " + stage.getValue().getRetries() + "\n");
+        }
+        out.print("# HELP sftp_fetch_stage_queue_depth Files waiting for each stage that handles files when running as a pipeline\n");
+        out.print("# TYPE sftp_fetch_stage_queue_depth gauge\n");
+        for (Map.Entry<Stage, StageStats> stage : stages.entrySet()) {
+            if (!perRun(stage.getKey()) && stage.getKey() != Stage.SEGMENT) {
+                out.print("sftp_fetch_stage_queue_depth{stage=\"" + label(stage.getKey()) + "\"} " + stage.getValue().getQueueDepth() + "\n");
+            }
+        }
+        out.print("# HELP sftp_fetch_concurrency_limit Files of each source that may be in a stage at once, as learned by its adaptive limit\n");
+        out.print("# TYPE sftp_fetch_concurrency_limit gauge\n");
+        for (Map.Entry<Stage, ConcurrentMap<String, LimitStats>> stage : limits.entrySet()) {
+            for (Map.Entry<String, LimitStats> limit : stage.getValue().entrySet()) {
+                out.print("sftp_fetch_concurrency_limit{stage=\"" + label(stage.getKey()) + "\",source=\"" + escape(limit.getKey()) + "\"} "
+                        + limit.getValue().getLimit() + "\n");
+            }
+        }
+        out.print("# HELP sftp_fetch_files_finished_total Files by how they turned out\n");
+        out.print("# TYPE sftp_fetch_files_finished_total counter\n");
+        for (Outcome outcome : Outcome.values()) {
+            out.print("sftp_fetch_files_finished_total{outcome=\"" + outcome.name().toLowerCase(Locale.ROOT) + "\"} "
+                    + outcomes.get(outcome.ordinal()) + "\n");
+        }
+        out.print("# HELP sftp_fetch_freshness_lag_seconds Time from a file being modified on the server to its URL being published\n");
+        out.print("# TYPE sftp_fetch_freshness_lag_seconds summary\n");
+        summary(out, "sftp_fetch_freshness_lag_seconds", "", freshness.getMillis(), 1e3);
+        out.flush();
+    }
+
+    /**
+     * Write every metric in the Prometheus text format to the given file, replacing it in one go so that a collector
+     * reading it never sees half of it
+     *
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        File saved = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(saved);
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            write(writer);
+            writer.flush();
+        } finally {
+            out.close();
+        }
+        if (!saved.renameTo(file)) {
+            file.delete();
+            if (!saved.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+
+    private static void summary(PrintWriter out, String name, String labels, LatencyHistogram histogram, double perSecond) {
+        for (double quantile : QUANTILES) {
+            out.print(name + "{" + labels + "quantile=\"" + quantile + "\"} "
+                    + number(histogram.getValueAtPercentile(quantile * 100) / perSecond) + "\n");
+        }
+        String bare = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.print(name + "_sum" + bare + " " + number(histogram.getSum() / perSecond) + "\n");
+        out.print(name + "_count" + bare + " " + histogram.getCount() + "\n");
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static boolean perRun(Stage stage) {
+        return stage == Stage.LIST || stage == Stage.CHECK;
+    }
+
+    private static String label(Stage stage) {
+        return stage.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static ObjectName stageName(Stage stage) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Stage,name=" + label(stage));
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The unnamed source leaves out the source key
+     */
+    private static ObjectName limitName(Stage stage, String source) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Limit,stage=" + label(stage) + (source.isEmpty() ? "" : ",source=" + ObjectName.quote(source)));
+    }
+
+    private static ObjectName freshnessName() throws JMException {
+        return new ObjectName(DOMAIN + ":type=Freshness");
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time taken by, and the bytes handled by, one stage of a run
+ */
+public class StageStats implements StageStatsMBean {
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final LatencyHistogram nanos = new LatencyHistogram();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    void record(long nanos, long bytes) {
+        this.nanos.record(nanos);
+        this.bytes.addAndGet(bytes);
+    }
+
+    void retried() {
+        retries.incrementAndGet();
+    }
+
+    void queued(int depth) {
+        queueDepth.set(depth);
+    }
+
+    /**
+     * @return the time the stage took each time it completed, in nanoseconds
+     */
+    public LatencyHistogram getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public long getCount() {
+        return nanos.getCount();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return nanos.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get50thPercentileMillis() {
+        return nanos.getValueAtPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get90thPercentileMillis() {
+        return nanos.getValueAtPercentile(90) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+        return nanos.getValueAtPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return nanos.getMax() / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.metrics;
+
+/**
+ * The JMX view of one stage of a run
+ */
+public interface StageStatsMBean {
+    /**
+     * @return the number of times the stage completed
+     */
+    long getCount();
+
+    /**
+     * @return the bytes handled by the stage, or the files listed or checked for the stages that run once per run
+     */
+    long getBytes();
+
+    /**
+     * @return the number of times the stage was tried again
+     */
+    long getRetries();
+
+    /**
+     * @return the number of files last seen waiting for the stage when running as a pipeline
+     */
+    int getQueueDepth();
+
+    double getMeanMillis();
+
+    double get50thPercentileMillis();
+
+    double get90thPercentileMillis();
+
+    double get99thPercentileMillis();
+
+    double getMaxMillis();
+}
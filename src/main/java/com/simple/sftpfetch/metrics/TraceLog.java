@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.metrics;
+
+import com.simple.sftpfetch.StageListener;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes one JSON object per file to a local file, on a line of its own, with a span for every stage the file went
+ * through, including the listing and check of its source, and how it turned out.
+ *
+ * Events are written by a background thread so workers never wait on the disk. If it falls too far behind events are
+ * dropped and counted rather than held. The file is rolled over once it reaches a maximum size, keeping a number of
+ * old files with .1, .2 and so on appended to their names, .1 being the most recent.
+ */
+public class TraceLog implements StageListener, Closeable {
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_KEEP = 5;
+
+    private static final String ENCODING = "UTF-8";
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final String STOP = "";  // never an event
+
+    private final File file;
+    private final long maxSize;
+    private final int keep;
+    private final ConcurrentMap<String, Trace> traces = new ConcurrentHashMap<String, Trace>();
+    private final ConcurrentMap<String, Span> listings = new ConcurrentHashMap<String, Span>();
+    private final ConcurrentMap<String, Span> checks = new ConcurrentHashMap<String, Span>();
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile IOException failure;
+
+    public TraceLog(File file) throws IOException {
+        this(file, DEFAULT_MAX_SIZE, DEFAULT_KEEP);
+    }
+
+    /**
+     * @param file the file to write to, appended to if it exists
+     * @param maxSize the size in bytes at which the file is rolled over
+     * @param keep the number of rolled over files to keep
+     *
+     * @throws IOException
+     */
+    public TraceLog(File file, long maxSize, int keep) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.keep = keep;
+        final OutputStream out = open();
+        writer = new Thread("trace-log") {
+            @Override
+            public void run() {
+                write(out);
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void completed(Stage stage, String source, String filename, long nanos, long bytes) {
+        Span span = new Span(stage, System.currentTimeMillis(), nanos, bytes);
+        if (filename != null) {
+            trace(source, filename).add(span);
+        } else if (stage == Stage.LIST) {
+            listings.put(key(source), span);
+        } else if (stage == Stage.CHECK) {
+            checks.put(key(source), span);
+        }
+    }
+
+    @Override
+    public void published(String source, String filename, long lagMillis) {
+        trace(source, filename).lagMillis = lagMillis;
+    }
+
+    @Override
+    public void retried(Stage stage, String source, String filename) {
+        trace(source, filename).retries.incrementAndGet();
+    }
+
+    @Override
+    public void queued(Stage stage, int depth) {
+    }
+
+    @Override
+    public void limited(Stage stage, String source, int limit) {
+    }
+
+    @Override
+    public void finished(String source, String filename, Outcome outcome, Exception failure) {
+        Trace trace = traces.remove(key(source) + "/" + filename);
+        if (trace == null) {
+            trace = new Trace();
+        }
+        if (!queue.offer(trace.toJson(source, filename, outcome, failure, listings.get(key(source)), checks.get(key(source))))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void runCompleted(long nanos) {
+        traces.clear();
+    }
+
+    /**
+     * @return the number of events dropped because the writer fell behind
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write out every event so far and stop the writer
+     *
+     * @throws IOException if writing failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (writer.isAlive()) {
+                queue.put(STOP);
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Trace trace(String source, String filename) {
+        String key = key(source) + "/" + filename;
+        Trace trace = traces.get(key);
+        if (trace == null) {
+            Trace created = new Trace();
+            trace = traces.putIfAbsent(key, created);
+            if (trace == null) {
+                trace = created;
+            }
+        }
+        return trace;
+    }
+
+    private static String key(String source) {
+        return source == null ? "" : source;
+    }
+
+    private void write(OutputStream out) {
+        try {
+            try {
+                long size = file.length();
+                while (true) {
+                    String event = queue.take();
+                    if (event.equals(STOP)) {
+                        return;
+                    }
+                    if (size >= maxSize) {
+                        out.close();
+                        roll();
+                        out = open();
+                        size = 0;
+                    }
+                    // the size is counted in bytes, as non-ASCII file names take more than a byte a character
+                    byte[] line = (event + "\n").getBytes(ENCODING);
+                    out.write(line);
+                    size += line.length;
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private OutputStream open() throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(file, true));
+    }
+
+    private void roll() throws IOException {
+        new File(file.getPath() + "." + keep).delete();
+        for (int i = keep - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists() && !older.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                throw new IOException("Unable to roll over " + older);
+            }
+        }
+        if (keep == 0) {
+            file.delete();
+        } else if (!file.renameTo(new File(file.getPath() + ".1"))) {
+            throw new IOException("Unable to roll over " + file);
+        }
+    }
+
+    /**
+     * The spans of a file so far
+     */
+    private static class Trace {
+        final List<Span> spans = new ArrayList<Span>();
+        final AtomicLong retries = new AtomicLong();
+        volatile long lagMillis = -1;
+
+        synchronized void add(Span span) {
+            spans.add(span);
+        }
+
+        synchronized String toJson(String source, String filename, Outcome outcome, Exception failure, Span listing, Span check) {
+            long end = System.currentTimeMillis();
+            long start = end;
+            long bytes = 0;
+            long nanos = 0;
+            for (Span span : spans) {
+                start = Math.min(start, span.start);
+                bytes = Math.max(bytes, span.bytes);
+                nanos += span.nanos;
+            }
+            StringBuilder json = new StringBuilder(256);
+            json.append("{\"source\":").append(string(source))
+                    .append(",\"file\":").append(string(filename))
+                    .append(",\"outcome\":").append(string(outcome.name().toLowerCase(Locale.ROOT)))
+                    .append(",\"start\":").append(start)
+                    .append(",\"end\":").append(end)
+                    .append(",\"bytes\":").append(bytes)
+                    .append(",\"mbPerSecond\":").append(throughput(bytes, nanos))
+                    .append(",\"retries\":").append(retries.get());
+            if (lagMillis >= 0) {
+                json.append(",\"lagMillis\":").append(lagMillis);
+            }
+            if (failure != null) {
+                json.append(",\"error\":").append(string(failure.toString()));
+            }
+            json.append(",\"spans\":[");
+            boolean first = true;
+            for (Span span : listing == null ? spans : prepend(listing, check, spans)) {
+                if (!first) {
+                    json.append(',');
+                }
+                span.appendTo(json);
+                first = false;
+            }
+            return json.append("]}").toString();
+        }
+
+        private static List<Span> prepend(Span listing, Span check, List<Span> spans) {
+            List<Span> all = new ArrayList<Span>(spans.size() + 2);
+            all.add(listing);
+            if (check != null) {
+                all.add(check);
+            }
+            all.addAll(spans);
+            return all;
+        }
+    }
+
+    /**
+     * One stage, timed
+     */
+    private static class Span {
+        final Stage stage;
+        final long start;
+        final long end;
+        final long nanos;
+        final long bytes;
+
+        Span(Stage stage, long end, long nanos, long bytes) {
+            this.stage = stage;
+            this.start = end - nanos / 1000000;
+            this.end = end;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+        void appendTo(StringBuilder json) {
+            json.append("{\"stage\":").append(string(stage.name().toLowerCase(Locale.ROOT)))
+                    .append(",\"start\":").append(start)
+                    .append(",\"end\":").append(end)
+                    .append(",\"millis\":").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+            if (stage == Stage.LIST || stage == Stage.CHECK) {
+                json.append(",\"files\":").append(bytes);
+            } else {
+                json.append(",\"bytes\":").append(bytes).append(",\"mbPerSecond\":").append(throughput(bytes, nanos));
+            }
+            json.append('}');
+        }
+    }
+
+    private static String throughput(long bytes, long nanos) {
+        return nanos == 0 ? "0" : String.format(Locale.ROOT, "%.3f", bytes / 1e6 / (nanos / 1e9));
+    }
+
+    static String string(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.publish;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads files to S3 in parts, several at a time. Each part is retried on its own, and the upload is aborted if any
+ * part still fails so no orphaned parts are left behind.
+ */
+class MultipartUploader {
+    static final long RETRY_BACKOFF = 200;
+
+    private final AmazonS3Client s3;
+    private final S3UploadSettings settings;
+    private final ExecutorService executor;
+
+    MultipartUploader(AmazonS3Client s3, S3UploadSettings settings) {
+        this.s3 = s3;
+        this.settings = settings;
+        this.executor = Executors.newFixedThreadPool(settings.getThreads(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-part-upload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Upload the given file in parts
+     *
+     * @param bucket the bucket to upload to
+     * @param key the key to upload to
+     * @param file the file to upload
+     *
+     * @return the ETag of the completed upload
+     */
+    String upload(String bucket, String key, File file) {
+        String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+        List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+        try {
+            long length = file.length();
+            long partSize = settings.getPartSize(length);
+            int partNumber = 1;
+            for (long offset = 0; offset < length; offset += partSize) {
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber++)
+                        .withFile(file)
+                        .withFileOffset(offset)
+                        .withPartSize(Math.min(partSize, length - offset));
+                parts.add(executor.submit(new PartUpload(request)));
+            }
+
+            List<PartETag> partETags = new ArrayList<PartETag>();
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            return s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags)).getETag();
+        } catch (ExecutionException e) {
+            abort(bucket, key, uploadId, parts);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AmazonClientException("Unable to upload " + key, e.getCause());
+        } catch (InterruptedException e) {
+            abort(bucket, key, uploadId, parts);
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while uploading " + key, e);
+        } catch (RuntimeException e) {
+            abort(bucket, key, uploadId, parts);
+            throw e;
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void abort(String bucket, String key, String uploadId, List<Future<PartETag>> parts) {
+        for (Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+        s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+    }
+
+    private class PartUpload implements Callable<PartETag> {
+        private final UploadPartRequest request;
+
+        PartUpload(UploadPartRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public PartETag call() throws InterruptedException {
+            int attempt = 0;
+            while (true) {
+                try {
+                    return s3.uploadPart(request).getPartETag();
+                } catch (AmazonClientException e) {
+                    if (attempt++ >= settings.getRetries()) {
+                        throw e;
+                    }
+                    Thread.sleep(RETRY_BACKOFF * attempt);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.publish;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Notified once a published message has been accepted by the broker, or given up on. Notifications are delivered
+ * on the publishing thread, from within {@link RabbitClient#publishURL} or {@link RabbitClient#awaitConfirms()}.
+ */
+public interface PublishListener {
+    /**
+     * The message was confirmed by the broker, or published if confirms are disabled
+     *
+     * @param url the published URL
+     *
+     * @throws IOException
+     */
+    void published(URL url) throws IOException;
+
+    /**
+     * The message was nacked or not confirmed in time and has been published again
+     *
+     * @param url the URL published again
+     *
+     * @throws IOException
+     */
+    void republished(URL url) throws IOException;
+
+    /**
+     * The message was still nacked or unconfirmed after all retries
+     *
+     * @param url the URL that could not be published
+     *
+     * @throws IOException
+     */
+    void failed(URL url) throws IOException;
+}
@@ -18,26 +18,51 @@ package com.simple.sftpfetch.publish;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A very simple interface for publishing plain-text messages to RabbitMQ using a direct exchange
+ *
+ * With publisher confirms enabled, messages are pipelined: up to a window of them may be awaiting confirmation at
+ * once, tracked by delivery tag. Acks and nacks arrive asynchronously on the connection thread. Nacked messages, and
+ * those left unconfirmed past the timeout, are published again, so a message may occasionally be delivered twice.
  */
 public class RabbitClient {
     public static final String EXCHANGE_TYPE = "direct";
     public static final String ENCODING = "UTF8";
     public static final String CONTENT_TYPE = "text/plain";
+    static final long EXPIRY_CHECK_INTERVAL = 100;
 
     AMQP.BasicProperties amqpProperties;
+    private ConnectionFactory factory;
+    private Connection connection;
     private Channel channel;
     private String exchange;
+    private RabbitConnectionInfo connectionInfo;
+    private Semaphore window;
+    private final ConcurrentNavigableMap<Long, Pending> outstanding = new ConcurrentSkipListMap<Long, Pending>();
+    private final Queue<Pending> confirmed = new ConcurrentLinkedQueue<Pending>();
+    private final Queue<Pending> retries = new ConcurrentLinkedQueue<Pending>();
+    private final Object signal = new Object();
+    private int failures;
 
     /**
      * Initialize the RabbitClient, establish a connection and declare the exchange
@@ -57,11 +82,92 @@ public class RabbitClient {
         factory.setPassword(connectionInfo.getPassword());
         factory.setVirtualHost(connectionInfo.getVhost());
         factory.setConnectionTimeout(connectionInfo.getTimeout());
-        Connection conn = factory.newConnection();
+        this.factory = factory;
+        connection = factory.newConnection();
         exchange = connectionInfo.getExchange();
-        channel = conn.createChannel();
+        channel = connection.createChannel();
         channel.exchangeDeclare(exchange, EXCHANGE_TYPE, true);
         this.amqpProperties =  new AMQP.BasicProperties.Builder().contentType(CONTENT_TYPE).deliveryMode(2).build();
+        this.connectionInfo = connectionInfo;
+        enableConfirms();
+    }
+
+    private RabbitClient(ConnectionFactory factory, Connection connection, Channel channel, String exchange,
+                         AMQP.BasicProperties amqpProperties, RabbitConnectionInfo connectionInfo) throws IOException {
+        this.factory = factory;
+        this.connection = connection;
+        this.channel = channel;
+        this.exchange = exchange;
+        this.amqpProperties = amqpProperties;
+        this.connectionInfo = connectionInfo;
+        enableConfirms();
+    }
+
+    private void enableConfirms() throws IOException {
+        if (!connectionInfo.isConfirms()) {
+            return;
+        }
+        window = new Semaphore(connectionInfo.getConfirmWindow());
+        channel.confirmSelect();
+        channel.addConfirmListener(new ConfirmListener() {
+            @Override
+            public void handleAck(long deliveryTag, boolean multiple) {
+                for (Pending pending : settle(deliveryTag, multiple)) {
+                    confirmed.add(pending);
+                }
+                wakeUp();
+            }
+
+            @Override
+            public void handleNack(long deliveryTag, boolean multiple) {
+                for (Pending pending : settle(deliveryTag, multiple)) {
+                    retries.add(pending);
+                }
+                wakeUp();
+            }
+        });
+    }
+
+    /**
+     * Open an additional channel over the existing connection, for use by another publishing thread
+     *
+     * @return a client publishing to the same exchange on its own channel
+     *
+     * @throws IOException
+     */
+    public RabbitClient openChannel() throws IOException {
+        return new RabbitClient(factory, connection, connection.createChannel(), exchange, amqpProperties, connectionInfo);
+    }
+
+    /**
+     * Reopen the connection and channel if either has been closed, for instance by a network failure or a broker
+     * restart. Messages still awaiting confirmation on the old channel are published again on the new one.
+     *
+     * @throws IOException if the broker cannot be reached
+     */
+    public void reconnect() throws IOException {
+        if (connection.isOpen() && channel.isOpen()) {
+            return;
+        }
+        if (!connection.isOpen()) {
+            connection = factory.newConnection();
+        }
+        channel = connection.createChannel();
+        channel.exchangeDeclare(exchange, EXCHANGE_TYPE, true);
+        for (Pending pending : outstanding.values()) {
+            retries.add(pending);
+        }
+        outstanding.clear();
+        enableConfirms();
+    }
+
+    /**
+     * Close the channel used by this client
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
     }
 
     /**
@@ -73,6 +179,179 @@ public class RabbitClient {
      * @throws IOException
      */
     public void publishURL(String routingKey, URL url) throws IOException {
-        channel.basicPublish(exchange, routingKey, amqpProperties, url.toString().getBytes(ENCODING));
+        publishURL(routingKey, url, null);
+    }
+
+    /**
+     * Publish the given URL as a plain-text message with the given routing key. With confirms enabled this only
+     * blocks while the window of unconfirmed messages is full; the listener is told about the outcome later, from
+     * this or a subsequent call or from {@link #awaitConfirms()}.
+     *
+     * @param routingKey the routing key to use
+     * @param url the URL to publish
+     * @param listener notified once the message is confirmed or given up on, may be null
+     *
+     * @throws IOException
+     */
+    public void publishURL(String routingKey, URL url, PublishListener listener) throws IOException {
+        Pending pending = new Pending(routingKey, url, listener);
+        if (window == null) {
+            channel.basicPublish(exchange, routingKey, amqpProperties, url.toString().getBytes(ENCODING));
+            pending.published();
+            return;
+        }
+        notifyConfirmed();
+        republish();
+        send(pending);
+    }
+
+    /**
+     * Wait until every message published so far has been confirmed or given up on
+     *
+     * @throws IOException if any message was not confirmed after all retries
+     */
+    public void awaitConfirms() throws IOException {
+        if (window == null) {
+            return;
+        }
+        while (true) {
+            notifyConfirmed();
+            republish();
+            if (outstanding.isEmpty() && retries.isEmpty() && confirmed.isEmpty()) {
+                break;
+            }
+            synchronized (signal) {
+                if (confirmed.isEmpty() && retries.isEmpty()) {
+                    try {
+                        signal.wait(EXPIRY_CHECK_INTERVAL);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for publisher confirms");
+                    }
+                }
+            }
+            expireOverdue();
+        }
+        if (failures > 0) {
+            int failed = failures;
+            failures = 0;
+            throw new IOException(failed + " message(s) were not confirmed by the broker");
+        }
+    }
+
+    int getOutstanding() {
+        return outstanding.size();
+    }
+
+    private void send(Pending pending) throws IOException {
+        acquire();
+        long deliveryTag = channel.getNextPublishSeqNo();
+        pending.deadline = System.currentTimeMillis() + connectionInfo.getConfirmTimeout();
+        outstanding.put(deliveryTag, pending);
+        try {
+            channel.basicPublish(exchange, pending.routingKey, amqpProperties, pending.url.toString().getBytes(ENCODING));
+        } catch (IOException e) {
+            if (outstanding.remove(deliveryTag) != null) {
+                window.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Take a slot in the window, checking for overdue messages while it is full
+     */
+    private void acquire() throws IOException {
+        try {
+            while (!window.tryAcquire(EXPIRY_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                expireOverdue();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for publisher confirms");
+        }
+    }
+
+    private void notifyConfirmed() throws IOException {
+        Pending pending;
+        while ((pending = confirmed.poll()) != null) {
+            pending.published();
+        }
+    }
+
+    private void republish() throws IOException {
+        Pending pending;
+        while ((pending = retries.poll()) != null) {
+            if (pending.attempts++ < connectionInfo.getConfirmRetries()) {
+                send(pending);
+                pending.republished();
+            } else {
+                failures++;
+                pending.failed();
+            }
+        }
+    }
+
+    private void expireOverdue() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Pending> entry : outstanding.entrySet()) {
+            if (entry.getValue().deadline < now && outstanding.remove(entry.getKey()) != null) {
+                window.release();
+                retries.add(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove the messages covered by an ack or nack from the window
+     */
+    private List<Pending> settle(long deliveryTag, boolean multiple) {
+        List<Pending> settled = new ArrayList<Pending>();
+        Map<Long, Pending> covered = multiple ? outstanding.headMap(deliveryTag, true) : outstanding.subMap(deliveryTag, true, deliveryTag, true);
+        for (Map.Entry<Long, Pending> entry : covered.entrySet()) {
+            if (outstanding.remove(entry.getKey()) != null) {
+                window.release();
+                settled.add(entry.getValue());
+            }
+        }
+        return settled;
+    }
+
+    private void wakeUp() {
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    private static class Pending {
+        final String routingKey;
+        final URL url;
+        final PublishListener listener;
+        int attempts;
+        volatile long deadline;
+
+        Pending(String routingKey, URL url, PublishListener listener) {
+            this.routingKey = routingKey;
+            this.url = url;
+            this.listener = listener;
+        }
+
+        void published() throws IOException {
+            if (listener != null) {
+                listener.published(url);
+            }
+        }
+
+        void republished() throws IOException {
+            if (listener != null) {
+                listener.republished(url);
+            }
+        }
+
+        void failed() throws IOException {
+            if (listener != null) {
+                listener.failed(url);
+            }
+        }
     }
 }
@@ -21,6 +21,9 @@ import java.util.Properties;
 public class RabbitConnectionInfo {
     public static final int DEFAULT_TIMEOUT = 5000;
     public static final int DEFAULT_PORT = 5672;
+    public static final int DEFAULT_CONFIRM_WINDOW = 256;
+    public static final long DEFAULT_CONFIRM_TIMEOUT = 30000;
+    public static final int DEFAULT_CONFIRM_RETRIES = 3;
     private final String vhost;
     private String exchange;
     private int timeout;
@@ -28,6 +31,10 @@ public class RabbitConnectionInfo {
     private final String password;
     private String hostname;
     private int port;
+    private boolean confirms;
+    private int confirmWindow = DEFAULT_CONFIRM_WINDOW;
+    private long confirmTimeout = DEFAULT_CONFIRM_TIMEOUT;
+    private int confirmRetries = DEFAULT_CONFIRM_RETRIES;
 
     /**
      * Initialize using data from the supplied Properties files, using the following required keys
@@ -45,6 +52,10 @@ public class RabbitConnectionInfo {
      * <ul>
      *   <li>rabbit.port</li>
      *   <li>rabbit.connection.timeout</li>
+     *   <li>rabbit.confirms (wait for the broker to confirm each message)</li>
+     *   <li>rabbit.confirm.window (how many messages may be awaiting confirmation at once)</li>
+     *   <li>rabbit.confirm.timeout (milliseconds before an unconfirmed message is published again)</li>
+     *   <li>rabbit.confirm.retries (how many times a nacked or timed out message is published again)</li>
      * </ul>
      *
      * @param properties Properties containing the above keys
@@ -58,6 +69,10 @@ public class RabbitConnectionInfo {
                 properties.getProperty("rabbit.username"),
                 properties.getProperty("rabbit.password")
         );
+        setConfirms(Boolean.valueOf(properties.getProperty("rabbit.confirms", "false")),
+                Integer.valueOf(properties.getProperty("rabbit.confirm.window", String.valueOf(DEFAULT_CONFIRM_WINDOW))),
+                Long.valueOf(properties.getProperty("rabbit.confirm.timeout", String.valueOf(DEFAULT_CONFIRM_TIMEOUT))),
+                Integer.valueOf(properties.getProperty("rabbit.confirm.retries", String.valueOf(DEFAULT_CONFIRM_RETRIES))));
     }
 
     public RabbitConnectionInfo(String hostname, int port, String vhost, String exchange, int timeout, String username, String password) {
@@ -70,6 +85,40 @@ public class RabbitConnectionInfo {
         this.password = password;
     }
 
+    /**
+     * Configure publisher confirms
+     *
+     * @param confirms true to wait for the broker to confirm each message
+     * @param window how many messages may be awaiting confirmation at once
+     * @param timeout milliseconds before an unconfirmed message is published again
+     * @param retries how many times a nacked or timed out message is published again
+     */
+    public void setConfirms(boolean confirms, int window, long timeout, int retries) {
+        if (window < 1) {
+            throw new IllegalArgumentException("rabbit.confirm.window must be positive: " + window);
+        }
+        this.confirms = confirms;
+        this.confirmWindow = window;
+        this.confirmTimeout = timeout;
+        this.confirmRetries = retries;
+    }
+
+    public boolean isConfirms() {
+        return confirms;
+    }
+
+    public int getConfirmWindow() {
+        return confirmWindow;
+    }
+
+    public long getConfirmTimeout() {
+        return confirmTimeout;
+    }
+
+    public int getConfirmRetries() {
+        return confirmRetries;
+    }
+
     public String getExchange() {
         return exchange;
     }
@@ -18,18 +18,26 @@ package com.simple.sftpfetch.publish;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.*;
 
 /**
  * A simple client for uploading files to S3
  */
 public class S3 {
+    public static final int LIST_PAGE_SIZE = 1000;
+
     private AmazonS3Client s3;
     private String bucket;
     private String location;
+    private S3UploadSettings uploadSettings;
+    private MultipartUploader multipartUploader;
 
     /**
      * Initialize the client using the supplied {@link AmazonS3Client} and bucket name.
@@ -39,8 +47,21 @@ public class S3 {
      * @param bucket the name of the bucket to use
      */
     public S3(AmazonS3Client s3, String bucket) {
+        this(s3, bucket, new S3UploadSettings());
+    }
+
+    /**
+     * Initialize the client using the supplied {@link AmazonS3Client}, bucket name and upload settings.
+     *
+     * @param s3 the AmazonS3Client to use
+     * @param bucket the name of the bucket to use
+     * @param uploadSettings the settings for multipart uploads
+     */
+    public S3(AmazonS3Client s3, String bucket, S3UploadSettings uploadSettings) {
         this.bucket = bucket;
         this.s3 = s3;
+        this.uploadSettings = uploadSettings;
+        this.multipartUploader = new MultipartUploader(s3, uploadSettings);
         if (!this.s3.doesBucketExist(bucket)) {
             throw new AmazonServiceException("Bucket does not exist: " + bucket);
         }
@@ -67,13 +88,98 @@ public class S3 {
     }
 
     /**
-     * Upload the given file using the given key
+     * Find which of the given keys exist.
+     *
+     * Listing the bucket costs one request per page of keys, checking the keys one at a time costs one request each.
+     * The bucket size is not known up front, so the keys under the candidates' common prefix are listed for as long
+     * as fewer pages have been fetched than there are candidates left to decide, and the remainder are checked one at
+     * a time. This never costs more than twice the cheaper of the two approaches.
+     *
+     * @param keys the keys to check
+     * @return the keys that exist
+     */
+    public Set<String> existingKeys(Collection<String> keys) {
+        Set<String> existing = new HashSet<String>();
+        if (keys.isEmpty()) {
+            return existing;
+        }
+        SortedSet<String> undecided = new TreeSet<String>(keys);
+        if (undecided.size() > 1) {
+            ListObjectsRequest request = new ListObjectsRequest()
+                    .withBucketName(bucket)
+                    .withPrefix(commonPrefix(undecided))
+                    .withMaxKeys(LIST_PAGE_SIZE);
+            int pages = 0;
+            while (true) {
+                ObjectListing listing = s3.listObjects(request);
+                pages++;
+                String last = null;
+                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                    last = summary.getKey();
+                    if (undecided.contains(last)) {
+                        existing.add(last);
+                    }
+                }
+                if (!listing.isTruncated() || last == null) {
+                    return existing;
+                }
+                undecided = undecided.tailSet(last + "\0");
+                if (undecided.isEmpty() || pages >= undecided.size()) {
+                    break;
+                }
+                request.setMarker(last);
+            }
+        }
+        for (String key : undecided) {
+            if (keyExists(key)) {
+                existing.add(key);
+            }
+        }
+        return existing;
+    }
+
+    private static String commonPrefix(SortedSet<String> keys) {
+        String first = keys.first();
+        String last = keys.last();
+        int length = 0;
+        while (length < first.length() && length < last.length() && first.charAt(length) == last.charAt(length)) {
+            length++;
+        }
+        return first.substring(0, length);
+    }
+
+    /**
+     * Upload the given file using the given key. Files at least as large as the multipart threshold are uploaded
+     * in parts, several at a time.
      *
      * @param key the key to use
      * @param toUpload to file to upload
+     * @return the ETag of the uploaded object
+     */
+    public String upload(String key, File toUpload) {
+        if (toUpload.length() >= uploadSettings.getMultipartThreshold()) {
+            return multipartUploader.upload(bucket, key, toUpload);
+        } else {
+            return s3.putObject(bucket, key, toUpload).getETag();
+        }
+    }
+
+    /**
+     * Open a stream that uploads everything written to it to the given key, for content whose length is not known
+     * up front. The upload is only completed once the stream is closed.
+     *
+     * @param key the key to use
+     * @return the stream to write the content to
+     */
+    public S3UploadStream openUploadStream(String key) {
+        return new S3UploadStream(s3, bucket, key, uploadSettings.getPartSize());
+    }
+
+    /**
+     * Stop the threads used for multipart uploads
      */
-    public void upload(String key, File toUpload) {
-        s3.putObject(bucket, key, toUpload);
+    public void close() {
+        multipartUploader.shutdown();
     }
 
     /**
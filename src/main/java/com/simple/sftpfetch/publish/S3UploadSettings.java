@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.publish;
+
+import java.util.Properties;
+
+/**
+ * Hold the settings controlling how files are uploaded to S3
+ */
+public class S3UploadSettings {
+    public static final long DEFAULT_MULTIPART_THRESHOLD = 64 * 1024 * 1024;
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_RETRIES = 3;
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    public static final int MAX_PARTS = 10000;
+
+    private long multipartThreshold;
+    private int partSize;
+    private int threads;
+    private int retries;
+
+    /**
+     * Initialize from the given Properties, using the following optional keys
+     *
+     * <ul>
+     *   <li>s3.multipart.threshold (files at least this large are uploaded in parts)</li>
+     *   <li>s3.multipart.part.size (S3 requires at least 5MB)</li>
+     *   <li>s3.multipart.threads (parts uploaded concurrently, shared by all uploads)</li>
+     *   <li>s3.multipart.retries (attempts per part after the first one fails)</li>
+     * </ul>
+     *
+     * @param properties the given properties
+     */
+    public S3UploadSettings(Properties properties) {
+        this(Long.valueOf(properties.getProperty("s3.multipart.threshold", String.valueOf(DEFAULT_MULTIPART_THRESHOLD))),
+                Integer.valueOf(properties.getProperty("s3.multipart.part.size", String.valueOf(DEFAULT_PART_SIZE))),
+                Integer.valueOf(properties.getProperty("s3.multipart.threads", String.valueOf(DEFAULT_THREADS))),
+                Integer.valueOf(properties.getProperty("s3.multipart.retries", String.valueOf(DEFAULT_RETRIES))));
+    }
+
+    public S3UploadSettings() {
+        this(DEFAULT_MULTIPART_THRESHOLD, DEFAULT_PART_SIZE, DEFAULT_THREADS, DEFAULT_RETRIES);
+    }
+
+    public S3UploadSettings(long multipartThreshold, int partSize, int threads, int retries) {
+        this(multipartThreshold, partSize, threads, retries, MIN_PART_SIZE);
+    }
+
+    /**
+     * @param minPartSize the smallest part size allowed, lowered by tests to keep their content small
+     */
+    S3UploadSettings(long multipartThreshold, int partSize, int threads, int retries, int minPartSize) {
+        if (partSize < minPartSize) {
+            throw new IllegalArgumentException("s3.multipart.part.size must be at least " + minPartSize + ": " + partSize);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("s3.multipart.threads must be positive: " + threads);
+        }
+        this.multipartThreshold = multipartThreshold;
+        this.partSize = partSize;
+        this.threads = threads;
+        this.retries = retries;
+    }
+
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    /**
+     * @param length the size of a file
+     * @return the part size, or more if the file would otherwise need more than S3's limit of 10,000 parts
+     */
+    public long getPartSize(long length) {
+        return Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.publish;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An OutputStream that uploads whatever is written to it to S3 without knowing the length up front.
+ *
+ * At most one part is held in memory. Content that fits in a single part is uploaded with a single PUT when the
+ * stream is closed, anything larger is sent as a multipart upload one part at a time. Call {@link #abort()} instead
+ * of {@link #close()} if the content could not be written completely.
+ *
+ * As the length is not known, the part size is doubled after every thousand parts, up to 1GB, so that the upload
+ * stays within S3's limit of 10,000 parts. With the default 8MB parts that allows about 4TB.
+ */
+public class S3UploadStream extends OutputStream {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    static final int PARTS_PER_SIZE = S3UploadSettings.MAX_PARTS / 10;
+    static final int MAX_PART_SIZE = 1024 * 1024 * 1024;
+
+    private final AmazonS3Client s3;
+    private final String bucket;
+    private final String key;
+    private int partSize;
+    private final List<PartETag> partETags = new ArrayList<PartETag>();
+    private byte[] buffer;
+    private int count;
+    private String uploadId;
+    private String eTag;
+    private boolean closed;
+
+    /**
+     * @param s3 the AmazonS3Client to use
+     * @param bucket the bucket to upload to
+     * @param key the key to upload to
+     * @param partSize the size of each part of a multipart upload, at least 5MB
+     */
+    public S3UploadStream(AmazonS3Client s3, String bucket, String key, int partSize) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, partSize)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (count == partSize) {
+                uploadPart();
+            }
+            ensureCapacity(Math.min(partSize, count + length));
+            int chunk = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Upload whatever is left in the buffer and complete the upload
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (uploadId == null) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(count);
+            eTag = s3.putObject(bucket, key, new ByteArrayInputStream(buffer, 0, count), metadata).getETag();
+        } else {
+            try {
+                uploadPart();
+                eTag = s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags)).getETag();
+            } catch (RuntimeException e) {
+                abortMultipartUpload();
+                throw e;
+            }
+        }
+        buffer = null;
+    }
+
+    /**
+     * Discard the upload, removing any parts that have already been uploaded
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer = null;
+        abortMultipartUpload();
+    }
+
+    /**
+     * @return the ETag of the uploaded object, once the stream has been closed
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    private void uploadPart() {
+        if (uploadId == null) {
+            uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+        }
+        UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucket)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(partETags.size() + 1)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, count))
+                .withPartSize(count);
+        partETags.add(s3.uploadPart(request).getPartETag());
+        count = 0;
+        if (partETags.size() % PARTS_PER_SIZE == 0 && partSize <= MAX_PART_SIZE / 2) {
+            partSize *= 2;
+        }
+    }
+
+    private void abortMultipartUpload() {
+        if (uploadId != null) {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.min(partSize, Math.max(capacity, buffer.length * 2)));
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The upload to " + key + " has already been closed");
+        }
+    }
+}
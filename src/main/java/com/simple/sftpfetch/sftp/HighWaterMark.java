@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.sftp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The latest modification time seen in each folder by a complete run, persisted so that later runs only need to
+ * consider files modified since.
+ *
+ * The mark is inclusive: files modified in the same second as the mark are listed again, since more of them may have
+ * landed after the listing. Files uploaded with a preserved modification time older than the mark are not seen.
+ */
+public class HighWaterMark {
+    private final File file;
+    private final Properties marks = new Properties();
+
+    /**
+     * Load the marks from the given file, if it exists
+     *
+     * @param file the file the marks are kept in
+     *
+     * @throws IOException
+     */
+    public HighWaterMark(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                marks.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @param folder the remote folder
+     * @return the latest modification time seen in the folder, in seconds since the epoch, or 0 if none
+     */
+    public synchronized long get(String folder) {
+        String mark = marks.getProperty(key(folder));
+        return mark == null ? 0 : Long.valueOf(mark);
+    }
+
+    /**
+     * Move the mark for the folder forward to the given time and save it. Earlier times are ignored.
+     *
+     * @param folder the remote folder
+     * @param mtime a modification time, in seconds since the epoch
+     *
+     * @throws IOException
+     */
+    public synchronized void advance(String folder, long mtime) throws IOException {
+        if (mtime <= get(folder)) {
+            return;
+        }
+        marks.setProperty(key(folder), String.valueOf(mtime));
+        save();
+    }
+
+    private void save() throws IOException {
+        File saved = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(saved);
+        try {
+            marks.store(out, "Latest modification time seen in each folder");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!saved.renameTo(file)) {
+            file.delete();
+            if (!saved.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+
+    private static String key(String folder) {
+        return folder == null ? "" : folder;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.sftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude globs matched against paths relative to the folder being downloaded from.
+ *
+ * In a glob, '*' matches within a single path element, '**' matches across elements and '?' matches any one
+ * character other than '/'. A file is accepted if it matches any include, or there are none, and no exclude. A
+ * folder matching an exclude is not descended into.
+ */
+public class PathFilter {
+    public static final PathFilter ACCEPT_ALL = new PathFilter(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    private final List<String> includeGlobs;
+    private final List<String> excludeGlobs;
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+
+    /**
+     * @param includes globs files must match one of, or empty to include everything
+     * @param excludes globs of files and folders to leave out
+     */
+    public PathFilter(List<String> includes, List<String> excludes) {
+        this.includeGlobs = new ArrayList<String>(includes);
+        this.excludeGlobs = new ArrayList<String>(excludes);
+        this.includes = compile(includes);
+        this.excludes = compile(excludes);
+    }
+
+    /**
+     * Parse comma separated lists of globs
+     *
+     * @param includes the include globs, may be null
+     * @param excludes the exclude globs, may be null
+     * @return the filter
+     */
+    public static PathFilter parse(String includes, String excludes) {
+        return new PathFilter(split(includes), split(excludes));
+    }
+
+    public boolean acceptsFile(String path) {
+        return (includes.isEmpty() || matchesAny(includes, path)) && !matchesAny(excludes, path);
+    }
+
+    public boolean acceptsDirectory(String path) {
+        return !matchesAny(excludes, path);
+    }
+
+    public boolean isEmpty() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    /**
+     * @return the globs in the form they are configured in, e.g. include=*.pgp exclude=archive/**
+     */
+    @Override
+    public String toString() {
+        return "include=" + join(includeGlobs) + " exclude=" + join(excludeGlobs);
+    }
+
+    /**
+     * Translate a glob into the equivalent regular expression
+     */
+    static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        // "**/" also matches no folders at all
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> compile(List<String> globs) {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String glob : globs) {
+            patterns.add(toPattern(glob));
+        }
+        return patterns;
+    }
+
+    private static String join(List<String> globs) {
+        StringBuilder joined = new StringBuilder();
+        for (String glob : globs) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(glob);
+        }
+        return joined.toString();
+    }
+
+    private static List<String> split(String globs) {
+        List<String> split = new ArrayList<String>();
+        if (globs != null) {
+            for (String glob : globs.split(",")) {
+                if (glob.trim().length() > 0) {
+                    split.add(glob.trim());
+                }
+            }
+        }
+        return split;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Lists a folder and its subfolders down to a depth limit, several folders at a time.
+ *
+ * Folders waiting to be listed are shared between the calling thread, using the client's own channel, and up to
+ * threads - 1 helpers, each using a channel the pool can spare. Files are reported with their path relative to the
+ * root folder, one at a time, so the visitor does not need to be thread-safe.
+ */
+class RecursiveListing {
+    private static final long POLL_INTERVAL = 50;
+
+    private final SftpChannelPool pool;
+    private final ChannelSftp own;
+    private final String root;
+    private final SftpConnectionInfo connectionInfo;
+    private final BlockingQueue<Folder> folders = new LinkedBlockingQueue<Folder>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean stopped;
+
+    RecursiveListing(SftpChannelPool pool, ChannelSftp own, String root) {
+        this.pool = pool;
+        this.own = own;
+        this.root = root == null ? "" : root;
+        this.connectionInfo = pool.getConnectionInfo();
+    }
+
+    /**
+     * @param since the earliest modification time of files to report, in seconds since the epoch
+     * @param pattern the pattern file names must match
+     * @param visitor receives the matching files, and can stop the listing early
+     *
+     * @throws SftpException if any folder could not be listed
+     */
+    void list(long since, Pattern pattern, RemoteFileVisitor visitor) throws SftpException {
+        add(new Folder("", 0));
+        List<ChannelSftp> helpers = new ArrayList<ChannelSftp>();
+        try {
+            ChannelSftp channel;
+            while (helpers.size() < connectionInfo.getListThreads() - 1 && (channel = pool.tryBorrow()) != null) {
+                helpers.add(channel);
+            }
+        } catch (JSchException e) {
+            // list with the channels we already have
+        }
+
+        ExecutorService executor = helpers.isEmpty() ? null : Executors.newFixedThreadPool(helpers.size());
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (ChannelSftp helper : helpers) {
+                results.add(executor.submit(worker(helper, since, pattern, visitor)));
+            }
+            SftpException failure = null;
+            try {
+                worker(own, since, pattern, visitor).call();
+            } catch (SftpException e) {
+                failure = e;
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof SftpException ? (SftpException) e.getCause()
+                                : new SftpException(ChannelSftp.SSH_FX_FAILURE, "Unable to list " + root + ": " + e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stopped = true;
+                    throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Interrupted while listing " + root);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (ChannelSftp helper : helpers) {
+                pool.release(helper);
+            }
+        }
+    }
+
+    private Worker worker(final ChannelSftp channel, final long since, final Pattern pattern, final RemoteFileVisitor visitor) {
+        return new Worker() {
+            @Override
+            public Void call() throws SftpException {
+                while (!stopped) {
+                    Folder folder;
+                    try {
+                        folder = folders.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        stopped = true;
+                        break;
+                    }
+                    if (folder == null) {
+                        if (pending.get() == 0) {
+                            break;
+                        }
+                        continue;
+                    }
+                    try {
+                        list(channel, folder, since, pattern, visitor);
+                    } catch (SftpException e) {
+                        stopped = true;
+                        throw e;
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private void list(ChannelSftp channel, final Folder folder, final long since, final Pattern pattern, final RemoteFileVisitor visitor) throws SftpException {
+        final int maxDepth = connectionInfo.getMaxDepth();
+        final PathFilter filter = connectionInfo.getPathFilter();
+        channel.ls(join(root, folder.path), new ChannelSftp.LsEntrySelector() {
+            @Override
+            public int select(ChannelSftp.LsEntry entry) {
+                if (stopped) {
+                    return BREAK;
+                }
+                String name = entry.getFilename();
+                if (name.equals(".") || name.equals("..")) {
+                    return CONTINUE;
+                }
+                SftpATTRS attrs = entry.getAttrs();
+                String path = join(folder.path, name);
+                if (attrs.isDir()) {
+                    int depth = folder.depth + 1;
+                    boolean unchanged = connectionInfo.isSkipUnchangedDirs() && depth == maxDepth && attrs.getMTime() < since;
+                    if (depth <= maxDepth && filter.acceptsDirectory(path) && !unchanged) {
+                        add(new Folder(path, depth));
+                    }
+                } else if (attrs.getMTime() >= since && pattern.matcher(name).matches() && filter.acceptsFile(path)) {
+                    synchronized (visitor) {
+                        if (stopped || !visitor.visit(new RemoteFile(path, attrs.getSize(), attrs.getMTime()))) {
+                            stopped = true;
+                            return BREAK;
+                        }
+                    }
+                }
+                return CONTINUE;
+            }
+        });
+    }
+
+    private void add(Folder folder) {
+        pending.incrementAndGet();
+        folders.add(folder);
+    }
+
+    private static String join(String parent, String child) {
+        if (parent.length() == 0) {
+            return child.length() == 0 ? "." : child;
+        }
+        if (child.length() == 0) {
+            return parent;
+        }
+        return parent.endsWith("/") ? parent + child : parent + "/" + child;
+    }
+
+    /**
+     * Lists folders off the shared queue until none are left, using a single channel
+     */
+    private interface Worker extends Callable<Void> {
+        @Override
+        Void call() throws SftpException;
+    }
+
+    private static class Folder {
+        final String path;
+        final int depth;
+
+        Folder(String path, int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.sftp;
+
+/**
+ * A file on the SFTP server, as described by its directory listing
+ */
+public class RemoteFile {
+    private final String name;
+    private final long size;
+    private final long mtime;
+
+    /**
+     * @param name the filename, relative to the folder being downloaded from
+     * @param size the size in bytes
+     * @param mtime the modification time in seconds since the epoch
+     */
+    public RemoteFile(String name, long size, long mtime) {
+        this.name = name;
+        this.size = size;
+        this.mtime = mtime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getMTime() {
+        return mtime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        RemoteFile that = (RemoteFile) o;
+
+        return size == that.size && mtime == that.mtime && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name.hashCode();
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + (int) (mtime ^ (mtime >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.sftp;
+
+/**
+ * Receives files from a listing one at a time, as the server sends them
+ */
+public interface RemoteFileVisitor {
+    /**
+     * @param file a file that passed the listing's filters
+     * @return true to carry on listing, false to stop
+     */
+    boolean visit(RemoteFile file);
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Download a single file as several byte ranges at once, each over its own channel.
+ *
+ * A single channel can only have so much data in flight, so over a high latency link its throughput is capped well
+ * below the available bandwidth. Each segment is read from its offset on its own channel and written to its place
+ * in a preallocated local file.
+ */
+class SegmentedDownload {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final String path;
+    private final long size;
+    private final List<ChannelSftp> channels;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+
+    /**
+     * @param path the full path of the remote file
+     * @param size the size of the remote file
+     * @param channels one channel per segment, the first of which is used on the calling thread
+     */
+    SegmentedDownload(String path, long size, List<ChannelSftp> channels) {
+        this.path = path;
+        this.size = size;
+        this.channels = channels;
+        long segmentSize = (size + channels.size() - 1) / channels.size();
+        for (int i = 0; i < channels.size(); i++) {
+            long offset = Math.min(size, i * segmentSize);
+            segments.add(new Segment(i, offset, Math.min(segmentSize, size - offset)));
+        }
+    }
+
+    /**
+     * Download every segment into the given file
+     *
+     * @param target the local file, which is resized to the size of the remote file
+     * @return the segments, with the time each of them took
+     *
+     * @throws SftpException
+     * @throws IOException if any segment failed or the segments did not add up to the size of the remote file
+     */
+    List<Segment> download(File target) throws SftpException, IOException {
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        ExecutorService executor = null;
+        try {
+            file.setLength(size);
+            FileChannel out = file.getChannel();
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            if (segments.size() > 1) {
+                executor = Executors.newFixedThreadPool(segments.size() - 1);
+                for (int i = 1; i < segments.size(); i++) {
+                    results.add(executor.submit(fetch(segments.get(i), channels.get(i), out)));
+                }
+            }
+            // the first segment that failed of its own accord is reported, rather than one it stopped
+            Exception failure = null;
+            Exception stopped = null;
+            try {
+                fetch(segments.get(0), channels.get(0), out).call();
+            } catch (Exception e) {
+                if (segments.get(0).broken) {
+                    failure = e;
+                } else {
+                    stopped = e;
+                }
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    Exception exception = cause instanceof Exception ? (Exception) cause : new IOException("A segment of " + path + " failed", cause);
+                    if (!segments.get(i + 1).broken) {
+                        if (stopped == null) {
+                            stopped = exception;
+                        }
+                    } else if (failure == null) {
+                        failure = exception;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while downloading " + path);
+                }
+            }
+            if (failure == null) {
+                failure = stopped;
+            }
+            if (failure instanceof SftpException) {
+                throw (SftpException) failure;
+            } else if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure != null) {
+                throw new IOException("Unable to download " + path, failure);
+            }
+            long transferred = 0;
+            for (Segment segment : segments) {
+                transferred += segment.transferred;
+            }
+            if (transferred != size) {
+                throw new IOException("Downloaded " + transferred + " of " + size + " bytes of " + path);
+            }
+            out.force(false);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            file.close();
+        }
+        return segments;
+    }
+
+    /**
+     * A segment that stopped because another one failed leaves its channel fit for reuse.
+     *
+     * @return the channels of the segments whose own transfer failed, which should not be reused
+     */
+    List<ChannelSftp> getFailedChannels() {
+        List<ChannelSftp> broken = new ArrayList<ChannelSftp>();
+        for (Segment segment : segments) {
+            if (segment.broken) {
+                broken.add(channels.get(segment.index));
+            }
+        }
+        return broken;
+    }
+
+    private Callable<Void> fetch(final Segment segment, final ChannelSftp channel, final FileChannel out) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (segment.length == 0) {
+                    return null;
+                }
+                long start = System.nanoTime();
+                InputStream in = null;
+                boolean stopped = false;
+                try {
+                    in = channel.get(path, null, segment.offset);
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    while (segment.transferred < segment.length) {
+                        if (failed.get()) {
+                            stopped = true;
+                            throw new InterruptedIOException("Another segment of " + path + " failed");
+                        }
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, segment.length - segment.transferred));
+                        if (read < 0) {
+                            throw new EOFException("Segment " + segment + " of " + path + " ended after " + segment.transferred + " bytes");
+                        }
+                        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                        long position = segment.offset + segment.transferred;
+                        while (bytes.hasRemaining()) {
+                            position += out.write(bytes, position);
+                        }
+                        segment.transferred += read;
+                    }
+                    segment.nanos = System.nanoTime() - start;
+                    return null;
+                } catch (Exception e) {
+                    segment.broken = !stopped;
+                    failed.set(true);
+                    throw e;
+                } catch (Error e) {
+                    segment.broken = true;
+                    failed.set(true);
+                    throw e;
+                } finally {
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * A byte range of the remote file, and how long it took to download
+     */
+    static class Segment {
+        final int index;
+        final long offset;
+        final long length;
+        volatile long transferred;
+        volatile long nanos;
+        volatile boolean broken;
+
+        Segment(int index, long offset, long length) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return (index + 1) + " [" + offset + ", " + (offset + length) + ")";
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.sftp;
+
+import com.jcraft.jsch.*;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of {@link ChannelSftp} multiplexed over as few authenticated {@link Session}s as the server allows.
+ *
+ * Channels are opened on the existing sessions until the configured per-session limit is reached or the server
+ * refuses to open another one, at which point an additional session is connected. Idle channels are checked before
+ * being handed out again and are disconnected once they have been idle for longer than the idle timeout.
+ *
+ * Connecting sessions, opening channels and checking idle ones happen outside the pool's lock, so a slow or hung
+ * server only holds up the borrower waiting on it. A slot is reserved under the lock first and the result published,
+ * or the slot given back, once the network call is over.
+ */
+public class SftpChannelPool {
+    public static final long DEFAULT_MAX_WAIT = 60000;
+    static final long VALIDATE_AFTER = 30000;
+
+    private final JSch jsch;
+    private final SftpConnectionInfo connectionInfo;
+    private final long maxWait;
+    private final List<PooledSession> sessions = new ArrayList<PooledSession>();
+    private final Deque<IdleChannel> idle = new ArrayDeque<IdleChannel>();
+    private final Map<ChannelSftp, PooledSession> owners = new IdentityHashMap<ChannelSftp, PooledSession>();
+    private int opening;
+    private boolean closed;
+
+    /**
+     * Initialize the pool, no connections are made until the first channel is borrowed
+     *
+     * @param jsch the JSch client
+     * @param connectionInfo the connection info bean, including the channel limits
+     *
+     * @throws JSchException
+     */
+    public SftpChannelPool(JSch jsch, SftpConnectionInfo connectionInfo) throws JSchException {
+        this(jsch, connectionInfo, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * @param jsch the JSch client
+     * @param connectionInfo the connection info bean, including the channel limits
+     * @param maxWait how long to wait for a channel to be returned when all of them are in use, in milliseconds
+     *
+     * @throws JSchException
+     */
+    public SftpChannelPool(JSch jsch, SftpConnectionInfo connectionInfo, long maxWait) throws JSchException {
+        this.jsch = jsch;
+        this.connectionInfo = connectionInfo;
+        this.maxWait = maxWait;
+        jsch.setKnownHosts(new File(System.getProperty("user.home"), ".ssh/known_hosts").getAbsolutePath());
+    }
+
+    /**
+     * Borrow a connected channel, reusing an idle one if possible. Blocks while the maximum number of channels
+     * are borrowed.
+     *
+     * @return a connected channel, which must be handed back using {@link #release(ChannelSftp)}
+     *
+     * @throws JSchException if no channel could be opened or none was returned in time
+     */
+    public ChannelSftp borrow() throws JSchException {
+        ChannelSftp channel = borrow(maxWait);
+        if (channel == null) {
+            throw new JSchException("Timed out waiting for one of " + connectionInfo.getMaxChannels() + " sftp channels");
+        }
+        return channel;
+    }
+
+    /**
+     * Borrow a channel only if one is idle or another can be opened without exceeding the maximum
+     *
+     * @return a connected channel, which must be handed back using {@link #release(ChannelSftp)}, or null if all of
+     * them are borrowed
+     *
+     * @throws JSchException if no channel could be opened
+     */
+    public ChannelSftp tryBorrow() throws JSchException {
+        return borrow(0);
+    }
+
+    private ChannelSftp borrow(long wait) throws JSchException {
+        long deadline = System.currentTimeMillis() + wait;
+        while (true) {
+            IdleChannel candidate;
+            PooledSession pooled = null;
+            synchronized (this) {
+                if (closed) {
+                    throw new JSchException("The sftp channel pool is closed");
+                }
+                evictIdle();
+
+                candidate = idle.pollFirst();
+                if (candidate != null && !isConnected(candidate.channel)) {
+                    discard(candidate.channel);
+                    continue;
+                }
+                if (candidate == null) {
+                    int maxChannels = connectionInfo.getMaxChannels();
+                    if (maxChannels <= 0 || owners.size() + opening < maxChannels) {
+                        opening++;
+                        pooled = reserve();
+                    } else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return null;
+                        }
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new JSchException("Interrupted while waiting for an sftp channel", e);
+                        }
+                        continue;
+                    }
+                }
+            }
+            if (candidate != null) {
+                if (isHealthy(candidate)) {
+                    return candidate.channel;
+                }
+                invalidate(candidate.channel);
+                continue;
+            }
+            ChannelSftp channel = open(pooled);
+            if (channel != null) {
+                return channel;
+            }
+        }
+    }
+
+    /**
+     * Hand a borrowed channel back to the pool
+     *
+     * @param channel the channel
+     */
+    public synchronized void release(ChannelSftp channel) {
+        if (closed || !owners.containsKey(channel)) {
+            channel.disconnect();
+        } else {
+            idle.addFirst(new IdleChannel(channel, System.currentTimeMillis()));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Disconnect a borrowed channel that is known to be broken instead of handing it back
+     *
+     * @param channel the channel
+     */
+    public synchronized void invalidate(ChannelSftp channel) {
+        discard(channel);
+        notifyAll();
+    }
+
+    /**
+     * Disconnect channels that have been idle for longer than the idle timeout, along with any sessions left
+     * without channels
+     */
+    public synchronized void evictIdle() {
+        long idleTimeout = connectionInfo.getChannelIdleTimeout();
+        if (idleTimeout <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        while (!idle.isEmpty() && idle.peekLast().since < cutoff) {
+            ChannelSftp channel = idle.pollLast().channel;
+            PooledSession owner = owners.get(channel);
+            discard(channel);
+            if (owner != null && owner.channels == 0) {
+                owner.session.disconnect();
+                sessions.remove(owner);
+            }
+        }
+    }
+
+    /**
+     * Disconnect every channel and session. Channels that are still borrowed are disconnected along with their session.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (IdleChannel idleChannel : idle) {
+            idleChannel.channel.disconnect();
+        }
+        idle.clear();
+        for (PooledSession pooled : sessions) {
+            pooled.session.disconnect();
+        }
+        sessions.clear();
+        owners.clear();
+        notifyAll();
+    }
+
+    public SftpConnectionInfo getConnectionInfo() {
+        return connectionInfo;
+    }
+
+    public synchronized int getOpenChannels() {
+        return owners.size();
+    }
+
+    public synchronized int getIdleChannels() {
+        return idle.size();
+    }
+
+    public synchronized int getSessions() {
+        return sessions.size();
+    }
+
+    private boolean isConnected(ChannelSftp channel) {
+        PooledSession owner = owners.get(channel);
+        return owner != null && owner.session.isConnected() && channel.isConnected() && !channel.isClosed();
+    }
+
+    /**
+     * Check a channel that has been idle for a while with a round trip to the server, called without the lock
+     */
+    private boolean isHealthy(IdleChannel candidate) {
+        if (System.currentTimeMillis() - candidate.since > VALIDATE_AFTER) {
+            try {
+                candidate.channel.stat(".");
+            } catch (SftpException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reserve room for a channel on the first session with some, called with the lock held
+     *
+     * @return the session, or null if a new one is needed
+     */
+    private PooledSession reserve() {
+        Iterator<PooledSession> iterator = sessions.iterator();
+        while (iterator.hasNext()) {
+            PooledSession pooled = iterator.next();
+            if (!pooled.session.isConnected() && pooled.channels == 0) {
+                iterator.remove();
+                continue;
+            }
+            if (pooled.hasRoom(connectionInfo.getChannelsPerSession())) {
+                pooled.channels++;
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Open a channel in a reserved slot, on a new session if none was reserved, without holding the lock
+     *
+     * @return the channel, or null if the server refused to open another one on a session that still has some, in
+     * which case that session is not asked again and the caller should retry
+     */
+    private ChannelSftp open(PooledSession pooled) throws JSchException {
+        try {
+            if (pooled == null) {
+                Session session = connectSession();
+                synchronized (this) {
+                    if (closed) {
+                        session.disconnect();
+                        throw new JSchException("The sftp channel pool is closed");
+                    }
+                    pooled = new PooledSession(session);
+                    pooled.channels++;
+                    sessions.add(pooled);
+                }
+            }
+            ChannelSftp channel;
+            try {
+                channel = openChannel(pooled.session);
+            } catch (JSchException e) {
+                synchronized (this) {
+                    pooled.channels--;
+                    if (pooled.channels == 0) {
+                        pooled.session.disconnect();
+                        sessions.remove(pooled);
+                        throw e;
+                    }
+                    pooled.limit = pooled.channels;
+                }
+                return null;
+            }
+            synchronized (this) {
+                if (closed) {
+                    channel.disconnect();
+                    throw new JSchException("The sftp channel pool is closed");
+                }
+                owners.put(channel, pooled);
+            }
+            return channel;
+        } finally {
+            synchronized (this) {
+                opening--;
+                notifyAll();
+            }
+        }
+    }
+
+    private ChannelSftp openChannel(Session session) throws JSchException {
+        ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+        try {
+            channel.connect(connectionInfo.getTimeout());
+        } catch (JSchException e) {
+            channel.disconnect();
+            throw e;
+        }
+        return channel;
+    }
+
+    private Session connectSession() throws JSchException {
+        Session session = jsch.getSession(connectionInfo.getUsername(), connectionInfo.getHostname(), connectionInfo.getPort());
+        session.setUserInfo(new PasswordBasedAuthentication(connectionInfo.getPassword()));
+        session.connect(connectionInfo.getTimeout());
+        return session;
+    }
+
+    private void discard(ChannelSftp channel) {
+        channel.disconnect();
+        PooledSession owner = owners.remove(channel);
+        if (owner != null) {
+            owner.channels--;
+            if (!owner.session.isConnected() && owner.channels == 0) {
+                sessions.remove(owner);
+            }
+        }
+    }
+
+    private static class PooledSession {
+        final Session session;
+        int channels;
+        int limit;
+
+        PooledSession(Session session) {
+            this.session = session;
+        }
+
+        boolean hasRoom(int channelsPerSession) {
+            return (channelsPerSession <= 0 || channels < channelsPerSession) && (limit <= 0 || channels < limit);
+        }
+    }
+
+    private static class IdleChannel {
+        final ChannelSftp channel;
+        final long since;
+
+        IdleChannel(ChannelSftp channel, long since) {
+            this.channel = channel;
+            this.since = since;
+        }
+    }
+}
@@ -22,7 +22,10 @@ import org.joda.time.DateTime;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -30,10 +33,24 @@ import java.util.regex.Pattern;
  * A wrapper for fetching files from SFTP
  */
 public class SftpClient {
-    private JSch jsch;
+    private SftpChannelPool pool;
     private ChannelSftp sftp;
-    private Session session;
     private String downloadFrom;
+    private boolean ownsPool;
+    private StagingArea staging;
+    private SegmentListener segmentListener;
+
+    /**
+     * Told how long each segment of a segmented download took, on the thread that downloaded the file
+     */
+    public interface SegmentListener {
+        /**
+         * @param filename the file the segment is part of
+         * @param nanos how long the segment took
+         * @param bytes the size of the segment
+         */
+        void downloaded(String filename, long nanos, long bytes);
+    }
 
     /**
      * Initialize using the supplied {@link JSch} client SftpConnectionInfo
@@ -44,21 +61,90 @@ public class SftpClient {
      * @throws JSchException
      */
     public SftpClient(JSch jsch, SftpConnectionInfo connectionInfo) throws JSchException {
-        this.session = jsch.getSession(connectionInfo.getUsername(), connectionInfo.getHostname(), connectionInfo.getPort());
-        jsch.setKnownHosts(new File(System.getProperty("user.home"), ".ssh/known_hosts").getAbsolutePath());
-        this.downloadFrom = connectionInfo.getDownloadFrom();
-        this.session.setUserInfo(new PasswordBasedAuthentication(connectionInfo.getPassword()));
-        this.session.connect(connectionInfo.getTimeout());
-        this.sftp = (ChannelSftp) session.openChannel("sftp");
-        this.sftp.connect(connectionInfo.getTimeout());
+        this(new SftpChannelPool(jsch, connectionInfo), connectionInfo.getDownloadFrom(), true);
+    }
+
+    /**
+     * Initialize using a channel borrowed from the given pool
+     *
+     * @param pool the pool to borrow a channel from
+     * @param downloadFrom the folder to download from
+     *
+     * @throws JSchException
+     */
+    public SftpClient(SftpChannelPool pool, String downloadFrom) throws JSchException {
+        this(pool, downloadFrom, false);
+    }
+
+    private SftpClient(SftpChannelPool pool, String downloadFrom, boolean ownsPool) throws JSchException {
+        this.pool = pool;
+        this.downloadFrom = downloadFrom;
+        this.ownsPool = ownsPool;
+        try {
+            File stagingDir = pool.getConnectionInfo().getStagingDir();
+            if (stagingDir != null) {
+                this.staging = new StagingArea(stagingDir);
+            }
+            this.sftp = pool.borrow();
+        } catch (IOException e) {
+            if (ownsPool) {
+                pool.close();
+            }
+            throw new JSchException("Unable to use the staging folder", e);
+        } catch (JSchException e) {
+            if (ownsPool) {
+                pool.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Borrow another channel from the pool backing this client. {@link ChannelSftp} is not thread-safe, so every
+     * thread transferring files concurrently needs a client of its own.
+     *
+     * @return a client sharing this client's pool, closing it only returns its own channel
+     *
+     * @throws JSchException
+     */
+    public SftpClient openChannel() throws JSchException {
+        SftpClient client = new SftpClient(pool, downloadFrom, false);
+        client.setSegmentListener(segmentListener);
+        return client;
     }
 
     /**
-     * Disconnect the sftp connection and session
+     * Replace this client's channel with a working one if it has been disconnected, for instance because the server
+     * dropped the session. The pool connects a new session if needed.
+     *
+     * @throws JSchException if the server cannot be reached
+     */
+    public void reconnect() throws JSchException {
+        if (sftp.isConnected() && !sftp.isClosed()) {
+            return;
+        }
+        pool.invalidate(sftp);
+        sftp = pool.borrow();
+    }
+
+    /**
+     * Report the time each segment of segmented downloads took, clients opened from this one report to it too
+     *
+     * @param segmentListener the listener, or null to not report them
+     */
+    public void setSegmentListener(SegmentListener segmentListener) {
+        this.segmentListener = segmentListener;
+    }
+
+    /**
+     * Return the channel to the pool and, unless this client was created by {@link #openChannel()}, disconnect
+     * every channel and session
      */
     public void close() {
-        this.sftp.disconnect();
-        this.session.disconnect();
+        pool.release(sftp);
+        if (ownsPool) {
+            pool.close();
+        }
     }
 
     /**
@@ -83,20 +169,112 @@ public class SftpClient {
      * @throws SftpException
      */
     public Set<String> getFilesNewerThan(int days, Pattern pattern) throws SftpException {
-        long since = new DateTime().minusDays(days).getMillis() / 1000;
-
         Set<String> files = new HashSet<String>();
-        for (Object obj : sftp.ls(downloadFrom)) {
-            if (obj instanceof com.jcraft.jsch.ChannelSftp.LsEntry) {
-                ChannelSftp.LsEntry entry = (ChannelSftp.LsEntry) obj;
-                if (entry.getAttrs().getMTime() >= since) {
-                    if (pattern.matcher(entry.getFilename()).matches()) {
-                        files.add(entry.getFilename());
+        for (RemoteFile file : listFilesNewerThan(days, pattern)) {
+            files.add(file.getName());
+        }
+        return files;
+    }
+
+    /**
+     * Get all the files newer than days ago that match the given pattern, along with their size and modification time
+     *
+     * @param days the number of days
+     * @param pattern the pattern to match
+     *
+     * @return the matching files, in the order the server listed them
+     * @throws SftpException
+     */
+    public List<RemoteFile> listFilesNewerThan(int days, Pattern pattern) throws SftpException {
+        return listFilesSince(new DateTime().minusDays(days).getMillis() / 1000, pattern);
+    }
+
+    /**
+     * Get all the files modified at or after the given time that match the given pattern
+     *
+     * @param since the earliest modification time, in seconds since the epoch
+     * @param pattern the pattern to match
+     *
+     * @return the matching files, in the order the server listed them
+     * @throws SftpException
+     */
+    public List<RemoteFile> listFilesSince(long since, Pattern pattern) throws SftpException {
+        final List<RemoteFile> files = new ArrayList<RemoteFile>();
+        listFiles(since, pattern, new RemoteFileVisitor() {
+            @Override
+            public boolean visit(RemoteFile file) {
+                files.add(file);
+                return true;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Stream the listing of the folder, handing each file modified at or after the given time that matches the
+     * given pattern to the visitor as soon as the server sends it. Nothing else is kept in memory, however large the
+     * folder.
+     *
+     * When a depth or include and exclude globs are configured, subfolders are listed too, several at a time over
+     * channels from the pool, and files are named by their path relative to the folder.
+     *
+     * @param since the earliest modification time, in seconds since the epoch
+     * @param pattern the pattern file names must match
+     * @param visitor receives the matching files, and can stop the listing early
+     *
+     * @throws SftpException
+     */
+    public void listFiles(final long since, final Pattern pattern, final RemoteFileVisitor visitor) throws SftpException {
+        if (isRecursive()) {
+            new RecursiveListing(pool, sftp, downloadFrom).list(since, pattern, visitor);
+            return;
+        }
+        sftp.ls(downloadFrom, new ChannelSftp.LsEntrySelector() {
+            @Override
+            public int select(ChannelSftp.LsEntry entry) {
+                SftpATTRS attrs = entry.getAttrs();
+                if (!attrs.isDir() && attrs.getMTime() >= since && pattern.matcher(entry.getFilename()).matches()) {
+                    if (!visitor.visit(new RemoteFile(entry.getFilename(), attrs.getSize(), attrs.getMTime()))) {
+                        return BREAK;
                     }
                 }
+                return CONTINUE;
             }
-        }
-        return files;
+        });
+    }
+
+    SftpChannelPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return the folder this client downloads from
+     */
+    public String getDownloadFrom() {
+        return downloadFrom;
+    }
+
+    /**
+     * @return true if files are listed below the folder too, or filtered by path
+     */
+    public boolean isRecursive() {
+        SftpConnectionInfo connectionInfo = pool.getConnectionInfo();
+        return connectionInfo.getMaxDepth() > 0 || !connectionInfo.getPathFilter().isEmpty();
+    }
+
+    /**
+     * @return the depth and path filter files below the folder are listed with, e.g. depth=2 include=*.pgp exclude=
+     */
+    public String describeListing() {
+        SftpConnectionInfo connectionInfo = pool.getConnectionInfo();
+        return "depth=" + connectionInfo.getMaxDepth() + " " + connectionInfo.getPathFilter();
+    }
+
+    /**
+     * @return the most channels the pool backing this client opens at once, 0 or less if there is no limit
+     */
+    public int getMaxChannels() {
+        return pool.getConnectionInfo().getMaxChannels();
     }
 
     /**
@@ -121,7 +299,7 @@ public class SftpClient {
      * Download the given file
      *
      * @param filename a filename (relative to the downloadFrom folder)
-     * @return a temporary file storing the downloaded contents
+     * @return a temporary file storing the downloaded contents, which the caller is responsible for deleting
      *
      * @throws SftpException
      * @throws IOException
@@ -129,8 +307,125 @@ public class SftpClient {
     public File downloadFile(String filename) throws SftpException, IOException {
         File tempFile = File.createTempFile("sftp", ".download");
         FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
-        this.sftp.get(pathForFilename(filename), fileOutputStream);
-        fileOutputStream.flush();
+        boolean downloaded = false;
+        try {
+            this.sftp.get(pathForFilename(filename), fileOutputStream);
+            downloaded = true;
+        } finally {
+            fileOutputStream.close();
+            if (!downloaded) {
+                tempFile.delete();
+            }
+        }
         return tempFile;
     }
+
+    /**
+     * Download the given file. When a staging folder is configured the download is kept there and continued from
+     * where it stopped on the next attempt if the transfer is interrupted. Files above the segment threshold are
+     * downloaded in segments over several channels at once, segmented downloads are not resumed. Otherwise this is
+     * the same as {@link #downloadFile(String)}.
+     *
+     * @param file a file listed by {@link #listFilesNewerThan(int, Pattern)}
+     * @return the downloaded contents, which the caller is responsible for deleting
+     *
+     * @throws SftpException
+     * @throws IOException if the download is incomplete, in which case it is kept to be resumed
+     */
+    public File downloadFile(RemoteFile file) throws SftpException, IOException {
+        SftpConnectionInfo connectionInfo = pool.getConnectionInfo();
+        boolean segmented = connectionInfo.getSegmentThreshold() > 0 && connectionInfo.getSegments() > 1
+                && file.getSize() >= connectionInfo.getSegmentThreshold();
+        if (staging == null && !segmented) {
+            return downloadFile(file.getName());
+        }
+        String path = pathForFilename(file.getName());
+        if (staging == null) {
+            File tempFile = File.createTempFile("sftp", ".download");
+            downloadSegments(path, file, tempFile);
+            return tempFile;
+        }
+        File complete = staging.complete(path, file);
+        if (complete.isFile() && complete.length() == file.getSize()) {
+            return complete;
+        }
+        if (segmented) {
+            File scratch = staging.scratch(path, file);
+            downloadSegments(path, file, scratch);
+            return staging.promote(scratch, complete, file.getSize());
+        }
+        File partial = staging.partial(path, file);
+        long offset = partial.length();
+        if (offset < file.getSize()) {
+            FileOutputStream out = new FileOutputStream(partial, true);
+            try {
+                this.sftp.get(path, out, null, ChannelSftp.RESUME, offset);
+            } finally {
+                out.close();
+            }
+        }
+        return staging.promote(partial, complete, file.getSize());
+    }
+
+    /**
+     * Download the file in as many segments as there are channels to spare, up to the configured number of segments.
+     * The target is deleted if any segment fails.
+     */
+    private void downloadSegments(String path, RemoteFile file, File target) throws SftpException, IOException {
+        List<ChannelSftp> channels = new ArrayList<ChannelSftp>();
+        channels.add(sftp);
+        try {
+            ChannelSftp extra;
+            while (channels.size() < pool.getConnectionInfo().getSegments() && (extra = pool.tryBorrow()) != null) {
+                channels.add(extra);
+            }
+        } catch (JSchException e) {
+            // make do with the channels we already have
+        }
+
+        SegmentedDownload download = new SegmentedDownload(path, file.getSize(), channels);
+        boolean downloaded = false;
+        try {
+            List<SegmentedDownload.Segment> segments = download.download(target);
+            downloaded = true;
+            if (segmentListener != null) {
+                for (SegmentedDownload.Segment segment : segments) {
+                    segmentListener.downloaded(file.getName(), segment.nanos, segment.transferred);
+                }
+            }
+        } finally {
+            List<ChannelSftp> failed = download.getFailedChannels();
+            for (ChannelSftp channel : channels.subList(1, channels.size())) {
+                if (failed.contains(channel)) {
+                    pool.invalidate(channel);
+                } else {
+                    pool.release(channel);
+                }
+            }
+            if (failed.contains(sftp)) {
+                pool.invalidate(sftp);
+                try {
+                    sftp = pool.borrow();
+                } catch (JSchException e) {
+                    // the channel is left disconnected, so the next reconnect() replaces it
+                }
+            }
+            if (!downloaded) {
+                target.delete();
+            }
+        }
+    }
+
+    /**
+     * Open a stream reading the given file directly from the server. The stream must be closed before this client
+     * is used for anything else.
+     *
+     * @param filename a filename (relative to the downloadFrom folder)
+     * @return a stream of the remote file's contents
+     *
+     * @throws SftpException
+     */
+    public InputStream openFile(String filename) throws SftpException {
+        return this.sftp.get(pathForFilename(filename));
+    }
 }
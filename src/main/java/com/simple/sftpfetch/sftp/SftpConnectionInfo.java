@@ -16,6 +16,7 @@
 
 package com.simple.sftpfetch.sftp;
 
+import java.io.File;
 import java.util.Properties;
 
 /**
@@ -24,12 +25,27 @@ import java.util.Properties;
 public class SftpConnectionInfo {
     public static final int DEFAULT_PORT = 22;
     public static final int DEFAULT_TIMEOUT = 5000;
+    public static final int DEFAULT_MAX_CHANNELS = 16;
+    public static final int DEFAULT_CHANNELS_PER_SESSION = 0;
+    public static final long DEFAULT_CHANNEL_IDLE_TIMEOUT = 60000;
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final int DEFAULT_LIST_THREADS = 4;
     private String username;
     private String password;
     private String hostname;
     private int port;
     private int timeout;
     private String downloadFrom;
+    private int maxChannels;
+    private int channelsPerSession;
+    private long channelIdleTimeout;
+    private File stagingDir;
+    private long segmentThreshold;
+    private int segments = DEFAULT_SEGMENTS;
+    private int maxDepth;
+    private PathFilter pathFilter = PathFilter.ACCEPT_ALL;
+    private boolean skipUnchangedDirs;
+    private int listThreads = DEFAULT_LIST_THREADS;
 
     /**
      * Initialize from the given Properties, containing the following keys
@@ -41,6 +57,16 @@ public class SftpConnectionInfo {
      *   <li>sftp.hostname</li>
      *   <li>sftp.port</li>
      *   <li>sftp.timeout</li>
+     *   <li>sftp.channels (optional, the maximum number of concurrently open channels)</li>
+     *   <li>sftp.channels.per.session (optional, 0 lets the server decide)</li>
+     *   <li>sftp.channel.idle.timeout (optional, in milliseconds)</li>
+     *   <li>sftp.staging.dir (optional, where partial downloads are kept so they can be resumed)</li>
+     *   <li>sftp.segment.threshold (optional, files of at least this many bytes are downloaded in segments)</li>
+     *   <li>sftp.segments (optional, the number of segments downloaded concurrently)</li>
+     *   <li>sftp.depth (optional, how many levels of subfolders to descend into, 0 for none)</li>
+     *   <li>sftp.include, sftp.exclude (optional, comma separated globs of relative paths)</li>
+     *   <li>sftp.skip.unchanged.dirs (optional, skip deepest subfolders not modified since the cutoff)</li>
+     *   <li>sftp.list.threads (optional, the number of folders listed concurrently)</li>
      * </ul>
      *
      * @param properties the given properties
@@ -50,16 +76,37 @@ public class SftpConnectionInfo {
                 properties.getProperty("sftp.password"),
                 properties.getProperty("sftp.folder", ""), properties.getProperty("sftp.hostname"),
                 Integer.valueOf(properties.getProperty("sftp.port", String.valueOf(DEFAULT_PORT))),
-                Integer.valueOf(properties.getProperty("sftp.timeout", String.valueOf(DEFAULT_TIMEOUT))));
+                Integer.valueOf(properties.getProperty("sftp.timeout", String.valueOf(DEFAULT_TIMEOUT))),
+                Integer.valueOf(properties.getProperty("sftp.channels", String.valueOf(DEFAULT_MAX_CHANNELS))),
+                Integer.valueOf(properties.getProperty("sftp.channels.per.session", String.valueOf(DEFAULT_CHANNELS_PER_SESSION))),
+                Long.valueOf(properties.getProperty("sftp.channel.idle.timeout", String.valueOf(DEFAULT_CHANNEL_IDLE_TIMEOUT))));
+        if (properties.containsKey("sftp.staging.dir")) {
+            setStagingDir(new File(properties.getProperty("sftp.staging.dir")));
+        }
+        setSegmentedDownloads(Long.valueOf(properties.getProperty("sftp.segment.threshold", "0")),
+                Integer.valueOf(properties.getProperty("sftp.segments", String.valueOf(DEFAULT_SEGMENTS))));
+        setMaxDepth(Integer.valueOf(properties.getProperty("sftp.depth", "0")));
+        setPathFilter(PathFilter.parse(properties.getProperty("sftp.include"), properties.getProperty("sftp.exclude")));
+        setSkipUnchangedDirs(Boolean.valueOf(properties.getProperty("sftp.skip.unchanged.dirs", "false")));
+        setListThreads(Integer.valueOf(properties.getProperty("sftp.list.threads", String.valueOf(DEFAULT_LIST_THREADS))));
     }
 
     public SftpConnectionInfo(String username, String password, String downloadFrom, String hostname, int port, int timeout) {
+        this(username, password, downloadFrom, hostname, port, timeout,
+                DEFAULT_MAX_CHANNELS, DEFAULT_CHANNELS_PER_SESSION, DEFAULT_CHANNEL_IDLE_TIMEOUT);
+    }
+
+    public SftpConnectionInfo(String username, String password, String downloadFrom, String hostname, int port, int timeout,
+                              int maxChannels, int channelsPerSession, long channelIdleTimeout) {
         this.username = username;
         this.password = password;
         this.hostname = hostname;
         this.downloadFrom = downloadFrom;
         this.port = port;
         this.timeout = timeout;
+        this.maxChannels = maxChannels;
+        this.channelsPerSession = channelsPerSession;
+        this.channelIdleTimeout = channelIdleTimeout;
     }
 
     public String getUsername() {
@@ -85,4 +132,94 @@ public class SftpConnectionInfo {
     public String getDownloadFrom() {
         return downloadFrom;
     }
+
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+
+    public int getChannelsPerSession() {
+        return channelsPerSession;
+    }
+
+    public long getChannelIdleTimeout() {
+        return channelIdleTimeout;
+    }
+
+    /**
+     * @return the folder partial downloads are kept in, or null to download to temporary files
+     */
+    public File getStagingDir() {
+        return stagingDir;
+    }
+
+    public void setStagingDir(File stagingDir) {
+        this.stagingDir = stagingDir;
+    }
+
+    /**
+     * Download large files in segments, each over its own channel
+     *
+     * @param threshold files of at least this many bytes are downloaded in segments, 0 disables segmented downloads
+     * @param segments the maximum number of segments downloaded concurrently
+     */
+    public void setSegmentedDownloads(long threshold, int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("sftp.segments must be positive: " + segments);
+        }
+        this.segmentThreshold = threshold;
+        this.segments = segments;
+    }
+
+    public long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @param maxDepth how many levels of subfolders to descend into, 0 lists only the folder itself
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("sftp.depth must not be negative: " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    public PathFilter getPathFilter() {
+        return pathFilter;
+    }
+
+    public void setPathFilter(PathFilter pathFilter) {
+        this.pathFilter = pathFilter;
+    }
+
+    public boolean isSkipUnchangedDirs() {
+        return skipUnchangedDirs;
+    }
+
+    /**
+     * @param skipUnchangedDirs skip subfolders at the depth limit that have not been modified since the cutoff, as no
+     * file can have been added to them since
+     */
+    public void setSkipUnchangedDirs(boolean skipUnchangedDirs) {
+        this.skipUnchangedDirs = skipUnchangedDirs;
+    }
+
+    public int getListThreads() {
+        return listThreads;
+    }
+
+    public void setListThreads(int listThreads) {
+        if (listThreads < 1) {
+            throw new IllegalArgumentException("sftp.list.threads must be positive: " + listThreads);
+        }
+        this.listThreads = listThreads;
+    }
 }
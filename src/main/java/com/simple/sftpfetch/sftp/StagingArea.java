@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012 Simple Finance Technology Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.simple.sftpfetch.sftp;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.net.URLEncoder;
+
+/**
+ * A folder of downloads that survives between runs, so an interrupted download can be continued where it stopped.
+ *
+ * Each download is keyed by its remote path, modification time and size, so a file that changes on the server is
+ * downloaded from scratch. It is kept as a .partial file until its size matches the remote size, at which point it
+ * is renamed to its final name.
+ */
+class StagingArea {
+    static final String PARTIAL = ".partial";
+    static final String SCRATCH = ".segmented";
+
+    private final File dir;
+
+    StagingArea(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create staging folder " + dir);
+        }
+        this.dir = dir;
+    }
+
+    /**
+     * @return where the complete download of the given file is kept
+     */
+    File complete(String path, RemoteFile file) throws IOException {
+        return new File(dir, key(path, file));
+    }
+
+    /**
+     * Find the partial download of the given file, discarding partial downloads of earlier versions of it
+     *
+     * @return the partial download, created empty if there was none
+     */
+    File partial(String path, RemoteFile file) throws IOException {
+        final String prefix = encode(path) + "@";
+        final String name = key(path, file) + PARTIAL;
+        File[] stale = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String candidate) {
+                return candidate.startsWith(prefix) && candidate.endsWith(PARTIAL) && !candidate.equals(name);
+            }
+        });
+        if (stale != null) {
+            for (File old : stale) {
+                old.delete();
+            }
+        }
+        File partial = new File(dir, name);
+        partial.createNewFile();
+        return partial;
+    }
+
+    /**
+     * @return where a download of the given file that cannot be resumed is written until it is complete
+     */
+    File scratch(String path, RemoteFile file) throws IOException {
+        return new File(dir, key(path, file) + SCRATCH);
+    }
+
+    /**
+     * Rename a partial download to its final name once it is as large as the remote file
+     *
+     * @return the complete download
+     *
+     * @throws IOException if the partial download is not the expected size, a larger one is discarded
+     */
+    File promote(File partial, File complete, long size) throws IOException {
+        long length = partial.length();
+        if (length > size) {
+            partial.delete();
+            throw new IOException("Discarded " + partial + ", it is larger than the remote file (" + length + " > " + size + " bytes)");
+        }
+        if (length < size) {
+            throw new IOException("Incomplete download " + partial + " (" + length + " of " + size + " bytes)");
+        }
+        if (!partial.renameTo(complete)) {
+            throw new IOException("Unable to rename " + partial + " to " + complete);
+        }
+        return complete;
+    }
+
+    private static String key(String path, RemoteFile file) throws IOException {
+        return encode(path) + "@" + file.getMTime() + "-" + file.getSize();
+    }
+
+    /**
+     * URL encode the path, leaving '@' free to separate it from the version of the file
+     */
+    private static String encode(String path) throws IOException {
+        return URLEncoder.encode(path, "UTF8");
+    }
+}
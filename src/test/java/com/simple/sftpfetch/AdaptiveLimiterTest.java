@@ -0,0 +1,170 @@
+package com.simple.sftpfetch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveLimiterTest {
+    private static final long MILLI = 1000000;
+
+    private long clock;
+    private final List<Integer> changes = new ArrayList<Integer>();
+    private AdaptiveLimiter limiter = limiter(2, 8);
+
+    @Test
+    public void theLimitShouldRiseWhileThroughputImproves() throws Exception {
+        window(2, MILLI, MILLI);
+        window(3, MILLI, MILLI);
+
+        assertEquals(4, limiter.getLimit());
+        assertEquals(asList(3, 4), changes);
+    }
+
+    @Test
+    public void theLimitShouldHoldOnceThroughputStopsImproving() throws Exception {
+        window(2, MILLI, MILLI);
+        window(3, MILLI, 3 * MILLI / 2);
+
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void theLimitShouldNotRiseWhenNotEveryPermitIsUsed() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+            clock += MILLI;
+            limiter.release(MILLI, 1000, true);
+        }
+
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void theLimitShouldNotRiseAboveTheMaximum() throws Exception {
+        limiter = limiter(2, 3);
+        window(2, MILLI, MILLI);
+        window(3, MILLI, MILLI);
+
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void aFailureShouldCutTheLimit() throws Exception {
+        limiter = limiter(8, 8);
+        limiter.acquire();
+        limiter.release(MILLI, 0, false);
+
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void failuresOfTransfersRunningWhenTheLimitWasCutShouldNotCutItAgain() throws Exception {
+        limiter = limiter(8, 8);
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < 4; i++) {
+            limiter.release(MILLI, 0, false);
+        }
+
+        assertEquals(4, limiter.getLimit());
+
+        limiter.acquire();
+        limiter.release(MILLI, 0, false);
+
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void aChannelThatCouldNotBeOpenedShouldCutTheLimitButNotBelowTheMinimum() {
+        limiter.failed();
+        limiter.failed();
+
+        assertEquals(1, limiter.getLimit());
+        assertEquals(asList(1), changes);
+    }
+
+    @Test
+    public void latencyInflationShouldCutTheLimit() throws Exception {
+        window(2, MILLI, MILLI);
+        window(3, 5 * MILLI, 5 * MILLI);
+
+        assertEquals(1, limiter.getLimit());
+        assertEquals(asList(3, 1), changes);
+    }
+
+    @Test
+    public void aWindowOfLargerFilesShouldNotCountAsSlowingDown() throws Exception {
+        limiter.acquire();
+        limiter.acquire();
+        clock += 11 * MILLI;
+        limiter.release(MILLI + 10000, 1000, true);
+        limiter.release(11 * MILLI, 1000000, true);
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire();
+        }
+        clock += 11 * MILLI;
+        for (int i = 0; i < 3; i++) {
+            limiter.release(11 * MILLI, 1000000, true);
+        }
+
+        assertEquals(asList(3, 4), changes);
+    }
+
+    @Test
+    public void aTransferShouldWaitForAPermit() throws Exception {
+        limiter = limiter(1, 1);
+        limiter.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        waiting.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(MILLI, 1000, true);
+        assertTrue(acquired.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Run as many transfers of 1000 bytes at once as given, each taking the given time, over the given time
+     */
+    private void window(int transfers, long nanosEach, long elapsed) throws InterruptedException {
+        for (int i = 0; i < transfers; i++) {
+            limiter.acquire();
+        }
+        clock += elapsed;
+        for (int i = 0; i < transfers; i++) {
+            limiter.release(nanosEach, 1000, true);
+        }
+    }
+
+    private AdaptiveLimiter limiter(int initial, int max) {
+        return new AdaptiveLimiter(new AdaptiveLimitSettings(initial, 1, max, 0.5, 2.0, 1), new AdaptiveLimiter.Listener() {
+            @Override
+            public void limitChanged(int limit) {
+                changes.add(limit);
+            }
+        }) {
+            @Override
+            long now() {
+                return clock;
+            }
+        };
+    }
+}
@@ -2,21 +2,42 @@ package com.simple.sftpfetch;
 
 import com.jcraft.jsch.SftpException;
 import com.simple.sftpfetch.decrypt.PGPFileDecrypter;
+import com.simple.sftpfetch.publish.PublishListener;
 import com.simple.sftpfetch.publish.RabbitClient;
 import com.simple.sftpfetch.publish.S3;
+import com.simple.sftpfetch.publish.S3UploadStream;
+import com.simple.sftpfetch.ledger.ProcessedFileLedger;
+import com.simple.sftpfetch.sftp.HighWaterMark;
+import com.simple.sftpfetch.sftp.RemoteFile;
 import com.simple.sftpfetch.sftp.SftpClient;
 import org.apache.commons.cli.Options;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 public class AppTest {
@@ -28,13 +49,27 @@ public class AppTest {
     private PGPFileDecrypter decrypter = mock(PGPFileDecrypter.class);
     private App app = new App(sftpClient, s3, rabbitClient, decrypter, mock(PrintStream.class));
     private String filename = "foo";
+    private RemoteFile remoteFile = new RemoteFile(filename, 100, 1000);
     private URL url;
+    private File downloaded;
+    private File decrypted;
 
     @Before
     public void setUp() throws Exception {
         createOneRemoteFile();
         url = new URL("http://google.com");
         when(s3.getURLFor(filename)).thenReturn(url);
+        downloaded = File.createTempFile("apptest", ".download");
+        decrypted = File.createTempFile("apptest", ".decrypted");
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenReturn(downloaded);
+        when(decrypter.decryptFile(any(File.class))).thenReturn(decrypted);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((PublishListener) invocation.getArguments()[2]).published((URL) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(rabbitClient).publishURL(anyString(), any(URL.class), any(PublishListener.class));
     }
 
     @Test
@@ -60,7 +95,7 @@ public class AppTest {
 
         app.run(routing_key, days);
 
-        verify(sftpClient).getFilesNewerThan(days, App.MATCH_EVERYTHING);
+        verify(sftpClient).listFilesNewerThan(days, App.MATCH_EVERYTHING);
     }
 
     @Test
@@ -69,7 +104,7 @@ public class AppTest {
 
         invokeTheDefault();
 
-        verify(s3).keyExists(filename);
+        verify(s3).existingKeys(new HashSet<String>(asList(filename)));
     }
 
     @Test
@@ -142,12 +177,815 @@ public class AppTest {
         verifyRabbitDidPublish();
     }
 
+    @Test
+    public void shouldDeleteTemporaryFilesOnceUploaded() throws Exception {
+        createOneRemoteFile();
+        theFileDoesNotExistInS3();
+
+        invokeTheDefault();
+
+        verify(s3).upload(filename, decrypted);
+        assertFalse("The download was not deleted", downloaded.exists());
+        assertFalse("The decrypted file was not deleted", decrypted.exists());
+    }
+
+    @Test
+    public void shouldDeleteTheDownloadWhenDecryptionFails() throws Exception {
+        createOneRemoteFile();
+        theFileDoesNotExistInS3();
+        when(decrypter.decryptFile(downloaded)).thenThrow(new IOException("Unable to decrypt"));
+
+        try {
+            invokeTheDefault();
+        } catch (IOException expected) {
+        }
+
+        assertFalse("The download was not deleted", downloaded.exists());
+        verifyRabbitDidNotPublish();
+    }
+
+    @Test
+    public void streamingShouldPipeFromSftpThroughTheDecrypterToS3() throws Exception {
+        createOneRemoteFile();
+        theFileDoesNotExistInS3();
+        InputStream remote = new ByteArrayInputStream(new byte[0]);
+        S3UploadStream upload = mock(S3UploadStream.class);
+        when(sftpClient.openFile(filename)).thenReturn(remote);
+        when(s3.openUploadStream(filename)).thenReturn(upload);
+
+        app.setStreaming(true);
+        invokeTheDefault();
+
+        verify(decrypter).decrypt(remote, upload);
+        verify(upload).close();
+        verify(sftpClient, never()).downloadFile(any(RemoteFile.class));
+        verifyFileNotUploaded();
+        verifyRabbitDidPublish();
+    }
+
+    @Test
+    public void streamingShouldAbortTheUploadWhenDecryptionFails() throws Exception {
+        createOneRemoteFile();
+        theFileDoesNotExistInS3();
+        S3UploadStream upload = mock(S3UploadStream.class);
+        when(sftpClient.openFile(filename)).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(s3.openUploadStream(filename)).thenReturn(upload);
+        doThrow(new IOException("Unable to decrypt")).when(decrypter).decrypt(any(InputStream.class), any(OutputStream.class));
+
+        app.setStreaming(true);
+        try {
+            invokeTheDefault();
+        } catch (IOException expected) {
+        }
+
+        verify(upload).abort();
+        verify(upload, never()).close();
+        verifyRabbitDidNotPublish();
+    }
+
+    @Test
+    public void shouldSkipFilesTheLedgerHasSeenWithoutAskingS3() throws Exception {
+        ProcessedFileLedger ledger = freshLedger();
+        ledger.record(remoteFile, "etag");
+        app.setLedger(ledger);
+
+        invokeTheDefault();
+
+        verifyZeroInteractions(s3);
+        verify(sftpClient, never()).downloadFile(any(RemoteFile.class));
+    }
+
+    @Test
+    public void shouldProcessFilesTheLedgerHasNotSeenWithoutAskingS3() throws Exception {
+        app.setLedger(freshLedger());
+
+        invokeTheDefault();
+
+        verify(s3, never()).existingKeys(anyCollectionOf(String.class));
+        verifyFileUploaded();
+    }
+
+    @Test
+    public void shouldReprocessFilesModifiedSinceTheyWereRecorded() throws Exception {
+        ProcessedFileLedger ledger = freshLedger();
+        ledger.record(new RemoteFile(filename, 50, 900), "etag");
+        app.setLedger(ledger);
+
+        invokeTheDefault();
+
+        verifyFileUploaded();
+        verifyRabbitDidPublish();
+    }
+
+    @Test
+    public void shouldRecordProcessedFilesInTheLedger() throws Exception {
+        ProcessedFileLedger ledger = freshLedger();
+        app.setLedger(ledger);
+        when(s3.upload(filename, decrypted)).thenReturn("the-etag");
+
+        invokeTheDefault();
+
+        assertEquals(ProcessedFileLedger.Status.UNCHANGED, ledger.check(remoteFile));
+        assertEquals("the-etag", ledger.getETag(filename));
+    }
+
+    @Test
+    public void unconfirmedFilesShouldNotBeRecordedInTheLedger() throws Exception {
+        ProcessedFileLedger ledger = freshLedger();
+        app.setLedger(ledger);
+        doNothing().when(rabbitClient).publishURL(anyString(), any(URL.class), any(PublishListener.class));
+        doThrow(new IOException("1 message(s) were not confirmed by the broker")).when(rabbitClient).awaitConfirms();
+
+        try {
+            invokeTheDefault();
+        } catch (IOException expected) {
+        }
+
+        assertEquals(ProcessedFileLedger.Status.NEW, ledger.check(remoteFile));
+    }
+
+    @Test
+    public void aStaleLedgerShouldFallBackToS3AndAdoptWhatIsThere() throws Exception {
+        File path = File.createTempFile("ledger", ".log");
+        path.delete();
+        ProcessedFileLedger ledger = new ProcessedFileLedger(path);
+        app.setLedger(ledger);
+        theFileExistsInS3();
+
+        invokeTheDefault();
+
+        verify(s3).existingKeys(new HashSet<String>(asList(filename)));
+        verifyFileNotUploaded();
+        assertEquals(ProcessedFileLedger.Status.UNCHANGED, ledger.check(remoteFile));
+        assertFalse("The ledger should be fresh after a complete run", ledger.isStale());
+    }
+
+    private ProcessedFileLedger freshLedger() throws IOException {
+        File path = File.createTempFile("ledger", ".log");
+        path.deleteOnExit();
+        return new ProcessedFileLedger(path);
+    }
+
+    @Test
+    public void shouldOpenAChannelPerWorker() throws Exception {
+        createRemoteFiles(8);
+        workersUseTheSharedMocks();
+
+        app.setWorkers(4);
+        invokeTheDefault();
+
+        verify(sftpClient, times(4)).openChannel();
+        verify(rabbitClient, times(4)).openChannel();
+        verify(s3, times(8)).upload(anyString(), any(File.class));
+    }
+
+    @Test
+    public void workersShouldNotOutnumberTheSftpChannels() throws Exception {
+        createRemoteFiles(8);
+        workersUseTheSharedMocks();
+        when(sftpClient.getMaxChannels()).thenReturn(3);
+
+        app.setWorkers(8);
+        invokeTheDefault();
+
+        verify(sftpClient, times(2)).openChannel();
+        verify(s3, times(8)).upload(anyString(), any(File.class));
+    }
+
+    @Test
+    public void workersShouldProcessFilesConcurrently() throws Exception {
+        createRemoteFiles(8);
+        workersUseTheSharedMocks();
+        downloadsTake(100);
+
+        long sequential = timeTheDefault();
+        app.setWorkers(4);
+        long concurrent = timeTheDefault();
+
+        assertTrue("Sequential run was too fast: " + sequential, sequential >= 800);
+        assertTrue("4 workers took " + concurrent + "ms vs " + sequential + "ms sequentially", concurrent < sequential / 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void workersShouldRethrowTheFirstFailure() throws Exception {
+        createRemoteFiles(8);
+        workersUseTheSharedMocks();
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenThrow(new IOException("connection reset"));
+
+        app.setWorkers(4);
+        invokeTheDefault();
+    }
+
+    @Test
+    public void filesShouldBeTakenInTheConfiguredOrder() throws Exception {
+        RemoteFile small = new RemoteFile("small", 10, 3000);
+        RemoteFile large = new RemoteFile("large", 1000, 2000);
+        RemoteFile medium = new RemoteFile("medium", 100, 1000);
+        when(sftpClient.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(small, large, medium));
+        downloadsTake(0);
+        theFileDoesNotExistInS3();
+
+        app.setOrder(FileOrder.LARGEST);
+        invokeTheDefault();
+
+        InOrder inOrder = inOrder(sftpClient);
+        inOrder.verify(sftpClient).downloadFile(large);
+        inOrder.verify(sftpClient).downloadFile(medium);
+        inOrder.verify(sftpClient).downloadFile(small);
+    }
+
+    @Test
+    public void freshFilesShouldBeTakenBeforeTheBackfill() throws Exception {
+        RemoteFile old = new RemoteFile("old", 10, 1000);
+        RemoteFile fresh = new RemoteFile("fresh", 10, System.currentTimeMillis() / 1000);
+        when(sftpClient.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(old, fresh));
+        downloadsTake(0);
+        theFileDoesNotExistInS3();
+
+        app.setLanes(new LaneSettings(60, 0.25));
+        invokeTheDefault();
+
+        InOrder inOrder = inOrder(sftpClient);
+        inOrder.verify(sftpClient).downloadFile(fresh);
+        inOrder.verify(sftpClient).downloadFile(old);
+    }
+
+    @Test
+    public void backfillShouldOnlyUseItsShareOfTheWorkers() throws Exception {
+        createRemoteFiles(12);
+        workersUseTheSharedMocks();
+        theFileDoesNotExistInS3();
+        Concurrency downloads = downloadsAreCounted();
+
+        app.setWorkers(4);
+        app.setLanes(new LaneSettings(60, 0.5));
+        invokeTheDefault();
+
+        assertTrue("Downloads at once: " + downloads.max, downloads.max <= 2);
+        verify(s3, times(12)).upload(anyString(), any(File.class));
+    }
+
+    @Test
+    public void aThreadPerFileShouldHoldBackfillToItsShare() throws Exception {
+        createRemoteFiles(12);
+        workersUseTheSharedMocks();
+        theFileDoesNotExistInS3();
+        when(sftpClient.getMaxChannels()).thenReturn(8);
+        Concurrency downloads = downloadsAreCounted();
+
+        app.setWorkers(4);
+        app.setLanes(new LaneSettings(60, 0.25));
+        app.setVirtualThreads(new VirtualThreadSettings(4, 4, 1));
+        invokeTheDefault();
+
+        assertEquals(1, downloads.max);
+        verify(s3, times(12)).upload(anyString(), any(File.class));
+    }
+
+    @Test
+    public void aThreadPerFileShouldShareBackfillOutOfTheSftpPermitsRatherThanTheWorkers() throws Exception {
+        createRemoteFiles(12);
+        workersUseTheSharedMocks();
+        theFileDoesNotExistInS3();
+        when(sftpClient.getMaxChannels()).thenReturn(9);
+        Concurrency downloads = downloadsAreCounted();
+
+        app.setLanes(new LaneSettings(60, 0.5));
+        app.setVirtualThreads(new VirtualThreadSettings(4, 4, 1));
+        invokeTheDefault();
+
+        assertTrue("Downloads at once: " + downloads.max, downloads.max > 1 && downloads.max <= 4);
+        verify(s3, times(12)).upload(anyString(), any(File.class));
+    }
+
+    @Test
+    public void eachLaneShouldReportItsProgress() throws Exception {
+        List<RemoteFile> files = new ArrayList<RemoteFile>();
+        for (int i = 0; i < 20; i++) {
+            files.add(new RemoteFile("old" + i, 10, 1000));
+        }
+        files.add(new RemoteFile("fresh", 10, System.currentTimeMillis() / 1000));
+        when(sftpClient.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(files);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        App app = new App(sftpClient, s3, rabbitClient, decrypter, new PrintStream(output));
+
+        app.setLanes(new LaneSettings(60, 0.25));
+        app.run(routing_key, 1, App.MATCH_EVERYTHING, true, false);
+
+        String reported = output.toString();
+        assertTrue(reported, reported.contains("Fresh lane: 1 of 1 files"));
+        assertTrue(reported, reported.contains("Backfill lane: 2 of 20 files"));
+        assertTrue(reported, reported.contains("Backfill lane: 18 of 20 files"));
+        assertTrue(reported, reported.contains("Backfill lane: 20 of 20 files"));
+    }
+
+    @Test
+    public void segmentsShouldBeReportedToTheStageListener() throws Exception {
+        StageListener listener = mock(StageListener.class);
+        app.setStageListener(listener);
+        ArgumentCaptor<SftpClient.SegmentListener> segments = ArgumentCaptor.forClass(SftpClient.SegmentListener.class);
+        verify(sftpClient).setSegmentListener(segments.capture());
+
+        segments.getValue().downloaded(filename, 5000, 1024);
+
+        verify(listener).completed(StageListener.Stage.SEGMENT, null, filename, 5000, 1024);
+    }
+
+    @Test
+    public void aPipelineShouldTakeEveryFileThroughEachStage() throws Exception {
+        createRemoteFiles(8);
+        workersUseTheSharedMocks();
+        downloadsTake(10);
+        theFileDoesNotExistInS3();
+        StageListener listener = mock(StageListener.class);
+        app.setStageListener(listener);
+
+        app.setPipeline(new PipelineSettings(2, 2, 2, 1, 1));
+        invokeTheDefault();
+
+        verify(sftpClient, times(2)).openChannel();
+        verify(rabbitClient).openChannel();
+        verify(decrypter, times(8)).decryptFile(any(File.class));
+        verify(s3, times(8)).upload(anyString(), any(File.class));
+        verify(rabbitClient, times(8)).publishURL(eq(routing_key), any(URL.class), any(PublishListener.class));
+        verify(listener, times(8)).finished(isNull(String.class), anyString(), eq(StageListener.Outcome.PROCESSED), isNull(Exception.class));
+        verify(listener, atLeastOnce()).queued(eq(StageListener.Stage.DECRYPT), anyInt());
+        verify(listener).queued(StageListener.Stage.DOWNLOAD, 0);
+        assertFalse("The decrypted file should have been deleted", decrypted.exists());
+    }
+
+    @Test
+    public void aSlowStageShouldHoldUpTheStagesBeforeItOnceItsQueueIsFull() throws Exception {
+        createRemoteFiles(20);
+        workersUseTheSharedMocks();
+        final AtomicInteger downloads = new AtomicInteger();
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                downloads.incrementAndGet();
+                return File.createTempFile("apptest", ".download");
+            }
+        });
+        final CountDownLatch released = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                released.await();
+                ((PublishListener) invocation.getArguments()[2]).published((URL) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(rabbitClient).publishURL(anyString(), any(URL.class), any(PublishListener.class));
+        app.setPipeline(new PipelineSettings(1, 1, 1, 1, 1));
+
+        Thread run = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    invokeTheDefault();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        run.start();
+        Thread.sleep(500);
+        int whilePublishingIsStuck = downloads.get();
+        released.countDown();
+        run.join(10000);
+
+        // one file in every stage and one in every queue in front of them, with the download thread waiting to queue
+        assertEquals(7, whilePublishingIsStuck);
+        assertEquals(20, downloads.get());
+        verify(rabbitClient, times(20)).publishURL(eq(routing_key), any(URL.class), any(PublishListener.class));
+    }
+
+    @Test
+    public void aPipelineShouldRethrowTheFirstFailureAndDropTheRestOfTheSource() throws Exception {
+        createRemoteFiles(8);
+        workersUseTheSharedMocks();
+        IOException failure = new IOException("bad key");
+        when(decrypter.decryptFile(any(File.class))).thenThrow(failure);
+        app.setPipeline(new PipelineSettings(1, 1, 1, 1, 1));
+
+        try {
+            invokeTheDefault();
+            fail("The decryption failure should be rethrown");
+        } catch (IOException e) {
+            assertEquals(failure, e);
+        }
+
+        verify(s3, never()).upload(anyString(), any(File.class));
+        verifyRabbitDidNotPublish();
+        verify(sftpClient, atMost(4)).downloadFile(any(RemoteFile.class));
+    }
+
+    @Test
+    public void aThreadPerFileShouldStayWithinThePermitsOfEachStage() throws Exception {
+        createRemoteFiles(20);
+        workersUseTheSharedMocks();
+        theFileDoesNotExistInS3();
+        when(sftpClient.getMaxChannels()).thenReturn(4);
+        final Concurrency downloads = new Concurrency();
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                downloads.enter();
+                try {
+                    Thread.sleep(20);
+                    return File.createTempFile("apptest", ".download");
+                } finally {
+                    downloads.leave();
+                }
+            }
+        });
+        final Concurrency uploads = new Concurrency();
+        when(s3.upload(anyString(), any(File.class))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                uploads.enter();
+                try {
+                    Thread.sleep(20);
+                    return "etag";
+                } finally {
+                    uploads.leave();
+                }
+            }
+        });
+
+        app.setVirtualThreads(new VirtualThreadSettings(2, 1, 2));
+        invokeTheDefault();
+
+        assertTrue("Downloads at once: " + downloads.max, downloads.max > 1 && downloads.max <= 3);
+        assertTrue("Uploads at once: " + uploads.max, uploads.max <= 2);
+        verify(rabbitClient, times(2)).openChannel();
+        verify(rabbitClient, times(20)).publishURL(eq(routing_key), any(URL.class), any(PublishListener.class));
+        verify(sftpClient, times(20)).openChannel();
+    }
+
+    @Test
+    public void aThreadPerFileShouldDropTheRestOfASourceOnceItFails() throws Exception {
+        createRemoteFiles(8);
+        workersUseTheSharedMocks();
+        when(sftpClient.getMaxChannels()).thenReturn(2);
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenThrow(new IOException("connection reset"));
+
+        app.setVirtualThreads(new VirtualThreadSettings(2, 1, 2));
+        try {
+            invokeTheDefault();
+            fail("The download failure should be rethrown");
+        } catch (IOException expected) {
+        }
+
+        verify(sftpClient, times(1)).downloadFile(any(RemoteFile.class));
+        verifyRabbitDidNotPublish();
+    }
+
+    @Test
+    public void eachSourceShouldReportTheAdaptiveLimitsOfItsOwn() throws Exception {
+        SftpClient otherSftp = mock(SftpClient.class);
+        when(otherSftp.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(new RemoteFile("bar", 100, 1000)));
+        when(otherSftp.downloadFile(any(RemoteFile.class))).thenReturn(File.createTempFile("apptest", ".download"));
+        when(s3.getURLFor("bar")).thenReturn(url);
+        theFileDoesNotExistInS3();
+        App app = twoSources(otherSftp, decrypter);
+        StageListener listener = mock(StageListener.class);
+        app.setStageListener(listener);
+        app.setAdaptiveLimits(new AdaptiveLimitSettings(4, 1, 32, 0.5, 2.0, 1));
+
+        app.run(false, false);
+
+        verify(listener).limited(StageListener.Stage.DOWNLOAD, "acme", 4);
+        verify(listener).limited(StageListener.Stage.DOWNLOAD, "globex", 4);
+        verify(listener).limited(StageListener.Stage.UPLOAD, "acme", 4);
+        verify(listener).limited(StageListener.Stage.UPLOAD, "globex", 4);
+    }
+
+    @Test
+    public void aFailedDownloadShouldCutTheAdaptiveLimit() throws Exception {
+        theFileDoesNotExistInS3();
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenThrow(new IOException("connection reset"));
+        StageListener listener = mock(StageListener.class);
+        app.setStageListener(listener);
+        app.setAdaptiveLimits(new AdaptiveLimitSettings(4, 1, 32, 0.5, 2.0, 1));
+
+        try {
+            invokeTheDefault();
+        } catch (IOException expected) {
+        }
+
+        verify(listener).limited(StageListener.Stage.DOWNLOAD, null, 2);
+        verify(listener, never()).limited(eq(StageListener.Stage.UPLOAD), anyString(), anyInt());
+    }
+
+    /**
+     * Keeps track of the most calls in progress at once
+     */
+    private static class Concurrency {
+        private int current;
+        private int max;
+
+        synchronized void enter() {
+            current++;
+            max = Math.max(max, current);
+        }
+
+        synchronized void leave() {
+            current--;
+        }
+    }
+
+    @Test
+    public void streamingShouldIgnoreThePipeline() throws Exception {
+        app.setPipeline(new PipelineSettings(2, 2, 2, 1, 1));
+        app.setStreaming(true);
+        when(sftpClient.openFile(filename)).thenReturn(new ByteArrayInputStream(new byte[0]));
+        S3UploadStream upload = mock(S3UploadStream.class);
+        when(s3.openUploadStream(filename)).thenReturn(upload);
+        theFileDoesNotExistInS3();
+
+        invokeTheDefault();
+
+        verify(sftpClient, never()).openChannel();
+        verify(sftpClient, never()).downloadFile(any(RemoteFile.class));
+        verifyRabbitDidPublish();
+    }
+
+    @Test
+    public void theStageListenerShouldBeToldHowLongEachStageTook() throws Exception {
+        createOneRemoteFile();
+        theFileDoesNotExistInS3();
+        StageListener listener = mock(StageListener.class);
+        app.setStageListener(listener);
+
+        invokeTheDefault();
+
+        verify(listener).completed(eq(StageListener.Stage.LIST), isNull(String.class), isNull(String.class), anyLong(), eq(1L));
+        verify(listener).completed(eq(StageListener.Stage.CHECK), isNull(String.class), isNull(String.class), anyLong(), eq(1L));
+        verify(listener).completed(eq(StageListener.Stage.DOWNLOAD), isNull(String.class), eq(filename), anyLong(), eq(100L));
+        verify(listener).completed(eq(StageListener.Stage.DECRYPT), isNull(String.class), eq(filename), anyLong(), eq(downloaded.length()));
+        verify(listener).completed(eq(StageListener.Stage.UPLOAD), isNull(String.class), eq(filename), anyLong(), eq(decrypted.length()));
+        verify(listener).completed(eq(StageListener.Stage.PUBLISH), isNull(String.class), eq(filename), anyLong(), eq(100L));
+        verify(listener, never()).completed(eq(StageListener.Stage.STREAM), anyString(), anyString(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void theStageListenerShouldBeToldHowEachFileTurnedOut() throws Exception {
+        when(sftpClient.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(remoteFile, new RemoteFile("bar", 10, 1000)));
+        when(s3.existingKeys(anyCollectionOf(String.class))).thenReturn(new HashSet<String>(asList("bar")));
+        StageListener listener = mock(StageListener.class);
+        app.setStageListener(listener);
+
+        invokeTheDefault();
+
+        verify(listener).finished(null, filename, StageListener.Outcome.PROCESSED, null);
+        verify(listener).finished(null, "bar", StageListener.Outcome.PREVIOUSLY_SEEN, null);
+        verify(listener).runCompleted(anyLong());
+    }
+
+    @Test
+    public void theStageListenerShouldBeToldAboutFailuresAndTheEndOfTheRun() throws Exception {
+        createOneRemoteFile();
+        theFileDoesNotExistInS3();
+        IOException failure = new IOException("connection reset");
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenThrow(failure);
+        StageListener listener = mock(StageListener.class);
+        app.setStageListener(listener);
+
+        try {
+            invokeTheDefault();
+            fail("The failure was not rethrown");
+        } catch (IOException expected) {
+        }
+
+        verify(listener).finished(null, filename, StageListener.Outcome.FAILED, failure);
+        verify(listener).runCompleted(anyLong());
+    }
+
+    @Test
+    public void theStageListenerShouldBeToldHowLongAgoPublishedFilesWereModified() throws Exception {
+        long modified = System.currentTimeMillis() / 1000 - 60;
+        when(sftpClient.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(new RemoteFile(filename, 100, modified)));
+        theFileDoesNotExistInS3();
+        StageListener listener = mock(StageListener.class);
+        app.setStageListener(listener);
+
+        long before = System.currentTimeMillis();
+        invokeTheDefault();
+        long after = System.currentTimeMillis();
+
+        ArgumentCaptor<Long> lag = ArgumentCaptor.forClass(Long.class);
+        verify(listener).published(isNull(String.class), eq(filename), lag.capture());
+        assertTrue("Lag was " + lag.getValue(), lag.getValue() >= before - modified * 1000 && lag.getValue() <= after - modified * 1000);
+    }
+
+    @Test
+    public void withAHighWaterMarkOnlyFilesSinceTheMarkShouldBeListed() throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        HighWaterMark marks = highWaterMark();
+        marks.advance("OUT", now - 3600);
+        app.setHighWaterMark(marks);
+        when(sftpClient.getDownloadFrom()).thenReturn("OUT");
+        when(sftpClient.listFilesSince(anyLong(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(new RemoteFile(filename, 100, now)));
+
+        invokeTheDefault();
+
+        verify(sftpClient).listFilesSince(now - 3600, App.MATCH_EVERYTHING);
+        assertEquals(now, marks.get("OUT"));
+    }
+
+    @Test
+    public void theHighWaterMarkShouldNotMoveWhenARunFails() throws Exception {
+        HighWaterMark marks = highWaterMark();
+        app.setHighWaterMark(marks);
+        when(sftpClient.getDownloadFrom()).thenReturn("OUT");
+        when(sftpClient.listFilesSince(anyLong(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(new RemoteFile(filename, 100, 6000)));
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenThrow(new IOException("connection reset"));
+
+        try {
+            invokeTheDefault();
+        } catch (IOException expected) {
+        }
+
+        assertEquals(0, marks.get("OUT"));
+    }
+
+    private HighWaterMark highWaterMark() throws IOException {
+        File path = File.createTempFile("watermark", ".properties");
+        path.deleteOnExit();
+        return new HighWaterMark(path);
+    }
+
+    @Test
+    public void reconnectShouldReconnectSftpAndRabbit() throws Exception {
+        app.reconnect();
+
+        verify(sftpClient).reconnect();
+        verify(rabbitClient).reconnect();
+    }
+
+    @Test
+    public void eachSourceShouldUseItsOwnRoutingKeyAndDecrypter() throws Exception {
+        SftpClient otherSftp = mock(SftpClient.class);
+        PGPFileDecrypter otherDecrypter = mock(PGPFileDecrypter.class);
+        URL otherUrl = new URL("http://example.com");
+        when(otherSftp.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(new RemoteFile("bar", 100, 1000)));
+        when(otherSftp.downloadFile(any(RemoteFile.class))).thenReturn(File.createTempFile("apptest", ".download"));
+        when(otherDecrypter.decryptFile(any(File.class))).thenReturn(File.createTempFile("apptest", ".decrypted"));
+        when(s3.getURLFor("acme/" + filename)).thenReturn(url);
+        when(s3.getURLFor("globex/bar")).thenReturn(otherUrl);
+        theFileDoesNotExistInS3();
+
+        twoSources(otherSftp, otherDecrypter).run(false, false);
+
+        verify(rabbitClient).publishURL(eq("acme"), eq(url), any(PublishListener.class));
+        verify(rabbitClient).publishURL(eq("globex"), eq(otherUrl), any(PublishListener.class));
+        verify(decrypter).decryptFile(downloaded);
+        verify(otherDecrypter).decryptFile(any(File.class));
+    }
+
+    @Test
+    public void aFailingSourceShouldNotStopTheOthers() throws Exception {
+        SftpClient otherSftp = mock(SftpClient.class);
+        when(otherSftp.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenThrow(new SftpException(4, "connection lost"));
+        theFileDoesNotExistInS3();
+        App app = twoSources(otherSftp, decrypter);
+        app.setWorkers(2);
+        workersUseTheSharedMocks();
+
+        try {
+            app.run(false, false);
+            fail("The failure of the second source should be rethrown");
+        } catch (SftpException expected) {
+        }
+
+        verify(s3).upload(eq("acme/" + filename), any(File.class));
+        verify(rabbitClient).publishURL(eq("acme"), any(URL.class), any(PublishListener.class));
+    }
+
+    @Test
+    public void sourcesSharingAFileNameShouldKeepTheirFilesApartInS3() throws Exception {
+        SftpClient otherSftp = mock(SftpClient.class);
+        when(otherSftp.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(new RemoteFile(filename, 200, 2000)));
+        when(otherSftp.downloadFile(any(RemoteFile.class))).thenReturn(File.createTempFile("apptest", ".download"));
+        when(s3.existingKeys(anyCollectionOf(String.class))).thenReturn(new HashSet<String>(asList("acme/" + filename)));
+
+        twoSources(otherSftp, decrypter).run(false, false);
+
+        verify(s3).existingKeys(new HashSet<String>(asList("acme/" + filename)));
+        verify(s3).existingKeys(new HashSet<String>(asList("globex/" + filename)));
+        verify(s3, never()).upload(eq("acme/" + filename), any(File.class));
+        verify(s3).upload(eq("globex/" + filename), any(File.class));
+        verify(s3).getURLFor("globex/" + filename);
+    }
+
+    @Test
+    public void theLedgerShouldTellApartSourcesSharingAFileName() throws Exception {
+        SftpClient otherSftp = mock(SftpClient.class);
+        RemoteFile otherFile = new RemoteFile(filename, 200, 2000);
+        when(otherSftp.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(otherFile));
+        when(otherSftp.downloadFile(any(RemoteFile.class))).thenReturn(File.createTempFile("apptest", ".download"));
+        ProcessedFileLedger ledger = freshLedger();
+        ledger.record("acme/" + filename, remoteFile, "acme-etag");
+        App app = twoSources(otherSftp, decrypter);
+        app.setLedger(ledger);
+        when(s3.upload(eq("globex/" + filename), any(File.class))).thenReturn("globex-etag");
+
+        app.run(false, false);
+
+        verify(s3, never()).upload(eq("acme/" + filename), any(File.class));
+        assertEquals(ProcessedFileLedger.Status.UNCHANGED, ledger.check("globex/" + filename, otherFile));
+        assertEquals("acme-etag", ledger.getETag("acme/" + filename));
+        assertEquals("globex-etag", ledger.getETag("globex/" + filename));
+    }
+
+    @Test
+    public void namedSourcesShouldKeepHighWaterMarksOfTheirOwn() throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        SftpClient otherSftp = mock(SftpClient.class);
+        when(sftpClient.getDownloadFrom()).thenReturn("OUT");
+        when(otherSftp.getDownloadFrom()).thenReturn("OUT");
+        when(sftpClient.listFilesSince(anyLong(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(new RemoteFile(filename, 100, now)));
+        when(otherSftp.listFilesSince(anyLong(), eq(App.MATCH_EVERYTHING))).thenReturn(new ArrayList<RemoteFile>());
+        HighWaterMark marks = highWaterMark();
+        App app = twoSources(otherSftp, decrypter);
+        app.setHighWaterMark(marks);
+        theFileDoesNotExistInS3();
+
+        app.run(false, false);
+
+        assertEquals(now, marks.get("acme:OUT"));
+        assertEquals(0, marks.get("globex:OUT"));
+        assertEquals(0, marks.get("OUT"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void routingKeyDaysAndPatternAreConfiguredPerSourceWhenThereAreSeveral() throws Exception {
+        twoSources(mock(SftpClient.class), decrypter).run(routing_key, 1);
+    }
+
+    private App twoSources(SftpClient otherSftp, PGPFileDecrypter otherDecrypter) {
+        return new App(asList(new Source("acme", sftpClient, decrypter, "acme", App.MATCH_EVERYTHING, 1),
+                new Source("globex", otherSftp, otherDecrypter, "globex", App.MATCH_EVERYTHING, 1)),
+                s3, rabbitClient, mock(PrintStream.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNonPositiveWorkers() {
+        app.setWorkers(0);
+    }
+
+    private long timeTheDefault() throws Exception {
+        long start = System.currentTimeMillis();
+        invokeTheDefault();
+        return System.currentTimeMillis() - start;
+    }
+
+    private void workersUseTheSharedMocks() throws Exception {
+        when(sftpClient.openChannel()).thenReturn(sftpClient);
+        when(rabbitClient.openChannel()).thenReturn(rabbitClient);
+    }
+
+    private void downloadsTake(final long millis) throws Exception {
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(millis);
+                return File.createTempFile("apptest", ".download");
+            }
+        });
+    }
+
+    private Concurrency downloadsAreCounted() throws Exception {
+        final Concurrency downloads = new Concurrency();
+        when(sftpClient.downloadFile(any(RemoteFile.class))).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                downloads.enter();
+                try {
+                    Thread.sleep(20);
+                    return File.createTempFile("apptest", ".download");
+                } finally {
+                    downloads.leave();
+                }
+            }
+        });
+        return downloads;
+    }
+
+    private void createRemoteFiles(int count) throws SftpException {
+        List<RemoteFile> files = new ArrayList<RemoteFile>();
+        for (int i = 0; i < count; i++) {
+            files.add(new RemoteFile("file" + i, 100, 1000));
+        }
+        when(sftpClient.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(files);
+    }
+
     private void verifyRabbitDidPublish() throws IOException {
-        verify(rabbitClient).publishURL(routing_key, url);
+        verify(rabbitClient).publishURL(eq(routing_key), eq(url), any(PublishListener.class));
     }
 
-    private void verifyRabbitDidNotPublish() {
-        verifyZeroInteractions(rabbitClient);
+    private void verifyRabbitDidNotPublish() throws IOException {
+        verify(rabbitClient, never()).publishURL(anyString(), any(URL.class), any(PublishListener.class));
     }
 
     private void invokeWithOverwrite() throws Exception {
@@ -171,14 +1009,14 @@ public class AppTest {
     }
 
     private void theFileDoesNotExistInS3() {
-        when(s3.keyExists(filename)).thenReturn(false);
+        when(s3.existingKeys(anyCollectionOf(String.class))).thenReturn(new HashSet<String>());
     }
 
     private void theFileExistsInS3() {
-        when(s3.keyExists(filename)).thenReturn(true);
+        when(s3.existingKeys(anyCollectionOf(String.class))).thenReturn(new HashSet<String>(asList(filename)));
     }
 
     private void createOneRemoteFile() throws SftpException {
-        when(sftpClient.getFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(new HashSet<String>(asList(filename)));
+        when(sftpClient.listFilesNewerThan(anyInt(), eq(App.MATCH_EVERYTHING))).thenReturn(asList(remoteFile));
     }
 }
@@ -0,0 +1,94 @@
+package com.simple.sftpfetch;
+
+import org.junit.Test;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class DaemonTest {
+    private PrintStream err = mock(PrintStream.class);
+
+    @Test
+    public void shouldKeepPollingUntilStopped() throws Exception {
+        final AtomicInteger polls = new AtomicInteger();
+        final Daemon[] daemon = new Daemon[1];
+        daemon[0] = new Daemon(new Daemon.Poll() {
+            @Override
+            public void poll() {
+                if (polls.incrementAndGet() == 3) {
+                    daemon[0].stop();
+                }
+            }
+        }, 1, 0, err);
+
+        daemon[0].run();
+
+        assertEquals(3, polls.get());
+        assertTrue(daemon[0].awaitTermination(0));
+    }
+
+    @Test
+    public void aFailedPollShouldBeReportedAndRetried() throws Exception {
+        final AtomicInteger polls = new AtomicInteger();
+        final Daemon[] daemon = new Daemon[1];
+        daemon[0] = new Daemon(new Daemon.Poll() {
+            @Override
+            public void poll() throws Exception {
+                if (polls.incrementAndGet() == 1) {
+                    throw new java.io.IOException("connection reset");
+                }
+                daemon[0].stop();
+            }
+        }, 1, 0, err);
+
+        daemon[0].run();
+
+        assertEquals(2, polls.get());
+        verify(err).println(startsWith("Poll failed: java.io.IOException: connection reset"));
+    }
+
+    @Test
+    public void stoppingShouldCutTheWaitShort() throws Exception {
+        final AtomicInteger polls = new AtomicInteger();
+        final Daemon daemon = new Daemon(new Daemon.Poll() {
+            @Override
+            public void poll() {
+                polls.incrementAndGet();
+            }
+        }, 60000, 0, err);
+        Thread thread = new Thread(daemon);
+        thread.start();
+
+        Thread.sleep(100);
+        long start = System.currentTimeMillis();
+        daemon.stop();
+
+        assertTrue("The daemon did not stop", daemon.awaitTermination(5000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, polls.get());
+    }
+
+    @Test
+    public void theDelayShouldStayWithinTheJitter() {
+        Daemon daemon = new Daemon(null, 1000, 100, err);
+        boolean varied = false;
+        long first = daemon.nextDelay();
+        for (int i = 0; i < 1000; i++) {
+            long delay = daemon.nextDelay();
+            assertTrue("Delay out of range: " + delay, delay >= 900 && delay <= 1100);
+            varied |= delay != first;
+        }
+        assertTrue(varied);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeIntervals() {
+        new Daemon(null, -1, 0, err);
+    }
+}
@@ -0,0 +1,131 @@
+package com.simple.sftpfetch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FairSchedulerTest {
+
+    @Test
+    public void sourcesShouldTakeTurns() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(1);
+        queue(scheduler, "flood", 5);
+        queue(scheduler, "trickle", 2);
+
+        List<String> order = new ArrayList<String>();
+        Map.Entry<String, Integer> next;
+        while ((next = scheduler.poll()) != null) {
+            order.add(next.getKey());
+            scheduler.done(next.getKey());
+        }
+
+        assertEquals(asList("flood", "trickle", "flood", "trickle", "flood", "flood", "flood"), order);
+    }
+
+    @Test
+    public void aFloodShouldOnlyHoldItsShareOfTheWorkers() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(2);
+        queue(scheduler, "flood", 100);
+        queue(scheduler, "trickle", 2);
+        scheduler.poll();
+        scheduler.poll();
+        scheduler.done("trickle");
+
+        assertEquals("trickle", scheduler.poll().getKey());
+    }
+
+    @Test
+    public void aFreeWorkerShouldNotIdleWhileWorkIsQueued() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(4);
+        queue(scheduler, "flood", 100);
+        queue(scheduler, "trickle", 1);
+        scheduler.poll();
+        scheduler.poll();
+        scheduler.poll();
+
+        assertEquals("flood", scheduler.poll().getKey());
+    }
+
+    @Test
+    public void cancellingShouldDropOnlyTheQueuedWork() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(2);
+        queue(scheduler, "failing", 3);
+        queue(scheduler, "healthy", 1);
+
+        Map.Entry<String, Integer> taken = scheduler.poll();
+        assertEquals(2, scheduler.cancel("failing"));
+        scheduler.done(taken.getKey());
+
+        assertEquals("healthy", scheduler.poll().getKey());
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void theSizeShouldCountTheWorkQueuedForEverySource() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(2);
+        queue(scheduler, "flood", 5);
+        queue(scheduler, "trickle", 2);
+        scheduler.poll();
+
+        assertEquals(6, scheduler.size());
+    }
+
+    @Test
+    public void backfillShouldWaitForTheRestOfTheWork() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(2);
+        scheduler.add("source", 1, true);
+        scheduler.add("source", 2);
+        scheduler.add("other", 3);
+
+        assertEquals(Integer.valueOf(2), scheduler.poll().getValue());
+        assertEquals(Integer.valueOf(3), scheduler.poll().getValue());
+        Map.Entry<String, Integer> backfill = scheduler.poll();
+        assertEquals(Integer.valueOf(1), backfill.getValue());
+        assertTrue(scheduler.isBackfill(backfill));
+    }
+
+    @Test
+    public void backfillShouldStayWithinItsLimit() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(4, 1);
+        scheduler.add("source", 1, true);
+        scheduler.add("source", 2, true);
+        Map.Entry<String, Integer> taken = scheduler.poll();
+
+        assertNull(scheduler.poll());
+        assertEquals(1, scheduler.size());
+
+        scheduler.done(taken);
+        assertEquals(Integer.valueOf(2), scheduler.poll().getValue());
+    }
+
+    @Test
+    public void cancellingShouldDropTheBackfillToo() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(2);
+        scheduler.add("source", 1);
+        scheduler.add("source", 2, true);
+
+        assertEquals(2, scheduler.cancel("source"));
+        assertNull(scheduler.poll());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishingWorkThatWasNotTakenShouldFail() {
+        FairScheduler<String, Integer> scheduler = new FairScheduler<String, Integer>(1);
+        queue(scheduler, "source", 1);
+
+        scheduler.done("source");
+    }
+
+    private void queue(FairScheduler<String, Integer> scheduler, String source, int count) {
+        for (int i = 0; i < count; i++) {
+            scheduler.add(source, i);
+        }
+    }
+}
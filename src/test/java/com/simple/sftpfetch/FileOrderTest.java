@@ -0,0 +1,58 @@
+package com.simple.sftpfetch;
+
+import com.simple.sftpfetch.sftp.RemoteFile;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class FileOrderTest {
+    private final RemoteFile small = new RemoteFile("small", 10, 3000);
+    private final RemoteFile large = new RemoteFile("large", 1000, 2000);
+    private final RemoteFile medium = new RemoteFile("medium", 100, 1000);
+    private final RemoteFile alsoMedium = new RemoteFile("also-medium", 100, 4000);
+    private final List<RemoteFile> listed = asList(small, large, medium, alsoMedium);
+
+    @Test
+    public void listedShouldKeepTheOrderOfTheServer() {
+        assertSame(listed, FileOrder.LISTED.sort(listed));
+    }
+
+    @Test
+    public void largestShouldTakeTheLargestFirstAndTiesByName() {
+        assertEquals(asList(large, alsoMedium, medium, small), FileOrder.LARGEST.sort(listed));
+    }
+
+    @Test
+    public void oldestShouldTakeTheLeastRecentlyModifiedFirst() {
+        assertEquals(asList(medium, large, small, alsoMedium), FileOrder.OLDEST.sort(listed));
+    }
+
+    @Test
+    public void smallestShouldTakeTheSmallestFirstAndTiesByName() {
+        assertEquals(asList(small, alsoMedium, medium, large), FileOrder.SMALLEST.sort(listed));
+    }
+
+    @Test
+    public void sortingShouldLeaveTheListAsItIs() {
+        List<RemoteFile> files = new ArrayList<RemoteFile>(listed);
+
+        FileOrder.LARGEST.sort(files);
+
+        assertEquals(listed, files);
+    }
+
+    @Test
+    public void settingsShouldBeReadInAnyCase() {
+        assertEquals(FileOrder.LARGEST, FileOrder.forSetting(" Largest"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSettingsShouldBeRejected() {
+        FileOrder.forSetting("random");
+    }
+}
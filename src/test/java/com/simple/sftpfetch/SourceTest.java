@@ -0,0 +1,112 @@
+package com.simple.sftpfetch;
+
+import com.simple.sftpfetch.sftp.SftpClient;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SourceTest {
+
+    @Test
+    public void namesShouldBeReadFromACommaSeparatedList() {
+        Properties properties = new Properties();
+        properties.setProperty("sources", " acme, globex,,acme ");
+
+        assertEquals(asList("acme", "globex"), Source.names(properties));
+    }
+
+    @Test
+    public void withoutSourcesThereShouldBeNoNames() {
+        assertTrue(Source.names(new Properties()).isEmpty());
+    }
+
+    @Test
+    public void aSourceShouldSeeItsOwnSettingsWithoutThePrefix() {
+        Properties properties = new Properties();
+        properties.setProperty("sftp.hostname", "shared.example.com");
+        properties.setProperty("sftp.timeout", "5000");
+        properties.setProperty("sources.acme.sftp.hostname", "acme.example.com");
+        properties.setProperty("sources.globex.sftp.hostname", "globex.example.com");
+
+        Properties acme = Source.propertiesFor("acme", properties);
+
+        assertEquals("acme.example.com", acme.getProperty("sftp.hostname"));
+        assertEquals("5000", acme.getProperty("sftp.timeout"));
+        assertTrue(acme.containsKey("sftp.hostname"));
+        assertFalse("Shared settings are only defaults", acme.containsKey("sftp.timeout"));
+    }
+
+    @Test
+    public void theMarkKeyOfAnUnnamedSourceOverAWholeFolderShouldBeTheFolder() {
+        assertEquals("OUT", source(null, App.MATCH_EVERYTHING).getMarkKey());
+    }
+
+    @Test
+    public void sourcesPickingDifferentFilesShouldKeepMarksOfTheirOwn() {
+        String reports = source(null, Pattern.compile(".*\\.csv")).getMarkKey();
+        String archives = source(null, Pattern.compile(".*\\.zip")).getMarkKey();
+
+        assertEquals("OUT pattern=.*\\.csv", reports);
+        assertFalse(reports.equals(archives));
+        assertEquals("acme:OUT pattern=.*\\.csv", source("acme", Pattern.compile(".*\\.csv")).getMarkKey());
+    }
+
+    @Test
+    public void theMarkKeyShouldIncludeHowFilesBelowTheFolderAreListed() {
+        SftpClient sftp = mock(SftpClient.class);
+        when(sftp.getDownloadFrom()).thenReturn("OUT");
+        when(sftp.isRecursive()).thenReturn(true);
+        when(sftp.describeListing()).thenReturn("depth=2 include=*.pgp exclude=");
+
+        Source source = new Source(null, sftp, null, "", App.MATCH_EVERYTHING, 1);
+
+        assertEquals("OUT depth=2 include=*.pgp exclude=", source.getMarkKey());
+    }
+
+    @Test
+    public void namedSourcesShouldUploadUnderTheirNameByDefault() {
+        assertEquals("acme/foo.csv", source("acme", App.MATCH_EVERYTHING).getKey("foo.csv"));
+        assertEquals("foo.csv", source(null, App.MATCH_EVERYTHING).getKey("foo.csv"));
+    }
+
+    @Test
+    public void aKeyPrefixShouldReplaceTheSourceName() {
+        Source source = new Source("acme", mock(SftpClient.class), null, "", App.MATCH_EVERYTHING, 1, "vendors/acme-");
+
+        assertEquals("vendors/acme-foo.csv", source.getKey("foo.csv"));
+    }
+
+    @Test
+    public void theKeyPrefixShouldBeConfigurablePerSource() {
+        Properties properties = new Properties();
+        properties.setProperty("s3.prefix", "shared/");
+        properties.setProperty("sources.acme.s3.prefix", "vendors/acme/");
+
+        assertEquals("vendors/acme/", Source.keyPrefixFor("acme", Source.propertiesFor("acme", properties)));
+        assertEquals("globex/", Source.keyPrefixFor("globex", Source.propertiesFor("globex", properties)));
+        assertEquals("shared/", Source.keyPrefixFor(null, properties));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aSourceShouldNotSetABucketOfItsOwn() {
+        Properties properties = new Properties();
+        properties.setProperty("s3.bucket", "shared");
+        properties.setProperty("sources.acme.s3.bucket", "acme");
+
+        Source.keyPrefixFor("acme", Source.propertiesFor("acme", properties));
+    }
+
+    private Source source(String name, Pattern pattern) {
+        SftpClient sftp = mock(SftpClient.class);
+        when(sftp.getDownloadFrom()).thenReturn("OUT");
+        return new Source(name, sftp, null, "", pattern, 1);
+    }
+}
@@ -0,0 +1,45 @@
+package com.simple.sftpfetch;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadsTest {
+    @Test
+    public void virtualThreadsShouldBeAvailableFromJava21() {
+        String version = System.getProperty("java.specification.version");
+        int feature = version.startsWith("1.") ? Integer.valueOf(version.substring(2)) : Integer.valueOf(version);
+
+        assertEquals(feature >= 21, VirtualThreads.isAvailable());
+    }
+
+    @Test
+    public void tasksShouldRunOnThreadsNamedAfterThePrefix() throws Exception {
+        ExecutorService executor = VirtualThreads.newExecutor("test-", 2);
+        try {
+            String name = executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return Thread.currentThread().getName();
+                }
+            }).get();
+
+            assertTrue(name, name.startsWith("test-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void withoutVirtualThreadsNothingShouldBePinned() throws Exception {
+        assumeTrue(!VirtualThreads.isAvailable());
+
+        assertFalse(VirtualThreads.pinsOnMonitors());
+    }
+}
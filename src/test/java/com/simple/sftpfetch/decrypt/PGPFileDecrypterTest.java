@@ -0,0 +1,77 @@
+package com.simple.sftpfetch.decrypt;
+
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.util.io.Streams;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PGPFileDecrypterTest {
+    private static PGPTestKeys keys;
+    private static PGPFileDecrypter decrypter;
+    private byte[] plaintext = "The quick brown fox jumps over the lazy dog".getBytes();
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        keys = new PGPTestKeys();
+        decrypter = new PGPFileDecrypter(keys.writeSecretKey());
+    }
+
+    @Test
+    public void shouldDecryptStreams() throws Exception {
+        InputStream decrypted = decrypter.decrypt(new ByteArrayInputStream(keys.encrypt(plaintext)));
+
+        assertArrayEquals(plaintext, Streams.readAll(decrypted));
+    }
+
+    @Test
+    public void shouldDecryptUncompressedMessagesWithoutIntegrityProtection() throws Exception {
+        byte[] encrypted = keys.encrypt(plaintext, SymmetricKeyAlgorithmTags.CAST5, CompressionAlgorithmTags.UNCOMPRESSED, false);
+
+        assertArrayEquals(plaintext, Streams.readAll(decrypter.decrypt(new ByteArrayInputStream(encrypted))));
+    }
+
+    @Test
+    public void closingTheDecryptedStreamShouldCloseTheInput() throws Exception {
+        final boolean[] closed = {false};
+        InputStream encrypted = new ByteArrayInputStream(keys.encrypt(plaintext)) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        };
+
+        decrypter.decrypt(encrypted).close();
+
+        assertTrue("The encrypted stream was not closed", closed[0]);
+    }
+
+    @Test
+    public void shouldDecryptFiles() throws Exception {
+        File encrypted = File.createTempFile("message", ".pgp");
+        encrypted.deleteOnExit();
+        OutputStream out = new FileOutputStream(encrypted);
+        out.write(keys.encrypt(plaintext));
+        out.close();
+
+        File decrypted = decrypter.decryptFile(encrypted);
+        try {
+            assertArrayEquals(plaintext, Streams.readAll(new FileInputStream(decrypted)));
+        } finally {
+            decrypted.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailTheIntegrityCheckOfTamperedMessages() throws Exception {
+        byte[] encrypted = keys.encrypt(plaintext, SymmetricKeyAlgorithmTags.AES_128, CompressionAlgorithmTags.UNCOMPRESSED, true);
+        encrypted[encrypted.length - 5] ^= 1;
+
+        decrypter.decrypt(new ByteArrayInputStream(encrypted), new ByteArrayOutputStream());
+    }
+}
@@ -0,0 +1,148 @@
+package com.simple.sftpfetch.decrypt;
+
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.util.io.Streams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PGPKeyringTest {
+    private static final char[] PASSPHRASE = "correct horse".toCharArray();
+
+    @Test
+    public void shouldIndexTheKeysOfEveryKeyFile() throws Exception {
+        PGPTestKeys first = new PGPTestKeys();
+        PGPTestKeys second = new PGPTestKeys();
+        Properties properties = new Properties();
+        properties.setProperty("decryption.key.path", first.writeSecretKey() + ", " + second.writeSecretKey());
+
+        PGPKeyring keyring = new PGPKeyring(properties);
+
+        assertEquals(new HashSet<Long>(asList(first.getKeyID(), second.getKeyID())), keyring.getKeyIDs());
+        byte[] plaintext = "a,b,c\n".getBytes("UTF-8");
+        assertArrayEquals(plaintext, decrypt(new PGPFileDecrypter(keyring), second.encrypt(plaintext)));
+    }
+
+    @Test
+    public void shouldExtractEachPrivateKeyOnce() throws Exception {
+        PGPTestKeys keys = new PGPTestKeys();
+        PGPKeyring keyring = new PGPKeyring(asList(keys.writeSecretKey()), new char[0], 0);
+
+        assertSame(keyring.getPrivateKey(keys.getKeyID()), keyring.getPrivateKey(keys.getKeyID()));
+    }
+
+    @Test
+    public void unknownKeysShouldNotBeFound() throws Exception {
+        PGPKeyring keyring = new PGPKeyring(asList(new PGPTestKeys().writeSecretKey()), new char[0], 0);
+
+        assertNull(keyring.getPrivateKey(42));
+    }
+
+    @Test
+    public void shouldUnlockProtectedKeysWithTheConfiguredPassphrase() throws Exception {
+        PGPTestKeys keys = new PGPTestKeys(PASSPHRASE, SymmetricKeyAlgorithmTags.AES_256);
+        Properties properties = new Properties();
+        properties.setProperty("decryption.key.path", keys.writeSecretKey().getPath());
+        properties.setProperty("decryption.key.passphrase", new String(PASSPHRASE));
+
+        assertNotNull(new PGPKeyring(properties).getPrivateKey(keys.getKeyID()));
+    }
+
+    @Test
+    public void shouldTakeThePassphraseFromTheEnvironment() throws Exception {
+        PGPTestKeys keys = new PGPTestKeys(PASSPHRASE, SymmetricKeyAlgorithmTags.AES_256);
+        Properties properties = new Properties();
+        properties.setProperty("decryption.key.path", keys.writeSecretKey().getPath());
+        properties.setProperty("decryption.key.passphrase.env", "KEY_PASSPHRASE");
+
+        PGPKeyring keyring = new PGPKeyring(properties, Collections.singletonMap("KEY_PASSPHRASE", new String(PASSPHRASE)));
+
+        assertNotNull(keyring.getPrivateKey(keys.getKeyID()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aMissingEnvironmentVariableShouldBeReported() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("decryption.key.path", new PGPTestKeys().writeSecretKey().getPath());
+        properties.setProperty("decryption.key.passphrase.env", "KEY_PASSPHRASE");
+
+        new PGPKeyring(properties, Collections.<String, String>emptyMap());
+    }
+
+    @Test(expected = PGPException.class)
+    public void theWrongPassphraseShouldNotUnlockAKey() throws Exception {
+        PGPTestKeys keys = new PGPTestKeys(PASSPHRASE, SymmetricKeyAlgorithmTags.AES_256);
+        PGPKeyring keyring = new PGPKeyring(asList(keys.writeSecretKey()), "wrong".toCharArray(), 0);
+
+        keyring.getPrivateKey(keys.getKeyID());
+    }
+
+    @Test
+    public void shouldReloadRotatedKeyFiles() throws Exception {
+        PGPTestKeys old = new PGPTestKeys();
+        PGPTestKeys rotated = new PGPTestKeys();
+        File file = old.writeSecretKey();
+        PGPKeyring keyring = new PGPKeyring(asList(file), new char[0], 0);
+        assertNotNull(keyring.getPrivateKey(old.getKeyID()));
+
+        copy(rotated.writeSecretKey(), file);
+        file.setLastModified(file.lastModified() - 60000);
+
+        assertNotNull(keyring.getPrivateKey(rotated.getKeyID()));
+        assertNull(keyring.getPrivateKey(old.getKeyID()));
+    }
+
+    @Test
+    public void shouldKeepTheCurrentKeysWhenTheFilesCannotBeRead() throws Exception {
+        PGPTestKeys keys = new PGPTestKeys();
+        File file = keys.writeSecretKey();
+        PGPKeyring keyring = new PGPKeyring(asList(file), new char[0], 0);
+
+        file.delete();
+
+        assertNotNull(keyring.getPrivateKey(keys.getKeyID()));
+    }
+
+    @Test
+    public void shouldNotLookForChangesWithinTheReloadInterval() throws Exception {
+        PGPTestKeys old = new PGPTestKeys();
+        File file = old.writeSecretKey();
+        PGPKeyring keyring = new PGPKeyring(asList(file), new char[0], 60000);
+
+        copy(new PGPTestKeys().writeSecretKey(), file);
+        file.setLastModified(file.lastModified() - 60000);
+
+        assertNotNull(keyring.getPrivateKey(old.getKeyID()));
+    }
+
+    private static byte[] decrypt(FileDecrypter decrypter, byte[] encrypted) throws Exception {
+        return Streams.readAll(decrypter.decrypt(new ByteArrayInputStream(encrypted)));
+    }
+
+    private static void copy(File from, File to) throws Exception {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            Streams.pipeAll(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.simple.sftpfetch.decrypt;
+
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.util.io.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Date;
+
+/**
+ * Generates throwaway PGP keys and messages for the decryption tests
+ */
+public class PGPTestKeys {
+    private final PGPSecretKey secretKey;
+
+    public PGPTestKeys() throws Exception {
+        this(new char[]{}, SymmetricKeyAlgorithmTags.NULL);
+    }
+
+    public PGPTestKeys(char[] passphrase, int keyEncryptionAlgorithm) throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", "BC");
+        generator.initialize(1024);
+        PGPKeyPair keyPair = new PGPKeyPair(PGPPublicKey.RSA_GENERAL, generator.generateKeyPair(), new Date());
+        secretKey = new PGPSecretKey(PGPSignature.DEFAULT_CERTIFICATION, keyPair, "test@example.com",
+                keyEncryptionAlgorithm, passphrase, null, null, new SecureRandom(), "BC");
+    }
+
+    public long getKeyID() {
+        return secretKey.getKeyID();
+    }
+
+    public File writeSecretKey() throws IOException {
+        File file = File.createTempFile("secret", ".key");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            secretKey.encode(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public byte[] encrypt(byte[] plaintext) throws Exception {
+        return encrypt(plaintext, SymmetricKeyAlgorithmTags.AES_128, CompressionAlgorithmTags.ZIP, true);
+    }
+
+    public byte[] encrypt(byte[] plaintext, int algorithm, int compression, boolean integrityProtected) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encrypt(plaintext, out, algorithm, compression, integrityProtected);
+        return out.toByteArray();
+    }
+
+    public void encrypt(byte[] plaintext, OutputStream out, int algorithm, int compression, boolean integrityProtected) throws Exception {
+        encrypt(new ByteArrayInputStream(plaintext), plaintext.length, out, algorithm, compression, integrityProtected);
+    }
+
+    public void encrypt(InputStream plaintext, long length, OutputStream out, int algorithm, int compression, boolean integrityProtected) throws Exception {
+        PGPEncryptedDataGenerator encryptor = new PGPEncryptedDataGenerator(algorithm, integrityProtected, new SecureRandom(), "BC");
+        encryptor.addMethod(secretKey.getPublicKey());
+        OutputStream encrypted = encryptor.open(out, new byte[1 << 16]);
+        PGPCompressedDataGenerator compressor = new PGPCompressedDataGenerator(compression);
+        OutputStream compressed = compression == CompressionAlgorithmTags.UNCOMPRESSED ? encrypted : compressor.open(encrypted);
+        PGPLiteralDataGenerator literal = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literal.open(compressed, PGPLiteralData.BINARY, "message", length, new Date());
+        Streams.pipeAll(plaintext, literalOut);
+        literal.close();
+        if (compression != CompressionAlgorithmTags.UNCOMPRESSED) {
+            compressor.close();
+        }
+        encryptor.close();
+    }
+}
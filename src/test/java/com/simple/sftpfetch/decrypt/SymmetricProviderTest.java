@@ -0,0 +1,80 @@
+package com.simple.sftpfetch.decrypt;
+
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.util.io.Streams;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.Security;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SymmetricProviderTest {
+    private PGPTestKeys keys;
+    private byte[] plaintext;
+
+    @Before
+    public void setUp() throws Exception {
+        keys = new PGPTestKeys();
+        plaintext = new byte[100000];
+        for (int i = 0; i < plaintext.length; i++) {
+            plaintext[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    @Test
+    public void bouncyCastleShouldNeedNoProviderOfItsOwn() {
+        assertNull(SymmetricProvider.forSetting("BC"));
+        assertNull(SymmetricProvider.forSetting(null));
+    }
+
+    @Test
+    public void aNamedProviderShouldSupplyTheCiphersItHas() throws Exception {
+        SymmetricProvider provider = SymmetricProvider.forSetting("SunJCE");
+
+        assertEquals("SunJCE", provider.getPreferred().getName());
+        assertEquals("SunJCE", Cipher.getInstance("AES/CFB/NoPadding", provider).getProvider().getName());
+        assertEquals("BC", Cipher.getInstance("CAST5/CFB/NoPadding", provider).getProvider().getName());
+        assertEquals("SUN", MessageDigest.getInstance("SHA1", provider).getProvider().getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownProvidersShouldBeReported() {
+        SymmetricProvider.forSetting("NoSuchProvider");
+    }
+
+    @Test
+    public void theJdkShouldPassTheSelfTest() {
+        assertTrue(SymmetricProvider.selfTest(Security.getProvider("SunJCE"), Security.getProvider("BC")));
+    }
+
+    @Test
+    public void shouldDecryptEveryKindOfMessageWithTheJdkFirst() throws Exception {
+        FileDecrypter decrypter = new PGPFileDecrypter(new PGPKeyring(asList(keys.writeSecretKey()), new char[0], 0),
+                SymmetricProvider.forSetting("SunJCE"));
+
+        for (int algorithm : new int[]{SymmetricKeyAlgorithmTags.AES_128, SymmetricKeyAlgorithmTags.AES_256, SymmetricKeyAlgorithmTags.CAST5}) {
+            for (boolean integrityProtected : new boolean[]{true, false}) {
+                byte[] encrypted = keys.encrypt(plaintext, algorithm, CompressionAlgorithmTags.ZIP, integrityProtected);
+                assertArrayEquals(plaintext, Streams.readAll(decrypter.decrypt(new ByteArrayInputStream(encrypted))));
+            }
+        }
+    }
+
+    @Test
+    public void shouldDecryptWithWhicheverProviderIsFastest() throws Exception {
+        FileDecrypter decrypter = new PGPFileDecrypter(new PGPKeyring(asList(keys.writeSecretKey()), new char[0], 0),
+                SymmetricProvider.forSetting("auto"));
+        byte[] encrypted = keys.encrypt(plaintext, SymmetricKeyAlgorithmTags.AES_256, CompressionAlgorithmTags.UNCOMPRESSED, true);
+
+        assertArrayEquals(plaintext, Streams.readAll(decrypter.decrypt(new ByteArrayInputStream(encrypted))));
+    }
+}
@@ -0,0 +1,94 @@
+package com.simple.sftpfetch.ledger;
+
+import com.simple.sftpfetch.sftp.RemoteFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ProcessedFileLedgerTest {
+    private File path;
+    private RemoteFile statement = new RemoteFile("statement 2012-06-01.csv", 1024, 1338508800);
+
+    @Before
+    public void setUp() throws IOException {
+        path = File.createTempFile("ledger", ".log");
+        path.delete();
+        path.deleteOnExit();
+        new File(path.getPath() + ".stale").deleteOnExit();
+    }
+
+    @Test
+    public void aNewLedgerShouldBeStaleUntilMarkedFresh() throws Exception {
+        ProcessedFileLedger ledger = new ProcessedFileLedger(path);
+        assertTrue(ledger.isStale());
+        ledger.close();
+
+        ledger = new ProcessedFileLedger(path);
+        assertTrue("Staleness should survive a restart", ledger.isStale());
+        ledger.markFresh();
+        ledger.close();
+
+        assertFalse(new ProcessedFileLedger(path).isStale());
+    }
+
+    @Test
+    public void shouldClassifyFilesByNameModificationTimeAndSize() throws Exception {
+        ProcessedFileLedger ledger = new ProcessedFileLedger(path);
+        ledger.record(statement, "etag");
+
+        assertEquals(ProcessedFileLedger.Status.UNCHANGED, ledger.check(statement));
+        assertEquals(ProcessedFileLedger.Status.CHANGED, ledger.check(new RemoteFile(statement.getName(), 2048, statement.getMTime())));
+        assertEquals(ProcessedFileLedger.Status.CHANGED, ledger.check(new RemoteFile(statement.getName(), 1024, statement.getMTime() + 60)));
+        assertEquals(ProcessedFileLedger.Status.NEW, ledger.check(new RemoteFile("another.csv", 1024, statement.getMTime())));
+    }
+
+    @Test
+    public void recordsShouldSurviveARestart() throws Exception {
+        ProcessedFileLedger ledger = new ProcessedFileLedger(path);
+        ledger.record(statement, "etag");
+        ledger.record(new RemoteFile("no-etag.csv", 1, 2), null);
+        ledger.close();
+
+        ledger = new ProcessedFileLedger(path);
+        assertEquals(ProcessedFileLedger.Status.UNCHANGED, ledger.check(statement));
+        assertEquals("etag", ledger.getETag(statement.getName()));
+        assertNull(ledger.getETag("no-etag.csv"));
+        assertEquals(2, ledger.size());
+    }
+
+    @Test
+    public void openingShouldCompactToTheLatestRecordPerFile() throws Exception {
+        ProcessedFileLedger ledger = new ProcessedFileLedger(path);
+        ledger.record(new RemoteFile(statement.getName(), 10, 1), "first");
+        ledger.record(new RemoteFile(statement.getName(), 20, 2), "second");
+        ledger.record(statement, "third");
+        ledger.close();
+        long uncompacted = path.length();
+
+        ledger = new ProcessedFileLedger(path);
+
+        assertTrue("The log was not compacted", path.length() < uncompacted);
+        assertEquals("third", ledger.getETag(statement.getName()));
+        assertEquals(ProcessedFileLedger.Status.UNCHANGED, ledger.check(statement));
+    }
+
+    @Test
+    public void shouldIgnoreAPartiallyWrittenLastRecord() throws Exception {
+        ProcessedFileLedger ledger = new ProcessedFileLedger(path);
+        ledger.record(statement, "etag");
+        ledger.close();
+        FileOutputStream out = new FileOutputStream(path, true);
+        out.write("torn.csv\t12".getBytes("UTF-8"));
+        out.close();
+
+        ledger = new ProcessedFileLedger(path);
+
+        assertEquals(1, ledger.size());
+        assertEquals(ProcessedFileLedger.Status.NEW, ledger.check(new RemoteFile("torn.csv", 12, 0)));
+    }
+}
@@ -0,0 +1,60 @@
+package com.simple.sftpfetch.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void smallValuesShouldBeExact() {
+        for (long value = 0; value < 32; value++) {
+            assertEquals(value, LatencyHistogram.highestEquivalent(LatencyHistogram.index(value)));
+        }
+    }
+
+    @Test
+    public void everyValueShouldBeKnownToWithinThreePercent() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long equivalent = LatencyHistogram.highestEquivalent(LatencyHistogram.index(value));
+            assertTrue(value + " became " + equivalent, equivalent >= value);
+            assertTrue(value + " became " + equivalent, equivalent - value <= value / 32);
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestEquivalent(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void shouldReportPercentiles() {
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500000, histogram.getSum());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 0.001);
+        assertWithin(500000, histogram.getValueAtPercentile(50));
+        assertWithin(990000, histogram.getValueAtPercentile(99));
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void anEmptyHistogramShouldReportZero() {
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0.0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void negativeValuesShouldBeRecordedAsZero() {
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not close to " + expected, Math.abs(actual - expected) <= expected / 32);
+    }
+}
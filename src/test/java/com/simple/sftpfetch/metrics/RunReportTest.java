@@ -0,0 +1,74 @@
+package com.simple.sftpfetch.metrics;
+
+import com.simple.sftpfetch.StageListener.Outcome;
+import com.simple.sftpfetch.StageListener.Stage;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class RunReportTest {
+    private ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private RunReport report = new RunReport(new PrintStream(output), 2);
+
+    @Test
+    public void shouldSummariseTheRun() throws Exception {
+        report.completed(Stage.LIST, null, null, 100000000, 3);
+        processed("a", 300000000, 2000000);
+        processed("b", 500000000, 1000000);
+        processed("c", 100000000, 1000000);
+        report.finished(null, "d", Outcome.PREVIOUSLY_SEEN, null);
+        report.completed(Stage.DOWNLOAD, null, "e", 100000000, 10);
+        report.finished(null, "e", Outcome.FAILED, new IOException("gone"));
+
+        report.runCompleted(2000000000);
+
+        assertEquals("Run took 2.00s, 3 processed, 1 previously seen, 1 failed, 4.0 MB at 2.00 MB/s\n"
+                + "Time in each stage: list 6.5% download 64.5% upload 29.0%\n"
+                + "Slowest files:\n"
+                + "  0.750s b (download 0.500s, upload 0.250s)\n"
+                + "  0.450s a (download 0.300s, upload 0.150s)\n"
+                + "Failed:\n"
+                + "  e: java.io.IOException: gone\n", output.toString());
+    }
+
+    @Test
+    public void eachRunShouldBeReportedOnItsOwn() {
+        processed("a", 100000000, 1000000);
+        report.runCompleted(1000000000);
+        output.reset();
+
+        report.finished("vendor", "b", Outcome.WOULD_PROCESS, null);
+        report.runCompleted(1000000000);
+
+        assertEquals("Run took 1.00s, 1 would process, 0.0 MB at 0.00 MB/s\n"
+                + "Would process:\n"
+                + "  vendor/b\n", output.toString());
+    }
+
+    @Test
+    public void shouldListTheFilesThatNeedLookingAtByName() {
+        report.finished("vendor", "b", Outcome.NOT_CONFIRMED, null);
+        report.finished("vendor", "c", Outcome.FAILED, new IOException("refused"));
+        report.finished("vendor", "a", Outcome.FAILED, new IOException("gone"));
+        report.finished("vendor", "d", Outcome.PREVIOUSLY_SEEN, null);
+
+        report.runCompleted(1000000000);
+
+        assertEquals("Run took 1.00s, 1 previously seen, 1 not confirmed, 2 failed, 0.0 MB at 0.00 MB/s\n"
+                + "Failed:\n"
+                + "  vendor/a: java.io.IOException: gone\n"
+                + "  vendor/c: java.io.IOException: refused\n"
+                + "Not confirmed:\n"
+                + "  vendor/b\n", output.toString());
+    }
+
+    private void processed(String filename, long downloadNanos, long bytes) {
+        report.completed(Stage.DOWNLOAD, null, filename, downloadNanos, bytes);
+        report.completed(Stage.UPLOAD, null, filename, downloadNanos / 2, bytes);
+        report.finished(null, filename, Outcome.PROCESSED, null);
+    }
+}
@@ -0,0 +1,147 @@
+package com.simple.sftpfetch.metrics;
+
+import com.simple.sftpfetch.StageListener.Stage;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StageMetricsTest {
+    private StageMetrics metrics = new StageMetrics();
+
+    @Test
+    public void shouldCountEachStageSeparately() {
+        metrics.completed(Stage.DOWNLOAD, null, "a", 2000000, 100);
+        metrics.completed(Stage.DOWNLOAD, "vendor", "b", 4000000, 50);
+        metrics.completed(Stage.UPLOAD, null, "a", 1000000, 100);
+
+        assertEquals(2, metrics.getStage(Stage.DOWNLOAD).getCount());
+        assertEquals(150, metrics.getStage(Stage.DOWNLOAD).getBytes());
+        assertEquals(3.0, metrics.getStage(Stage.DOWNLOAD).getMeanMillis(), 0.1);
+        assertEquals(1, metrics.getStage(Stage.UPLOAD).getCount());
+        assertEquals(0, metrics.getStage(Stage.DECRYPT).getCount());
+    }
+
+    @Test
+    public void shouldWriteThePrometheusTextFormat() {
+        metrics.completed(Stage.LIST, null, null, 1000000000, 12);
+        metrics.completed(Stage.UPLOAD, null, "a", 500000000, 2048);
+        metrics.published(null, "a", 90000);
+
+        String text = prometheus();
+
+        assertTrue(text, text.contains("# TYPE sftp_fetch_stage_seconds summary\n"));
+        assertTrue(text, text.contains("sftp_fetch_stage_seconds_count{stage=\"upload\"} 1\n"));
+        assertTrue(text, text.contains("sftp_fetch_stage_seconds_sum{stage=\"upload\"} 0.500000\n"));
+        assertTrue(text, text.contains("sftp_fetch_stage_bytes_total{stage=\"upload\"} 2048\n"));
+        assertTrue(text, text.contains("sftp_fetch_files_total{stage=\"list\"} 12\n"));
+        assertTrue(text, text.contains("sftp_fetch_freshness_lag_seconds_count 1\n"));
+        assertTrue(text, text.contains("sftp_fetch_freshness_lag_seconds_sum 90.000000\n"));
+        assertFalse(text, text.contains("sftp_fetch_stage_bytes_total{stage=\"list\"}"));
+    }
+
+    @Test
+    public void shouldKeepTheLatestQueueDepthOfEveryStage() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        metrics.queued(Stage.DECRYPT, 3);
+        metrics.queued(Stage.DECRYPT, 2);
+        metrics.queued(Stage.UPLOAD, 4);
+
+        metrics.register(server);
+
+        assertEquals(2, server.getAttribute(new ObjectName("com.simple.sftpfetch:type=Stage,name=decrypt"), "QueueDepth"));
+        String text = prometheus();
+        assertTrue(text, text.contains("# TYPE sftp_fetch_stage_queue_depth gauge\n"));
+        assertTrue(text, text.contains("sftp_fetch_stage_queue_depth{stage=\"decrypt\"} 2\n"));
+        assertTrue(text, text.contains("sftp_fetch_stage_queue_depth{stage=\"upload\"} 4\n"));
+        assertFalse(text, text.contains("sftp_fetch_stage_queue_depth{stage=\"list\"}"));
+        metrics.unregister(server);
+    }
+
+    @Test
+    public void shouldKeepTheAdaptiveLimitOfEverySource() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        metrics.limited(Stage.DOWNLOAD, "acme", 4);
+        metrics.register(server);
+        metrics.limited(Stage.DOWNLOAD, "acme", 5);
+        metrics.limited(Stage.UPLOAD, null, 2);
+
+        assertEquals(5, metrics.getLimit(Stage.DOWNLOAD, "acme").getLimit());
+        assertEquals(5, server.getAttribute(new ObjectName("com.simple.sftpfetch:type=Limit,stage=download,source=\"acme\""), "Limit"));
+        assertEquals(2, server.getAttribute(new ObjectName("com.simple.sftpfetch:type=Limit,stage=upload"), "Limit"));
+        String text = prometheus();
+        assertTrue(text, text.contains("# TYPE sftp_fetch_concurrency_limit gauge\n"));
+        assertTrue(text, text.contains("sftp_fetch_concurrency_limit{stage=\"download\",source=\"acme\"} 5\n"));
+        assertTrue(text, text.contains("sftp_fetch_concurrency_limit{stage=\"upload\",source=\"\"} 2\n"));
+        metrics.unregister(server);
+        assertEquals(0, server.queryNames(new ObjectName("com.simple.sftpfetch:*"), null).size());
+    }
+
+    @Test
+    public void shouldRegisterAnMBeanForEveryStage() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        metrics.completed(Stage.DECRYPT, null, "a", 1000000, 10);
+        metrics.published(null, "a", 2000);
+
+        metrics.register(server);
+
+        assertEquals(1L, server.getAttribute(new ObjectName("com.simple.sftpfetch:type=Stage,name=decrypt"), "Count"));
+        assertEquals(10L, server.getAttribute(new ObjectName("com.simple.sftpfetch:type=Stage,name=decrypt"), "Bytes"));
+        assertEquals(2.0, (Double) server.getAttribute(new ObjectName("com.simple.sftpfetch:type=Freshness"), "MaxSeconds"), 0);
+        metrics.unregister(server);
+        assertEquals(0, server.queryNames(new ObjectName("com.simple.sftpfetch:*"), null).size());
+    }
+
+    @Test
+    public void shouldSaveToAFile() throws Exception {
+        File file = File.createTempFile("metrics", ".prom");
+        file.deleteOnExit();
+        metrics.completed(Stage.PUBLISH, null, "a", 1000, 1);
+
+        metrics.save(file);
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            assertEquals("# HELP sftp_fetch_stage_seconds Time taken by each stage of a run", reader.readLine());
+        } finally {
+            reader.close();
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void shouldServeTheMetricsOverHttp() throws Exception {
+        MetricsServer server = new MetricsServer(metrics, 0);
+        server.start();
+        try {
+            metrics.completed(Stage.STREAM, null, "a", 1000, 1);
+            InputStream in = new URL("http://localhost:" + server.getPort() + "/metrics").openStream();
+            try {
+                String text = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+                assertEquals(prometheus(), text);
+            } finally {
+                in.close();
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private String prometheus() {
+        StringWriter writer = new StringWriter();
+        metrics.write(writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package com.simple.sftpfetch.metrics;
+
+import com.simple.sftpfetch.StageListener.Outcome;
+import com.simple.sftpfetch.StageListener.Stage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceLogTest {
+    private File folder;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = File.createTempFile("trace", "");
+        folder.delete();
+        folder.mkdir();
+        file = new File(folder, "trace.json");
+    }
+
+    @After
+    public void tearDown() {
+        for (File child : folder.listFiles()) {
+            child.delete();
+        }
+        folder.delete();
+    }
+
+    @Test
+    public void shouldWriteAnEventPerFileWithASpanPerStage() throws Exception {
+        TraceLog trace = new TraceLog(file);
+        trace.completed(Stage.LIST, "vendor", null, 5000000, 2);
+        trace.completed(Stage.CHECK, "vendor", null, 1000000, 2);
+        trace.completed(Stage.DOWNLOAD, "vendor", "a.csv", 2000000000, 4000000);
+        trace.completed(Stage.UPLOAD, "vendor", "a.csv", 1000000000, 4000000);
+        trace.retried(Stage.PUBLISH, "vendor", "a.csv");
+        trace.completed(Stage.PUBLISH, "vendor", "a.csv", 1000000, 4000000);
+        trace.published("vendor", "a.csv", 61000);
+        trace.finished("vendor", "a.csv", Outcome.PROCESSED, null);
+        trace.close();
+
+        List<String> lines = lines(file);
+        assertEquals(1, lines.size());
+        String event = lines.get(0);
+        assertTrue(event, event.startsWith("{\"source\":\"vendor\",\"file\":\"a.csv\",\"outcome\":\"processed\","));
+        assertTrue(event, event.contains("\"bytes\":4000000,"));
+        assertTrue(event, event.contains("\"retries\":1,"));
+        assertTrue(event, event.contains("\"lagMillis\":61000,"));
+        assertTrue(event, event.contains("{\"stage\":\"list\","));
+        assertTrue(event, event.contains("\"millis\":5.000,\"files\":2}"));
+        assertTrue(event, event.contains("{\"stage\":\"check\","));
+        assertTrue(event, event.contains("\"millis\":2000.000,\"bytes\":4000000,\"mbPerSecond\":2.000}"));
+        assertTrue(event, event.indexOf("\"download\"") < event.indexOf("\"upload\""));
+        assertFalse(event, event.contains("\"error\""));
+    }
+
+    @Test
+    public void failuresShouldBeRecordedWithTheirCause() throws Exception {
+        TraceLog trace = new TraceLog(file);
+        trace.completed(Stage.DOWNLOAD, null, "b.csv", 1000, 10);
+        trace.finished(null, "b.csv", Outcome.FAILED, new IOException("said \"no\"\n"));
+        trace.finished(null, "c.csv", Outcome.PREVIOUSLY_SEEN, null);
+        trace.close();
+
+        List<String> lines = lines(file);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith("{\"source\":null,\"file\":\"b.csv\",\"outcome\":\"failed\","));
+        assertTrue(lines.get(0), lines.get(0).contains("\"error\":\"java.io.IOException: said \\\"no\\\"\\n\""));
+        assertTrue(lines.get(1), lines.get(1).contains("\"outcome\":\"previously_seen\""));
+        assertTrue(lines.get(1), lines.get(1).endsWith("\"spans\":[]}"));
+    }
+
+    @Test
+    public void shouldRollOverOnceTheFileIsFull() throws Exception {
+        TraceLog trace = new TraceLog(file, 1, 2);
+        for (int i = 0; i < 4; i++) {
+            trace.finished(null, "file" + i, Outcome.PROCESSED, null);
+        }
+        trace.close();
+
+        assertTrue(lines(file).get(0).contains("file3"));
+        assertTrue(lines(new File(file.getPath() + ".1")).get(0).contains("file2"));
+        assertTrue(lines(new File(file.getPath() + ".2")).get(0).contains("file1"));
+        assertFalse(new File(file.getPath() + ".3").exists());
+    }
+
+    @Test
+    public void theMaximumSizeShouldBeCountedInBytes() throws Exception {
+        TraceLog ascii = new TraceLog(file);
+        ascii.finished(null, repeat('a', 100), Outcome.PROCESSED, null);
+        ascii.close();
+        long length = file.length();
+        file.delete();
+
+        TraceLog trace = new TraceLog(file, length + 50, 2);
+        for (int i = 0; i < 2; i++) {
+            trace.finished(null, repeat('\u00e9', 99) + i, Outcome.PROCESSED, null);
+        }
+        trace.close();
+
+        assertEquals(1, lines(file).size());
+        assertEquals(1, lines(new File(file.getPath() + ".1")).size());
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            repeated.append(c);
+        }
+        return repeated.toString();
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
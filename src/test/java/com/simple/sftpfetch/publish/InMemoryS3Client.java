@@ -0,0 +1,212 @@
+package com.simple.sftpfetch.publish;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import org.bouncycastle.util.io.Streams;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for S3 holding a single bucket in memory
+ */
+public class InMemoryS3Client extends AmazonS3Client {
+    final ConcurrentSkipListMap<String, byte[]> objects = new ConcurrentSkipListMap<String, byte[]>();
+    final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+    final Set<String> aborted = Collections.synchronizedSet(new HashSet<String>());
+    final Set<Integer> partsFailingOnce = Collections.synchronizedSet(new HashSet<Integer>());
+    final Set<Integer> partsAlwaysFailing = Collections.synchronizedSet(new HashSet<Integer>());
+    final AtomicInteger partAttempts = new AtomicInteger();
+    final AtomicInteger activeParts = new AtomicInteger();
+    final AtomicInteger maxActiveParts = new AtomicInteger();
+    final AtomicInteger headRequests = new AtomicInteger();
+    final AtomicInteger listRequests = new AtomicInteger();
+    volatile long partDelay;
+    private final AtomicInteger uploadIds = new AtomicInteger();
+
+    public InMemoryS3Client() {
+        super(new BasicAWSCredentials("access", "secret"));
+    }
+
+    @Override
+    public boolean doesBucketExist(String bucketName) {
+        return true;
+    }
+
+    @Override
+    public String getBucketLocation(String bucketName) {
+        return "US";
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        headRequests.incrementAndGet();
+        byte[] content = objects.get(key);
+        if (content == null) {
+            AmazonServiceException notFound = new AmazonServiceException("Not Found");
+            notFound.setStatusCode(404);
+            throw notFound;
+        }
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        return metadata;
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, File file) {
+        try {
+            return store(key, Streams.readAll(new FileInputStream(file)));
+        } catch (IOException e) {
+            throw new AmazonClientException("Unable to read " + file, e);
+        }
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+        try {
+            return store(key, Streams.readAll(input));
+        } catch (IOException e) {
+            throw new AmazonClientException("Unable to read upload", e);
+        }
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        String uploadId = "upload-" + uploadIds.incrementAndGet();
+        uploads.put(uploadId, new ConcurrentHashMap<Integer, byte[]>());
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        partAttempts.incrementAndGet();
+        int active = activeParts.incrementAndGet();
+        try {
+            synchronized (maxActiveParts) {
+                maxActiveParts.set(Math.max(active, maxActiveParts.get()));
+            }
+            if (partDelay > 0) {
+                Thread.sleep(partDelay);
+            }
+            int partNumber = request.getPartNumber();
+            if (partsAlwaysFailing.contains(partNumber) || partsFailingOnce.remove(partNumber)) {
+                throw new AmazonClientException("Connection reset uploading part " + partNumber);
+            }
+            byte[] content = readPart(request);
+            uploads.get(request.getUploadId()).put(partNumber, content);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(partNumber);
+            result.setETag(eTagFor(content));
+            return result;
+        } catch (InterruptedException e) {
+            throw new AmazonClientException("Interrupted", e);
+        } catch (IOException e) {
+            throw new AmazonClientException("Unable to read part", e);
+        } finally {
+            activeParts.decrementAndGet();
+        }
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        Map<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int previous = 0;
+        for (PartETag partETag : request.getPartETags()) {
+            if (partETag.getPartNumber() <= previous) {
+                AmazonServiceException invalidOrder = new AmazonServiceException("InvalidPartOrder");
+                invalidOrder.setStatusCode(400);
+                throw invalidOrder;
+            }
+            previous = partETag.getPartNumber();
+            byte[] part = parts.get(partETag.getPartNumber());
+            content.write(part, 0, part.length);
+        }
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setETag(store(request.getKey(), content.toByteArray()).getETag());
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        uploads.remove(request.getUploadId());
+        aborted.add(request.getUploadId());
+    }
+
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest request) {
+        listRequests.incrementAndGet();
+        int maxKeys = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        SortedMap<String, byte[]> candidates = request.getMarker() == null ? objects : objects.tailMap(request.getMarker() + "\0");
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setMaxKeys(maxKeys);
+        for (Map.Entry<String, byte[]> entry : candidates.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                continue;
+            }
+            if (listing.getObjectSummaries().size() == maxKeys) {
+                listing.setTruncated(true);
+                break;
+            }
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(entry.getKey());
+            summary.setSize(entry.getValue().length);
+            summary.setETag(eTagFor(entry.getValue()));
+            listing.getObjectSummaries().add(summary);
+            listing.setNextMarker(entry.getKey());
+        }
+        return listing;
+    }
+
+    @Override
+    public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+        ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(previous.getBucketName())
+                .withPrefix(previous.getPrefix())
+                .withMarker(previous.getNextMarker())
+                .withMaxKeys(previous.getMaxKeys());
+        return listObjects(request);
+    }
+
+    byte[] get(String key) {
+        return objects.get(key);
+    }
+
+    private PutObjectResult store(String key, byte[] content) {
+        objects.put(key, content);
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(eTagFor(content));
+        return result;
+    }
+
+    private static byte[] readPart(UploadPartRequest request) throws IOException {
+        byte[] content = new byte[(int) request.getPartSize()];
+        if (request.getFile() != null) {
+            RandomAccessFile file = new RandomAccessFile(request.getFile(), "r");
+            try {
+                file.seek(request.getFileOffset());
+                file.readFully(content);
+            } finally {
+                file.close();
+            }
+        } else {
+            new DataInputStream(request.getInputStream()).readFully(content);
+        }
+        return content;
+    }
+
+    private static String eTagFor(byte[] content) {
+        return Integer.toHexString(Arrays.hashCode(content)) + "-" + content.length;
+    }
+}
@@ -0,0 +1,96 @@
+package com.simple.sftpfetch.publish;
+
+import com.amazonaws.AmazonClientException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MultipartUploaderTest {
+    public static final String BUCKET = "bucket";
+    public static final String KEY = "reconciliation.csv";
+    public static final int PART_SIZE = 1000;
+    public static final int THREADS = 4;
+
+    private InMemoryS3Client client = new InMemoryS3Client();
+    private MultipartUploader uploader = new MultipartUploader(client, new S3UploadSettings(0, PART_SIZE, THREADS, 2, 1));
+    private byte[] content;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[PART_SIZE * 9 + 123];
+        new Random(42).nextBytes(content);
+        file = File.createTempFile("multipart", ".upload");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+
+    @Test
+    public void shouldReassembleThePartsInOrder() {
+        String eTag = uploader.upload(BUCKET, KEY, file);
+
+        assertArrayEquals(content, client.get(KEY));
+        assertNotNull(eTag);
+        assertEquals(10, client.partAttempts.get());
+    }
+
+    @Test
+    public void shouldUploadPartsConcurrentlyUpToTheThreadLimit() {
+        client.partDelay = 50;
+
+        long start = System.currentTimeMillis();
+        uploader.upload(BUCKET, KEY, file);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(THREADS, client.maxActiveParts.get());
+        assertTrue("10 parts of 50ms on 4 threads took " + elapsed + "ms", elapsed < 10 * 50);
+        assertArrayEquals(content, client.get(KEY));
+    }
+
+    @Test
+    public void shouldRetryFailedPartsIndividually() {
+        client.partsFailingOnce.add(3);
+        client.partsFailingOnce.add(7);
+
+        uploader.upload(BUCKET, KEY, file);
+
+        assertEquals(12, client.partAttempts.get());
+        assertArrayEquals(content, client.get(KEY));
+    }
+
+    @Test
+    public void shouldAbortTheUploadWhenAPartKeepsFailing() {
+        client.partsAlwaysFailing.add(5);
+
+        try {
+            uploader.upload(BUCKET, KEY, file);
+            fail("The upload should have failed");
+        } catch (AmazonClientException expected) {
+        }
+
+        assertEquals(1, client.aborted.size());
+        assertTrue("Parts were left behind", client.uploads.isEmpty());
+        assertNull(client.get(KEY));
+    }
+
+    @Test
+    public void largeFilesShouldUseLargerPartsToStayWithinThePartLimit() {
+        S3UploadSettings settings = new S3UploadSettings();
+
+        assertEquals(S3UploadSettings.DEFAULT_PART_SIZE, settings.getPartSize(S3UploadSettings.DEFAULT_PART_SIZE * 10000L));
+        assertEquals(S3UploadSettings.DEFAULT_PART_SIZE + 1, settings.getPartSize(S3UploadSettings.DEFAULT_PART_SIZE * 10000L + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void partsSmallerThanS3AllowsShouldBeRejected() {
+        new S3UploadSettings(0, S3UploadSettings.MIN_PART_SIZE - 1, THREADS, 2);
+    }
+}
@@ -1,14 +1,28 @@
 package com.simple.sftpfetch.publish;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static java.util.Arrays.asList;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 
 public class RabbitClientTest {
@@ -20,6 +34,9 @@ public class RabbitClientTest {
     public static final String EXCHANGE = "foobar";
     public static final String ROUTING_KEY = "route.this";
     private RabbitConnectionInfo connectionInfo = mock(RabbitConnectionInfo.class);
+    private static final Boolean ACK = Boolean.TRUE;
+    private static final Boolean NACK = Boolean.FALSE;
+    private final AtomicLong nextSeqNo = new AtomicLong(1);
 
     @Before
     public void setUp() throws Exception {
@@ -56,4 +73,205 @@ public class RabbitClientTest {
         client.publishURL(ROUTING_KEY, url);
         verify(channel).basicPublish(EXCHANGE, ROUTING_KEY, client.amqpProperties, url.toString().getBytes("UTF8"));
     }
+
+    @Test
+    public void withoutConfirmsPublishingShouldBeReportedImmediately() throws Exception {
+        RabbitClient client = new RabbitClient(factory, connectionInfo);
+        RecordingListener listener = new RecordingListener();
+
+        client.publishURL(ROUTING_KEY, new URL("http://google.com"), listener);
+
+        assertEquals(1, listener.published.size());
+        verify(channel, never()).confirmSelect();
+    }
+
+    @Test
+    public void shouldPipelineMessagesUntilTheWindowIsFull() throws Exception {
+        enableConfirms(4, 60000, 3);
+        RabbitClient client = new RabbitClient(factory, connectionInfo);
+        ConfirmListener confirms = confirmListener();
+        RecordingListener listener = new RecordingListener();
+
+        for (int i = 0; i < 4; i++) {
+            client.publishURL(ROUTING_KEY, url(i), listener);
+        }
+
+        verify(channel).confirmSelect();
+        assertEquals(4, client.getOutstanding());
+        assertEquals(0, listener.published.size());
+
+        confirms.handleAck(2, true);
+        client.publishURL(ROUTING_KEY, url(4), listener);
+        assertEquals(2, listener.published.size());
+        assertEquals(3, client.getOutstanding());
+
+        confirms.handleAck(3, false);
+        confirms.handleAck(5, true);
+        client.awaitConfirms();
+        assertEquals(5, listener.published.size());
+        assertEquals(0, client.getOutstanding());
+    }
+
+    @Test
+    public void nackedMessagesShouldBeRepublished() throws Exception {
+        enableConfirms(4, 60000, 3);
+        RabbitClient client = new RabbitClient(factory, connectionInfo);
+        RecordingListener listener = new RecordingListener();
+        URL url = url(0);
+        brokerResponds(NACK, ACK);
+
+        client.publishURL(ROUTING_KEY, url, listener);
+        client.awaitConfirms();
+
+        verify(channel, times(2)).basicPublish(EXCHANGE, ROUTING_KEY, client.amqpProperties, url.toString().getBytes("UTF8"));
+        assertEquals(1, listener.published.size());
+        assertEquals(asList(url), listener.republished);
+    }
+
+    @Test
+    public void unconfirmedMessagesShouldBeRepublishedAfterTheTimeout() throws Exception {
+        enableConfirms(4, 50, 3);
+        RabbitClient client = new RabbitClient(factory, connectionInfo);
+        RecordingListener listener = new RecordingListener();
+        URL url = url(0);
+        brokerResponds(null, ACK);
+
+        client.publishURL(ROUTING_KEY, url, listener);
+        client.awaitConfirms();
+
+        verify(channel, times(2)).basicPublish(EXCHANGE, ROUTING_KEY, client.amqpProperties, url.toString().getBytes("UTF8"));
+        assertEquals(1, listener.published.size());
+    }
+
+    @Test
+    public void messagesShouldFailOnceTheRetriesAreExhausted() throws Exception {
+        enableConfirms(4, 60000, 2);
+        RabbitClient client = new RabbitClient(factory, connectionInfo);
+        RecordingListener listener = new RecordingListener();
+        brokerResponds(NACK, NACK, NACK);
+
+        client.publishURL(ROUTING_KEY, url(0), listener);
+        try {
+            client.awaitConfirms();
+            fail("Expected the unconfirmed message to be reported");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("1 message"));
+        }
+        verify(channel, times(3)).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+        assertEquals(asList(url(0)), listener.failed);
+        assertEquals(0, listener.published.size());
+    }
+
+    @Test
+    public void reconnectShouldOpenANewConnectionOnceTheOldOneIsClosed() throws Exception {
+        RabbitClient client = new RabbitClient(factory, connectionInfo);
+        Connection replacement = mock(Connection.class);
+        Channel newChannel = mock(Channel.class);
+        when(factory.newConnection()).thenReturn(replacement);
+        when(replacement.createChannel()).thenReturn(newChannel);
+
+        client.reconnect();
+        URL url = new URL("http://google.com");
+        client.publishURL(ROUTING_KEY, url);
+
+        verify(newChannel).exchangeDeclare(EXCHANGE, RabbitClient.EXCHANGE_TYPE, true);
+        verify(newChannel).basicPublish(EXCHANGE, ROUTING_KEY, client.amqpProperties, url.toString().getBytes("UTF8"));
+    }
+
+    @Test
+    public void reconnectShouldLeaveAnOpenConnectionAlone() throws Exception {
+        when(connection.isOpen()).thenReturn(true);
+        when(channel.isOpen()).thenReturn(true);
+        RabbitClient client = new RabbitClient(factory, connectionInfo);
+
+        client.reconnect();
+
+        verify(factory, times(1)).newConnection();
+        verify(connection, times(1)).createChannel();
+    }
+
+    @Test
+    public void unconfirmedMessagesShouldBeRepublishedAfterReconnecting() throws Exception {
+        enableConfirms(4, 60000, 3);
+        when(connection.isOpen()).thenReturn(true);
+        RabbitClient client = new RabbitClient(factory, connectionInfo);
+        RecordingListener listener = new RecordingListener();
+        URL url = url(0);
+        client.publishURL(ROUTING_KEY, url, listener);
+
+        Channel newChannel = mock(Channel.class);
+        when(connection.createChannel()).thenReturn(newChannel);
+        when(newChannel.getNextPublishSeqNo()).thenReturn(1L);
+        client.reconnect();
+        client.publishURL(ROUTING_KEY, url(1), listener);
+
+        verify(newChannel).confirmSelect();
+        verify(newChannel).basicPublish(EXCHANGE, ROUTING_KEY, client.amqpProperties, url.toString().getBytes("UTF8"));
+        assertEquals(0, listener.failed.size());
+    }
+
+    private void enableConfirms(int window, long timeout, int retries) throws IOException {
+        when(connectionInfo.isConfirms()).thenReturn(true);
+        when(connectionInfo.getConfirmWindow()).thenReturn(window);
+        when(connectionInfo.getConfirmTimeout()).thenReturn(timeout);
+        when(connectionInfo.getConfirmRetries()).thenReturn(retries);
+        when(channel.getNextPublishSeqNo()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                return nextSeqNo.get();
+            }
+        });
+        brokerResponds();
+    }
+
+    /**
+     * Make each publish take the next delivery tag and have the broker answer it straight away, with an ack, a nack
+     * or not at all (null)
+     */
+    private void brokerResponds(final Boolean... responses) throws IOException {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                long tag = nextSeqNo.getAndIncrement();
+                Boolean response = tag <= responses.length ? responses[(int) tag - 1] : null;
+                if (response == ACK) {
+                    confirmListener().handleAck(tag, false);
+                } else if (response == NACK) {
+                    confirmListener().handleNack(tag, false);
+                }
+                return null;
+            }
+        }).when(channel).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+    }
+
+    private ConfirmListener confirmListener() {
+        ArgumentCaptor<ConfirmListener> captor = ArgumentCaptor.forClass(ConfirmListener.class);
+        verify(channel).addConfirmListener(captor.capture());
+        return captor.getValue();
+    }
+
+    private static URL url(int i) throws Exception {
+        return new URL("http://example.com/" + i);
+    }
+
+    private static class RecordingListener implements PublishListener {
+        final List<URL> published = new ArrayList<URL>();
+        final List<URL> republished = new ArrayList<URL>();
+        final List<URL> failed = new ArrayList<URL>();
+
+        @Override
+        public void published(URL url) {
+            published.add(url);
+        }
+
+        @Override
+        public void republished(URL url) {
+            republished.add(url);
+        }
+
+        @Override
+        public void failed(URL url) {
+            failed.add(url);
+        }
+    }
 }
@@ -2,14 +2,23 @@ package com.simple.sftpfetch.publish;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.PutObjectResult;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -47,10 +56,98 @@ public class S3Test {
         S3 s3 = new S3(client, BUCKET);
         String key = "the.key";
         File toUpload = new File("/foo/bar/baz");
+        when(client.putObject(BUCKET, key, toUpload)).thenReturn(new PutObjectResult());
         s3.upload(key, toUpload);
         verify(client).putObject(BUCKET, key, toUpload);
     }
 
+    @Test
+    public void largeFilesShouldBeUploadedInParts() throws Exception {
+        InMemoryS3Client inMemory = new InMemoryS3Client();
+        S3 s3 = new S3(inMemory, BUCKET, new S3UploadSettings(100, 40, 2, 0, 1));
+        File large = File.createTempFile("large", ".upload");
+        large.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(large);
+        out.write(new byte[100]);
+        out.close();
+
+        s3.upload("large", large);
+
+        assertEquals(3, inMemory.partAttempts.get());
+        assertEquals(100, inMemory.get("large").length);
+    }
+
+    @Test
+    public void smallFilesShouldBeUploadedWithASinglePut() throws Exception {
+        InMemoryS3Client inMemory = new InMemoryS3Client();
+        S3 s3 = new S3(inMemory, BUCKET, new S3UploadSettings(100, 40, 2, 0, 1));
+        File small = File.createTempFile("small", ".upload");
+        small.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(small);
+        out.write(new byte[99]);
+        out.close();
+
+        s3.upload("small", small);
+
+        assertEquals(0, inMemory.partAttempts.get());
+        assertEquals(99, inMemory.get("small").length);
+    }
+
+    @Test
+    public void existingKeysShouldListTheBucketWhenThereAreManyCandidates() {
+        InMemoryS3Client inMemory = bucketWithKeys("file-", 50);
+        S3 s3 = new S3(inMemory, BUCKET);
+
+        Set<String> existing = s3.existingKeys(asList("file-00010", "file-00020", "file-00049", "file-00050", "file-00051"));
+
+        assertEquals(new HashSet<String>(asList("file-00010", "file-00020", "file-00049")), existing);
+        assertEquals(1, inMemory.listRequests.get());
+        assertEquals(0, inMemory.headRequests.get());
+    }
+
+    @Test
+    public void existingKeysShouldFallBackToHeadRequestsInLargeBuckets() {
+        InMemoryS3Client inMemory = bucketWithKeys("file-", 5000);
+        S3 s3 = new S3(inMemory, BUCKET);
+
+        List<String> candidates = asList("file-04998", "file-04999", "file-05000");
+        Set<String> existing = s3.existingKeys(candidates);
+
+        assertEquals(new HashSet<String>(asList("file-04998", "file-04999")), existing);
+        int requests = inMemory.listRequests.get() + inMemory.headRequests.get();
+        assertTrue("Made " + requests + " requests for 3 candidates", requests <= 2 * candidates.size());
+    }
+
+    @Test
+    public void existingKeysShouldOnlyListTheCandidatesCommonPrefix() {
+        InMemoryS3Client inMemory = bucketWithKeys("other/", 5000);
+        inMemory.putObject(BUCKET, "statements/2012-06-01.csv", new ByteArrayInputStream(new byte[1]), null);
+        S3 s3 = new S3(inMemory, BUCKET);
+
+        Set<String> existing = s3.existingKeys(asList("statements/2012-06-01.csv", "statements/2012-06-02.csv"));
+
+        assertEquals(new HashSet<String>(asList("statements/2012-06-01.csv")), existing);
+        assertEquals(1, inMemory.listRequests.get());
+    }
+
+    @Test
+    public void existingKeysShouldUseAHeadRequestForASingleCandidate() {
+        InMemoryS3Client inMemory = bucketWithKeys("file-", 10);
+        S3 s3 = new S3(inMemory, BUCKET);
+
+        assertEquals(new HashSet<String>(asList("file-00001")), s3.existingKeys(asList("file-00001")));
+        assertEquals(0, inMemory.listRequests.get());
+        assertEquals(1, inMemory.headRequests.get());
+    }
+
+    private InMemoryS3Client bucketWithKeys(String prefix, int count) {
+        InMemoryS3Client inMemory = new InMemoryS3Client();
+        for (int i = 0; i < count; i++) {
+            inMemory.putObject(BUCKET, String.format("%s%05d", prefix, i), new ByteArrayInputStream(new byte[1]), null);
+        }
+        return inMemory;
+    }
+
     @Test
     public void shouldConstructCorrectUrlForUSStandard() throws Exception {
         when(client.getBucketLocation(BUCKET)).thenReturn("US");
@@ -0,0 +1,123 @@
+package com.simple.sftpfetch.publish;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class S3UploadStreamTest {
+    public static final String BUCKET = "bucket";
+    public static final String KEY = "the.key";
+    public static final int PART_SIZE = 10;
+
+    private AmazonS3Client client = mock(AmazonS3Client.class);
+    private S3UploadStream stream = new S3UploadStream(client, BUCKET, KEY, PART_SIZE);
+
+    @Before
+    public void setUp() {
+        PutObjectResult putResult = new PutObjectResult();
+        putResult.setETag("single");
+        when(client.putObject(eq(BUCKET), eq(KEY), any(InputStream.class), any(ObjectMetadata.class))).thenReturn(putResult);
+
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload-id");
+        when(client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+
+        UploadPartResult partResult = new UploadPartResult();
+        partResult.setETag("part");
+        when(client.uploadPart(any(UploadPartRequest.class))).thenReturn(partResult);
+
+        CompleteMultipartUploadResult completeResult = new CompleteMultipartUploadResult();
+        completeResult.setETag("multipart");
+        when(client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completeResult);
+    }
+
+    @Test
+    public void smallContentShouldBeUploadedWithASinglePut() throws Exception {
+        stream.write("hello".getBytes("UTF8"));
+        stream.close();
+
+        ArgumentCaptor<ObjectMetadata> metadata = ArgumentCaptor.forClass(ObjectMetadata.class);
+        verify(client).putObject(eq(BUCKET), eq(KEY), any(InputStream.class), metadata.capture());
+        assertEquals(5, metadata.getValue().getContentLength());
+        assertEquals("single", stream.getETag());
+        verify(client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void largeContentShouldBeUploadedOnePartAtATime() throws Exception {
+        stream.write(new byte[25]);
+        stream.close();
+
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(client, times(3)).uploadPart(parts.capture());
+        List<UploadPartRequest> requests = parts.getAllValues();
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(i + 1, requests.get(i).getPartNumber());
+            assertEquals("upload-id", requests.get(i).getUploadId());
+        }
+        assertEquals(10, requests.get(0).getPartSize());
+        assertEquals(5, requests.get(2).getPartSize());
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(client).completeMultipartUpload(complete.capture());
+        assertEquals(3, complete.getValue().getPartETags().size());
+        assertEquals("multipart", stream.getETag());
+    }
+
+    @Test
+    public void thePartSizeShouldGrowToStayWithinThePartLimit() throws Exception {
+        stream.write(new byte[PART_SIZE * S3UploadStream.PARTS_PER_SIZE + 2 * PART_SIZE]);
+        stream.close();
+
+        ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(client, times(S3UploadStream.PARTS_PER_SIZE + 1)).uploadPart(parts.capture());
+        List<UploadPartRequest> requests = parts.getAllValues();
+        assertEquals(PART_SIZE, requests.get(S3UploadStream.PARTS_PER_SIZE - 1).getPartSize());
+        assertEquals(2 * PART_SIZE, requests.get(S3UploadStream.PARTS_PER_SIZE).getPartSize());
+    }
+
+    @Test
+    public void contentOfExactlyOnePartShouldUseASinglePut() throws Exception {
+        for (int i = 0; i < PART_SIZE; i++) {
+            stream.write(i);
+        }
+        stream.close();
+
+        verify(client).putObject(eq(BUCKET), eq(KEY), any(InputStream.class), any(ObjectMetadata.class));
+        verify(client, never()).uploadPart(any(UploadPartRequest.class));
+    }
+
+    @Test
+    public void abortShouldRemoveUploadedParts() throws Exception {
+        stream.write(new byte[15]);
+        stream.abort();
+
+        verify(client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void abortBeforeAnyPartShouldNotTouchS3() throws Exception {
+        stream.write(new byte[5]);
+        stream.abort();
+
+        verifyZeroInteractions(client);
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotAcceptWritesOnceClosed() throws Exception {
+        stream.close();
+        stream.write(1);
+    }
+}
@@ -0,0 +1,86 @@
+package com.simple.sftpfetch.sftp;
+
+import com.jcraft.jsch.JSch;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.common.kex.KeyExchangeFactory;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.ServerBuilder;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.SubsystemFactory;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An SFTP server serving a temporary folder on localhost, for tests that need a real server
+ */
+public class EmbeddedSftpServer {
+    public static final String USERNAME = "username";
+    public static final String PASSWORD = "password";
+
+    private final SshServer server;
+    private final SftpSubsystemFactory sftp;
+    private final File root;
+    private String previousHostKeyChecking;
+
+    public EmbeddedSftpServer(File root) {
+        this.root = root;
+        server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        SimpleGeneratorHostKeyProvider hostKey = new SimpleGeneratorHostKeyProvider(new File(root, ".hostkey").toPath());
+        hostKey.setAlgorithm("RSA");
+        server.setKeyPairProvider(hostKey);
+        // the bundled JSch only speaks the older key exchanges, which sshd has deprecated but still serves
+        @SuppressWarnings("deprecation")
+        List<KeyExchangeFactory> kex = NamedFactory.setUpTransformedFactories(false,
+                Arrays.asList(BuiltinDHFactories.dhgex, BuiltinDHFactories.dhg1), ServerBuilder.DH2KEX);
+        server.setKeyExchangeFactories(kex);
+        server.setPasswordAuthenticator(new PasswordAuthenticator() {
+            @Override
+            public boolean authenticate(String username, String password, ServerSession session) {
+                return USERNAME.equals(username) && PASSWORD.equals(password);
+            }
+        });
+        sftp = new SftpSubsystemFactory();
+        server.setSubsystemFactories(Collections.<SubsystemFactory>singletonList(sftp));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root.toPath()));
+    }
+
+    public void start() throws IOException {
+        previousHostKeyChecking = JSch.getConfig("StrictHostKeyChecking");
+        JSch.setConfig("StrictHostKeyChecking", "no");
+        server.start();
+    }
+
+    public void stop() throws IOException {
+        server.stop(true);
+        JSch.setConfig("StrictHostKeyChecking", previousHostKeyChecking);
+    }
+
+    public void addListener(SftpEventListener listener) {
+        sftp.addSftpEventListener(listener);
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public SftpConnectionInfo connectionInfo(String folder) {
+        return connectionInfo(folder, SftpConnectionInfo.DEFAULT_MAX_CHANNELS);
+    }
+
+    public SftpConnectionInfo connectionInfo(String folder, int maxChannels) {
+        return new SftpConnectionInfo(USERNAME, PASSWORD, folder, "127.0.0.1", server.getPort(), 5000,
+                maxChannels, SftpConnectionInfo.DEFAULT_CHANNELS_PER_SESSION, SftpConnectionInfo.DEFAULT_CHANNEL_IDLE_TIMEOUT);
+    }
+}
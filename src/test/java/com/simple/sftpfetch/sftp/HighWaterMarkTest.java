@@ -0,0 +1,47 @@
+package com.simple.sftpfetch.sftp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class HighWaterMarkTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("watermark", ".properties");
+        file.delete();
+        file.deleteOnExit();
+    }
+
+    @Test
+    public void anUnknownFolderShouldHaveNoMark() throws Exception {
+        assertEquals(0, new HighWaterMark(file).get("OUT"));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void marksShouldBeKeptPerFolderAndSurviveReopening() throws Exception {
+        HighWaterMark marks = new HighWaterMark(file);
+        marks.advance("OUT", 1000);
+        marks.advance("IN", 2000);
+
+        HighWaterMark reopened = new HighWaterMark(file);
+        assertEquals(1000, reopened.get("OUT"));
+        assertEquals(2000, reopened.get("IN"));
+    }
+
+    @Test
+    public void marksShouldOnlyMoveForward() throws Exception {
+        HighWaterMark marks = new HighWaterMark(file);
+        marks.advance("OUT", 1000);
+        marks.advance("OUT", 500);
+
+        assertEquals(1000, marks.get("OUT"));
+        assertEquals(1000, new HighWaterMark(file).get("OUT"));
+    }
+}
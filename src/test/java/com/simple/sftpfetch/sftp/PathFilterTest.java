@@ -0,0 +1,68 @@
+package com.simple.sftpfetch.sftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathFilterTest {
+
+    @Test
+    public void aSingleStarShouldStayWithinAFolder() {
+        assertTrue(PathFilter.toPattern("*.csv").matcher("a.csv").matches());
+        assertFalse(PathFilter.toPattern("*.csv").matcher("2012/a.csv").matches());
+        assertTrue(PathFilter.toPattern("*/*/*/*.csv").matcher("2012/06/01/a.csv").matches());
+    }
+
+    @Test
+    public void aDoubleStarShouldCrossFolders() {
+        assertTrue(PathFilter.toPattern("**/*.csv").matcher("2012/06/01/a.csv").matches());
+        assertTrue(PathFilter.toPattern("**/*.csv").matcher("a.csv").matches());
+        assertTrue(PathFilter.toPattern("2012/**").matcher("2012/06/01/a.csv").matches());
+        assertFalse(PathFilter.toPattern("2012/**").matcher("2011/06/01/a.csv").matches());
+    }
+
+    @Test
+    public void aQuestionMarkShouldMatchOneCharacter() {
+        assertTrue(PathFilter.toPattern("20??/a.csv").matcher("2012/a.csv").matches());
+        assertFalse(PathFilter.toPattern("20??/a.csv").matcher("201/a.csv").matches());
+    }
+
+    @Test
+    public void otherCharactersShouldBeLiteral() {
+        assertTrue(PathFilter.toPattern("a+b.(1).csv").matcher("a+b.(1).csv").matches());
+        assertFalse(PathFilter.toPattern("a.csv").matcher("abcsv").matches());
+    }
+
+    @Test
+    public void filesShouldMatchAnIncludeAndNoExclude() {
+        PathFilter filter = PathFilter.parse("**/*.csv, **/*.txt", "**/tmp/**");
+
+        assertTrue(filter.acceptsFile("2012/a.csv"));
+        assertTrue(filter.acceptsFile("b.txt"));
+        assertFalse(filter.acceptsFile("2012/a.gpg"));
+        assertFalse(filter.acceptsFile("2012/tmp/a.csv"));
+    }
+
+    @Test
+    public void excludedFoldersShouldNotBeDescendedInto() {
+        PathFilter filter = PathFilter.parse(null, "archive, 2012/*/tmp");
+
+        assertFalse(filter.acceptsDirectory("archive"));
+        assertFalse(filter.acceptsDirectory("2012/06/tmp"));
+        assertTrue(filter.acceptsDirectory("2012/06"));
+        assertTrue(PathFilter.parse("**/*.csv", null).acceptsDirectory("anything"));
+    }
+
+    @Test
+    public void noGlobsShouldAcceptEverything() {
+        assertTrue(PathFilter.parse(null, "").isEmpty());
+        assertTrue(PathFilter.ACCEPT_ALL.acceptsFile("a/b/c"));
+    }
+
+    @Test
+    public void theGlobsShouldBeDescribedAsConfigured() {
+        assertEquals("include=*.pgp,reports/** exclude=archive", PathFilter.parse(" *.pgp, reports/**", "archive").toString());
+    }
+}
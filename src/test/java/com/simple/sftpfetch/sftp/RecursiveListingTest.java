@@ -0,0 +1,146 @@
+package com.simple.sftpfetch.sftp;
+
+import com.jcraft.jsch.JSch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class RecursiveListingTest {
+    public static final String FOLDER = "OUT";
+    public static final Pattern EVERYTHING = Pattern.compile(".*");
+    public static final long NOW = System.currentTimeMillis() / 1000;
+    public static final long LAST_WEEK = NOW - 7 * 24 * 3600;
+
+    private File root;
+    private EmbeddedSftpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("sftp-root", "");
+        root.delete();
+        file("top.csv", NOW);
+        file("2012/06/01/a.csv", NOW);
+        file("2012/06/01/b.txt", NOW);
+        file("2012/06/02/c.csv", NOW);
+        file("2012/07/01/d.csv", NOW);
+        file("2012/07/01/deeper/e.csv", NOW);
+        file("archive/old.csv", NOW);
+        server = new EmbeddedSftpServer(root);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void shouldListSubfoldersDownToTheDepthLimitWithRelativePaths() throws Exception {
+        SftpConnectionInfo info = server.connectionInfo(FOLDER);
+        info.setMaxDepth(3);
+
+        assertEquals(asList("2012/06/01/a.csv", "2012/06/01/b.txt", "2012/06/02/c.csv", "2012/07/01/d.csv",
+                "archive/old.csv", "top.csv"), list(info, 0));
+    }
+
+    @Test
+    public void shouldApplyIncludesAndExcludes() throws Exception {
+        SftpConnectionInfo info = server.connectionInfo(FOLDER);
+        info.setMaxDepth(4);
+        info.setPathFilter(PathFilter.parse("2012/**/*.csv", "archive, **/deeper"));
+
+        assertEquals(asList("2012/06/01/a.csv", "2012/06/02/c.csv", "2012/07/01/d.csv"), list(info, 0));
+    }
+
+    @Test
+    public void shouldSkipDeepestFoldersThatHaveNotChanged() throws Exception {
+        new File(root, FOLDER + "/2012/06/01").setLastModified(LAST_WEEK * 1000);
+        new File(root, FOLDER + "/2012/06/02").setLastModified(LAST_WEEK * 1000);
+        SftpConnectionInfo info = server.connectionInfo(FOLDER);
+        info.setMaxDepth(3);
+        info.setSkipUnchangedDirs(true);
+
+        assertEquals(asList("2012/07/01/d.csv", "archive/old.csv", "top.csv"), list(info, NOW - 3600));
+    }
+
+    @Test
+    public void shouldListFoldersConcurrentlyOverPooledChannels() throws Exception {
+        SftpConnectionInfo info = server.connectionInfo(FOLDER);
+        info.setMaxDepth(3);
+        info.setListThreads(3);
+        SftpClient client = new SftpClient(new JSch(), info);
+        try {
+            assertEquals(6, client.listFilesSince(0, EVERYTHING).size());
+            assertEquals(3, client.getPool().getOpenChannels());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void theVisitorShouldBeAbleToStopTheListing() throws Exception {
+        SftpConnectionInfo info = server.connectionInfo(FOLDER);
+        info.setMaxDepth(3);
+        SftpClient client = new SftpClient(new JSch(), info);
+        final List<RemoteFile> visited = new ArrayList<RemoteFile>();
+        try {
+            client.listFiles(0, EVERYTHING, new RemoteFileVisitor() {
+                @Override
+                public boolean visit(RemoteFile file) {
+                    visited.add(file);
+                    return visited.size() < 2;
+                }
+            });
+        } finally {
+            client.close();
+        }
+        assertEquals(2, visited.size());
+    }
+
+    @Test
+    public void relativePathsShouldBeDownloadable() throws Exception {
+        SftpConnectionInfo info = server.connectionInfo(FOLDER);
+        info.setMaxDepth(3);
+        SftpClient client = new SftpClient(new JSch(), info);
+        try {
+            File downloaded = client.downloadFile("2012/06/02/c.csv");
+            assertEquals("2012/06/02/c.csv".length(), downloaded.length());
+            downloaded.delete();
+        } finally {
+            client.close();
+        }
+    }
+
+    private List<String> list(SftpConnectionInfo info, long since) throws Exception {
+        SftpClient client = new SftpClient(new JSch(), info);
+        try {
+            List<String> names = new ArrayList<String>();
+            for (RemoteFile file : client.listFilesSince(since, EVERYTHING)) {
+                names.add(file.getName());
+            }
+            Collections.sort(names);
+            return names;
+        } finally {
+            client.close();
+        }
+    }
+
+    private void file(String path, long mtime) throws Exception {
+        File file = new File(new File(root, FOLDER), path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(path.getBytes("UTF8"));
+        out.close();
+        file.setLastModified(mtime * 1000);
+    }
+}
@@ -0,0 +1,162 @@
+package com.simple.sftpfetch.sftp;
+
+import com.jcraft.jsch.JSch;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResumableDownloadTest {
+    public static final String FOLDER = "OUT";
+    public static final String FILENAME = "large.file";
+    public static final int SIZE = 1024 * 1024;
+    public static final long KILL_AT = SIZE / 2;
+
+    private File root;
+    private File staging;
+    private EmbeddedSftpServer server;
+    private byte[] content = new byte[SIZE];
+    private RemoteFile remoteFile;
+    private final AtomicLong firstReadOffset = new AtomicLong(-1);
+    private volatile boolean killed;
+
+    @Before
+    public void setUp() throws Exception {
+        root = temporaryFolder("sftp-root");
+        staging = temporaryFolder("sftp-staging");
+        new Random(42).nextBytes(content);
+        File remote = new File(new File(root, FOLDER), FILENAME);
+        remote.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(remote);
+        out.write(content);
+        out.close();
+        remoteFile = new RemoteFile(FILENAME, SIZE, (int) (remote.lastModified() / 1000));
+
+        server = new EmbeddedSftpServer(root);
+        server.addListener(new SftpEventListener() {
+            @Override
+            public void reading(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen) throws IOException {
+                firstReadOffset.compareAndSet(-1, offset);
+                if (!killed && offset >= KILL_AT) {
+                    killed = true;
+                    session.close(true);
+                    throw new IOException("Connection dropped");
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void anInterruptedDownloadShouldBeResumedFromWhereItStopped() throws Exception {
+        try {
+            download();
+            fail("The transfer should have been interrupted");
+        } catch (Exception expected) {
+        }
+        File[] partials = staging.listFiles();
+        assertEquals(1, partials.length);
+        long kept = partials[0].length();
+        assertTrue("Kept " + kept + " bytes", kept > 0 && kept < SIZE);
+        assertTrue(partials[0].getName().endsWith(StagingArea.PARTIAL));
+
+        firstReadOffset.set(-1);
+        File downloaded = download();
+
+        assertEquals("The second attempt should start where the first stopped", kept, firstReadOffset.get());
+        assertArrayEquals(content, readFully(downloaded));
+        assertFalse(downloaded.getName().endsWith(StagingArea.PARTIAL));
+    }
+
+    @Test
+    public void aCompleteDownloadShouldNotBeFetchedAgain() throws Exception {
+        killed = true;
+        File first = download();
+        firstReadOffset.set(-1);
+        File second = download();
+
+        assertEquals(first, second);
+        assertEquals(-1, firstReadOffset.get());
+    }
+
+    @Test
+    public void aPartialDownloadOfAnotherVersionShouldBeDiscarded() throws Exception {
+        killed = true;
+        RemoteFile older = new RemoteFile(FILENAME, SIZE, remoteFile.getMTime() - 60);
+        File stale = new StagingArea(staging).partial(FOLDER + "/" + FILENAME, older);
+        FileOutputStream out = new FileOutputStream(stale);
+        out.write(new byte[1000]);
+        out.close();
+
+        File downloaded = download();
+
+        assertFalse(stale.exists());
+        assertEquals(0, firstReadOffset.get());
+        assertArrayEquals(content, readFully(downloaded));
+    }
+
+    @Test
+    public void aFileThatShrankShouldNotBePromoted() throws Exception {
+        killed = true;
+        RemoteFile larger = new RemoteFile(FILENAME, SIZE + 10, remoteFile.getMTime());
+        try {
+            download(larger);
+            fail("A short download should not be promoted");
+        } catch (IOException expected) {
+        }
+        assertTrue(staging.listFiles()[0].getName().endsWith(StagingArea.PARTIAL));
+    }
+
+    private File download() throws Exception {
+        return download(remoteFile);
+    }
+
+    private File download(RemoteFile file) throws Exception {
+        SftpConnectionInfo info = server.connectionInfo(FOLDER);
+        info.setStagingDir(staging);
+        SftpClient client = new SftpClient(new JSch(), info);
+        try {
+            return client.downloadFile(file);
+        } finally {
+            client.close();
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File temporaryFolder(String prefix) throws IOException {
+        File folder = File.createTempFile(prefix, "");
+        folder.delete();
+        folder.mkdirs();
+        return folder;
+    }
+}
@@ -0,0 +1,252 @@
+package com.simple.sftpfetch.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.SftpProgressMonitor;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SegmentedDownloadTest {
+    public static final String FOLDER = "OUT";
+    public static final String FILENAME = "large.file";
+    public static final int SIZE = 1024 * 1024 + 3;
+
+    private File root;
+    private EmbeddedSftpServer server;
+    private byte[] content = new byte[SIZE];
+    private RemoteFile remoteFile;
+    private final Set<String> handles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long failAt = -1;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("sftp-root", "");
+        root.delete();
+        new Random(7).nextBytes(content);
+        File remote = new File(new File(root, FOLDER), FILENAME);
+        remote.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(remote);
+        out.write(content);
+        out.close();
+        remoteFile = new RemoteFile(FILENAME, SIZE, (int) (remote.lastModified() / 1000));
+
+        server = new EmbeddedSftpServer(root);
+        server.addListener(new SftpEventListener() {
+            @Override
+            public void reading(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen) throws IOException {
+                handles.add(remoteHandle);
+                if (failAt >= 0 && offset >= failAt) {
+                    throw new IOException("Read failed");
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void largeFilesShouldBeDownloadedInSegmentsOverSeparateChannels() throws Exception {
+        final List<Long> segments = new ArrayList<Long>();
+        SftpClient.SegmentListener listener = new SftpClient.SegmentListener() {
+            @Override
+            public void downloaded(String filename, long nanos, long bytes) {
+                assertEquals(FILENAME, filename);
+                assertTrue(nanos > 0);
+                segments.add(bytes);
+            }
+        };
+
+        File downloaded = download(segmented(server.connectionInfo(FOLDER), 4), listener);
+
+        assertArrayEquals(content, readFully(downloaded));
+        assertEquals(4, handles.size());
+        assertEquals(4, segments.size());
+        assertEquals(SIZE, segments.get(0) + segments.get(1) + segments.get(2) + segments.get(3));
+    }
+
+    @Test
+    public void shouldUseFewerSegmentsWhenThePoolIsShort() throws Exception {
+        File downloaded = download(segmented(server.connectionInfo(FOLDER, 2), 4), null);
+
+        assertArrayEquals(content, readFully(downloaded));
+        assertEquals(2, handles.size());
+    }
+
+    @Test
+    public void smallFilesShouldBeDownloadedInOnePiece() throws Exception {
+        SftpConnectionInfo info = server.connectionInfo(FOLDER);
+        info.setSegmentedDownloads(SIZE + 1, 4);
+
+        File downloaded = download(info, null);
+
+        assertArrayEquals(content, readFully(downloaded));
+        assertEquals(1, handles.size());
+    }
+
+    @Test
+    public void segmentedDownloadsShouldBePromotedInTheStagingFolder() throws Exception {
+        File staging = File.createTempFile("sftp-staging", "");
+        staging.delete();
+        SftpConnectionInfo info = segmented(server.connectionInfo(FOLDER), 3);
+        info.setStagingDir(staging);
+
+        File downloaded = download(info, null);
+
+        assertEquals(staging, downloaded.getParentFile());
+        assertArrayEquals(content, readFully(downloaded));
+        assertEquals(1, staging.listFiles().length);
+    }
+
+    @Test
+    public void aFailedSegmentShouldFailTheDownloadAndLeaveNothingBehind() throws Exception {
+        File staging = File.createTempFile("sftp-staging", "");
+        staging.delete();
+        SftpConnectionInfo info = segmented(server.connectionInfo(FOLDER), 4);
+        info.setStagingDir(staging);
+        failAt = SIZE - 1000;
+
+        try {
+            download(info, null);
+            fail("The download should have failed");
+        } catch (Exception expected) {
+        }
+        assertEquals(0, staging.listFiles().length);
+        assertFalse(handles.isEmpty());
+    }
+
+    @Test
+    public void onlyTheSegmentThatFailedShouldGiveUpItsChannel() throws Exception {
+        ChannelSftp first = slowChannel();
+        ChannelSftp failing = mock(ChannelSftp.class);
+        when(failing.get(anyString(), any(SftpProgressMonitor.class), anyLong())).thenReturn(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Read failed");
+            }
+        });
+        ChannelSftp last = slowChannel();
+        SegmentedDownload download = new SegmentedDownload(FILENAME, 3000, asList(first, failing, last));
+
+        try {
+            download.download(temporaryFile());
+            fail("The download should have failed");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(asList(failing), download.getFailedChannels());
+    }
+
+    @Test
+    public void anErrorInASegmentShouldBeReportedAsTheCauseOfTheFailure() throws Exception {
+        ChannelSftp failing = mock(ChannelSftp.class);
+        final AssertionError error = new AssertionError("Broken");
+        when(failing.get(anyString(), any(SftpProgressMonitor.class), anyLong())).thenThrow(error);
+        SegmentedDownload download = new SegmentedDownload(FILENAME, 3000, asList(slowChannel(), failing));
+
+        try {
+            download.download(temporaryFile());
+            fail("The download should have failed");
+        } catch (IOException expected) {
+            assertSame(error, expected.getCause());
+        }
+
+        assertEquals(asList(failing), download.getFailedChannels());
+    }
+
+    /**
+     * @return a channel whose reads trickle in, so its segment is still going when another one fails
+     */
+    private static ChannelSftp slowChannel() throws Exception {
+        ChannelSftp channel = mock(ChannelSftp.class);
+        when(channel.get(anyString(), any(SftpProgressMonitor.class), anyLong())).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) {
+                return new InputStream() {
+                    @Override
+                    public int read() {
+                        return 0;
+                    }
+
+                    @Override
+                    public int read(byte[] bytes, int offset, int length) throws IOException {
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return 1;
+                    }
+                };
+            }
+        });
+        return channel;
+    }
+
+    private static File temporaryFile() throws IOException {
+        File file = File.createTempFile("segmented", ".download");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static SftpConnectionInfo segmented(SftpConnectionInfo info, int segments) {
+        info.setSegmentedDownloads(1024, segments);
+        return info;
+    }
+
+    private File download(SftpConnectionInfo info, SftpClient.SegmentListener listener) throws Exception {
+        SftpClient client = new SftpClient(new JSch(), info);
+        client.setSegmentListener(listener);
+        try {
+            return client.downloadFile(remoteFile);
+        } finally {
+            client.close();
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.simple.sftpfetch.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class SftpChannelPoolTest {
+
+    public static final String USERNAME = "username";
+    public static final String HOSTNAME = "host";
+    public static final int PORT = 22;
+    public static final int TIMEOUT = 500;
+
+    private JSch jSch = mock(JSch.class);
+    private Session session = connectedSession();
+    private Session otherSession = connectedSession();
+
+    @Before
+    public void setUp() throws JSchException {
+        when(jSch.getSession(eq(USERNAME), eq(HOSTNAME), eq(PORT))).thenReturn(session, otherSession);
+    }
+
+    @Test
+    public void shouldReuseReleasedChannels() throws Exception {
+        ChannelSftp channel = channelsOn(session);
+        SftpChannelPool pool = pool(4, 0, 60000);
+
+        pool.release(pool.borrow());
+        assertSame(channel, pool.borrow());
+
+        verify(session, times(1)).openChannel("sftp");
+        verify(jSch, times(1)).getSession(USERNAME, HOSTNAME, PORT);
+    }
+
+    @Test
+    public void shouldMultiplexChannelsOverOneSession() throws Exception {
+        channelsOn(session);
+        SftpChannelPool pool = pool(4, 0, 60000);
+
+        pool.borrow();
+        pool.borrow();
+        pool.borrow();
+
+        verify(session, times(3)).openChannel("sftp");
+        assertEquals(1, pool.getSessions());
+        assertEquals(3, pool.getOpenChannels());
+    }
+
+    @Test
+    public void shouldOpenAnotherSessionWhenThePerSessionLimitIsReached() throws Exception {
+        channelsOn(session);
+        channelsOn(otherSession);
+        SftpChannelPool pool = pool(4, 2, 60000);
+
+        pool.borrow();
+        pool.borrow();
+        pool.borrow();
+
+        verify(session, times(2)).openChannel("sftp");
+        verify(otherSession, times(1)).openChannel("sftp");
+        assertEquals(2, pool.getSessions());
+    }
+
+    @Test
+    public void shouldFallBackToAnotherSessionWhenTheServerRefusesChannels() throws Exception {
+        ChannelSftp first = mock(ChannelSftp.class);
+        ChannelSftp refused = mock(ChannelSftp.class);
+        doThrow(new JSchException("channel is not opened.")).when(refused).connect(anyInt());
+        when(session.openChannel("sftp")).thenReturn(first, refused);
+        ChannelSftp onOtherSession = channelsOn(otherSession);
+        SftpChannelPool pool = pool(4, 0, 60000);
+
+        pool.borrow();
+        assertSame(onOtherSession, pool.borrow());
+        pool.borrow();
+
+        verify(session, times(2)).openChannel("sftp");
+        verify(otherSession, times(2)).openChannel("sftp");
+    }
+
+    @Test
+    public void shouldReplaceUnhealthyChannels() throws Exception {
+        ChannelSftp broken = connectedChannel();
+        ChannelSftp replacement = connectedChannel();
+        when(session.openChannel("sftp")).thenReturn(broken, replacement);
+        SftpChannelPool pool = pool(4, 0, 60000);
+
+        pool.release(pool.borrow());
+        when(broken.isConnected()).thenReturn(false);
+
+        assertSame(replacement, pool.borrow());
+        verify(broken).disconnect();
+    }
+
+    @Test
+    public void shouldEvictIdleChannelsAndTheirSessions() throws Exception {
+        ChannelSftp channel = channelsOn(session);
+        SftpChannelPool pool = pool(4, 0, 1);
+
+        pool.release(pool.borrow());
+        Thread.sleep(10);
+        pool.evictIdle();
+
+        verify(channel).disconnect();
+        verify(session).disconnect();
+        assertEquals(0, pool.getOpenChannels());
+        assertEquals(0, pool.getSessions());
+    }
+
+    @Test(expected = JSchException.class)
+    public void shouldTimeOutWhenAllChannelsAreBorrowed() throws Exception {
+        channelsOn(session);
+        SftpChannelPool pool = new SftpChannelPool(jSch, connectionInfo(1, 0, 60000), 10);
+
+        pool.borrow();
+        pool.borrow();
+    }
+
+    @Test
+    public void shouldHandOutReleasedChannelsToWaitingBorrowers() throws Exception {
+        channelsOn(session);
+        final SftpChannelPool pool = pool(1, 0, 60000);
+        final ChannelSftp channel = pool.borrow();
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                pool.release(channel);
+            }
+        }.start();
+
+        assertSame(channel, pool.borrow());
+    }
+
+    @Test(timeout = 5000)
+    public void aHungConnectShouldNotHoldUpOtherBorrowers() throws Exception {
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch hung = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                connecting.countDown();
+                hung.await();
+                return null;
+            }
+        }).when(otherSession).connect(anyInt());
+        channelsOn(otherSession);
+        ChannelSftp channel = channelsOn(session);
+        final SftpChannelPool pool = pool(4, 1, 60000);
+        ChannelSftp borrowed = pool.borrow();
+
+        Thread stuck = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pool.borrow();
+                } catch (JSchException ignored) {
+                }
+            }
+        };
+        stuck.start();
+        connecting.await();
+
+        try {
+            pool.release(borrowed);
+            assertSame(channel, pool.tryBorrow());
+        } finally {
+            hung.countDown();
+            stuck.join();
+        }
+    }
+
+    @Test
+    public void closeShouldDisconnectEverything() throws Exception {
+        channelsOn(session);
+        SftpChannelPool pool = pool(4, 0, 60000);
+
+        ChannelSftp first = pool.borrow();
+        ChannelSftp second = pool.borrow();
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.close();
+
+        verify(first).disconnect();
+        verify(session).disconnect();
+    }
+
+    private SftpChannelPool pool(int maxChannels, int channelsPerSession, long idleTimeout) throws JSchException {
+        return new SftpChannelPool(jSch, connectionInfo(maxChannels, channelsPerSession, idleTimeout));
+    }
+
+    private SftpConnectionInfo connectionInfo(int maxChannels, int channelsPerSession, long idleTimeout) {
+        return new SftpConnectionInfo(USERNAME, "password", "OUT", HOSTNAME, PORT, TIMEOUT, maxChannels, channelsPerSession, idleTimeout);
+    }
+
+    private ChannelSftp channelsOn(Session session) throws JSchException {
+        ChannelSftp first = connectedChannel();
+        ChannelSftp second = connectedChannel();
+        ChannelSftp third = connectedChannel();
+        when(session.openChannel("sftp")).thenReturn(first, second, third);
+        return first;
+    }
+
+    private static Session connectedSession() {
+        Session session = mock(Session.class);
+        when(session.isConnected()).thenReturn(true);
+        return session;
+    }
+
+    private static ChannelSftp connectedChannel() {
+        ChannelSftp channel = mock(ChannelSftp.class);
+        when(channel.isConnected()).thenReturn(true);
+        return channel;
+    }
+}
@@ -4,15 +4,24 @@ import com.jcraft.jsch.*;
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.Vector;
+import java.util.regex.Pattern;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -53,7 +62,7 @@ public class SftpClientTest {
         ChannelSftp.LsEntry older = lsEntryWithGivenFilenameAndMTime("old.file", unixTimestampForDaysAgo(30));
         ChannelSftp.LsEntry newer = lsEntryWithGivenFilenameAndMTime("new.file", unixTimestampForDaysAgo(2));
 
-        when(sftp.ls(DOWNLOAD_FROM)).thenReturn(new Vector<Object>(asList(older, newer)));
+        serverLists(older, newer);
         Set<String> files = client.getFilesNewerThan(7);
 
         assertContainsOnly(files, new HashSet<String>(asList("new.file")));
@@ -68,6 +77,128 @@ public class SftpClientTest {
         verify(session).disconnect();
     }
 
+    @Test
+    public void aFailedFirstSegmentShouldReplaceTheClientsOwnChannel() throws Exception {
+        ChannelSftp extra = mock(ChannelSftp.class);
+        ChannelSftp replacement = mock(ChannelSftp.class);
+        SftpChannelPool pool = mock(SftpChannelPool.class);
+        SftpConnectionInfo info = new SftpConnectionInfo(USERNAME, PASSWORD, DOWNLOAD_FROM, HOSTNAME, PORT, TIMEOUT);
+        info.setSegmentedDownloads(1, 2);
+        when(pool.getConnectionInfo()).thenReturn(info);
+        when(pool.borrow()).thenReturn(sftp, replacement);
+        when(pool.tryBorrow()).thenReturn(extra, (ChannelSftp) null);
+        when(sftp.get(anyString(), any(SftpProgressMonitor.class), anyLong())).thenThrow(new SftpException(ChannelSftp.SSH_FX_FAILURE, "broken"));
+        when(extra.get(anyString(), any(SftpProgressMonitor.class), anyLong())).thenReturn(new ByteArrayInputStream(new byte[5]));
+        SftpClient client = new SftpClient(pool, DOWNLOAD_FROM);
+
+        try {
+            client.downloadFile(new RemoteFile("large.file", 10, 0));
+            fail("The download should have failed");
+        } catch (SftpException expected) {
+        }
+
+        verify(pool).invalidate(sftp);
+        verify(pool).release(extra);
+        client.close();
+        verify(pool).release(replacement);
+    }
+
+    @Test
+    public void reconnectShouldReplaceADisconnectedChannel() throws Exception {
+        ChannelSftp replacement = mock(ChannelSftp.class);
+        when(sftp.isConnected()).thenReturn(true);
+        when(replacement.isConnected()).thenReturn(true);
+        when(session.isConnected()).thenReturn(true);
+        when(session.openChannel("sftp")).thenReturn(sftp, replacement);
+        SftpClient client = new SftpClient(jSch, connectionInfo);
+
+        when(sftp.isConnected()).thenReturn(false);
+        client.reconnect();
+        client.getFilesNewerThan(7);
+
+        verify(sftp).disconnect();
+        verify(replacement).ls(eq(DOWNLOAD_FROM), any(ChannelSftp.LsEntrySelector.class));
+    }
+
+    @Test
+    public void reconnectShouldKeepAWorkingChannel() throws Exception {
+        when(sftp.isConnected()).thenReturn(true);
+        SftpClient client = new SftpClient(jSch, connectionInfo);
+
+        client.reconnect();
+
+        verify(session, times(1)).openChannel("sftp");
+        verify(sftp, never()).disconnect();
+    }
+
+    @Test
+    public void listingShouldHandOverMatchingFilesAsTheyArrive() throws Exception {
+        SftpClient client = new SftpClient(jSch, connectionInfo);
+        serverLists(lsEntryWithGivenFilenameAndMTime("a.csv", 2000),
+                lsEntryWithGivenFilenameAndMTime("b.txt", 2000),
+                lsEntryWithGivenFilenameAndMTime("c.csv", 999),
+                lsEntryWithGivenFilenameAndMTime("d.csv", 1000));
+
+        List<RemoteFile> files = client.listFilesSince(1000, Pattern.compile(".*\\.csv"));
+
+        assertEquals(asList(new RemoteFile("a.csv", 0, 2000), new RemoteFile("d.csv", 0, 1000)), files);
+    }
+
+    @Test
+    public void listingShouldSkipFolders() throws Exception {
+        SftpClient client = new SftpClient(jSch, connectionInfo);
+        ChannelSftp.LsEntry folder = lsEntryWithGivenFilenameAndMTime("..", 2000);
+        when(folder.getAttrs().isDir()).thenReturn(true);
+        serverLists(folder, lsEntryWithGivenFilenameAndMTime("a.csv", 2000));
+
+        List<RemoteFile> files = client.listFilesSince(1000, Pattern.compile(".*"));
+
+        assertEquals(asList(new RemoteFile("a.csv", 0, 2000)), files);
+    }
+
+    @Test
+    public void aVisitorShouldBeAbleToStopTheListingEarly() throws Exception {
+        SftpClient client = new SftpClient(jSch, connectionInfo);
+        final List<ChannelSftp.LsEntry> selected = serverLists(lsEntryWithGivenFilenameAndMTime("a", 2000),
+                lsEntryWithGivenFilenameAndMTime("b", 2000),
+                lsEntryWithGivenFilenameAndMTime("c", 2000));
+        final List<String> visited = new ArrayList<String>();
+
+        client.listFiles(0, Pattern.compile(".*"), new RemoteFileVisitor() {
+            @Override
+            public boolean visit(RemoteFile file) {
+                visited.add(file.getName());
+                return visited.size() < 2;
+            }
+        });
+
+        assertEquals(asList("a", "b"), visited);
+        assertEquals(2, selected.size());
+    }
+
+    /**
+     * Hand the given entries to the selector one at a time, like the server does, stopping when asked to
+     *
+     * @return the entries the selector was given
+     */
+    private List<ChannelSftp.LsEntry> serverLists(final ChannelSftp.LsEntry... entries) throws SftpException {
+        final List<ChannelSftp.LsEntry> selected = new ArrayList<ChannelSftp.LsEntry>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ChannelSftp.LsEntrySelector selector = (ChannelSftp.LsEntrySelector) invocation.getArguments()[1];
+                for (ChannelSftp.LsEntry entry : entries) {
+                    selected.add(entry);
+                    if (selector.select(entry) == ChannelSftp.LsEntrySelector.BREAK) {
+                        break;
+                    }
+                }
+                return null;
+            }
+        }).when(sftp).ls(eq(DOWNLOAD_FROM), any(ChannelSftp.LsEntrySelector.class));
+        return selected;
+    }
+
     private long unixTimestampForDaysAgo(int days) {
         return new DateTime().minusDays(days).getMillis() / 1000;
     }